@@ -10,8 +10,11 @@
 */
 package mondrian.olap.fun;
 
+import mondrian.calc.ExpCompiler;
 import mondrian.olap.*;
 import mondrian.resource.MondrianResource;
+import mondrian.rolap.RolapSchema;
+import mondrian.rolap.SharedExpResultCache;
 import mondrian.test.BasicQueryTest;
 import mondrian.test.FoodMartTestCase;
 import mondrian.test.TestContext;
@@ -5181,6 +5184,50 @@ public class FunctionTest extends FoodMartTestCase {
             "20");
     }
 
+    /**
+     * Tests that {@link FusingExpCompiler} compiles trees of operators to
+     * one calc, and that they return the same results as they do when
+     * compiled by the default compiler.
+     */
+    public void testFusingExpCompiler() {
+        final String ratio =
+            "([Measures].[Store Sales] - [Measures].[Store Cost])"
+            + " / IIf([Measures].[Unit Sales] > 20000, NULL,"
+            + " [Measures].[Unit Sales])";
+        final String query =
+            "with member [Measures].[Ratio] as '" + ratio + "'\n"
+            + "member [Measures].[Flag] as 'IIf([Measures].[Unit Sales] > 1000"
+            + " AND NOT ([Measures].[Store Cost] < 0"
+            + " OR [Measures].[Unit Sales] <> [Measures].[Unit Sales]),"
+            + " 1, - [Measures].[Unit Sales] * 2 + 1)'\n"
+            + "member [Measures].[Test] as '[Measures].[Ratio] >= 1.5"
+            + " XOR IIf([Measures].[Unit Sales] = 0, true,"
+            + " [Measures].[Store Cost] <= 10000)'\n"
+            + "select {[Measures].[Ratio], [Measures].[Flag],"
+            + " [Measures].[Test]} on 0,\n"
+            + " [Store].[Store City].Members on 1\n"
+            + "from [Sales]";
+        for (boolean nullDenominator : new boolean[] {false, true}) {
+            propSaver.set(
+                propSaver.properties.NullDenominatorProducesNull,
+                nullDenominator);
+            final String expected =
+                TestContext.toString(executeQuery(query));
+            ExpCompiler.Factory.setThreadLocalClassName(
+                FusingExpCompiler.class.getName());
+            try {
+                assertTrue(
+                    getTestContext().compileExpression(ratio, true)
+                        .contains(FusingExpCompiler.class.getName()));
+                assertEquals(
+                    expected,
+                    TestContext.toString(executeQuery(query)));
+            } finally {
+                ExpCompiler.Factory.clearThreadLocalClassName();
+            }
+        }
+    }
+
     public void testIIfWithStringAndNull()
     {
         assertExprReturns(
@@ -11747,6 +11794,33 @@ Intel platforms):
             "No function matches signature 'Cache(<Numeric Expression>, <Numeric Expression>)'");
     }
 
+    /**
+     * Tests that the results of Cache are shared between queries if
+     * {@link MondrianProperties#SharedExpCacheSize} is set, and that flushing
+     * cells empties the shared cache.
+     */
+    public void testCacheShared() {
+        propSaver.set(propSaver.properties.SharedExpCacheSize, 100);
+        final SharedExpResultCache cache =
+            ((RolapSchema) getConnection().getSchema())
+                .getSharedExpResultCache();
+        cache.flush();
+        final String expr =
+            "Cache(Count(TopCount([Product].[Product Name].Members, 5,"
+            + " [Measures].[Unit Sales])))";
+        assertExprReturns(expr, "5");
+        final long hitCount = cache.getHitCount();
+        assertTrue(cache.size() > 0);
+        assertExprReturns(expr, "5");
+        assertTrue(cache.getHitCount() > hitCount);
+
+        final CacheControl cacheControl = getConnection().getCacheControl(null);
+        final Cube salesCube = getConnection().getSchema().lookupCube(
+            "Sales", true);
+        cacheControl.flush(cacheControl.createMeasuresRegion(salesCube));
+        assertEquals(0, cache.size());
+    }
+
     // The following methods test VBA functions. They don't test all of them,
     // because the raw methods are tested in VbaTest, but they test the core
     // functionalities like error handling and operator overloading.
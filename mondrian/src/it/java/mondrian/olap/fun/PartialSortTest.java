@@ -9,6 +9,7 @@
 
 package mondrian.olap.fun;
 
+import mondrian.olap.MondrianProperties;
 import mondrian.test.PerformanceTest;
 
 import junit.framework.TestCase;
@@ -17,6 +18,8 @@ import org.apache.commons.collections.ComparatorUtils;
 import org.apache.commons.collections.comparators.ReverseComparator;
 import org.apache.log4j.Logger;
 
+import org.eigenbase.util.property.IntegerProperty;
+
 import java.util.*;
 
 /**
@@ -502,6 +505,66 @@ public class PartialSortTest extends TestCase
         randomItemTests(50000, 12000);
     }
 
+    // returns the positions of keys in stable order, sorted by comparator
+    private static int[] stableSortPositions(
+        final SortKeyArray keys, final boolean desc)
+    {
+        Integer[] positions = new Integer[keys.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        Arrays.sort(
+            positions,
+            new Comparator<Integer>() {
+                public int compare(Integer x, Integer y) {
+                    int c = FunUtil.compareValues(keys.get(x), keys.get(y));
+                    return desc ? -c : c;
+                }
+            });
+        int[] result = new int[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            result[i] = positions[i];
+        }
+        return result;
+    }
+
+    // tests SortKeyArray's heap and merge sorts against a stable sort, on
+    // random keys with many duplicates and some nulls
+    private void sortKeyArrayTests(int length, int limit) {
+        final SortKeyArray keys = new SortKeyArray(length);
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(10) > 0) {
+                keys.set(i, (double) random.nextInt(length / 10 + 1));
+            }
+        }
+        for (boolean desc : new boolean[] {true, false}) {
+            final int[] expected = stableSortPositions(keys, desc);
+            assertTrue(Arrays.equals(expected, keys.sort(desc)));
+            assertTrue(
+                Arrays.equals(
+                    Arrays.copyOf(expected, limit),
+                    keys.partialSort(limit, desc)));
+        }
+    }
+
+    public void testSortKeyArray() {
+        sortKeyArrayTests(1, 1);
+        sortKeyArrayTests(100, 20);
+        sortKeyArrayTests(50000, 10);
+        sortKeyArrayTests(50000, 50000);
+
+        // sort in parallel
+        final IntegerProperty property =
+            MondrianProperties.instance().SortParallelThreshold;
+        final int threshold = property.get();
+        try {
+            property.set(1000);
+            sortKeyArrayTests(50000, 500);
+        } finally {
+            property.set(threshold);
+        }
+    }
+
 
     // Compares elapsed time of full sort (mergesort), partial sort, and stable
     // partial sort on the same input set.
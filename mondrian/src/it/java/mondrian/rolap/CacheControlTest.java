@@ -1277,6 +1277,98 @@ public class CacheControlTest extends FoodMartTestCase {
         assertCacheStateEquals(tag, "${output2}", actual);
     }
 
+    /**
+     * Tests {@link CacheControl#refreshAppended(CacheControl.CellRegion)}.
+     * Appends fact rows in 1997 and 1998, and refreshes only [Time].[1998].
+     * The cached cells of 1998 see the appended row, but the cached cells of
+     * 1997 do not, because their segment was kept rather than flushed.
+     */
+    public void testRefreshAppended() throws Exception {
+        if (MondrianProperties.instance().DisableCaching.get()) {
+            return;
+        }
+        final TestContext testContext = getTestContext();
+        flushCache(testContext);
+        final CacheControl cacheControl = testContext.getCacheControl();
+        final String query =
+            "select {[Time].[1997], [Time].[1998]} on columns\n"
+            + "from [Sales]";
+        final String before =
+            "Axis #0:\n"
+            + "{}\n"
+            + "Axis #1:\n"
+            + "{[Time].[1997]}\n"
+            + "{[Time].[1998]}\n"
+            + "Row #0: 266,773\n"
+            + "Row #0: \n";
+        testContext.assertQueryReturns(query, before);
+
+        final javax.sql.DataSource dataSource =
+            ((RolapConnection) testContext.getConnection()).getDataSource();
+        final java.sql.Connection jdbcConnection =
+            dataSource.getConnection();
+        try {
+            final java.sql.Statement statement =
+                jdbcConnection.createStatement();
+            // Copy the keys of an existing row; give one copy a day in 1998.
+            java.sql.ResultSet resultSet =
+                statement.executeQuery(
+                    "select min(time_id) from time_by_day"
+                    + " where the_year = 1998");
+            assertTrue(resultSet.next());
+            final int timeId1998 = resultSet.getInt(1);
+            resultSet.close();
+            resultSet =
+                statement.executeQuery(
+                    "select product_id, time_id, customer_id, promotion_id,"
+                    + " store_id from sales_fact_1997");
+            assertTrue(resultSet.next());
+            final String keys =
+                resultSet.getInt(1) + ", %d, " + resultSet.getInt(3) + ", "
+                + resultSet.getInt(4) + ", " + resultSet.getInt(5);
+            final int timeId1997 = resultSet.getInt(2);
+            resultSet.close();
+            try {
+                for (int timeId : new int[] {timeId1997, timeId1998}) {
+                    statement.executeUpdate(
+                        "insert into sales_fact_1997 (product_id, time_id,"
+                        + " customer_id, promotion_id, store_id, store_sales,"
+                        + " store_cost, unit_sales) values ("
+                        + String.format(keys, timeId) + ", 1, 1, 1234)");
+                }
+
+                final Cube salesCube =
+                    testContext.getConnection().getSchema()
+                        .lookupCube("Sales", true);
+                final Member member1998 =
+                    salesCube.getSchemaReader(null).getMemberByUniqueName(
+                        Id.Segment.toList("Time", "1998"), true);
+                cacheControl.refreshAppended(
+                    cacheControl.createCrossjoinRegion(
+                        cacheControl.createMemberRegion(member1998, true),
+                        cacheControl.createMeasuresRegion(salesCube)));
+                testContext.assertQueryReturns(
+                    query,
+                    before.replace("Row #0: \n", "Row #0: 1,234\n"));
+
+                // A full flush reads the row appended in 1997, too.
+                flushCache(testContext);
+                testContext.assertQueryReturns(
+                    query,
+                    before
+                        .replace("266,773", "268,007")
+                        .replace("Row #0: \n", "Row #0: 1,234\n"));
+            } finally {
+                statement.executeUpdate(
+                    "delete from sales_fact_1997 where unit_sales = 1234");
+                statement.close();
+            }
+        } finally {
+            jdbcConnection.close();
+            flushCache(testContext);
+        }
+    }
+
     // todo: Test flushing a segment which is unconstrained
 
     // todo: Test flushing a segment where 2 or more axes are reduced. E.g.
@@ -11,6 +11,7 @@ package mondrian.rolap;
 import mondrian.olap.Connection;
 import mondrian.olap.MondrianProperties;
 import mondrian.olap.MondrianServer;
+import mondrian.olap.Result;
 import mondrian.rolap.agg.*;
 import mondrian.server.*;
 import mondrian.spi.Dialect;
@@ -21,6 +22,9 @@ import mondrian.util.DelegatingInvocationHandler;
 
 import junit.framework.Assert;
 
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Proxy;
 import java.util.*;
 import java.util.concurrent.Future;
@@ -32,6 +36,8 @@ import java.util.concurrent.Future;
  * @since 24-May-2007
  */
 public class FastBatchingCellReaderTest extends BatchTestCase {
+    private static final Logger LOGGER =
+        Logger.getLogger(FastBatchingCellReaderTest.class);
 
     private Locus locus;
     private Execution e;
@@ -2472,6 +2478,98 @@ public class FastBatchingCellReaderTest extends BatchTestCase {
             + "{[Education Level].[Partial High School]}\n"
             + "Row #0: 79,155\n");
     }
+
+    /**
+     * Tests that batches sent to the cache manager while evaluation continues
+     * are collected by the next phase. With a batch size of 1, each cell is a
+     * batch; the first two are pipelined, the third ends the pass.
+     */
+    public void testCellBatchPipeline() {
+        propSaver.set(MondrianProperties.instance().CellBatchSize, 1);
+        propSaver.set(
+            MondrianProperties.instance().CellBatchPipelineDepth, 2);
+        assertQueryReturns(
+            "select [Education Level].[Education Level].Members on 0\n"
+            + "from [Sales]",
+            "Axis #0:\n"
+            + "{}\n"
+            + "Axis #1:\n"
+            + "{[Education Level].[Bachelors Degree]}\n"
+            + "{[Education Level].[Graduate Degree]}\n"
+            + "{[Education Level].[High School Degree]}\n"
+            + "{[Education Level].[Partial College]}\n"
+            + "{[Education Level].[Partial High School]}\n"
+            + "Row #0: 68,839\n"
+            + "Row #0: 15,570\n"
+            + "Row #0: 78,664\n"
+            + "Row #0: 24,545\n"
+            + "Row #0: 79,155\n");
+    }
+
+    /**
+     * Tests that the cell batch quantum grows after full batches that load
+     * quickly, stays within its bounds, and gives way to a fixed
+     * {@link MondrianProperties#CellBatchSize}.
+     */
+    public void testCellBatchQuantum() {
+        propSaver.set(MondrianProperties.instance().CellBatchSize, -1);
+        final CellBatchQuantum quantum = new CellBatchQuantum();
+        assertEquals(CellBatchQuantum.DEFAULT_QUANTUM, quantum.get());
+
+        // A batch that did not fill the quantum, and loaded quickly, tells
+        // us nothing about a larger quantum.
+        quantum.record(10, false, 1000000L, 10);
+        final int q0 = quantum.get();
+        assertTrue(q0 <= CellBatchQuantum.DEFAULT_QUANTUM);
+
+        for (int i = 0; i < 20; i++) {
+            quantum.record(quantum.get(), true, 1000000L, quantum.get());
+            assertTrue(quantum.get() >= CellBatchQuantum.MIN_QUANTUM);
+            assertTrue(quantum.get() <= CellBatchQuantum.MAX_QUANTUM);
+        }
+
+        propSaver.set(MondrianProperties.instance().CellBatchSize, 7);
+        assertEquals(7, quantum.get());
+    }
+
+    /**
+     * Measures the memory allocated per cell when evaluating a grid of
+     * calculated measures whose stored measures are in the local cache. Most
+     * cells are read by the fast path in
+     * {@link FastBatchingCellReader#get(RolapEvaluator)}, which does not
+     * create a cell request. It only runs if debug logging is enabled for
+     * this class, and the JVM can measure allocations.
+     */
+    public void testCellLookupAllocation() {
+        if (!LOGGER.isDebugEnabled()
+            || !(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean))
+        {
+            return;
+        }
+        final com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        final String mdx =
+            "with member [Measures].[Ratio] as\n"
+            + " '([Measures].[Store Sales] - [Measures].[Store Cost])\n"
+            + "   / ([Measures].[Unit Sales], [Time].CurrentMember.Parent)'\n"
+            + "select [Time].[1997].Children * {[Measures].[Ratio]}"
+            + " on columns,\n"
+            + " [Customers].[Name].Members on rows\n"
+            + "from [Sales]";
+        // Warm up, and load the segments into the cache.
+        getTestContext().executeQuery(mdx);
+        final long threadId = Thread.currentThread().getId();
+        final long start = bean.getThreadAllocatedBytes(threadId);
+        final Result result = getTestContext().executeQuery(mdx);
+        final long bytes = bean.getThreadAllocatedBytes(threadId) - start;
+        final long cellCount =
+            (long) result.getAxes()[0].getPositions().size()
+            * result.getAxes()[1].getPositions().size();
+        LOGGER.debug(
+            cellCount + " cells, " + bytes / cellCount + " bytes per cell");
+    }
 }
 
 // End FastBatchingCellReaderTest.java
@@ -1376,6 +1376,175 @@ public class NonEmptyTest extends BatchTestCase {
         checkNative(3, 3, query, null, requestFreshConnection);
     }
 
+    /**
+     * Checks that Order over a non-empty set, breaking the hierarchy, is
+     * executed natively if enabled, and gives the same result as the
+     * interpreter.
+     */
+    public void testNativeOrder() {
+        String query =
+            "select {[Measures].[Store Sales]} on columns,"
+            + "  NON EMPTY Order("
+            + "        CrossJoin([Store].[USA].children, [Gender].[Gender].Members), "
+            + "        [Measures].[Store Sales], BDESC) ON ROWS"
+            + " from [Sales]";
+
+        propSaver.set(MondrianProperties.instance().EnableNativeOrder, true);
+
+        // Get a fresh connection; Otherwise the mondrian property setting
+        // is not refreshed for this parameter.
+        checkNative(6, 6, query, null, true);
+    }
+
+    /**
+     * Checks that Order sorts tuples whose value is null in SQL as the
+     * interpreter does, and that Order over a NonEmptyCrossJoin is not
+     * computed in SQL when the measure in the context may be null although
+     * there are rows. [Partial Sales] is null for stores whose id is less
+     * than 10.
+     */
+    public void testNativeOrderNullableMeasure() {
+        final TestContext testContext =
+            getTestContext().createSubstitutingCube(
+                "Sales",
+                null,
+                "<Measure name='Partial Sales' aggregator='sum'>\n"
+                + "  <MeasureExpression>\n"
+                + "  <SQL dialect='generic'>\n"
+                + "    case when store_id >= 10 then unit_sales end"
+                + "  </SQL></MeasureExpression></Measure>",
+                null, null);
+        final String[] queries = {
+            "select {[Measures].[Unit Sales],"
+            + " [Measures].[Partial Sales]} on columns,\n"
+            + " NON EMPTY Order([Store].[Store City].Members,"
+            + " [Measures].[Partial Sales], BASC) on rows\n"
+            + "from [Sales]",
+            "select {[Measures].[Unit Sales],"
+            + " [Measures].[Partial Sales]} on columns,\n"
+            + " NON EMPTY Order([Store].[Store City].Members,"
+            + " [Measures].[Partial Sales], BDESC) on rows\n"
+            + "from [Sales]",
+            "select {[Time].[1997]} on columns,\n"
+            + " Order(NonEmptyCrossJoin([Store].[Store City].Members,"
+            + " [Gender].[Gender].Members),"
+            + " [Measures].[Partial Sales], BASC) on rows\n"
+            + "from [Sales]\n"
+            + "where [Measures].[Partial Sales]"
+        };
+        for (String query : queries) {
+            propSaver.set(propSaver.properties.EnableNativeOrder, false);
+            final String expected =
+                TestContext.toString(
+                    testContext.withFreshConnection().executeQuery(query));
+
+            propSaver.set(propSaver.properties.EnableNativeOrder, true);
+            final String actual =
+                TestContext.toString(
+                    testContext.withFreshConnection().executeQuery(query));
+            assertEquals(query, expected, actual);
+        }
+    }
+
+    /**
+     * Checks that Count over a non-empty crossjoin, and Sum over a crossjoin,
+     * computed in SQL give the same results as the interpreter.
+     */
+    public void testNativeAggregate() {
+        String query =
+            "with member [Measures].[Tuple Count] as"
+            + " 'Count(NonEmptyCrossJoin([Store].[Store State].Members,"
+            + " [Gender].[Gender].Members))'\n"
+            + " member [Measures].[Sum Unit Sales] as"
+            + " 'Sum(CrossJoin([Store].[Store State].Members,"
+            + " [Gender].[Gender].Members), [Measures].[Unit Sales])'\n"
+            + "select {[Measures].[Tuple Count],"
+            + " [Measures].[Sum Unit Sales]} on columns,\n"
+            + " {[Time].[1997].Children} on rows\n"
+            + "from [Sales]";
+
+        propSaver.set(propSaver.properties.EnableNativeAggregate, false);
+        final String expected =
+            TestContext.toString(
+                getTestContext().withFreshConnection().executeQuery(query));
+
+        propSaver.set(propSaver.properties.EnableNativeAggregate, true);
+        propSaver.set(
+            propSaver.properties.AlertNativeEvaluationUnsupported, "ERROR");
+        // Get a fresh connection; Otherwise the mondrian property setting
+        // is not refreshed for this parameter.
+        final String actual =
+            TestContext.toString(
+                getTestContext().withFreshConnection().executeQuery(query));
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Checks that Count with EXCLUDEEMPTY counts the tuples for which the
+     * measure in the context is not empty, even when it is computed in SQL.
+     * The [Null Sales] column is null in every row, so every cell is empty
+     * although there are rows; [Sales Count] is a count, so is 0 rather than
+     * empty for such rows.
+     */
+    public void testNativeAggregateNullableMeasure() {
+        final TestContext testContext =
+            getTestContext().createSubstitutingCube(
+                "Sales",
+                null,
+                "<Measure name='Null Sales' aggregator='sum'>\n"
+                + "  <MeasureExpression>\n"
+                + "  <SQL dialect='generic'>\n"
+                + "    case when unit_sales < 0 then unit_sales end"
+                + "  </SQL></MeasureExpression></Measure>",
+                null, null);
+        final String query =
+            "with member [Store].[Tuple Count] as"
+            + " 'Count(CrossJoin([Store].[Store State].Members,"
+            + " [Gender].[Gender].Members), EXCLUDEEMPTY)'\n"
+            + "select {[Measures].[Null Sales],"
+            + " [Measures].[Sales Count]} on columns,\n"
+            + " {[Store].[Tuple Count]} on rows\n"
+            + "from [Sales]";
+
+        propSaver.set(propSaver.properties.EnableNativeAggregate, false);
+        final String expected =
+            TestContext.toString(
+                testContext.withFreshConnection().executeQuery(query));
+
+        propSaver.set(propSaver.properties.EnableNativeAggregate, true);
+        final String actual =
+            TestContext.toString(
+                testContext.withFreshConnection().executeQuery(query));
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Checks that a Count that may include empty tuples, which is never a
+     * candidate for native evaluation, does not raise an alert, even if
+     * alerts are errors.
+     */
+    public void testNativeAggregateNotCandidate() {
+        propSaver.set(propSaver.properties.EnableNativeAggregate, true);
+        propSaver.set(
+            propSaver.properties.AlertNativeEvaluationUnsupported, "ERROR");
+        getTestContext().withFreshConnection().assertQueryReturns(
+            "with member [Measures].[Family Count] as"
+            + " 'Count([Product].[Product Family].Members)'\n"
+            + " member [Measures].[Tuple Count] as"
+            + " 'Count(CrossJoin([Product].[Product Family].Members,"
+            + " [Gender].[Gender].Members))'\n"
+            + "select {[Measures].[Family Count],"
+            + " [Measures].[Tuple Count]} on columns\n"
+            + "from [Sales]",
+            "Axis #0:\n"
+            + "{}\n"
+            + "Axis #1:\n"
+            + "{[Measures].[Family Count]}\n"
+            + "{[Measures].[Tuple Count]}\n"
+            + "Row #0: 3\n"
+            + "Row #0: 6\n");
+    }
+
     /**
      * Checks that TopCount is executed natively with calculated member.
      */
@@ -9,6 +9,7 @@
 */
 package mondrian.rolap;
 
+import mondrian.olap.Result;
 import mondrian.test.FoodMartTestCase;
 
 public class RolapEvaluatorTest extends FoodMartTestCase {
@@ -41,6 +42,42 @@ public class RolapEvaluatorTest extends FoodMartTestCase {
         assertFalse(evalulator.getSlicerPredicateInfo().isSatisfiable());
         assertNull(evalulator.getSlicerPredicateInfo().getPredicate());
     }
+
+    /**
+     * Checks that aggregating a stored measure over a set, which evaluates
+     * the cells as a batch, gives the same results as aggregating a
+     * calculated measure, which evaluates each cell.
+     */
+    public void testEvaluateBatch() {
+        Result result = executeQuery(
+            "with member [Measures].[Unit Sales Calc] as\n"
+            + " '[Measures].[Unit Sales]'\n"
+            + "member [Measures].[Sum Batch] as\n"
+            + " 'Sum([Product].[Product Department].Members,"
+            + " [Measures].[Unit Sales])'\n"
+            + "member [Measures].[Sum Each] as\n"
+            + " 'Sum([Product].[Product Department].Members,"
+            + " [Measures].[Unit Sales Calc])'\n"
+            + "member [Measures].[Avg Batch] as\n"
+            + " 'Avg([Product].[Product Department].Members,"
+            + " [Measures].[Unit Sales])'\n"
+            + "member [Measures].[Avg Each] as\n"
+            + " 'Avg([Product].[Product Department].Members,"
+            + " [Measures].[Unit Sales Calc])'\n"
+            + "select {[Measures].[Sum Batch], [Measures].[Sum Each],\n"
+            + " [Measures].[Avg Batch], [Measures].[Avg Each]} on 0,\n"
+            + " [Store].[Store State].Members on 1\n"
+            + "from [Sales]");
+        final int rowCount = result.getAxes()[1].getPositions().size();
+        assertTrue(rowCount > 0);
+        for (int row = 0; row < rowCount; row++) {
+            for (int column = 0; column < 4; column += 2) {
+                assertEquals(
+                    result.getCell(new int[] {column + 1, row}).getValue(),
+                    result.getCell(new int[] {column, row}).getValue());
+            }
+        }
+    }
 }
 
 // End RolapEvaluatorTest.java
\ No newline at end of file
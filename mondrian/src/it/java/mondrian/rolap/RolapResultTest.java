@@ -318,6 +318,62 @@ Axis #2:
             + "Row #2: \n"
             + "Row #2: \n");
     }
+
+    /**
+     * Tests that evaluating cells in parallel gives the same result as
+     * evaluating them serially.
+     */
+    public void testParallelCellEvaluation() {
+        final String mdx =
+            "with member [Measures].[Profit Pct] as\n"
+            + " '([Measures].[Store Sales] - [Measures].[Store Cost])"
+            + " / [Measures].[Store Sales]', format_string = '0.0%'\n"
+            + "select {[Measures].[Unit Sales], [Measures].[Profit Pct]}\n"
+            + " * [Time].[Month].Members on columns,\n"
+            + " [Product].[Brand Name].Members on rows\n"
+            + "from [Sales]";
+        final TestContext testContext = TestContext.instance();
+        propSaver.set(propSaver.properties.CellEvaluationParallelism, 0);
+        final String serial = TestContext.toString(
+            testContext.executeQuery(mdx));
+        testContext.flushSchemaCache();
+        propSaver.set(propSaver.properties.CellEvaluationParallelism, 4);
+        final String parallel = TestContext.toString(
+            testContext.executeQuery(mdx));
+        assertEquals(serial, parallel);
+    }
+
+    /**
+     * Tests parallel cell evaluation of calculated members that use named
+     * sets which have not been evaluated when the cells are first evaluated.
+     */
+    public void testParallelCellEvaluationWithNamedSet() {
+        final String mdx =
+            "with set [Top Stores] as\n"
+            + " 'TopCount([Store].[Store Name].Members, 5,"
+            + " [Measures].[Unit Sales])'\n"
+            + " set [Big Months] as\n"
+            + " 'Filter([Time].[Month].Members,"
+            + " [Measures].[Unit Sales] > 21000)'\n"
+            + " member [Measures].[Top Store Sales] as\n"
+            + " 'Sum([Top Stores], [Measures].[Unit Sales])'\n"
+            + " member [Measures].[Big Month Count] as\n"
+            + " 'Count([Big Months])'\n"
+            + "select {[Measures].[Top Store Sales],"
+            + " [Measures].[Big Month Count]}\n"
+            + " * [Time].[Month].Members on columns,\n"
+            + " [Product].[Brand Name].Members on rows\n"
+            + "from [Sales]";
+        final TestContext testContext = TestContext.instance();
+        propSaver.set(propSaver.properties.CellEvaluationParallelism, 0);
+        final String serial = TestContext.toString(
+            testContext.executeQuery(mdx));
+        testContext.flushSchemaCache();
+        propSaver.set(propSaver.properties.CellEvaluationParallelism, 4);
+        final String parallel = TestContext.toString(
+            testContext.executeQuery(mdx));
+        assertEquals(serial, parallel);
+    }
 }
 
 // End RolapResultTest.java
@@ -0,0 +1,118 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.server.Execution;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import javax.sql.DataSource;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit test for {@link SqlScheduler}.
+ */
+public class SqlSchedulerTest extends TestCase {
+    private final SqlScheduler scheduler = SqlScheduler.instance();
+
+    public void testNoLimit() {
+        final DataSource dataSource = mock(DataSource.class);
+        scheduler.setLimit(dataSource, 0);
+        final List<SqlScheduler.Permit> permits =
+            new ArrayList<SqlScheduler.Permit>();
+        for (int i = 0; i < 10; i++) {
+            permits.add(acquire(dataSource, "Admin"));
+        }
+        for (SqlScheduler.Permit permit : permits) {
+            assertEquals(0, permit.waitNanos);
+            permit.release();
+        }
+    }
+
+    /**
+     * Statements that wait are served in order of priority, and within a
+     * priority, each role in turn.
+     */
+    public void testOrder() throws InterruptedException {
+        final DataSource dataSource = mock(DataSource.class);
+        scheduler.setLimit(dataSource, 1);
+        final SqlScheduler.Permit permit = acquire(dataSource, "Admin");
+        final List<String> order =
+            Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        threads.add(
+            start(
+                dataSource, SqlScheduler.Priority.CACHE_WARMING, "Admin",
+                "warm", order));
+        threads.add(
+            start(
+                dataSource, SqlScheduler.Priority.INTERACTIVE, "Admin",
+                "admin1", order));
+        threads.add(
+            start(
+                dataSource, SqlScheduler.Priority.INTERACTIVE, "Admin",
+                "admin2", order));
+        threads.add(
+            start(
+                dataSource, SqlScheduler.Priority.DRILL_THROUGH, "Sales",
+                "drill", order));
+        threads.add(
+            start(
+                dataSource, SqlScheduler.Priority.INTERACTIVE, "Sales",
+                "sales1", order));
+        permit.release();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(
+            Arrays.asList("admin1", "sales1", "admin2", "drill", "warm"),
+            order);
+    }
+
+    private SqlScheduler.Permit acquire(DataSource dataSource, String role) {
+        return scheduler.acquire(
+            dataSource, SqlScheduler.Priority.INTERACTIVE, role,
+            Execution.NONE);
+    }
+
+    /**
+     * Starts a thread that acquires a permit, records its name, and releases
+     * the permit; returns when the thread is waiting.
+     */
+    private Thread start(
+        final DataSource dataSource,
+        final SqlScheduler.Priority priority,
+        final String role,
+        final String name,
+        final List<String> order)
+        throws InterruptedException
+    {
+        final Thread thread =
+            new Thread(
+                new Runnable() {
+                    public void run() {
+                        final SqlScheduler.Permit permit =
+                            scheduler.acquire(
+                                dataSource, priority, role, Execution.NONE);
+                        order.add(name);
+                        permit.release();
+                    }
+                });
+        thread.start();
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+}
+
+// End SqlSchedulerTest.java
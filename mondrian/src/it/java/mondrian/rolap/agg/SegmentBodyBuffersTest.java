@@ -0,0 +1,192 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.rolap.cache.OffHeapSegmentCache;
+import mondrian.spi.SegmentBody;
+import mondrian.spi.SegmentHeader;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit test for {@link SegmentBodyBuffers} and
+ * {@link mondrian.rolap.cache.OffHeapSegmentCache}.
+ */
+public class SegmentBodyBuffersTest extends TestCase {
+    private static final SegmentBodyBuffers.Allocator DIRECT =
+        new SegmentBodyBuffers.Allocator() {
+            public ByteBuffer allocate(int length) {
+                return ByteBuffer.allocateDirect(length);
+            }
+        };
+
+    public void testDenseDouble() throws IOException {
+        final BitSet nulls = new BitSet();
+        nulls.set(1);
+        final SegmentBody body =
+            new DenseDoubleSegmentBody(
+                nulls, new double[] {1.5, 0, 3, -4, 5, 6}, axes());
+        final SegmentBody decoded = roundTrip(body);
+        assertTrue(decoded instanceof DirectDoubleSegmentBody);
+        assertTrue(((DirectDoubleSegmentBody) decoded).getBuffer().isDirect());
+        assertEquals(body.getValueMap(), decoded.getValueMap());
+        assertEquals(nulls, decoded.getNullValueIndicators());
+        assertTrue(
+            Arrays.equals(
+                (double[]) body.getValueArray(),
+                (double[]) decoded.getValueArray()));
+
+        // A decoded body can be encoded again.
+        assertEquals(body.getValueMap(), roundTrip(decoded).getValueMap());
+    }
+
+    public void testDenseInt() throws IOException {
+        final SegmentBody body =
+            new DenseIntSegmentBody(
+                new BitSet(), new int[] {1, 2, 3, 4, 5, 6}, axes());
+        final SegmentBody decoded = roundTrip(body);
+        assertTrue(decoded instanceof DirectIntSegmentBody);
+        assertEquals(body.getValueMap(), decoded.getValueMap());
+    }
+
+    public void testDenseObject() throws IOException {
+        final SegmentBody body =
+            new DenseObjectSegmentBody(
+                new Object[] {
+                    "a", null, new BigDecimal("1.25"), 7L, true,
+                    new java.sql.Date(0)
+                },
+                axes());
+        final SegmentBody decoded = roundTrip(body);
+        assertTrue(decoded instanceof DenseObjectSegmentBody);
+        assertEquals(body.getValueMap(), decoded.getValueMap());
+    }
+
+    public void testSparse() throws IOException {
+        final Map<CellKey, Object> map = new HashMap<CellKey, Object>();
+        map.put(CellKey.Generator.newCellKey(new int[] {0, 1}), 10d);
+        map.put(CellKey.Generator.newCellKey(new int[] {1, 2}), 20d);
+        final SegmentBody body = new SparseSegmentBody(map, axes());
+        final SegmentBody decoded = roundTrip(body);
+        assertTrue(decoded instanceof SparseSegmentBody);
+        assertEquals(map, decoded.getValueMap());
+        assertEquals(
+            asList(body.getAxisValueSets()),
+            asList(decoded.getAxisValueSets()));
+        assertTrue(
+            Arrays.equals(
+                body.getNullAxisFlags(), decoded.getNullAxisFlags()));
+    }
+
+    public void testCorruptBuffer() {
+        try {
+            SegmentBodyBuffers.decode(ByteBuffer.allocate(32));
+            fail("expected exception");
+        } catch (IOException e) {
+            // ok
+        }
+    }
+
+    public void testMappedCache() throws IOException {
+        final File dir = File.createTempFile("mondrian-test-", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        final OffHeapSegmentCache cache = new OffHeapSegmentCache(dir, 0);
+        try {
+            final SegmentHeader header = mock(SegmentHeader.class);
+            final SegmentBody body =
+                new DenseDoubleSegmentBody(
+                    new BitSet(), new double[] {1, 2, 3, 4, 5, 6}, axes());
+            assertTrue(cache.put(header, body));
+            assertEquals(
+                Collections.singletonList(header),
+                cache.getSegmentHeaders());
+            assertTrue(cache.getUsedBytes() > 0);
+            final SegmentBody cached = cache.get(header);
+            assertTrue(cached instanceof DirectDoubleSegmentBody);
+            assertEquals(body.getValueMap(), cached.getValueMap());
+            assertTrue(cache.remove(header));
+            assertNull(cache.get(header));
+            assertEquals(0, cache.getUsedBytes());
+        } finally {
+            cache.tearDown();
+            assertTrue(dir.delete());
+        }
+    }
+
+    public void testCacheRefusesSegmentLargerThanMaxSize() {
+        final OffHeapSegmentCache cache = new OffHeapSegmentCache(null, 16);
+        try {
+            final SegmentHeader header = mock(SegmentHeader.class);
+            final SegmentBody body =
+                new DenseDoubleSegmentBody(
+                    new BitSet(), new double[] {1, 2, 3, 4, 5, 6}, axes());
+            assertFalse(cache.put(header, body));
+            assertNull(cache.get(header));
+            assertTrue(cache.getSegmentHeaders().isEmpty());
+            assertEquals(0, cache.getUsedBytes());
+        } finally {
+            cache.tearDown();
+        }
+    }
+
+    /**
+     * Tests that a body whose encoding would exceed {@link Integer#MAX_VALUE}
+     * bytes is refused, rather than overflowing the offsets. The body claims
+     * 300 million cells without holding them; nothing is allocated.
+     */
+    public void testTooLargeToEncode() throws IOException {
+        final SegmentBody body =
+            new DirectDoubleSegmentBody(
+                new BitSet(), DoubleBuffer.allocate(1), axes())
+            {
+                protected int getSize() {
+                    return 300000000;
+                }
+            };
+        assertNull(SegmentBodyBuffers.encode(body, DIRECT));
+
+        final OffHeapSegmentCache cache = new OffHeapSegmentCache(null, 0);
+        try {
+            final SegmentHeader header = mock(SegmentHeader.class);
+            assertFalse(cache.put(header, body));
+            assertNull(cache.get(header));
+        } finally {
+            cache.tearDown();
+        }
+    }
+
+    private static SegmentBody roundTrip(SegmentBody body) throws IOException {
+        return SegmentBodyBuffers.decode(
+            SegmentBodyBuffers.encode(body, DIRECT));
+    }
+
+    private static List<Pair<SortedSet<Comparable>, Boolean>> axes() {
+        final SortedSet<Comparable> axis1 =
+            new TreeSet<Comparable>(asList("x", "y"));
+        final SortedSet<Comparable> axis2 =
+            new TreeSet<Comparable>(asList(1, 2));
+        return asList(
+            Pair.<SortedSet<Comparable>, Boolean>of(axis1, false),
+            Pair.<SortedSet<Comparable>, Boolean>of(axis2, true));
+    }
+}
+
+// End SegmentBodyBuffersTest.java
@@ -15,6 +15,7 @@ import mondrian.test.*;
 import mondrian.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import static mondrian.util.Pair.of;
 
@@ -368,7 +369,7 @@ public class SegmentBuilderTest extends BatchTestCase {
                     null, 47000, 4, false, null),
                 new HashSet<String>(Arrays.asList("col1", "col2")),
                 null, RolapAggregator.Sum, Dialect.Datatype.Numeric);
-        assertTrue(rollup.right instanceof SparseSegmentBody);
+        assertTrue(rollup.right instanceof PrimitiveSparseSegmentBody);
     }
 
     public void testRollupWithOOMPossibility() {
@@ -385,7 +386,7 @@ public class SegmentBuilderTest extends BatchTestCase {
                     null, 44000, 4, false, null),
                 new HashSet<String>(Arrays.asList("col1", "col2")),
                 null, RolapAggregator.Sum, Dialect.Datatype.Numeric);
-        assertTrue(rollup.right instanceof SparseSegmentBody);
+        assertTrue(rollup.right instanceof PrimitiveSparseSegmentBody);
     }
 
     public void testRollupShouldBeDense() {
@@ -465,6 +466,31 @@ public class SegmentBuilderTest extends BatchTestCase {
       }
     }
 
+    public void testMerge() {
+        // A segment has cells for CA and OR. Rows are appended for OR and
+        // WA. After the merge, OR is the sum, and WA is a new axis value.
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        axes.add(of(toSortedSet("CA", "OR"), false));
+        final SegmentBody body =
+            new DenseDoubleSegmentBody(
+                new BitSet(), new double[] {1, 2}, axes);
+        final List<Pair<SortedSet<Comparable>, Boolean>> deltaAxes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        deltaAxes.add(of(toSortedSet("OR", "WA"), false));
+        final SegmentBody delta =
+            new DenseDoubleSegmentBody(
+                new BitSet(), new double[] {10, 5}, deltaAxes);
+
+        final SegmentBody merged =
+            SegmentBuilder.merge(
+                body, delta, RolapAggregator.Sum, Dialect.Datatype.Numeric);
+        assertEquals(
+            toSortedSet("CA", "OR", "WA"), merged.getAxisValueSets()[0]);
+        assertArraysAreEqual(
+            new double[] {1, 12, 5}, (double[]) merged.getValueArray());
+    }
+
     public void testOverlappingSegments() {
         // MONDRIAN-2107
         // The segments created by the first 2 queries below overlap on
@@ -517,6 +543,105 @@ public class SegmentBuilderTest extends BatchTestCase {
             + "Row #0: 72,024\n");
     }
 
+    /**
+     * Tests that a query rolls up from a segment that another execution is
+     * still loading, rather than issuing SQL of its own. The first query's
+     * SQL is held until the second query is waiting for it.
+     */
+    public void testRollupFromSegmentLoadingInOtherExecution()
+        throws Exception
+    {
+        getTestContext().flushSchemaCache();
+        final TestContext context = getTestContext().withFreshConnection();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> cellSqls =
+            Collections.synchronizedList(new ArrayList<String>());
+        RolapUtil.setHook(
+            new RolapUtil.ExecuteQueryHook()
+        {
+            public void onExecuteQuery(String sql) {
+                if (!sql.matches(".*sum\\([^ ]+unit_sales.*")) {
+                    return;
+                }
+                cellSqls.add(sql);
+                if (cellSqls.size() == 1) {
+                    loading.countDown();
+                    try {
+                        release.await(60, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        });
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Result> months =
+                executor.submit(
+                    new Callable<Result>() {
+                        public Result call() {
+                            return context.executeQuery(
+                                "select Descendants([Time].[1997],"
+                                + " [Time].[Month]) on 0 from sales");
+                        }
+                    });
+            assertTrue(loading.await(60, TimeUnit.SECONDS));
+
+            final Thread[] quartersThread = {null};
+            final Future<Result> quarters =
+                executor.submit(
+                    new Callable<Result>() {
+                        public Result call() {
+                            quartersThread[0] = Thread.currentThread();
+                            return context.executeQuery(
+                                "select [Time].[1997].children on 0"
+                                + " from sales");
+                        }
+                    });
+            // Wait until the second query is waiting for the first query's
+            // segment, or has issued SQL of its own.
+            int waitingCount = 0;
+            for (int i = 0; i < 600 && waitingCount < 5; i++) {
+                Thread.sleep(100);
+                final Thread thread = quartersThread[0];
+                if (cellSqls.size() > 1) {
+                    break;
+                } else if (thread != null
+                    && thread.getState() == Thread.State.WAITING)
+                {
+                    ++waitingCount;
+                } else {
+                    waitingCount = 0;
+                }
+            }
+            release.countDown();
+
+            months.get(60, TimeUnit.SECONDS);
+            assertEquals(
+                "Axis #0:\n"
+                + "{}\n"
+                + "Axis #1:\n"
+                + "{[Time].[1997].[Q1]}\n"
+                + "{[Time].[1997].[Q2]}\n"
+                + "{[Time].[1997].[Q3]}\n"
+                + "{[Time].[1997].[Q4]}\n"
+                + "Row #0: 66,291\n"
+                + "Row #0: 62,610\n"
+                + "Row #0: 65,848\n"
+                + "Row #0: 72,024\n",
+                TestContext.toString(quarters.get(60, TimeUnit.SECONDS)));
+            assertEquals(
+                "Expected the second query to roll up the segment that the"
+                + " first query was loading",
+                1,
+                cellSqls.size());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
     public void testNonOverlappingRollupWithUnconstrainedColumn() {
         // MONDRIAN-2107
         // The two segments loaded by the 1st 2 queries will have predicates
@@ -987,6 +1112,59 @@ public class SegmentBuilderTest extends BatchTestCase {
                 axes));
     }
 
+    /**
+     * Tests that flushing a region of several columns excludes only the
+     * cells that are in the region, and that adjacent regions are merged.
+     */
+    public void testConstrain() {
+        final SegmentHeader header =
+            makeDummySegmentHeader(
+                asList(
+                    new SegmentColumn("c0", 2, toSortedSet("a", "b")),
+                    new SegmentColumn("c1", 2, toSortedSet("x", "y"))));
+        final SegmentColumn[] region0 = {
+            new SegmentColumn("c1", 2, toSortedSet("x")),
+            new SegmentColumn("c0", 2, toSortedSet("a")),
+            new SegmentColumn("c2", 2, toSortedSet("z"))
+        };
+        assertTrue(header.canConstrain(region0));
+        final SegmentHeader header0 = header.constrain(region0);
+        assertEquals(1, header0.getExcludedRegions().size());
+        assertTrue(header0.isExcluded(coords("a", "x")));
+        assertFalse(header0.isExcluded(coords("a", "y")));
+        assertFalse(header0.isExcluded(coords("b", "x")));
+
+        final SegmentHeader header1 =
+            header0.constrain(
+                new SegmentColumn[] {
+                    new SegmentColumn("c0", 2, toSortedSet("a")),
+                    new SegmentColumn("c1", 2, toSortedSet("y"))
+                });
+        assertEquals(1, header1.getExcludedRegions().size());
+        assertTrue(header1.isExcluded(coords("a", "y")));
+        assertFalse(header1.isExcluded(coords("b", "y")));
+
+        // A region that covers the whole segment cannot constrain it.
+        assertFalse(
+            header.canConstrain(
+                new SegmentColumn[] {
+                    new SegmentColumn("c0", 2, toSortedSet("a", "b"))
+                }));
+        assertFalse(
+            header.canConstrain(
+                new SegmentColumn[] {
+                    new SegmentColumn("c2", 2, toSortedSet("z"))
+                }));
+    }
+
+    private static Map<String, Comparable> coords(String c0, String c1) {
+        final Map<String, Comparable> coords =
+            new HashMap<String, Comparable>();
+        coords.put("c0", c0);
+        coords.put("c1", c1);
+        return coords;
+    }
+
     private SegmentHeader makeDummySegmentHeader(
         List<SegmentColumn> constrainedColumns)
     {
@@ -999,7 +1177,7 @@ public class SegmentBuilderTest extends BatchTestCase {
             Collections.<String>emptyList(),
             "dummyFactTable",
             BitKey.Factory.makeBitKey(3),
-            Collections.<SegmentColumn>emptyList());
+            Collections.<SegmentColumn[]>emptyList());
     }
 
     private String [][] dummyColumnValues(int cols, int numVals) {
@@ -0,0 +1,178 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.olap.MondrianServer;
+import mondrian.rolap.*;
+import mondrian.rolap.cache.MemorySegmentCache;
+import mondrian.spi.*;
+import mondrian.test.FoodMartTestCase;
+import mondrian.util.ByteString;
+import mondrian.util.Pair;
+
+import java.io.*;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Unit test for {@link SegmentCacheSnapshot}, and for restoring a snapshot
+ * in {@link SegmentCacheManager}.
+ */
+public class SegmentCacheSnapshotTest extends FoodMartTestCase {
+    private File dir;
+    private File file;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("snapshot", "");
+        assertTrue(dir.delete());
+        file = new File(dir, SegmentCacheSnapshot.FILE_NAME);
+    }
+
+    protected void tearDown() throws Exception {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+    public void testNoSnapshot() throws IOException {
+        assertTrue(SegmentCacheSnapshot.read(file).isEmpty());
+    }
+
+    public void testBodies() throws IOException {
+        final MemorySegmentCache cache = new MemorySegmentCache();
+        final SegmentHeader header = header("1997");
+        cache.put(header, body());
+        cache.put(header("1998"), body());
+        assertEquals(2, SegmentCacheSnapshot.write(file, cache, true));
+
+        final List<Pair<SegmentHeader, SegmentBody>> list =
+            SegmentCacheSnapshot.read(file);
+        assertEquals(2, list.size());
+        for (Pair<SegmentHeader, SegmentBody> pair : list) {
+            if (pair.left.equals(header)) {
+                assertEquals(
+                    body().getValueMap(), pair.right.getValueMap());
+                return;
+            }
+        }
+        fail("header not found");
+    }
+
+    public void testHeaders() throws IOException {
+        final MemorySegmentCache cache = new MemorySegmentCache();
+        cache.put(header("1997"), body());
+        assertEquals(1, SegmentCacheSnapshot.write(file, cache, false));
+
+        final List<Pair<SegmentHeader, SegmentBody>> list =
+            SegmentCacheSnapshot.read(file);
+        assertEquals(1, list.size());
+        assertEquals(header("1997"), list.get(0).left);
+        assertNull(list.get(0).right);
+
+        SegmentCacheSnapshot.write(
+            file, asList(header("1997"), header("1998")));
+        assertEquals(2, SegmentCacheSnapshot.read(file).size());
+
+        // A snapshot is only read once.
+        assertTrue(SegmentCacheSnapshot.read(file).isEmpty());
+    }
+
+    public void testTruncated() throws IOException {
+        final MemorySegmentCache cache = new MemorySegmentCache();
+        cache.put(header("1997"), body());
+        SegmentCacheSnapshot.write(file, cache, true);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 4);
+        raf.close();
+        try {
+            SegmentCacheSnapshot.read(file);
+            fail("expected exception");
+        } catch (IOException e) {
+            // ok
+        }
+        // The corrupt snapshot has been deleted.
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Tests that segments restored from a snapshot that was taken before the
+     * schema changed are dropped, and that the others are only put into the
+     * local cache when their star is loaded.
+     */
+    public void testRestoreAgainstChangedSchema() throws IOException {
+        final RolapCube cube =
+            (RolapCube) getConnection().getSchema().lookupCube("Sales", true);
+        final RolapStar star = cube.getStar();
+        final SegmentHeader stale = header("1997");
+        final SegmentHeader current =
+            header("1998", star.getSchema().getChecksum());
+        final MemorySegmentCache cache = new MemorySegmentCache();
+        cache.put(stale, body());
+        cache.put(current, body());
+        assertEquals(2, SegmentCacheSnapshot.write(file, cache, true));
+
+        propSaver.set(
+            propSaver.properties.SegmentCachePersistDirectory,
+            dir.getAbsolutePath());
+        final SegmentCacheManager cacheMgr =
+            new SegmentCacheManager(
+                MondrianServer.forConnection(getConnection()));
+        try {
+            assertNull(cacheMgr.compositeCache.get(stale));
+            assertNull(cacheMgr.compositeCache.get(current));
+
+            assertTrue(cacheMgr.loadCacheForStar(star));
+            assertNull(cacheMgr.compositeCache.get(stale));
+            assertNotNull(cacheMgr.compositeCache.get(current));
+        } finally {
+            cacheMgr.shutdown();
+        }
+    }
+
+    private static SegmentHeader header(String year) {
+        return header(year, new ByteString(new byte[] {1, 2, 3}));
+    }
+
+    private static SegmentHeader header(String year, ByteString checksum) {
+        final BitKey bitKey = BitKey.Factory.makeBitKey(4);
+        bitKey.set(1);
+        return new SegmentHeader(
+            "FoodMart",
+            checksum,
+            "Sales",
+            "Unit Sales",
+            Collections.singletonList(
+                new SegmentColumn(
+                    "year", 2,
+                    new TreeSet<Comparable>(
+                        Collections.<Comparable>singletonList(year)))),
+            Collections.<String>emptyList(),
+            "sales_fact_1997",
+            bitKey,
+            Collections.<SegmentColumn[]>emptyList());
+    }
+
+    private static SegmentBody body() {
+        return new DenseIntSegmentBody(
+            new BitSet(),
+            new int[] {1, 2},
+            Collections.singletonList(
+                Pair.<SortedSet<Comparable>, Boolean>of(
+                    new TreeSet<Comparable>(asList("F", "M")), false)));
+    }
+}
+
+// End SegmentCacheSnapshotTest.java
@@ -0,0 +1,91 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.BitKey;
+import mondrian.spi.*;
+import mondrian.util.ByteString;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Unit test for the ranking of segments by {@link SegmentCacheWarmer}.
+ */
+public class SegmentCacheWarmerTest extends TestCase {
+    private SegmentCacheWarmer warmer;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        warmer = new SegmentCacheWarmer(null, 2, 1);
+    }
+
+    protected void tearDown() throws Exception {
+        warmer.shutdown();
+        super.tearDown();
+    }
+
+    public void testRank() {
+        final SegmentHeader cheap = header("Unit Sales", false);
+        final SegmentHeader expensive = header("Store Sales", false);
+        final SegmentHeader popular = header("Store Cost", false);
+        warmer.recordLoad(cheap, 1000000L);
+        warmer.recordLoad(expensive, 50000000L);
+        warmer.recordLoad(popular, 10000000L);
+        for (int i = 0; i < 10; i++) {
+            warmer.recordHit(popular);
+        }
+        assertEquals(asList(popular, expensive), warmer.getTopSegments());
+    }
+
+    public void testCompoundPredicates() {
+        // Segments with compound predicates cannot be re-loaded.
+        warmer.recordLoad(header("Unit Sales", true), 1000000L);
+        assertTrue(warmer.getTopSegments().isEmpty());
+    }
+
+    public void testPrune() {
+        final SegmentHeader popular = header("Store Cost", false);
+        warmer.recordLoad(popular, 1000000L);
+        warmer.recordHit(popular);
+        for (int i = 0; i < 100; i++) {
+            warmer.recordLoad(header("Measure " + i, false), 1000L);
+        }
+        assertEquals(popular, warmer.getTopSegments().get(0));
+    }
+
+    private static SegmentHeader header(
+        String measureName,
+        boolean compound)
+    {
+        final BitKey bitKey = BitKey.Factory.makeBitKey(4);
+        bitKey.set(1);
+        return new SegmentHeader(
+            "FoodMart",
+            new ByteString(new byte[] {1, 2, 3}),
+            "Sales",
+            measureName,
+            Collections.singletonList(
+                new SegmentColumn(
+                    "year", 2,
+                    new TreeSet<Comparable>(
+                        Collections.<Comparable>singletonList(1997)))),
+            compound
+                ? Collections.singletonList("`gender` = 'F'")
+                : Collections.<String>emptyList(),
+            "sales_fact_1997",
+            bitKey,
+            Collections.<SegmentColumn[]>emptyList());
+    }
+}
+
+// End SegmentCacheWarmerTest.java
@@ -0,0 +1,230 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.BitKey;
+import mondrian.rolap.CellKey;
+import mondrian.rolap.RolapUtil;
+import mondrian.spi.*;
+import mondrian.util.ByteString;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Unit test for {@link SegmentCodec}.
+ *
+ * <p>{@link #testThroughput()} compares the codec with Java serialization. It
+ * only runs if debug logging is enabled for this class.</p>
+ */
+public class SegmentCodecTest extends TestCase {
+    private static final Logger LOGGER =
+        Logger.getLogger(SegmentCodecTest.class);
+
+    private static final SegmentCodec[] CODECS = {
+        SegmentCodec.DEFAULT, SegmentCodec.COMPRESSED
+    };
+
+    public void testHeader() throws IOException {
+        final BitKey bitKey = BitKey.Factory.makeBitKey(70);
+        bitKey.set(3);
+        bitKey.set(66);
+        final SegmentHeader header =
+            new SegmentHeader(
+                "FoodMart",
+                new ByteString(new byte[] {1, 2, 3}),
+                "Sales",
+                "Unit Sales",
+                asList(
+                    new SegmentColumn(
+                        "year", 2, new TreeSet<Comparable>(asList(1997, 1998))),
+                    new SegmentColumn("state", 3, null)),
+                Collections.singletonList("`gender` = 'F'"),
+                "sales_fact_1997",
+                bitKey,
+                Collections.singletonList(
+                    new SegmentColumn[] {
+                        new SegmentColumn(
+                            "state", 3,
+                            new TreeSet<Comparable>(asList("CA", "OR"))),
+                        new SegmentColumn(
+                            "year", 2,
+                            new TreeSet<Comparable>(asList(1997)))
+                    }));
+        for (SegmentCodec codec : CODECS) {
+            final SegmentHeader decoded =
+                codec.decodeHeader(codec.encodeHeader(header));
+            assertEquals(header, decoded);
+            assertEquals(header.getUniqueID(), decoded.getUniqueID());
+            assertEquals(
+                header.getDescription(), decoded.getDescription());
+            assertEquals(
+                header.constrainedColsBitKey.getClass(),
+                decoded.constrainedColsBitKey.getClass());
+        }
+    }
+
+    public void testDenseDouble() throws IOException {
+        final BitSet nulls = new BitSet();
+        nulls.set(2);
+        // Integral values are encoded differently from the others.
+        assertRoundTrip(
+            new DenseDoubleSegmentBody(
+                nulls, new double[] {1, -2, 0, 4, 5, 6}, axes()));
+        assertRoundTrip(
+            new DenseDoubleSegmentBody(
+                nulls, new double[] {1.5, -0d, 0, Double.NaN, 5, 6}, axes()));
+    }
+
+    public void testDenseInt() throws IOException {
+        assertRoundTrip(
+            new DenseIntSegmentBody(
+                new BitSet(),
+                new int[] {Integer.MIN_VALUE, -1, 0, 1, 2, Integer.MAX_VALUE},
+                axes()));
+    }
+
+    public void testDenseObject() throws IOException {
+        final java.sql.Timestamp timestamp = new java.sql.Timestamp(12345L);
+        timestamp.setNanos(6789);
+        assertRoundTrip(
+            new DenseObjectSegmentBody(
+                new Object[] {
+                    "\u00e9t\u00e9", null, new BigDecimal("-1.25"),
+                    Long.MAX_VALUE, true, timestamp
+                },
+                axes()));
+    }
+
+    public void testSparse() throws IOException {
+        final Map<CellKey, Object> map = new HashMap<CellKey, Object>();
+        map.put(CellKey.Generator.newCellKey(new int[] {0, 1}), 10d);
+        map.put(
+            CellKey.Generator.newCellKey(new int[] {1, 0}),
+            RolapUtil.sqlNullValue);
+        assertRoundTrip(new SparseSegmentBody(map, axes()));
+    }
+
+    public void testCorrupt() {
+        final byte[] bytes =
+            SegmentCodec.DEFAULT.encodeBody(
+                new DenseIntSegmentBody(
+                    new BitSet(), new int[] {1, 2, 3, 4, 5, 6}, axes()));
+        try {
+            SegmentCodec.DEFAULT.decodeBody(
+                Arrays.copyOf(bytes, bytes.length / 2));
+            fail("expected exception");
+        } catch (IOException e) {
+            // ok
+        }
+        try {
+            // A body is not a header.
+            SegmentCodec.DEFAULT.decodeHeader(bytes);
+            fail("expected exception");
+        } catch (IOException e) {
+            // ok
+        }
+    }
+
+    /**
+     * Compares the size of encoded segments, and the time to encode and
+     * decode them, with Java serialization.
+     */
+    public void testThroughput() throws Exception {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        final int cellCount = 100000;
+        final SortedSet<Comparable> days = new TreeSet<Comparable>();
+        for (int i = 0; i < cellCount / 10; i++) {
+            days.add(i);
+        }
+        final SortedSet<Comparable> stores = new TreeSet<Comparable>();
+        for (int i = 0; i < 10; i++) {
+            stores.add("Store " + i);
+        }
+        final double[] values = new double[cellCount];
+        final Random random = new Random(0);
+        for (int i = 0; i < cellCount; i++) {
+            values[i] = random.nextInt(1000);
+        }
+        final SegmentBody body =
+            new DenseDoubleSegmentBody(
+                new BitSet(),
+                values,
+                asList(
+                    Pair.<SortedSet<Comparable>, Boolean>of(days, false),
+                    Pair.<SortedSet<Comparable>, Boolean>of(stores, false)));
+        final int n = 20;
+
+        long start = System.nanoTime();
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(body);
+            oos.close();
+            size = out.size();
+            new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))
+                .readObject();
+        }
+        LOGGER.debug(
+            "Java serialization: " + size + " bytes, "
+            + (System.nanoTime() - start) / n / 1000 + " micros");
+
+        for (SegmentCodec codec : CODECS) {
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                final byte[] bytes = codec.encodeBody(body);
+                size = bytes.length;
+                codec.decodeBody(bytes);
+            }
+            LOGGER.debug(
+                (codec == SegmentCodec.COMPRESSED ? "Compressed codec: "
+                    : "Codec: ")
+                + size + " bytes, "
+                + (System.nanoTime() - start) / n / 1000 + " micros");
+        }
+    }
+
+    private static void assertRoundTrip(SegmentBody body) throws IOException {
+        for (SegmentCodec codec : CODECS) {
+            final SegmentBody decoded =
+                codec.decodeBody(codec.encodeBody(body));
+            assertEquals(body.getClass(), decoded.getClass());
+            assertEquals(body.getValueMap(), decoded.getValueMap());
+            assertEquals(
+                asList(body.getAxisValueSets()),
+                asList(decoded.getAxisValueSets()));
+            assertTrue(
+                Arrays.equals(
+                    body.getNullAxisFlags(), decoded.getNullAxisFlags()));
+        }
+    }
+
+    private static List<Pair<SortedSet<Comparable>, Boolean>> axes() {
+        final SortedSet<Comparable> axis1 =
+            new TreeSet<Comparable>(asList("x", "y"));
+        final SortedSet<Comparable> axis2 =
+            new TreeSet<Comparable>(asList(-5L, 2L, 300L));
+        return asList(
+            Pair.<SortedSet<Comparable>, Boolean>of(axis1, false),
+            Pair.<SortedSet<Comparable>, Boolean>of(axis2, true));
+    }
+}
+
+// End SegmentCodecTest.java
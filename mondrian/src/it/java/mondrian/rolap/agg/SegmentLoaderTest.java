@@ -13,6 +13,7 @@ package mondrian.rolap.agg;
 
 import mondrian.olap.*;
 import mondrian.rolap.*;
+import mondrian.rolap.sql.SqlQuery;
 import mondrian.server.*;
 import mondrian.server.Statement;
 import mondrian.spi.Dialect;
@@ -710,6 +711,81 @@ public class SegmentLoaderTest extends BatchTestCase {
             cubeNameSales, measureUnitSales);
     }
 
+    /**
+     * Tests that a list predicate generates runs of consecutive integers as
+     * ranges, if {@link MondrianProperties#PredicateRangeMinLength} is set.
+     */
+    public void testListPredicateRanges() {
+        final RolapStar star =
+            getMeasure(cubeNameSales, measureUnitSales).getStar();
+        final RolapStar.Column month =
+            star.lookupColumn(tableTime, "month_of_year");
+        final List<StarColumnPredicate> list =
+            new ArrayList<StarColumnPredicate>();
+        for (int m : new int[] {10, 1, 2, 3, 4, 7, 9}) {
+            list.add(new ValueColumnPredicate(month, m));
+        }
+        final ListColumnPredicate predicate =
+            new ListColumnPredicate(month, list);
+        final SqlQuery sqlQuery = star.getSqlQuery();
+        final String expr = month.generateExprString(sqlQuery);
+
+        assertEquals(7, predicate.getSqlTermCount());
+
+        propSaver.set(MondrianProperties.instance().PredicateRangeMinLength, 3);
+        final StringBuilder buf = new StringBuilder();
+        predicate.toSql(sqlQuery, buf);
+        assertEquals(
+            "(" + expr + " between 1 and 4 or " + expr + " in (7, 9, 10))",
+            buf.toString());
+        assertEquals(4, predicate.getSqlTermCount());
+    }
+
+    /**
+     * Tests that runs separated by gaps become separate ranges, each bounded
+     * by the values requested, and that runs shorter than
+     * {@link MondrianProperties#PredicateRangeMinLength} are not ranges.
+     */
+    public void testListPredicateRangesWithGaps() {
+        final RolapStar star =
+            getMeasure(cubeNameSales, measureUnitSales).getStar();
+        final RolapStar.Column month =
+            star.lookupColumn(tableTime, "month_of_year");
+        final SqlQuery sqlQuery = star.getSqlQuery();
+        final String expr = month.generateExprString(sqlQuery);
+        propSaver.set(MondrianProperties.instance().PredicateRangeMinLength, 3);
+
+        final ListColumnPredicate predicate =
+            listPredicate(month, 12, 7, 6, 5, 9, 3, 2, 1);
+        final StringBuilder buf = new StringBuilder();
+        predicate.toSql(sqlQuery, buf);
+        assertEquals(
+            "(" + expr + " between 1 and 3 or " + expr + " between 5 and 7"
+            + " or " + expr + " in (9, 12))",
+            buf.toString());
+        assertEquals(4, predicate.getSqlTermCount());
+
+        // Runs of two are shorter than the minimum; no ranges.
+        final ListColumnPredicate predicate2 =
+            listPredicate(month, 1, 2, 4, 5);
+        final StringBuilder buf2 = new StringBuilder();
+        predicate2.toSql(sqlQuery, buf2);
+        assertFalse(buf2.toString(), buf2.toString().contains("between"));
+        assertEquals(4, predicate2.getSqlTermCount());
+    }
+
+    private static ListColumnPredicate listPredicate(
+        RolapStar.Column column,
+        int... values)
+    {
+        final List<StarColumnPredicate> list =
+            new ArrayList<StarColumnPredicate>();
+        for (int value : values) {
+            list.add(new ValueColumnPredicate(column, value));
+        }
+        return new ListColumnPredicate(column, list);
+    }
+
     public void testGroupingSetsUtilSetsDetailForRollupColumns() {
         RolapStar.Measure measure = getMeasure(cubeNameSales, measureUnitSales);
         RolapStar star = measure.getStar();
@@ -0,0 +1,108 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Unit test for {@link SparseCellIndex} and
+ * {@link PrimitiveSparseSegmentBody}.
+ */
+public class SparseCellIndexTest extends TestCase {
+    public void testPacked() {
+        checkIndex(new int[] {3, 1000, 70000});
+    }
+
+    public void testWide() {
+        // 3 * 31 bits do not fit into a long.
+        checkIndex(
+            new int[] {
+                Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE
+            });
+    }
+
+    private void checkIndex(int[] axisLengths) {
+        final SparseCellIndex index = new SparseCellIndex(axisLengths, 0);
+        final Random random = new Random(0);
+        final List<int[]> cells = new ArrayList<int[]>();
+        for (int i = 0; i < 1000; i++) {
+            final int[] ordinals = {
+                random.nextInt(3), random.nextInt(1000), random.nextInt(70000)
+            };
+            if (index.get(ordinals) < 0) {
+                assertEquals(cells.size(), index.add(ordinals));
+                cells.add(ordinals);
+            }
+        }
+        index.trim();
+        assertEquals(cells.size(), index.size());
+        final int[] ordinals = new int[3];
+        for (int i = 0; i < cells.size(); i++) {
+            assertEquals(i, index.add(cells.get(i)));
+            assertEquals(
+                i, index.get(CellKey.Generator.newCellKey(cells.get(i))));
+            index.getOrdinals(i, ordinals);
+            assertTrue(Arrays.equals(cells.get(i), ordinals));
+        }
+        assertEquals(-1, index.get(new int[] {3, 0, 0}));
+        assertEquals(-1, index.get(new int[] {-1, 0, 0}));
+        assertEquals(-1, index.get(new int[] {0, 0}));
+    }
+
+    public void testBody() {
+        final SortedSet<Comparable> axis1 =
+            new TreeSet<Comparable>(asList("x", "y"));
+        final SortedSet<Comparable> axis2 =
+            new TreeSet<Comparable>(asList(1, 2, 3));
+        final SparseCellIndex index =
+            new SparseCellIndex(new int[] {2, 4}, 0);
+        index.add(new int[] {0, 3});
+        index.add(new int[] {1, 1});
+        final BitSet nulls = new BitSet();
+        nulls.set(1);
+        final PrimitiveSparseSegmentBody body =
+            new PrimitiveSparseSegmentBody(
+                index,
+                new double[] {2.5, 0},
+                nulls,
+                asList(
+                    Pair.<SortedSet<Comparable>, Boolean>of(axis1, false),
+                    Pair.<SortedSet<Comparable>, Boolean>of(axis2, true)));
+
+        final Map<CellKey, Object> expected = new HashMap<CellKey, Object>();
+        expected.put(CellKey.Generator.newCellKey(new int[] {0, 3}), 2.5d);
+        expected.put(CellKey.Generator.newCellKey(new int[] {1, 1}), null);
+        final Map<CellKey, Object> map = body.getValueMap();
+        assertEquals(expected, map);
+        assertEquals(expected, new HashMap<CellKey, Object>(map));
+        assertEquals(
+            2.5d, map.get(CellKey.Generator.newCellKey(new int[] {0, 3})));
+        assertFalse(
+            map.containsKey(CellKey.Generator.newCellKey(new int[] {0, 0})));
+
+        final PrimitiveSparseSegmentDataset dataset =
+            new PrimitiveSparseSegmentDataset(body);
+        final CellKey key = CellKey.Generator.newCellKey(new int[] {0, 3});
+        assertEquals(2.5d, dataset.getDouble(key));
+        assertTrue(dataset.exists(key));
+        assertTrue(
+            dataset.isNull(CellKey.Generator.newCellKey(new int[] {1, 1})));
+        assertFalse(
+            dataset.exists(CellKey.Generator.newCellKey(new int[] {1, 2})));
+    }
+}
+
+// End SparseCellIndexTest.java
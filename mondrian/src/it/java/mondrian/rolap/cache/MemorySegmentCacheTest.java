@@ -0,0 +1,137 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.cache;
+
+import mondrian.rolap.CellKey;
+import mondrian.spi.SegmentBody;
+import mondrian.spi.SegmentCache;
+import mondrian.spi.SegmentHeader;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for {@link MemorySegmentCache} with a memory budget.
+ */
+public class MemorySegmentCacheTest extends TestCase {
+    /** Each body created by {@link #body()} is estimated at 4,816 bytes, so
+     * two of them fit in the budget but three do not. */
+    private static final long BUDGET = 10000;
+
+    public void testEvictsCheapestSegment() {
+        final MemorySegmentCache cache = new MemorySegmentCache(BUDGET);
+        final List<SegmentHeader> evicted = listen(cache);
+        final SegmentHeader a = mock(SegmentHeader.class);
+        final SegmentHeader b = mock(SegmentHeader.class);
+        final SegmentHeader c = mock(SegmentHeader.class);
+        cache.put(a, body());
+        cache.recordLoadCost(b, 1000000000L);
+        cache.put(b, body());
+        assertTrue(evicted.isEmpty());
+
+        cache.put(c, body());
+        assertEquals(Collections.singletonList(a), evicted);
+        assertNull(cache.get(a));
+        assertNotNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertTrue(cache.getUsedBytes() <= BUDGET);
+    }
+
+    public void testEvictsLeastUsedSegment() {
+        final MemorySegmentCache cache = new MemorySegmentCache(BUDGET);
+        final List<SegmentHeader> evicted = listen(cache);
+        final SegmentHeader a = mock(SegmentHeader.class);
+        final SegmentHeader b = mock(SegmentHeader.class);
+        final SegmentHeader c = mock(SegmentHeader.class);
+        cache.put(a, body());
+        cache.put(b, body());
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get(a));
+        }
+
+        cache.put(c, body());
+        assertEquals(Collections.singletonList(b), evicted);
+        assertTrue(cache.contains(a));
+        assertFalse(cache.contains(b));
+    }
+
+    public void testOversizedSegmentIsNotCached() {
+        final MemorySegmentCache cache = new MemorySegmentCache(1000);
+        final List<SegmentHeader> evicted = listen(cache);
+        final SegmentHeader a = mock(SegmentHeader.class);
+        cache.recordLoadCost(a, 1000000000L);
+        assertFalse(cache.put(a, body()));
+        assertFalse(cache.contains(a));
+        assertEquals(0, cache.getUsedBytes());
+        assertTrue(evicted.isEmpty());
+    }
+
+    public void testRemoveReleasesBudget() {
+        final MemorySegmentCache cache = new MemorySegmentCache(BUDGET);
+        final List<SegmentHeader> evicted = listen(cache);
+        final SegmentHeader a = mock(SegmentHeader.class);
+        final SegmentHeader b = mock(SegmentHeader.class);
+        final SegmentHeader c = mock(SegmentHeader.class);
+        cache.put(a, body());
+        cache.put(b, body());
+        assertTrue(cache.remove(a));
+        cache.put(c, body());
+        assertTrue(evicted.isEmpty());
+        assertEquals(2, cache.getSegmentHeaders().size());
+    }
+
+    public void testNoBudget() {
+        final MemorySegmentCache cache = new MemorySegmentCache();
+        final List<SegmentHeader> evicted = listen(cache);
+        for (int i = 0; i < 10; i++) {
+            cache.put(mock(SegmentHeader.class), body());
+        }
+        assertTrue(evicted.isEmpty());
+        assertEquals(0, cache.getBudget());
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    /**
+     * Registers a listener that collects the headers of evicted segments,
+     * that is, non-local deletions.
+     */
+    private static List<SegmentHeader> listen(MemorySegmentCache cache) {
+        final List<SegmentHeader> evicted = new ArrayList<SegmentHeader>();
+        cache.addListener(
+            new SegmentCache.SegmentCacheListener() {
+                public void handle(SegmentCacheEvent e) {
+                    if (!e.isLocal()
+                        && e.getEventType()
+                        == SegmentCacheEvent.EventType.ENTRY_DELETED)
+                    {
+                        evicted.add(e.getSource());
+                    }
+                }
+            });
+        return evicted;
+    }
+
+    private static SegmentBody body() {
+        final Map<CellKey, Object> values = new HashMap<CellKey, Object>();
+        for (int i = 0; i < 100; i++) {
+            values.put(CellKey.Generator.newCellKey(new int[] {i}), i);
+        }
+        final SegmentBody body = mock(SegmentBody.class);
+        //noinspection unchecked
+        when(body.getAxisValueSets()).thenReturn(new SortedSet[0]);
+        when(body.getValueMap()).thenReturn(values);
+        return body;
+    }
+}
+
+// End MemorySegmentCacheTest.java
@@ -11,11 +11,27 @@ package mondrian.rolap.cache;
 
 import static org.mockito.Mockito.mock;
 
+import mondrian.rolap.BitKey;
 import mondrian.spi.SegmentBody;
+import mondrian.spi.SegmentColumn;
 import mondrian.spi.SegmentHeader;
 import mondrian.test.FoodMartTestCase;
+import mondrian.util.ByteString;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
 
 public class SegmentCacheIndexImplTest extends FoodMartTestCase {
+    private static final Logger LOGGER =
+        Logger.getLogger(SegmentCacheIndexImplTest.class);
+
+    private static final ByteString CHECKSUM =
+        new ByteString(new byte[] {1, 2, 3});
+
+    private static final List<String> NO_PREDICATES =
+        Collections.emptyList();
+
     public void testNoHeaderOnLoad() {
         final SegmentCacheIndexImpl index =
             new SegmentCacheIndexImpl(Thread.currentThread());
@@ -26,6 +42,169 @@ public class SegmentCacheIndexImplTest extends FoodMartTestCase {
         // This should not fail.
         index.loadSucceeded(header, body);
     }
+
+    public void testLocate() {
+        final SegmentCacheIndexImpl index =
+            new SegmentCacheIndexImpl(Thread.currentThread());
+        final SegmentHeader h1997 = header("1997", null);
+        final SegmentHeader h1998CA = header("1998", "CA");
+        final SegmentHeader hAllOR = header(null, "OR");
+        index.add(h1997, null, false);
+        index.add(h1998CA, null, false);
+        index.add(hAllOR, null, false);
+
+        assertEquals(
+            Arrays.asList(h1997), locate(index, coords("1997", "CA")));
+        assertEquals(
+            Arrays.asList(h1997, hAllOR), locate(index, coords("1997", "OR")));
+        assertEquals(
+            Arrays.asList(h1998CA), locate(index, coords("1998", "CA")));
+        assertEquals(
+            Collections.emptyList(), locate(index, coords("1999", "WA")));
+
+        // A removed header is no longer found, and its slot is reused.
+        index.remove(h1997);
+        assertEquals(
+            Arrays.asList(hAllOR), locate(index, coords("1997", "OR")));
+        final SegmentHeader h1999 = header("1999", null);
+        index.add(h1999, null, false);
+        assertEquals(
+            Arrays.asList(h1999, hAllOR), locate(index, coords("1999", "OR")));
+    }
+
+    public void testIntersectRegion() {
+        final SegmentCacheIndexImpl index =
+            new SegmentCacheIndexImpl(Thread.currentThread());
+        final SegmentHeader h1997 = header("1997", null);
+        final SegmentHeader h1998CA = header("1998", "CA");
+        final SegmentHeader hAllOR = header(null, "OR");
+        index.add(h1997, null, false);
+        index.add(h1998CA, null, false);
+        index.add(hAllOR, null, false);
+
+        assertEquals(
+            Arrays.asList(h1997, hAllOR),
+            intersect(index, column("year", "1997")));
+        assertEquals(
+            Arrays.asList(h1998CA),
+            intersect(
+                index, column("year", "1998"), column("state", "CA")));
+        // A column that no segment has does not restrict the region.
+        assertEquals(
+            Arrays.asList(h1997, h1998CA),
+            intersect(index, column("state", "CA"), column("city", "SF")));
+    }
+
+    /**
+     * Measures the time to locate a cell, using the index, and by testing
+     * each segment, as the number of segments grows. It only runs if debug
+     * logging is enabled for this class.
+     */
+    public void testLocatePerformance() {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        final int n = 1000;
+        for (int segmentCount : new int[] {100, 1000, 10000, 50000}) {
+            final SegmentCacheIndexImpl index =
+                new SegmentCacheIndexImpl(Thread.currentThread());
+            final List<SegmentHeader> headers = new ArrayList<SegmentHeader>();
+            for (int i = 0; i < segmentCount; i++) {
+                final SegmentHeader header =
+                    header(
+                        String.valueOf(1900 + i % 100),
+                        i % 7 == 0 ? null : "State " + i / 100);
+                index.add(header, null, false);
+                headers.add(header);
+            }
+            final Random random = new Random(0);
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < n; i++) {
+                final int j = random.nextInt(segmentCount);
+                found += locate(
+                    index,
+                    coords(String.valueOf(1900 + j % 100), "State " + j / 100))
+                    .size();
+            }
+            final long indexNanos = (System.nanoTime() - start) / n;
+            start = System.nanoTime();
+            int scanned = 0;
+            for (int i = 0; i < n; i++) {
+                final int j = random.nextInt(segmentCount);
+                final Map<String, Comparable> coords =
+                    coords(String.valueOf(1900 + j % 100), "State " + j / 100);
+                for (SegmentHeader header : headers) {
+                    if (SegmentCacheIndexImpl.matches(
+                            header, coords, NO_PREDICATES))
+                    {
+                        ++scanned;
+                    }
+                }
+            }
+            final long scanNanos = (System.nanoTime() - start) / n;
+            assertTrue(found >= n);
+            assertTrue(scanned >= n);
+            LOGGER.debug(
+                segmentCount + " segments: index " + indexNanos
+                + " nanos, scan " + scanNanos + " nanos");
+        }
+    }
+
+    private static List<SegmentHeader> locate(
+        SegmentCacheIndexImpl index,
+        Map<String, Comparable> coords)
+    {
+        return index.locate(
+            "FoodMart", CHECKSUM, "Sales", "Unit Sales", "sales_fact_1997",
+            bitKey(), coords, NO_PREDICATES);
+    }
+
+    private static List<SegmentHeader> intersect(
+        SegmentCacheIndexImpl index,
+        SegmentColumn... region)
+    {
+        return index.intersectRegion(
+            "FoodMart", CHECKSUM, "Sales", "Unit Sales", "sales_fact_1997",
+            region);
+    }
+
+    private static Map<String, Comparable> coords(String year, String state) {
+        final Map<String, Comparable> coords =
+            new HashMap<String, Comparable>();
+        coords.put("year", year);
+        coords.put("state", state);
+        return coords;
+    }
+
+    private static SegmentColumn column(String expression, String value) {
+        return new SegmentColumn(
+            expression, -1,
+            value == null
+                ? null
+                : new TreeSet<Comparable>(
+                    Collections.<Comparable>singleton(value)));
+    }
+
+    private static BitKey bitKey() {
+        final BitKey bitKey = BitKey.Factory.makeBitKey(4);
+        bitKey.set(1);
+        bitKey.set(2);
+        return bitKey;
+    }
+
+    private static SegmentHeader header(String year, String state) {
+        return new SegmentHeader(
+            "FoodMart",
+            CHECKSUM,
+            "Sales",
+            "Unit Sales",
+            Arrays.asList(column("year", year), column("state", state)),
+            NO_PREDICATES,
+            "sales_fact_1997",
+            bitKey(),
+            Collections.<SegmentColumn[]>emptyList());
+    }
 }
 
 //End SegmentCacheIndexImplTest.java
@@ -10,6 +10,8 @@
 package mondrian.test;
 
 import mondrian.olap.*;
+import mondrian.rolap.QueryPlanCache;
+import mondrian.rolap.RolapConnection;
 import mondrian.xmla.XmlaHandler;
 
 import org.olap4j.*;
@@ -673,6 +675,93 @@ public class Olap4jTest extends FoodMartTestCase {
         assertEquals(1, n2);
     }
 
+    /**
+     * Tests that a statement that executes the same MDX as a closed cell set
+     * reuses its parsed query, and gets the same result.
+     */
+    public void testQueryPlanCache() throws SQLException {
+        propSaver.set(propSaver.properties.QueryPlanCacheSize, 10);
+        final OlapConnection connection =
+            getTestContext().getOlap4jConnection();
+        final QueryPlanCache planCache =
+            connection.unwrap(RolapConnection.class).getSchema()
+                .getQueryPlanCache();
+        planCache.flush();
+        final String mdx =
+            "with member [Measures].[Double Sales] as\n"
+            + "  [Measures].[Unit Sales] * 2\n"
+            + "select {[Measures].[Unit Sales], [Measures].[Double Sales]}\n"
+            + "  on 0,\n"
+            + "  [Gender].Members on 1\n"
+            + "from [Sales]";
+        final long hitCount = planCache.getHitCount();
+
+        CellSet cellSet = connection.createStatement().executeOlapQuery(mdx);
+        final String expected = TestContext.toString(cellSet);
+        assertEquals(0, planCache.size());
+        cellSet.close();
+        assertEquals(1, planCache.size());
+
+        // Another statement takes the query from the cache, and returns it
+        // when its cell set is closed.
+        cellSet = connection.createStatement().executeOlapQuery(mdx);
+        assertEquals(hitCount + 1, planCache.getHitCount());
+        assertEquals(0, planCache.size());
+        assertEquals(expected, TestContext.toString(cellSet));
+        cellSet.close();
+        assertEquals(1, planCache.size());
+
+        // Flushing members empties the cache.
+        final CacheControl cacheControl =
+            getTestContext().getConnection().getCacheControl(null);
+        final mondrian.olap.Cube salesCube =
+            getTestContext().getConnection().getSchema().lookupCube(
+                "Sales", true);
+        cacheControl.flush(
+            cacheControl.createMemberSet(
+                salesCube.getSchemaReader(null).getMemberByUniqueName(
+                    Id.Segment.toList("Gender", "F"), true),
+                false));
+        assertEquals(0, planCache.size());
+    }
+
+    /**
+     * Tests that a query that was checked out of the query plan cache before
+     * the cache was flushed is not returned to the cache.
+     */
+    public void testQueryPlanCacheFlushWhileCheckedOut() throws SQLException {
+        propSaver.set(propSaver.properties.QueryPlanCacheSize, 10);
+        final OlapConnection connection =
+            getTestContext().getOlap4jConnection();
+        final QueryPlanCache planCache =
+            connection.unwrap(RolapConnection.class).getSchema()
+                .getQueryPlanCache();
+        planCache.flush();
+        final String mdx =
+            "select {[Measures].[Unit Sales]} on 0,\n"
+            + "  [Gender].Members on 1\n"
+            + "from [Sales]";
+        CellSet cellSet = connection.createStatement().executeOlapQuery(mdx);
+        final String expected = TestContext.toString(cellSet);
+        cellSet.close();
+        assertEquals(1, planCache.size());
+
+        // Check out, flush, then check in.
+        final long hitCount = planCache.getHitCount();
+        cellSet = connection.createStatement().executeOlapQuery(mdx);
+        assertEquals(hitCount + 1, planCache.getHitCount());
+        planCache.flush();
+        cellSet.close();
+        assertEquals(0, planCache.size());
+
+        // The next statement parses the query again.
+        cellSet = connection.createStatement().executeOlapQuery(mdx);
+        assertEquals(hitCount + 1, planCache.getHitCount());
+        assertEquals(expected, TestContext.toString(cellSet));
+        cellSet.close();
+        assertEquals(1, planCache.size());
+    }
+
     /**
      * Test for
      * <a href="http://jira.pentaho.com/browse/MONDRIAN-1967">MONDRIAN-1967</a>
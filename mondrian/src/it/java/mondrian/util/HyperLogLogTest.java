@@ -0,0 +1,127 @@
+/*
+* This software is subject to the terms of the Eclipse Public License v1.0
+* Agreement, available at the following URL:
+* http://www.eclipse.org/legal/epl-v10.html.
+* You must accept the terms of that agreement to use this software.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package mondrian.util;
+
+import mondrian.rolap.RolapAggregator;
+import mondrian.spi.Dialect;
+
+import junit.framework.TestCase;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Unit test for {@link HyperLogLog}.
+ */
+public class HyperLogLogTest extends TestCase {
+    public void testEstimate() {
+        final HyperLogLog sketch = new HyperLogLog();
+        assertEquals(0, sketch.estimate());
+        for (int i = 0; i < 10; i++) {
+            sketch.add(i);
+            sketch.add(i);
+        }
+        // Small counts are exact, or nearly so.
+        assertEquals(10, sketch.estimate());
+        for (int i = 10; i < 100000; i++) {
+            sketch.add("customer " + i);
+        }
+        assertWithin(100000, sketch.estimate(), 0.05);
+    }
+
+    public void testHash() {
+        // Integral values hash the same whatever their type.
+        assertEquals(HyperLogLog.hash(5), HyperLogLog.hash(5L));
+        assertEquals(
+            HyperLogLog.hash(5), HyperLogLog.hash(new BigDecimal("5.00")));
+        assertEquals(HyperLogLog.hash(5), HyperLogLog.hash(5d));
+        assertFalse(HyperLogLog.hash(5) == HyperLogLog.hash(5.5d));
+    }
+
+    public void testMerge() {
+        final HyperLogLog a = new HyperLogLog();
+        final HyperLogLog b = new HyperLogLog(14);
+        final HyperLogLog all = new HyperLogLog();
+        for (int i = 0; i < 30000; i++) {
+            (i % 2 == 0 ? a : b).add(i);
+            all.add(i);
+        }
+        // Values common to both sketches are counted once.
+        for (int i = 0; i < 1000; i++) {
+            a.add(i);
+            b.add(i);
+        }
+        final HyperLogLog union = HyperLogLog.union(Arrays.asList(a, b));
+        assertEquals(12, union.getPrecision());
+        // Folding the registers of b to precision 12 gives the same registers
+        // as adding the values to a sketch of precision 12.
+        assertEquals(all, union);
+        assertEquals(all.estimate(), union.estimate());
+        assertNull(HyperLogLog.union(Collections.<HyperLogLog>emptyList()));
+        try {
+            b.merge(a);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    public void testByteArray() {
+        final HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 5000; i++) {
+            sketch.add(i);
+            if (i == 100) {
+                // sparse
+                assertRoundTrip(sketch);
+            }
+        }
+        // dense
+        assertRoundTrip(sketch);
+        try {
+            final byte[] bytes = sketch.toByteArray();
+            HyperLogLog.fromByteArray(Arrays.copyOf(bytes, bytes.length - 1));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    public void testAggregator() {
+        final HyperLogLog a = new HyperLogLog();
+        final HyperLogLog b = new HyperLogLog();
+        for (int i = 0; i < 100; i++) {
+            a.add(i);
+            b.add(i + 50);
+        }
+        final HyperLogLog before = HyperLogLog.fromByteArray(a.toByteArray());
+        final Object rollup =
+            RolapAggregator.ApproxDistinctCount.aggregate(
+                Arrays.<Object>asList(a, null, b),
+                Dialect.Datatype.Integer);
+        assertEquals(150, ((HyperLogLog) rollup).estimate());
+        // The inputs are not modified.
+        assertEquals(before, a);
+    }
+
+    private static void assertRoundTrip(HyperLogLog sketch) {
+        final HyperLogLog copy =
+            HyperLogLog.fromByteArray(sketch.toByteArray());
+        assertEquals(sketch, copy);
+        assertEquals(sketch.estimate(), copy.estimate());
+    }
+
+    private static void assertWithin(long expected, long actual, double error) {
+        assertTrue(
+            "expected " + expected + ", actual " + actual,
+            Math.abs(actual - expected) <= expected * error);
+    }
+}
+
+// End HyperLogLogTest.java
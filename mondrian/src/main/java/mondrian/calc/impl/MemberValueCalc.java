@@ -108,6 +108,28 @@ public class MemberValueCalc extends GenericCalc {
         return new MemberCalc[] {memberCalc};
     }
 
+    /**
+     * Returns the member whose value this expression evaluates, if it is
+     * constant, otherwise null.
+     *
+     * @return Constant member, or null
+     */
+    public Member getConstantMember() {
+        return memberCalc instanceof ConstantCalc
+            ? memberCalc.evaluateMember(null)
+            : null;
+    }
+
+    /**
+     * Returns whether this expression is null if the member's cube does not
+     * join to the context.
+     *
+     * @return Whether to check for non-joining dimensions
+     */
+    public boolean isNullCheck() {
+        return nullCheck;
+    }
+
     public boolean dependsOn(Hierarchy hierarchy) {
         if (super.dependsOn(hierarchy)) {
             return true;
@@ -30,6 +30,7 @@ import javax.sql.DataSource;
  * <li>{@link #createCrossjoinRegion(mondrian.olap.CacheControl.CellRegion[])}</li>
  * <li>{@link #createMeasuresRegion(Cube)}</li>
  * <li>{@link #flush(mondrian.olap.CacheControl.CellRegion)}</li>
+ * <li>{@link #refreshAppended(mondrian.olap.CacheControl.CellRegion)}</li>
  * </ul></p>
  *
  * <p>Methods concerning member cache:<ul>
@@ -178,6 +179,24 @@ public interface CacheControl {
      */
     void flush(CellRegion region);
 
+    /**
+     * Tells the cell cache that rows have been appended to the fact tables
+     * of the measures in a region, and that every appended row is within the
+     * region; for example, the rows of a new day appended by a nightly load.
+     *
+     * <p>Cells outside the region are kept. Cells whose totals include the
+     * region are refreshed by reading only the appended rows and merging
+     * them into the cached cells. Cells that cannot be refreshed that way,
+     * such as distinct counts, are flushed, as are all cells of a region
+     * that contains ranges of members.</p>
+     *
+     * <p>Call this method after the appended rows have been committed. Cells
+     * read between the commit and the call would count the rows twice.</p>
+     *
+     * @param region a region that contains the appended rows
+     */
+    void refreshAppended(CellRegion region);
+
     /**
      * Prints the state of the cell cache as it pertains to a given region.
      * @param pw the output target
@@ -91,7 +91,7 @@ public class Query extends QueryPart {
      */
     private final Cube cube;
 
-    private final Statement statement;
+    private Statement statement;
     public Calc[] axisCalcs;
     public Calc slicerCalc;
 
@@ -198,7 +198,29 @@ public class Query extends QueryPart {
         this.alertedNonNativeFunDefs = new HashSet<FunDef>();
         statement.setQuery(this);
         resolve();
+        enableProfiling();
+    }
+
+    /**
+     * Moves this query to another statement, so that a query that has been
+     * parsed, validated and compiled can be executed again by a different
+     * statement, possibly of a different connection.
+     *
+     * <p>The statement must belong to a connection to the same schema, with
+     * the same role and locale, as the statement that this query was created
+     * for. Values of parameters are not reset.</p>
+     *
+     * @param statement Statement
+     *
+     * @see mondrian.rolap.QueryPlanCache
+     */
+    public void setStatement(Statement statement) {
+        this.statement = statement;
+        statement.setQuery(this);
+        enableProfiling();
+    }
 
+    private void enableProfiling() {
         if (RolapUtil.PROFILE_LOGGER.isDebugEnabled()
             && statement.getProfileHandler() == null)
         {
@@ -10,6 +10,7 @@ package mondrian.olap.fun;
 
 import mondrian.calc.*;
 import mondrian.calc.impl.DelegatingTupleList;
+import mondrian.mdx.ResolvedFunCall;
 import mondrian.mdx.UnresolvedFunCall;
 import mondrian.olap.*;
 import mondrian.resource.MondrianResource;
@@ -119,6 +120,48 @@ public class AbstractAggregateFunDef extends FunDefBase {
         evaluator.setIterationLength(currLen);
     }
 
+    /**
+     * Returns whether a call to an aggregate function has a form that
+     * {@link #evaluateNative} might compute in SQL. Called once, when the
+     * call is compiled; a call that is not a candidate is always evaluated
+     * by the interpreter.
+     *
+     * @param call Call to the aggregate function
+     * @param compiler Compiler
+     * @return whether the call is a candidate for native evaluation
+     */
+    protected static boolean isNativeCandidate(
+        ResolvedFunCall call,
+        ExpCompiler compiler)
+    {
+        return RolapNativeAggregate.isCandidate(
+            compiler.getEvaluator(), call.getFunDef(), call.getArgs());
+    }
+
+    /**
+     * Computes an aggregate function over a set in SQL, without evaluating
+     * the set, if a native evaluator can.
+     *
+     * @param call Call to the aggregate function
+     * @param calc Compiled call
+     * @param evaluator Current evaluation context
+     * @return value, {@link Util#nullValue} if the value is empty, or null if
+     * the function cannot be computed in SQL
+     */
+    protected static Object evaluateNative(
+        ResolvedFunCall call,
+        Calc calc,
+        Evaluator evaluator)
+    {
+        final NativeEvaluator nativeEvaluator =
+            evaluator.getSchemaReader().getNativeSetEvaluator(
+                call.getFunDef(), call.getArgs(), evaluator, calc);
+        if (nativeEvaluator == null) {
+            return null;
+        }
+        return nativeEvaluator.execute(ResultStyle.VALUE);
+    }
+
     /**
      * Pushes unrelated dimensions to the top level member from the given list
      * of tuples if the ignoreUnrelatedDimensions property is set on the base
@@ -140,6 +140,7 @@ public class AggregateFunDef extends AbstractAggregateFunDef {
                     "Don't know how to rollup aggregator '" + aggregator + "'");
             }
             if (aggregator != RolapAggregator.DistinctCount
+                && aggregator != RolapAggregator.ApproxDistinctCount
                 && aggregator != RolapAggregator.Avg)
             {
                 final int savepoint = evaluator.savepoint();
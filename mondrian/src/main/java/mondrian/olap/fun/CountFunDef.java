@@ -37,7 +37,10 @@ class CountFunDef extends AbstractAggregateFunDef {
         super(dummyFunDef);
     }
 
-    public Calc compileCall(ResolvedFunCall call, ExpCompiler compiler) {
+    public Calc compileCall(
+        final ResolvedFunCall call,
+        ExpCompiler compiler)
+    {
         final Calc calc =
             compiler.compileAs(
                 call.getArg(0), null, ResultStyle.ITERABLE_ANY);
@@ -45,11 +48,19 @@ class CountFunDef extends AbstractAggregateFunDef {
             call.getArgCount() < 2
             || ((Literal) call.getArg(1)).getValue().equals(
                 "INCLUDEEMPTY");
+        final boolean nativeCandidate = isNativeCandidate(call, compiler);
         return new AbstractIntegerCalc(
             call,
             new Calc[] {calc})
         {
             public int evaluateInteger(Evaluator evaluator) {
+                if (nativeCandidate) {
+                    final Object nativeValue =
+                        evaluateNative(call, this, evaluator);
+                    if (nativeValue != null) {
+                        return ((Number) nativeValue).intValue();
+                    }
+                }
                 final int savepoint = evaluator.savepoint();
                 try {
                     evaluator.setNonEmpty(false);
@@ -517,25 +517,39 @@ public class FunUtil extends Util {
         boolean timingEval = true;
         boolean timingSort = false;
         try {
+            if (brk) {
+                // Sorting by value alone, so evaluate the keys into an array
+                // and sort positions.
+                if (memberList == null) {
+                    memberList = new ArrayList<Member>();
+                    for (Member member : memberIter) {
+                        memberList.add(member);
+                    }
+                }
+                final SortKeyArray keys =
+                    SortKeyArray.evaluateMembers(evaluator, exp, memberList);
+                evaluator.getTiming().markEnd(SORT_EVAL_TIMING_NAME);
+                timingEval = false;
+                evaluator.getTiming().markStart(SORT_TIMING_NAME);
+                timingSort = true;
+                permute(memberList, keys.sort(desc));
+                return memberList;
+            }
+
             // REVIEW mberkowitz 1/09: test whether precomputing
             // values saves time.
             Map<Member, Object> mapMemberToValue;
-            final boolean parentsToo = !brk;
             if (memberList == null) {
                 memberList = new ArrayList<Member>();
                 mapMemberToValue = evaluateMembers(
-                    evaluator, exp, memberIter, memberList, parentsToo);
+                    evaluator, exp, memberIter, memberList, true);
             } else {
                 mapMemberToValue = evaluateMembers(
-                    evaluator, exp, memberIter, null, parentsToo);
+                    evaluator, exp, memberIter, null, true);
             }
 
-            MemberComparator comp;
-            if (brk) {
-                comp = new BreakMemberComparator(evaluator, exp, desc);
-            } else {
-                comp = new HierarchicalMemberComparator(evaluator, exp, desc);
-            }
+            MemberComparator comp =
+                new HierarchicalMemberComparator(evaluator, exp, desc);
             comp.preloadValues(mapMemberToValue);
             evaluator.getTiming().markEnd(SORT_EVAL_TIMING_NAME);
             timingEval = false;
@@ -663,20 +677,22 @@ public class FunUtil extends Util {
                 tupleIterable.getArity(),
                 Arrays.asList(tuples));
 
-        Comparator<List<Member>> comparator;
         if (brk) {
-            comparator =
-                new BreakTupleComparator(evaluator, exp, arity);
-            if (desc) {
-                comparator = Collections.reverseOrder(comparator);
+            // Sorting by value alone, so evaluate the keys into an array
+            // and sort positions.
+            final SortKeyArray keys =
+                SortKeyArray.evaluateTuples(evaluator, exp, tupleArrayList);
+            final List<Member>[] unsorted = tuples.clone();
+            final int[] positions = keys.sort(desc);
+            for (int i = 0; i < positions.length; i++) {
+                tuples[i] = unsorted[positions[i]];
             }
         } else {
-            comparator =
-                new HierarchicalTupleComparator(evaluator, exp, arity, desc);
+            Arrays.sort(
+                tuples,
+                new HierarchicalTupleComparator(evaluator, exp, arity, desc));
         }
 
-        Arrays.sort(tuples, comparator);
-
         if (LOGGER.isDebugEnabled()) {
             StringBuilder sb =
                 new StringBuilder("FunUtil.sortTuples returned:");
@@ -720,16 +736,13 @@ public class FunUtil extends Util {
         boolean timingEval = true;
         boolean timingSort = false;
         try {
-            MemberComparator comp =
-                new BreakMemberComparator(evaluator, exp, desc);
-            Map<Member, Object> valueMap =
-                evaluateMembers(evaluator, exp, list, null, false);
+            final SortKeyArray keys =
+                SortKeyArray.evaluateMembers(evaluator, exp, list);
             evaluator.getTiming().markEnd(SORT_EVAL_TIMING_NAME);
             timingEval = false;
             evaluator.getTiming().markStart(SORT_TIMING_NAME);
             timingSort = true;
-            comp.preloadValues(valueMap);
-            return stablePartialSort(list, comp.wrap(), limit);
+            return select(list, keys.partialSort(limit, desc));
         } finally {
             if (timingEval) {
                 evaluator.getTiming().markEnd(SORT_EVAL_TIMING_NAME);
@@ -809,8 +822,10 @@ public class FunUtil extends Util {
      * valued Tuples, and returns them as a new List. Helper function for MDX
      * functions TopCount and BottomCount.
      *
-     * <p>NOTE: Does not preserve the contents of the validator. The returned
-     * list is immutable.
+     * <p>Evaluates the expression once for each tuple, then keeps the top
+     * tuples in a bounded heap; see {@link SortKeyArray}.
+     *
+     * <p>NOTE: Does not preserve the contents of the validator.
      *
      * @param evaluator Evaluator
      * @param list a list of tuples
@@ -829,12 +844,42 @@ public class FunUtil extends Util {
     {
         assert list.size() > 0;
         assert limit <= list.size();
-        Comparator<List<Member>> comp =
-            new BreakTupleComparator(evaluator, exp, list.getArity());
-        if (desc) {
-            comp = Collections.reverseOrder(comp);
+        final SortKeyArray keys =
+            SortKeyArray.evaluateTuples(evaluator, exp, list);
+        return select(list, keys.partialSort(limit, desc));
+    }
+
+    /**
+     * Rearranges a list in place, so that its <i>i</i>th element is the
+     * element that was at the <i>i</i>th of the given positions.
+     *
+     * @param list List
+     * @param positions Positions; a permutation of the positions of the list
+     */
+    private static <T> void permute(List<T> list, int[] positions) {
+        assert positions.length == list.size();
+        final Object[] elements = list.toArray();
+        final ListIterator<T> iterator = list.listIterator();
+        for (int position : positions) {
+            iterator.next();
+            //noinspection unchecked
+            iterator.set((T) elements[position]);
+        }
+    }
+
+    /**
+     * Returns the elements of a list at given positions.
+     *
+     * @param list List
+     * @param positions Positions
+     * @return New list, with one element for each position
+     */
+    private static <T> List<T> select(List<T> list, int[] positions) {
+        final List<T> result = new ArrayList<T>(positions.length);
+        for (int position : positions) {
+            result.add(list.get(position));
         }
-        return stablePartialSort(list, comp, limit);
+        return result;
     }
 
     /**
@@ -1512,6 +1557,10 @@ public class FunUtil extends Util {
         TupleList members,
         Calc exp)
     {
+        final CellBatch batch = evaluateBatch(evaluator, members, exp);
+        if (batch != null) {
+            return sumDouble(batch);
+        }
         SetWrapper sw = evaluateSet(evaluator, members, exp);
         if (sw.errorCount > 0) {
             return Double.NaN;
@@ -1531,6 +1580,10 @@ public class FunUtil extends Util {
         TupleIterable iterable,
         Calc exp)
     {
+        final CellBatch batch = evaluateBatch(evaluator, iterable, exp);
+        if (batch != null) {
+            return sumDouble(batch);
+        }
         SetWrapper sw = evaluateSet(evaluator, iterable, exp);
         if (sw.errorCount > 0) {
             return Double.NaN;
@@ -1545,6 +1598,26 @@ public class FunUtil extends Util {
         }
     }
 
+    /**
+     * Returns the sum of a batch of cell values, with the same result as
+     * {@link #sumDouble(Evaluator, TupleList, Calc)}.
+     */
+    private static double sumDouble(CellBatch batch) {
+        if (batch.getNotReadyCount() > 0) {
+            return Double.NaN;
+        } else if (batch.getNullCount() == batch.size()) {
+            return DoubleNull;
+        } else {
+            double sum = 0.0;
+            for (int i = 0; i < batch.size(); i++) {
+                if (!batch.isNull(i)) {
+                    sum += batch.get(i);
+                }
+            }
+            return sum;
+        }
+    }
+
     public static int count(
         Evaluator evaluator,
         TupleIterable iterable,
@@ -1596,6 +1669,17 @@ public class FunUtil extends Util {
 
         // todo: treat constant exps as evaluateMembers() does
         SetWrapper retval = new SetWrapper();
+        final CellBatch batch = evaluateBatch(evaluator, members, calc);
+        if (batch != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (!batch.isNull(i)) {
+                    retval.v.add(batch.get(i));
+                }
+            }
+            retval.errorCount = batch.getNotReadyCount();
+            retval.nullCount = batch.getNullCount() - retval.errorCount;
+            return retval;
+        }
         final TupleCursor cursor = members.tupleCursor();
         int currentIteration = 0;
         Execution execution =
@@ -1621,6 +1705,50 @@ public class FunUtil extends Util {
         return retval;
     }
 
+    /**
+     * Evaluates a stored measure at each tuple of a set in one call, if the
+     * expression is the value of the current cell or of a constant measure,
+     * and the set is a list.
+     *
+     * <p>Does not modify the contents of the evaluator.
+     *
+     * @param evaluator Evaluator
+     * @param members Set of tuples
+     * @param calc Expression to evaluate at each tuple
+     * @return Values, or null if the expression or set is of another kind,
+     *   in which case the caller must evaluate the expression at each tuple
+     */
+    private static CellBatch evaluateBatch(
+        Evaluator evaluator,
+        TupleIterable members,
+        Calc calc)
+    {
+        if (evaluator.getClass() != RolapEvaluator.class
+            || !(members instanceof TupleList))
+        {
+            return null;
+        }
+        final Member measure;
+        final boolean nullCheck;
+        if (calc instanceof ValueCalc) {
+            measure = null;
+            nullCheck = false;
+            if (!(evaluator.getMembers()[0] instanceof RolapStoredMeasure)) {
+                return null;
+            }
+        } else if (calc instanceof MemberValueCalc) {
+            measure = ((MemberValueCalc) calc).getConstantMember();
+            nullCheck = ((MemberValueCalc) calc).isNullCheck();
+            if (!(measure instanceof RolapStoredMeasure)) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        return ((RolapEvaluator) evaluator).evaluateBatch(
+            (TupleList) members, measure, nullCheck);
+    }
+
     /**
      * Evaluates one or more expressions against the member list returning
      * a SetWrapper array. Where this differs very significantly from the
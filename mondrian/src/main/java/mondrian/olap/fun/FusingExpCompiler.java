@@ -0,0 +1,611 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.olap.fun;
+
+import mondrian.calc.*;
+import mondrian.calc.impl.*;
+import mondrian.mdx.ResolvedFunCall;
+import mondrian.olap.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Expression compiler that fuses trees of scalar operators into a single
+ * compiled expression.
+ *
+ * <p>{@link BetterExpCompiler} compiles each operator of an expression such
+ * as</p>
+ *
+ * <blockquote><code>([Measures].[A] - [Measures].[B])
+ * / IIf([Measures].[C] = 0, NULL, [Measures].[C])</code></blockquote>
+ *
+ * <p>to its own {@link Calc}, so evaluating the expression makes a virtual
+ * call for each operator, and boxes the value of a numeric
+ * <code>IIf</code>. This compiler compiles a tree of the built-in numeric
+ * and logical operators (<code>+</code>, <code>-</code>, <code>*</code>,
+ * <code>/</code>, the numeric comparisons, <code>AND</code>,
+ * <code>OR</code>, <code>XOR</code>, <code>NOT</code> and
+ * <code>IIf</code>) to a flat program of op codes, which one method
+ * evaluates on a stack of <code>double</code> values. Only the leaves of the
+ * tree, such as measures and other functions, are compiled as usual, and
+ * are evaluated by calling their {@link DoubleCalc} or {@link BooleanCalc}.
+ * </p>
+ *
+ * <p>Each op code computes exactly what the corresponding operator computes,
+ * including {@link FunUtil#DoubleNull} propagation, the
+ * {@link MondrianProperties#NullDenominatorProducesNull} setting, and the
+ * short-circuit evaluation of <code>AND</code> and <code>OR</code>;
+ * operands are evaluated in the same order. Any other expression is
+ * compiled by the base class.</p>
+ *
+ * <p>To use this compiler, set</p>
+ *
+ * <blockquote><code>mondrian.calc.ExpCompiler.class=<!--
+ * -->mondrian.olap.fun.FusingExpCompiler</code></blockquote>
+ */
+public class FusingExpCompiler extends BetterExpCompiler {
+    // Op codes. CONST, DOUBLE_LEAF and BOOLEAN_LEAF are followed by an index
+    // into the constants or leaves; JUMP, JUMP_IF_FALSE, AND_TEST and
+    // OR_TEST are followed by the offset to jump to. Logical values are held
+    // on the stack as 1 and 0.
+    private static final int CONST = 0;
+    private static final int DOUBLE_LEAF = 1;
+    private static final int BOOLEAN_LEAF = 2;
+    private static final int ADD = 3;
+    private static final int SUBTRACT = 4;
+    private static final int MULTIPLY = 5;
+    private static final int DIVIDE = 6;
+    private static final int DIVIDE_NULL = 7;
+    private static final int NEGATE = 8;
+    private static final int EQ = 9;
+    private static final int NE = 10;
+    private static final int LT = 11;
+    private static final int LE = 12;
+    private static final int GT = 13;
+    private static final int GE = 14;
+    private static final int NOT = 15;
+    private static final int XOR = 16;
+    private static final int AND = 17;
+    private static final int OR = 18;
+    private static final int AND_TEST = 19;
+    private static final int OR_TEST = 20;
+    private static final int JUMP = 21;
+    private static final int JUMP_IF_FALSE = 22;
+
+    /**
+     * Minimum number of operators in a tree for it to be fused. A single
+     * operator gains nothing from it.
+     */
+    private static final int MIN_FUSED_OPERATORS = 2;
+
+    public FusingExpCompiler(Evaluator evaluator, Validator validator) {
+        super(evaluator, validator);
+    }
+
+    public FusingExpCompiler(
+        Evaluator evaluator,
+        Validator validator,
+        List<ResultStyle> resultStyles)
+    {
+        super(evaluator, validator, resultStyles);
+    }
+
+    public Calc compile(Exp exp) {
+        if (exp instanceof ResolvedFunCall) {
+            final ResolvedFunCall call = (ResolvedFunCall) exp;
+            // A numeric IIf returns the value of its branch without
+            // converting it to a double, so it is only fused inside another
+            // operator.
+            final int opCode = opCode(call);
+            if ((opCode >= 0 || call.getFunDef() == IifFunDef.BOOLEAN_INSTANCE)
+                && countOperators(call) >= MIN_FUSED_OPERATORS)
+            {
+                return fuse(call);
+            }
+        }
+        return super.compile(exp);
+    }
+
+    /**
+     * Returns the op code of a call to a built-in operator, or -1 if the
+     * call is not to an operator that can be fused. Does not return op codes
+     * for <code>IIf</code>.
+     */
+    private static int opCode(ResolvedFunCall call) {
+        final FunDef funDef = call.getFunDef();
+        if (funDef.getClass().getEnclosingClass() != BuiltinFunTable.class) {
+            return -1;
+        }
+        final String name = funDef.getName();
+        final int[] params = funDef.getParameterCategories();
+        switch (funDef.getSyntax()) {
+        case Prefix:
+            if (name.equals("-")
+                && funDef.getReturnCategory() == Category.Numeric
+                && Arrays.equals(params, new int[] {Category.Numeric}))
+            {
+                return NEGATE;
+            }
+            if (name.equals("NOT")
+                && funDef.getReturnCategory() == Category.Logical
+                && Arrays.equals(params, new int[] {Category.Logical}))
+            {
+                return NOT;
+            }
+            return -1;
+        case Infix:
+            if (funDef.getReturnCategory() == Category.Numeric
+                && Arrays.equals(
+                    params, new int[] {Category.Numeric, Category.Numeric}))
+            {
+                if (name.equals("+")) {
+                    return ADD;
+                } else if (name.equals("-")) {
+                    return SUBTRACT;
+                } else if (name.equals("*")) {
+                    return MULTIPLY;
+                } else if (name.equals("/")) {
+                    return MondrianProperties.instance()
+                        .NullDenominatorProducesNull.get()
+                        ? DIVIDE_NULL
+                        : DIVIDE;
+                }
+                return -1;
+            }
+            if (funDef.getReturnCategory() != Category.Logical) {
+                return -1;
+            }
+            if (Arrays.equals(
+                    params, new int[] {Category.Numeric, Category.Numeric}))
+            {
+                if (name.equals("=")) {
+                    return EQ;
+                } else if (name.equals("<>")) {
+                    return NE;
+                } else if (name.equals("<")) {
+                    return LT;
+                } else if (name.equals("<=")) {
+                    return LE;
+                } else if (name.equals(">")) {
+                    return GT;
+                } else if (name.equals(">=")) {
+                    return GE;
+                }
+                return -1;
+            }
+            if (Arrays.equals(
+                    params, new int[] {Category.Logical, Category.Logical}))
+            {
+                if (name.equals("AND")) {
+                    return AND;
+                } else if (name.equals("OR")) {
+                    return OR;
+                } else if (name.equals("XOR")) {
+                    return XOR;
+                }
+            }
+            return -1;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Returns whether an op code is that of a numeric operator.
+     */
+    private static boolean isNumeric(int opCode) {
+        return opCode >= ADD && opCode <= NEGATE;
+    }
+
+    private static boolean isIif(ResolvedFunCall call) {
+        return call.getFunDef() == IifFunDef.NUMERIC_INSTANCE
+            || call.getFunDef() == IifFunDef.BOOLEAN_INSTANCE;
+    }
+
+    /**
+     * Returns the number of operators in an expression that would be fused.
+     */
+    private static int countOperators(Exp exp) {
+        if (!(exp instanceof ResolvedFunCall)) {
+            return 0;
+        }
+        final ResolvedFunCall call = (ResolvedFunCall) exp;
+        if (opCode(call) < 0 && !isIif(call)) {
+            return 0;
+        }
+        int count = 1;
+        for (Exp arg : call.getArgs()) {
+            count += countOperators(arg);
+        }
+        return count;
+    }
+
+    /**
+     * Compiles a call to an operator, and the operators beneath it, to a
+     * fused calc.
+     */
+    private Calc fuse(ResolvedFunCall call) {
+        final ProgramBuilder builder = new ProgramBuilder();
+        final boolean numeric = isNumeric(opCode(call));
+        if (numeric) {
+            builder.numeric(call);
+        } else {
+            builder.logical(call);
+        }
+        final Program program = builder.build();
+        if (numeric) {
+            return new AbstractDoubleCalc(call, program.leaves) {
+                public double evaluateDouble(Evaluator evaluator) {
+                    return program.run(evaluator);
+                }
+            };
+        } else {
+            return new AbstractBooleanCalc(call, program.leaves) {
+                public boolean evaluateBoolean(Evaluator evaluator) {
+                    return program.run(evaluator) != 0;
+                }
+            };
+        }
+    }
+
+    /**
+     * Builds a {@link Program} from a tree of operators, compiling the
+     * leaves of the tree with the enclosing compiler.
+     */
+    private class ProgramBuilder {
+        private int[] code = new int[16];
+        private int codeLength;
+        private final List<Double> constants = new ArrayList<Double>();
+        private final List<Calc> leaves = new ArrayList<Calc>();
+        private int depth;
+        private int maxDepth;
+
+        private void emit(int op) {
+            if (codeLength == code.length) {
+                code = Arrays.copyOf(code, codeLength * 2);
+            }
+            code[codeLength++] = op;
+        }
+
+        /**
+         * Emits a jump whose target is not known yet, and returns the offset
+         * at which to write it.
+         */
+        private int emitJump(int op) {
+            emit(op);
+            emit(-1);
+            return codeLength - 1;
+        }
+
+        private void push(int n) {
+            depth += n;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        /**
+         * Emits code that pushes the value of a numeric expression.
+         */
+        void numeric(Exp exp) {
+            if (exp instanceof ResolvedFunCall) {
+                final ResolvedFunCall call = (ResolvedFunCall) exp;
+                final int opCode = opCode(call);
+                if (isNumeric(opCode)) {
+                    for (Exp arg : call.getArgs()) {
+                        numeric(arg);
+                    }
+                    emit(opCode);
+                    push(1 - call.getArgCount());
+                    return;
+                }
+                if (call.getFunDef() == IifFunDef.NUMERIC_INSTANCE) {
+                    iif(call, true);
+                    return;
+                }
+            }
+            final DoubleCalc calc = compileDouble(exp);
+            if (calc instanceof ConstantCalc) {
+                emit(CONST);
+                emit(constants.size());
+                constants.add(calc.evaluateDouble(null));
+            } else {
+                emit(DOUBLE_LEAF);
+                emit(leaves.size());
+                leaves.add(calc);
+            }
+            push(1);
+        }
+
+        /**
+         * Emits code that pushes the value of a logical expression.
+         */
+        void logical(Exp exp) {
+            if (exp instanceof ResolvedFunCall) {
+                final ResolvedFunCall call = (ResolvedFunCall) exp;
+                final int opCode = opCode(call);
+                switch (opCode) {
+                case EQ:
+                case NE:
+                case LT:
+                case LE:
+                case GT:
+                case GE:
+                    numeric(call.getArg(0));
+                    numeric(call.getArg(1));
+                    emit(opCode);
+                    push(-1);
+                    return;
+                case NOT:
+                    logical(call.getArg(0));
+                    emit(NOT);
+                    return;
+                case XOR:
+                    logical(call.getArg(0));
+                    logical(call.getArg(1));
+                    emit(XOR);
+                    push(-1);
+                    return;
+                case AND:
+                case OR:
+                    logical(call.getArg(0));
+                    final int target =
+                        emitJump(opCode == AND ? AND_TEST : OR_TEST);
+                    logical(call.getArg(1));
+                    emit(opCode);
+                    push(-1);
+                    code[target] = codeLength;
+                    return;
+                }
+                if (call.getFunDef() == IifFunDef.BOOLEAN_INSTANCE) {
+                    iif(call, false);
+                    return;
+                }
+            }
+            final BooleanCalc calc = compileBoolean(exp);
+            if (calc instanceof ConstantCalc) {
+                emit(CONST);
+                emit(constants.size());
+                constants.add(calc.evaluateBoolean(null) ? 1d : 0d);
+            } else {
+                emit(BOOLEAN_LEAF);
+                emit(leaves.size());
+                leaves.add(calc);
+            }
+            push(1);
+        }
+
+        private void iif(ResolvedFunCall call, boolean numeric) {
+            logical(call.getArg(0));
+            final int elseTarget = emitJump(JUMP_IF_FALSE);
+            push(-1);
+            final int savedDepth = depth;
+            if (numeric) {
+                numeric(call.getArg(1));
+            } else {
+                logical(call.getArg(1));
+            }
+            final int endTarget = emitJump(JUMP);
+            code[elseTarget] = codeLength;
+            depth = savedDepth;
+            if (numeric) {
+                numeric(call.getArg(2));
+            } else {
+                logical(call.getArg(2));
+            }
+            code[endTarget] = codeLength;
+        }
+
+        Program build() {
+            final double[] constantArray = new double[constants.size()];
+            for (int i = 0; i < constantArray.length; i++) {
+                constantArray[i] = constants.get(i);
+            }
+            return new Program(
+                Arrays.copyOf(code, codeLength),
+                constantArray,
+                leaves.toArray(new Calc[leaves.size()]),
+                maxDepth);
+        }
+    }
+
+    /**
+     * Fused tree of operators.
+     *
+     * <p>Immutable, so can be evaluated by several threads at once.
+     */
+    private static class Program {
+        private final int[] code;
+        private final double[] constants;
+        private final Calc[] leaves;
+        private final int maxDepth;
+
+        Program(int[] code, double[] constants, Calc[] leaves, int maxDepth) {
+            this.code = code;
+            this.constants = constants;
+            this.leaves = leaves;
+            this.maxDepth = maxDepth;
+        }
+
+        /**
+         * Evaluates the program.
+         *
+         * @param evaluator Evaluator
+         * @return Value of the expression; for a logical expression, 1 if
+         *     true, 0 if false
+         */
+        double run(Evaluator evaluator) {
+            final double[] stack = new double[maxDepth];
+            int sp = 0; // number of values on the stack
+            int pc = 0;
+            while (pc < code.length) {
+                final int op = code[pc++];
+                double v0, v1;
+                switch (op) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case DOUBLE_LEAF:
+                    stack[sp++] =
+                        ((DoubleCalc) leaves[code[pc++]])
+                            .evaluateDouble(evaluator);
+                    break;
+                case BOOLEAN_LEAF:
+                    stack[sp++] =
+                        ((BooleanCalc) leaves[code[pc++]])
+                            .evaluateBoolean(evaluator) ? 1d : 0d;
+                    break;
+                case ADD:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] =
+                        v0 == FunUtil.DoubleNull
+                            ? v1
+                            : v1 == FunUtil.DoubleNull
+                            ? v0
+                            : v0 + v1;
+                    break;
+                case SUBTRACT:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] =
+                        v0 == FunUtil.DoubleNull
+                            ? (v1 == FunUtil.DoubleNull ? v1 : - v1)
+                            : v1 == FunUtil.DoubleNull
+                            ? v0
+                            : v0 - v1;
+                    break;
+                case MULTIPLY:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] =
+                        v0 == FunUtil.DoubleNull || v1 == FunUtil.DoubleNull
+                            ? FunUtil.DoubleNull
+                            : v0 * v1;
+                    break;
+                case DIVIDE:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] =
+                        v0 == FunUtil.DoubleNull
+                            ? FunUtil.DoubleNull
+                            : v1 == FunUtil.DoubleNull
+                            ? Double.POSITIVE_INFINITY
+                            : v0 / v1;
+                    break;
+                case DIVIDE_NULL:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] =
+                        v0 == FunUtil.DoubleNull || v1 == FunUtil.DoubleNull
+                            ? FunUtil.DoubleNull
+                            : v0 / v1;
+                    break;
+                case NEGATE:
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] = v0 == FunUtil.DoubleNull ? v0 : - v0;
+                    break;
+                case EQ:
+                case NE:
+                case LT:
+                case LE:
+                case GT:
+                case GE:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] = compare(op, v0, v1) ? 1d : 0d;
+                    break;
+                case NOT:
+                    stack[sp - 1] = stack[sp - 1] != 0 ? 0d : 1d;
+                    break;
+                case XOR:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] = (v0 != 0) != (v1 != 0) ? 1d : 0d;
+                    break;
+                case AND:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] = v0 != 0 && v1 != 0 ? 1d : 0d;
+                    break;
+                case OR:
+                    v1 = stack[--sp];
+                    v0 = stack[sp - 1];
+                    stack[sp - 1] = v0 != 0 || v1 != 0 ? 1d : 0d;
+                    break;
+                case AND_TEST:
+                    // As for the AND operator, don't short-circuit
+                    // evaluation if we're evaluating the axes; that way, we
+                    // can combine all measures referenced in the expression
+                    // in a single query.
+                    if (stack[sp - 1] == 0 && !evaluator.isEvalAxes()) {
+                        pc = code[pc];
+                    } else {
+                        ++pc;
+                    }
+                    break;
+                case OR_TEST:
+                    if (stack[sp - 1] != 0 && !evaluator.isEvalAxes()) {
+                        pc = code[pc];
+                    } else {
+                        ++pc;
+                    }
+                    break;
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                case JUMP_IF_FALSE:
+                    if (stack[--sp] == 0) {
+                        pc = code[pc];
+                    } else {
+                        ++pc;
+                    }
+                    break;
+                default:
+                    throw Util.newInternal("unknown op " + op);
+                }
+            }
+            assert sp == 1;
+            return stack[0];
+        }
+
+        /**
+         * Compares two numbers as the numeric comparison operators do. If
+         * either is null or NaN, returns {@link FunUtil#BooleanNull}.
+         */
+        private static boolean compare(int op, double v0, double v1) {
+            if (Double.isNaN(v0)
+                || Double.isNaN(v1)
+                || v0 == FunUtil.DoubleNull
+                || v1 == FunUtil.DoubleNull)
+            {
+                return FunUtil.BooleanNull;
+            }
+            switch (op) {
+            case EQ:
+                return v0 == v1;
+            case NE:
+                return v0 != v1;
+            case LT:
+                return v0 < v1;
+            case LE:
+                return v0 <= v1;
+            case GT:
+                return v0 > v1;
+            case GE:
+                return v0 >= v1;
+            default:
+                throw Util.newInternal("unknown op " + op);
+            }
+        }
+    }
+}
+
+// End FusingExpCompiler.java
@@ -132,6 +132,7 @@ class OrderFunDef extends FunDefBase {
         extends AbstractListCalc
         implements CalcWithDual
     {
+        private final ResolvedFunCall call;
         private final IterCalc iterCalc;
         private final Calc sortKeyCalc;
         private final List<SortKeySpec> keySpecList;
@@ -145,6 +146,7 @@ class OrderFunDef extends FunDefBase {
         {
             super(call, calcList);
 //            assert iterCalc.getResultStyle() == ResultStyle.MUTABLE_LIST;
+            this.call = call;
             this.iterCalc = (IterCalc) calcList[0];
             this.sortKeyCalc = calcList[1];
             this.keySpecList = keySpecList;
@@ -156,6 +158,10 @@ class OrderFunDef extends FunDefBase {
             Evaluator rootEvaluator, Evaluator subEvaluator)
         {
             assert originalKeySpecCount == 1;
+            final TupleList nativeList = evaluateNative(rootEvaluator);
+            if (nativeList != null) {
+                return nativeList;
+            }
             final TupleIterable iterable =
                 iterCalc.evaluateIterable(rootEvaluator);
             // REVIEW: If iterable happens to be a list, we'd like to pass it,
@@ -199,6 +205,12 @@ class OrderFunDef extends FunDefBase {
         }
 
         public TupleList evaluateList(Evaluator evaluator) {
+            if (originalKeySpecCount == 1) {
+                final TupleList nativeList = evaluateNative(evaluator);
+                if (nativeList != null) {
+                    return nativeList;
+                }
+            }
             final TupleIterable iterable =
                 iterCalc.evaluateIterable(evaluator);
             // REVIEW: If iterable happens to be a list, we'd like to pass it,
@@ -272,6 +284,22 @@ class OrderFunDef extends FunDefBase {
             }
         }
 
+        /**
+         * Sorts the set in SQL, if a native evaluator can; otherwise returns
+         * null. The list is a copy, because the caller may modify it.
+         */
+        private TupleList evaluateNative(Evaluator evaluator) {
+            final NativeEvaluator nativeEvaluator =
+                evaluator.getSchemaReader().getNativeSetEvaluator(
+                    call.getFunDef(), call.getArgs(), evaluator, this);
+            if (nativeEvaluator == null) {
+                return null;
+            }
+            final TupleList list =
+                (TupleList) nativeEvaluator.execute(ResultStyle.LIST);
+            return list.cloneList(-1);
+        }
+
         public void collectArguments(Map<String, Object> arguments) {
             super.collectArguments(arguments);
 
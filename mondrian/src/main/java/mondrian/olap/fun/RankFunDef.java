@@ -360,8 +360,6 @@ public class RankFunDef extends FunDefBase {
         private final ListCalc listCalc;
         private final Calc keyCalc;
 
-        private static final Integer ONE = 1;
-
         /**
          * Creates a SortCalc.
          *
@@ -387,13 +385,9 @@ public class RankFunDef extends FunDefBase {
             // Save the state of the evaluator.
             final int savepoint = evaluator.savepoint();
             RuntimeException exception = null;
-            final Map<Member, Object> memberValueMap;
-            final Map<List<Member>, Object> tupleValueMap;
-            final int numValues;
-            //noinspection unchecked
-            final Map<Object, Integer> uniqueValueCounterMap =
-                new TreeMap<Object, Integer>(
-                    FunUtil.DescendingValueComparator.instance);
+            final List<List<Member>> keyTuples =
+                new ArrayList<List<Member>>();
+            final List<Object> keyValues = new ArrayList<Object>();
             TupleList list;
             try {
                 evaluator.setNonEmpty(false);
@@ -413,58 +407,19 @@ public class RankFunDef extends FunDefBase {
                         Collections.<List<Member>, Integer>emptyMap());
                 }
 
-                if (list.getArity() == 1) {
-                    memberValueMap = new HashMap<Member, Object>();
-                    tupleValueMap = null;
-                    for (Member member : list.slice(0)) {
-                        evaluator.setContext(member);
-                        final Object keyValue = keyCalc.evaluate(evaluator);
-                        if (keyValue instanceof RuntimeException) {
-                            if (exception == null) {
-                                exception = (RuntimeException) keyValue;
-                            }
-                        } else if (Util.isNull(keyValue)) {
-                            // nothing to do
-                        } else {
-                            // Assume it's the first time seeing this keyValue.
-                            Integer valueCounter =
-                                uniqueValueCounterMap.put(keyValue, ONE);
-                            if (valueCounter != null) {
-                                // Update the counter on how many times this
-                                // keyValue has been seen.
-                                uniqueValueCounterMap.put(
-                                    keyValue, valueCounter + 1);
-                            }
-                            memberValueMap.put(member, keyValue);
-                        }
-                    }
-                    numValues = memberValueMap.keySet().size();
-                } else {
-                    tupleValueMap = new HashMap<List<Member>, Object>();
-                    memberValueMap = null;
-                    for (List<Member> tuple : list) {
-                        evaluator.setContext(tuple);
-                        final Object keyValue = keyCalc.evaluate(evaluator);
-                        if (keyValue instanceof RuntimeException) {
-                            if (exception == null) {
-                                exception = (RuntimeException) keyValue;
-                            }
-                        } else if (Util.isNull(keyValue)) {
-                            // nothing to do
-                        } else {
-                            // Assume it's the first time seeing this keyValue.
-                            Integer valueCounter = uniqueValueCounterMap.put(
-                                keyValue, ONE);
-                            if (valueCounter != null) {
-                                // Update the counter on how many times this
-                                // keyValue has been seen.
-                                uniqueValueCounterMap.put(
-                                    keyValue, valueCounter + 1);
-                            }
-                            tupleValueMap.put(tuple, keyValue);
+                for (List<Member> tuple : list) {
+                    evaluator.setContext(tuple);
+                    final Object keyValue = keyCalc.evaluate(evaluator);
+                    if (keyValue instanceof RuntimeException) {
+                        if (exception == null) {
+                            exception = (RuntimeException) keyValue;
                         }
+                    } else if (Util.isNull(keyValue)) {
+                        // nothing to do
+                    } else {
+                        keyTuples.add(tuple);
+                        keyValues.add(keyValue);
                     }
-                    numValues = tupleValueMap.keySet().size();
                 }
             } finally {
                 evaluator.restore(savepoint);
@@ -476,54 +431,38 @@ public class RankFunDef extends FunDefBase {
                 return exception;
             }
 
+            // Sort the positions of the values, largest first, and build the
+            // sorted array containing all keyValues. Equal values have the
+            // rank of the first of them.
+            final SortKeyArray keys = new SortKeyArray(keyValues);
+            final int[] positions = keys.sort(true);
+            final int numValues = positions.length;
             final Object[] allValuesSorted = new Object[numValues];
-
-            // Now build the sorted array containing all keyValues
-            // And update the counter to the rank
-            int currentOrdinal = 0;
-            //noinspection unchecked
-            final Map<Object, Integer> uniqueValueRankMap =
-                new TreeMap<Object, Integer>(
-                    Collections.<Object>reverseOrder());
-
-            for (Map.Entry<Object, Integer> entry
-                : uniqueValueCounterMap.entrySet())
-            {
-                Object keyValue = entry.getKey();
-                Integer valueCount = entry.getValue();
-                // Because uniqueValueCounterMap is already sorted, so the
-                // reconstructed allValuesSorted is guaranteed to be sorted.
-                for (int i = 0; i < valueCount; i ++) {
-                    allValuesSorted[currentOrdinal + i] = keyValue;
-                }
-                uniqueValueRankMap.put(keyValue, currentOrdinal + 1);
-                currentOrdinal += valueCount;
-            }
-
-            // Build a member/tuple to rank map
-            if (list.getArity() == 1) {
-                final Map<Member, Integer> rankMap =
-                    new HashMap<Member, Integer>();
-                for (Map.Entry<Member, Object> entry
-                    : memberValueMap.entrySet())
-                {
-                    int oneBasedRank =
-                        uniqueValueRankMap.get(entry.getValue());
-                    rankMap.put(entry.getKey(), oneBasedRank);
+            final Map<Member, Integer> memberRankMap =
+                list.getArity() == 1
+                    ? new HashMap<Member, Integer>()
+                    : null;
+            final Map<List<Member>, Integer> tupleRankMap =
+                list.getArity() == 1
+                    ? null
+                    : new HashMap<List<Member>, Integer>();
+            int oneBasedRank = 0;
+            for (int i = 0; i < numValues; i++) {
+                final int position = positions[i];
+                allValuesSorted[i] = keys.get(position);
+                if (i == 0 || keys.compare(position, positions[i - 1]) != 0) {
+                    oneBasedRank = i + 1;
                 }
-                return new MemberSortResult(allValuesSorted, rankMap);
-            } else {
-                final Map<List<Member>, Integer> rankMap =
-                    new HashMap<List<Member>, Integer>();
-                for (Map.Entry<List<Member>, Object> entry
-                    : tupleValueMap.entrySet())
-                {
-                    int oneBasedRank =
-                        uniqueValueRankMap.get(entry.getValue());
-                    rankMap.put(entry.getKey(), oneBasedRank);
+                final List<Member> tuple = keyTuples.get(position);
+                if (memberRankMap != null) {
+                    memberRankMap.put(tuple.get(0), oneBasedRank);
+                } else {
+                    tupleRankMap.put(tuple, oneBasedRank);
                 }
-                return new TupleSortResult(allValuesSorted, rankMap);
             }
+            return memberRankMap != null
+                ? new MemberSortResult(allValuesSorted, memberRankMap)
+                : new TupleSortResult(allValuesSorted, tupleRankMap);
         }
     }
 
@@ -0,0 +1,422 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.olap.fun;
+
+import mondrian.calc.Calc;
+import mondrian.olap.*;
+import mondrian.rolap.RolapUtil;
+import mondrian.server.Execution;
+import mondrian.util.CancellationChecker;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Array of sort keys, one for each element of a list, that sorts the
+ * positions of the list by key.
+ *
+ * <p>The keys are evaluated once, up front, rather than by a comparator
+ * while the list is being sorted. If every key is a number or null, the
+ * keys are also held in a primitive array, so that comparisons do not need
+ * to unbox them. Keys compare as in
+ * {@link FunUtil#compareValues(Object, Object)}.</p>
+ *
+ * <p>Both sorts are stable: positions whose keys are equal stay in their
+ * original order, whether sorting ascending or descending.
+ * {@link #partialSort(int, boolean)} keeps the best {@code limit} positions
+ * in a bounded heap, and takes O(n log limit) time.
+ * {@link #sort(boolean)} is a merge sort; if the list has at least
+ * {@link MondrianProperties#SortParallelThreshold} elements, the halves are
+ * sorted in parallel, in the common fork/join pool.</p>
+ *
+ * <p>Once the keys are set, the sorts only read the arrays, and do not use
+ * the evaluator; that is what allows sorting on several threads.</p>
+ */
+class SortKeyArray {
+    private static final byte NOT_READY = 0;
+    private static final byte NULL = 1;
+    private static final byte NUMBER = 2;
+
+    /**
+     * Length of a range that a parallel merge sort sorts on one thread.
+     */
+    private static final int MIN_PARALLEL_GRAIN = 4096;
+
+    /**
+     * Length of a range that a merge sort sorts by insertion.
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final Object[] values;
+    private final double[] numbers;
+    private final byte[] kinds;
+    private boolean numeric = true;
+
+    /**
+     * Creates a SortKeyArray with every key null.
+     *
+     * @param size Number of keys
+     */
+    SortKeyArray(int size) {
+        this.values = new Object[size];
+        this.numbers = new double[size];
+        this.kinds = new byte[size];
+        Arrays.fill(values, Util.nullValue);
+        Arrays.fill(kinds, NULL);
+    }
+
+    /**
+     * Creates a SortKeyArray from a list of keys.
+     *
+     * @param values Keys
+     */
+    SortKeyArray(List<Object> values) {
+        this(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            set(i, values.get(i));
+        }
+    }
+
+    /**
+     * Evaluates an expression for each member of a list.
+     *
+     * <p>Does not modify the contents of the evaluator.
+     *
+     * @param evaluator Evaluator
+     * @param calc Expression
+     * @param members Members
+     * @return Keys, one for each member
+     */
+    static SortKeyArray evaluateMembers(
+        Evaluator evaluator,
+        Calc calc,
+        List<Member> members)
+    {
+        final SortKeyArray keys = new SortKeyArray(members.size());
+        final Execution execution =
+            evaluator.getQuery().getStatement().getCurrentExecution();
+        final int savepoint = evaluator.savepoint();
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                CancellationChecker.checkCancelOrTimeout(i, execution);
+                evaluator.setContext(members.get(i));
+                keys.set(i, calc.evaluate(evaluator));
+            }
+            return keys;
+        } finally {
+            evaluator.restore(savepoint);
+        }
+    }
+
+    /**
+     * Evaluates an expression for each tuple of a list.
+     *
+     * <p>Does not modify the contents of the evaluator.
+     *
+     * @param evaluator Evaluator
+     * @param calc Expression
+     * @param tuples Tuples
+     * @return Keys, one for each tuple
+     */
+    static SortKeyArray evaluateTuples(
+        Evaluator evaluator,
+        Calc calc,
+        List<List<Member>> tuples)
+    {
+        final SortKeyArray keys = new SortKeyArray(tuples.size());
+        final Execution execution =
+            evaluator.getQuery().getStatement().getCurrentExecution();
+        final int savepoint = evaluator.savepoint();
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                CancellationChecker.checkCancelOrTimeout(i, execution);
+                evaluator.setContext(tuples.get(i));
+                keys.set(i, calc.evaluate(evaluator));
+            }
+            return keys;
+        } finally {
+            evaluator.restore(savepoint);
+        }
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    int size() {
+        return values.length;
+    }
+
+    /**
+     * Sets a key.
+     *
+     * @param i Position
+     * @param value Key; null is treated as {@link Util#nullValue}
+     */
+    void set(int i, Object value) {
+        if (value == null) {
+            value = Util.nullValue;
+        }
+        values[i] = value;
+        if (value == RolapUtil.valueNotReadyException) {
+            // Test before Number: this marker is a Double.
+            kinds[i] = NOT_READY;
+        } else if (value == Util.nullValue) {
+            kinds[i] = NULL;
+        } else if (value instanceof Number) {
+            kinds[i] = NUMBER;
+            numbers[i] = ((Number) value).doubleValue();
+        } else {
+            numeric = false;
+        }
+    }
+
+    /**
+     * Returns a key.
+     *
+     * @param i Position
+     * @return Key, never null
+     */
+    Object get(int i) {
+        return values[i];
+    }
+
+    /**
+     * Compares the keys at two positions, in ascending order.
+     *
+     * @param i First position
+     * @param j Second position
+     * @return -1, 0 or 1, as in {@link FunUtil#compareValues(Object, Object)}
+     */
+    int compare(int i, int j) {
+        if (numeric) {
+            final byte kind0 = kinds[i];
+            final byte kind1 = kinds[j];
+            if (kind0 != kind1) {
+                return kind0 < kind1 ? -1 : 1;
+            }
+            return kind0 == NUMBER
+                ? FunUtil.compareValues(numbers[i], numbers[j])
+                : 0;
+        }
+        return FunUtil.compareValues(values[i], values[j]);
+    }
+
+    private int compare(int i, int j, boolean desc) {
+        return desc ? compare(j, i) : compare(i, j);
+    }
+
+    /**
+     * Compares two positions by key, then by position, so that no two
+     * positions are equal.
+     */
+    private int compareStable(int i, int j, boolean desc) {
+        final int c = compare(i, j, desc);
+        return c != 0 ? c : (i < j ? -1 : i == j ? 0 : 1);
+    }
+
+    /**
+     * Returns the positions of the first {@code limit} keys in sorted
+     * order.
+     *
+     * @param limit Number of positions to return; not more than the number
+     *     of keys
+     * @param desc Whether to sort descending
+     * @return Positions, in sorted order
+     */
+    int[] partialSort(int limit, boolean desc) {
+        assert limit >= 0 && limit <= size();
+        if (limit == 0) {
+            return new int[0];
+        }
+        // Max-heap of the best positions seen so far; the root is the
+        // worst of them.
+        final int[] heap = new int[limit];
+        for (int i = 0; i < limit; i++) {
+            heap[i] = i;
+            siftUp(heap, i, desc);
+        }
+        for (int i = limit; i < size(); i++) {
+            // A position after those in the heap is worse than an equal key
+            // in the heap, so ties are not replaced.
+            if (compare(i, heap[0], desc) < 0) {
+                heap[0] = i;
+                siftDown(heap, limit, desc);
+            }
+        }
+        final int[] positions = new int[limit];
+        for (int n = limit - 1; n >= 0; n--) {
+            positions[n] = heap[0];
+            heap[0] = heap[n];
+            siftDown(heap, n, desc);
+        }
+        return positions;
+    }
+
+    private void siftUp(int[] heap, int k, boolean desc) {
+        final int x = heap[k];
+        while (k > 0) {
+            final int parent = (k - 1) >>> 1;
+            if (compareStable(x, heap[parent], desc) <= 0) {
+                break;
+            }
+            heap[k] = heap[parent];
+            k = parent;
+        }
+        heap[k] = x;
+    }
+
+    private void siftDown(int[] heap, int size, boolean desc) {
+        if (size == 0) {
+            return;
+        }
+        final int x = heap[0];
+        int k = 0;
+        final int half = size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1;
+            final int right = child + 1;
+            if (right < size
+                && compareStable(heap[right], heap[child], desc) > 0)
+            {
+                child = right;
+            }
+            if (compareStable(x, heap[child], desc) >= 0) {
+                break;
+            }
+            heap[k] = heap[child];
+            k = child;
+        }
+        heap[k] = x;
+    }
+
+    /**
+     * Returns all positions in sorted order.
+     *
+     * @param desc Whether to sort descending
+     * @return Positions, in sorted order
+     */
+    int[] sort(boolean desc) {
+        final int n = size();
+        final int[] positions = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i;
+        }
+        final int[] work = new int[n];
+        final int threshold =
+            MondrianProperties.instance().SortParallelThreshold.get();
+        if (threshold > 0 && n >= threshold) {
+            final ForkJoinPool pool = ForkJoinPool.commonPool();
+            final int grain =
+                Math.max(
+                    MIN_PARALLEL_GRAIN,
+                    n / (pool.getParallelism() * 4));
+            pool.invoke(new MergeSortTask(positions, work, 0, n, desc, grain));
+        } else {
+            mergeSort(positions, work, 0, n, desc);
+        }
+        return positions;
+    }
+
+    /**
+     * Sorts a range of positions; stable.
+     */
+    private void mergeSort(
+        int[] positions, int[] work, int lo, int hi, boolean desc)
+    {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            for (int i = lo + 1; i < hi; i++) {
+                final int x = positions[i];
+                int j = i - 1;
+                while (j >= lo && compare(positions[j], x, desc) > 0) {
+                    positions[j + 1] = positions[j];
+                    --j;
+                }
+                positions[j + 1] = x;
+            }
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+        mergeSort(positions, work, lo, mid, desc);
+        mergeSort(positions, work, mid, hi, desc);
+        merge(positions, work, lo, mid, hi, desc);
+    }
+
+    /**
+     * Merges two adjacent sorted ranges of positions; stable.
+     */
+    private void merge(
+        int[] positions, int[] work, int lo, int mid, int hi, boolean desc)
+    {
+        if (compare(positions[mid - 1], positions[mid], desc) <= 0) {
+            // already in order
+            return;
+        }
+        System.arraycopy(positions, lo, work, lo, hi - lo);
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+            positions[k++] =
+                compare(work[j], work[i], desc) < 0
+                    ? work[j++]
+                    : work[i++];
+        }
+        while (i < mid) {
+            positions[k++] = work[i++];
+        }
+        while (j < hi) {
+            positions[k++] = work[j++];
+        }
+    }
+
+    /**
+     * Task that sorts a range of positions, sorting each half of the range
+     * in a sub-task if the range is longer than the grain.
+     */
+    private class MergeSortTask extends RecursiveAction {
+        private final int[] positions;
+        private final int[] work;
+        private final int lo;
+        private final int hi;
+        private final boolean desc;
+        private final int grain;
+
+        MergeSortTask(
+            int[] positions,
+            int[] work,
+            int lo,
+            int hi,
+            boolean desc,
+            int grain)
+        {
+            this.positions = positions;
+            this.work = work;
+            this.lo = lo;
+            this.hi = hi;
+            this.desc = desc;
+            this.grain = grain;
+        }
+
+        protected void compute() {
+            if (hi - lo <= grain) {
+                mergeSort(positions, work, lo, hi, desc);
+                return;
+            }
+            final int mid = (lo + hi) >>> 1;
+            invokeAll(
+                new MergeSortTask(positions, work, lo, mid, desc, grain),
+                new MergeSortTask(positions, work, mid, hi, desc, grain));
+            merge(positions, work, lo, mid, hi, desc);
+        }
+    }
+}
+
+// End SortKeyArray.java
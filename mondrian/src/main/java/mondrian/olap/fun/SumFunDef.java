@@ -82,21 +82,32 @@ class SumFunDef extends AbstractAggregateFunDef {
         final Calc calc = call.getArgCount() > 1
             ? compiler.compileScalar(call.getArg(1), true)
             : new ValueCalc(call);
+        final boolean nativeCandidate = isNativeCandidate(call, compiler);
         // we may have asked for one sort of Calc, but here's what we got.
         if (ncalc instanceof ListCalc) {
-            return genListCalc(call, (ListCalc) ncalc, calc);
+            return genListCalc(
+                call, (ListCalc) ncalc, calc, nativeCandidate);
         } else {
-            return genIterCalc(call, (IterCalc) ncalc, calc);
+            return genIterCalc(
+                call, (IterCalc) ncalc, calc, nativeCandidate);
         }
     }
 
     protected Calc genIterCalc(
         final ResolvedFunCall call,
         final IterCalc iterCalc,
-        final Calc calc)
+        final Calc calc,
+        final boolean nativeCandidate)
     {
         return new AbstractDoubleCalc(call, new Calc[] {iterCalc, calc}) {
             public double evaluateDouble(Evaluator evaluator) {
+                if (nativeCandidate) {
+                    final Object nativeValue =
+                        evaluateNative(call, this, evaluator);
+                    if (nativeValue != null) {
+                        return toDouble(nativeValue);
+                    }
+                }
                 TupleIterable iterable =
                     evaluateCurrentIterable(iterCalc, evaluator);
                 final int savepoint = evaluator.savepoint();
@@ -116,10 +127,18 @@ class SumFunDef extends AbstractAggregateFunDef {
     protected Calc genListCalc(
         final ResolvedFunCall call,
         final ListCalc listCalc,
-        final Calc calc)
+        final Calc calc,
+        final boolean nativeCandidate)
     {
         return new AbstractDoubleCalc(call, new Calc[] {listCalc, calc}) {
             public double evaluateDouble(Evaluator evaluator) {
+                if (nativeCandidate) {
+                    final Object nativeValue =
+                        evaluateNative(call, this, evaluator);
+                    if (nativeValue != null) {
+                        return toDouble(nativeValue);
+                    }
+                }
                 TupleList memberList = evaluateCurrentList(listCalc, evaluator);
                 final int savepoint = evaluator.savepoint();
                 try {
@@ -137,6 +156,15 @@ class SumFunDef extends AbstractAggregateFunDef {
             }
         };
     }
+
+    /**
+     * Converts the value of a native evaluation to a double.
+     */
+    private static double toDouble(Object nativeValue) {
+        return nativeValue == Util.nullValue
+            ? FunUtil.DoubleNull
+            : ((Number) nativeValue).doubleValue();
+    }
 }
 
 // End SumFunDef.java
@@ -114,6 +114,16 @@ public class UdfResolver implements Resolver {
         return reservedWords == null ? emptyStringArray : reservedWords;
     }
 
+    /**
+     * Returns whether a function is a user-defined function.
+     *
+     * @param funDef Function
+     * @return Whether function was created by a UdfResolver
+     */
+    public static boolean isUdf(FunDef funDef) {
+        return funDef instanceof UdfFunDef;
+    }
+
     /**
      * Adapter which converts a {@link UserDefinedFunction} into a
      * {@link FunDef}.
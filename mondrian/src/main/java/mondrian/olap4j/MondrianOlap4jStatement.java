@@ -11,6 +11,7 @@ package mondrian.olap4j;
 
 import mondrian.calc.ResultStyle;
 import mondrian.olap.*;
+import mondrian.rolap.QueryPlanCache;
 import mondrian.rolap.RolapConnection;
 import mondrian.server.*;
 import mondrian.util.Pair;
@@ -22,8 +23,7 @@ import org.olap4j.mdx.*;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.sql.*;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 /**
  * Implementation of {@link org.olap4j.OlapStatement}
@@ -51,6 +51,15 @@ abstract class MondrianOlap4jStatement
      */
     MondrianOlap4jCellSet openCellSet;
 
+    /**
+     * Queries that this statement has taken from the schema's
+     * {@link QueryPlanCache} or has parsed for it, their keys, and the epoch
+     * of the cache at that time. Each is returned to the cache when its cell
+     * set is closed.
+     */
+    private final Map<Query, Pair<List<Object>, Long>> planKeys =
+        new IdentityHashMap<Query, Pair<List<Object>, Long>>();
+
     MondrianOlap4jStatement(
         MondrianOlap4jConnection olap4jConnection)
     {
@@ -343,8 +352,32 @@ abstract class MondrianOlap4jStatement
     // implement OlapStatement
 
     public CellSet executeOlapQuery(final String mdx) throws OlapException {
-        final Pair<Query, MondrianOlap4jCellSetMetaData> pair = parseQuery(mdx);
-        return executeOlapQueryInternal(pair.left, pair.right);
+        if (!QueryPlanCache.isEnabled()) {
+            final Pair<Query, MondrianOlap4jCellSetMetaData> pair =
+                parseQuery(mdx);
+            return executeOlapQueryInternal(pair.left, pair.right);
+        }
+        final RolapConnection mondrianConnection = getMondrianConnection();
+        final List<Object> key =
+            QueryPlanCache.makeKey(
+                mdx, mondrianConnection, olap4jConnection.preferList);
+        final QueryPlanCache planCache =
+            mondrianConnection.getSchema().getQueryPlanCache();
+        final long epoch = planCache.getEpoch();
+        Query query = planCache.checkOut(key);
+        MondrianOlap4jCellSetMetaData cellSetMetaData = null;
+        if (query != null) {
+            query.setStatement(this);
+        } else {
+            final Pair<Query, MondrianOlap4jCellSetMetaData> pair =
+                parseQuery(mdx);
+            query = pair.left;
+            cellSetMetaData = pair.right;
+        }
+        synchronized (this) {
+            planKeys.put(query, Pair.of(key, epoch));
+        }
+        return executeOlapQueryInternal(query, cellSetMetaData);
     }
 
     protected Pair<Query, MondrianOlap4jCellSetMetaData>
@@ -476,6 +509,17 @@ abstract class MondrianOlap4jStatement
      * @param resultSet Result set or cell set
      */
     void onResultSetClose(ResultSet resultSet) {
+        if (resultSet instanceof MondrianOlap4jCellSet) {
+            final Query query = ((MondrianOlap4jCellSet) resultSet).query;
+            final Pair<List<Object>, Long> pair;
+            synchronized (this) {
+                pair = planKeys.remove(query);
+            }
+            if (pair != null) {
+                getMondrianConnection().getSchema().getQueryPlanCache()
+                    .checkIn(pair.left, query, pair.right);
+            }
+        }
         if (closeOnCompletion) {
             close();
         }
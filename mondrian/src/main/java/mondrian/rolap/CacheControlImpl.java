@@ -176,13 +176,25 @@ public class CacheControlImpl implements CacheControl {
             "Flush",
             new Locus.Action<Void>() {
                 public Void execute() {
-                    flushInternal(region);
+                    flushInternal(region, false);
                     return null;
                 }
             });
     }
 
-    private void flushInternal(CellRegion region) {
+    public void refreshAppended(final CellRegion region) {
+        Locus.execute(
+            connection,
+            "RefreshAppended",
+            new Locus.Action<Void>() {
+                public Void execute() {
+                    flushInternal(region, true);
+                    return null;
+                }
+            });
+    }
+
+    private void flushInternal(CellRegion region, boolean appended) {
         if (region instanceof EmptyCellRegion) {
             return;
         }
@@ -201,7 +213,33 @@ public class CacheControlImpl implements CacheControl {
         final UnionCellRegion union = normalize((CellRegionImpl) region);
         for (CellRegionImpl cellRegion : union.regions) {
             // Figure out the bits.
-            flushNonUnion(cellRegion);
+            if (appended) {
+                refreshAppendedNonUnion(cellRegion);
+            } else {
+                flushNonUnion(cellRegion);
+            }
+        }
+        flushSharedExpResultCache();
+    }
+
+    /**
+     * Empties the cache of expression results that statements against the
+     * connection's schema share, because cells or members that they may have
+     * been computed from have changed.
+     */
+    private void flushSharedExpResultCache() {
+        if (connection != null && connection.getSchema() != null) {
+            connection.getSchema().getSharedExpResultCache().flush();
+        }
+    }
+
+    /**
+     * Empties the cache of parsed queries of the connection's schema, because
+     * members that their identifiers resolved to may have changed.
+     */
+    private void flushQueryPlanCache() {
+        if (connection != null && connection.getSchema() != null) {
+            connection.getSchema().getQueryPlanCache().flush();
         }
     }
 
@@ -308,6 +346,16 @@ public class CacheControlImpl implements CacheControl {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Refreshes a region, which is not a union, after rows have been appended
+     * to it. By default, flushes the region.
+     *
+     * @param region Region
+     */
+    protected void refreshAppendedNonUnion(CellRegion region) {
+        flushNonUnion(region);
+    }
+
     /**
      * Normalizes a CellRegion into a union of crossjoins of member regions.
      *
@@ -636,6 +684,8 @@ public class CacheControlImpl implements CacheControl {
 
             // finally, flush cells now invalid
             flushRegionList(cellRegionList);
+            flushSharedExpResultCache();
+            flushQueryPlanCache();
         }
     }
 
@@ -828,6 +878,8 @@ public class CacheControlImpl implements CacheControl {
                 final List<CellRegion> cellRegionList =
                     new ArrayList<CellRegion>();
                 ((MemberEditCommandPlus) cmd).execute(cellRegionList);
+                flushSharedExpResultCache();
+                flushQueryPlanCache();
 
                 // Flush the cells touched by the regions
                 for (CellRegion memberRegion : cellRegionList) {
@@ -0,0 +1,105 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.Util;
+
+import java.util.BitSet;
+
+/**
+ * Values of a list of cells, as returned by
+ * {@link RolapEvaluator#evaluateBatch}.
+ *
+ * <p>Numeric values are held in a primitive array, and null values are
+ * marked in a bitmap. A cell whose value is not in the cache yet (see
+ * {@link RolapUtil#valueNotReadyException}) is marked as null, and also
+ * counted by {@link #getNotReadyCount()}.</p>
+ */
+public class CellBatch {
+    private final double[] values;
+    private final BitSet nulls;
+    private int notReadyCount;
+
+    /**
+     * Creates a CellBatch.
+     *
+     * @param size Number of cells
+     */
+    CellBatch(int size) {
+        this.values = new double[size];
+        this.nulls = new BitSet(size);
+    }
+
+    /**
+     * Sets the value of a cell.
+     *
+     * @param i Ordinal of cell
+     * @param o Value, as returned by {@link RolapEvaluator#evaluateCurrent()}
+     *     or a {@link CellReader}
+     * @return Whether the value can be held in a batch; false if it is
+     *     neither a number nor null
+     */
+    boolean set(int i, Object o) {
+        if (o == null || o == Util.nullValue) {
+            nulls.set(i);
+        } else if (o == RolapUtil.valueNotReadyException) {
+            // Test before Number: this marker is a Double.
+            nulls.set(i);
+            ++notReadyCount;
+        } else if (o instanceof Number) {
+            values[i] = ((Number) o).doubleValue();
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of cells.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Returns whether a cell is null, or not in the cache yet.
+     *
+     * @param i Ordinal of cell
+     */
+    public boolean isNull(int i) {
+        return nulls.get(i);
+    }
+
+    /**
+     * Returns the value of a cell; 0 if the cell is null.
+     *
+     * @param i Ordinal of cell
+     */
+    public double get(int i) {
+        return values[i];
+    }
+
+    /**
+     * Returns the number of cells that are null, including those that are
+     * not in the cache yet.
+     */
+    public int getNullCount() {
+        return nulls.cardinality();
+    }
+
+    /**
+     * Returns the number of cells whose value is not in the cache yet.
+     */
+    public int getNotReadyCount() {
+        return notReadyCount;
+    }
+}
+
+// End CellBatch.java
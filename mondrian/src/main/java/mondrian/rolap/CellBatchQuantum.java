@@ -0,0 +1,136 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.util.MemoryMonitor;
+import mondrian.util.MemoryMonitorFactory;
+
+/**
+ * Number of cell requests that a {@link FastBatchingCellReader} collects,
+ * for a particular star, before it stops evaluation and loads them.
+ *
+ * <p>If {@link MondrianProperties#CellBatchSize} is positive, the quantum is
+ * that value. Otherwise, the quantum adapts to the batches that have been
+ * loaded for the star:</p>
+ *
+ * <ul>
+ * <li>If the heap is more than {@link #HEAP_HIGH_PERCENT} full after a load,
+ *     the quantum halves, because the requests of a batch, and the segments
+ *     that answer them, take memory;</li>
+ * <li>otherwise, if a full batch loaded in less than
+ *     {@link #TARGET_LOAD_MILLIS}, the quantum doubles, because the cost of
+ *     another evaluation pass outweighs the cost of a larger load;</li>
+ * <li>if a batch took more than four times that long, and its SQL brought
+ *     back many more cells than were requested, the quantum halves.</li>
+ * </ul>
+ *
+ * <p>The quantum stays between {@link #MIN_QUANTUM} and {@link #MAX_QUANTUM},
+ * and never exceeds the number of cells, at the star's recent rows per
+ * request, that would fit in the free heap.</p>
+ *
+ * <p>Thread safe.</p>
+ */
+class CellBatchQuantum {
+    /** Initial quantum; also the quantum used when no star is known. */
+    static final int DEFAULT_QUANTUM = 100000;
+
+    static final int MIN_QUANTUM = 1000;
+
+    static final int MAX_QUANTUM = 1000000;
+
+    /** Load time, in milliseconds, below which a full batch is cheap. */
+    static final long TARGET_LOAD_MILLIS = 1000;
+
+    /** Percentage of the heap in use above which the quantum shrinks. */
+    static final int HEAP_HIGH_PERCENT = 70;
+
+    /**
+     * Number of cells fetched per requested cell above which a slow batch
+     * is considered to fetch too much.
+     */
+    private static final int ROWS_PER_REQUEST_HIGH = 100;
+
+    /**
+     * Rough number of bytes held, during a load, for each cell request and
+     * each cell fetched.
+     */
+    private static final int BYTES_PER_CELL = 200;
+
+    private int quantum = DEFAULT_QUANTUM;
+
+    /** Cells fetched per requested cell, averaged over recent loads. */
+    private double rowsPerRequest = 1d;
+
+    /**
+     * Returns the current quantum.
+     */
+    synchronized int get() {
+        final int cellBatchSize =
+            MondrianProperties.instance().CellBatchSize.get();
+        if (cellBatchSize > 0) {
+            return cellBatchSize;
+        }
+        return quantum;
+    }
+
+    /**
+     * Adjusts the quantum after loading a batch of cell requests.
+     *
+     * @param requestCount Number of cell requests in the batch
+     * @param full Whether evaluation stopped because the batch reached the
+     *     quantum
+     * @param loadNanos Time taken to load the batch, in nanoseconds
+     * @param sqlCellCount Number of cells in segments loaded by SQL
+     */
+    synchronized void record(
+        int requestCount,
+        boolean full,
+        long loadNanos,
+        long sqlCellCount)
+    {
+        if (requestCount <= 0
+            || MondrianProperties.instance().CellBatchSize.get() > 0)
+        {
+            return;
+        }
+        final double batchRowsPerRequest =
+            (double) sqlCellCount / requestCount;
+        rowsPerRequest = (rowsPerRequest + batchRowsPerRequest) / 2d;
+        final long loadMillis = loadNanos / 1000000L;
+
+        final MemoryMonitor memoryMonitor =
+            MemoryMonitorFactory.getMemoryMonitor();
+        final long maxMemory = memoryMonitor.getMaxMemory();
+        final long usedMemory = memoryMonitor.getUsedMemory();
+
+        int newQuantum = quantum;
+        if (maxMemory > 0 && usedMemory * 100 > maxMemory * HEAP_HIGH_PERCENT) {
+            newQuantum = quantum / 2;
+        } else if (full && loadMillis < TARGET_LOAD_MILLIS) {
+            newQuantum = quantum * 2;
+        } else if (loadMillis > TARGET_LOAD_MILLIS * 4
+            && batchRowsPerRequest > ROWS_PER_REQUEST_HIGH)
+        {
+            newQuantum = quantum / 2;
+        }
+        if (maxMemory > 0) {
+            final double bytesPerRequest =
+                BYTES_PER_CELL * (1d + rowsPerRequest);
+            final double fit = (maxMemory - usedMemory) / bytesPerRequest;
+            if (fit < newQuantum) {
+                newQuantum = (int) fit;
+            }
+        }
+        quantum = Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, newQuantum));
+    }
+}
+
+// End CellBatchQuantum.java
@@ -25,6 +25,7 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 /**
@@ -44,7 +45,18 @@ public class FastBatchingCellReader implements CellReader {
     private static final Logger LOGGER =
         Logger.getLogger(FastBatchingCellReader.class);
 
-    private final int cellRequestLimit;
+    /**
+     * Number of cell requests after which evaluation stops and the requests
+     * are loaded. Follows the {@link CellBatchQuantum} of the stars that
+     * this reader loads from.
+     */
+    private int cellRequestLimit;
+
+    /**
+     * Number of cells in the segments that SQL statements have loaded during
+     * the current call to {@link #loadAggregations()}.
+     */
+    private long sqlCellCount;
 
     private final RolapCube cube;
 
@@ -82,6 +94,30 @@ public class FastBatchingCellReader implements CellReader {
 
     private final List<CellRequest> cellRequests = new ArrayList<CellRequest>();
 
+    /**
+     * Locators of recently read cells, by shape. Allows cells to be read from
+     * local segments without creating a {@link CellRequest}.
+     */
+    private final CellLocator[] locators = new CellLocator[4];
+
+    private int nextLocator;
+
+    private final SegmentWithData[] segmentHolder = new SegmentWithData[1];
+
+    /**
+     * Maximum number of full batches of cell requests that may be sent to the
+     * cache manager while evaluation continues.
+     */
+    private final int pipelineDepth;
+
+    /**
+     * Responses to batches of cell requests that were sent to the cache
+     * manager while evaluation continued, and have not yet been collected by
+     * {@link #loadAggregations()}.
+     */
+    private final List<BatchLoader.LoadBatchResponse> pipelinedResponses =
+        new ArrayList<BatchLoader.LoadBatchResponse>();
+
     private final Execution execution;
 
     /**
@@ -96,6 +132,25 @@ public class FastBatchingCellReader implements CellReader {
         Execution execution,
         RolapCube cube,
         AggregationManager aggMgr)
+    {
+        this(
+            execution,
+            cube,
+            aggMgr,
+            cube.getStar() != null
+                ? cube.getStar().getCellBatchQuantum().get()
+                : MondrianProperties.instance().CellBatchSize.get() > 0
+                    ? MondrianProperties.instance().CellBatchSize.get()
+                    : CellBatchQuantum.DEFAULT_QUANTUM,
+            MondrianProperties.instance().CellBatchPipelineDepth.get());
+    }
+
+    private FastBatchingCellReader(
+        Execution execution,
+        RolapCube cube,
+        AggregationManager aggMgr,
+        int cellRequestLimit,
+        int pipelineDepth)
     {
         this.execution = execution;
         assert cube != null;
@@ -105,14 +160,70 @@ public class FastBatchingCellReader implements CellReader {
         cacheMgr = aggMgr.cacheMgr;
         pinnedSegments = this.aggMgr.createPinSet();
         cacheEnabled = !MondrianProperties.instance().DisableCaching.get();
+        this.cellRequestLimit = cellRequestLimit;
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * Creates a reader that records cell requests on behalf of this reader,
+     * for use by one of several threads that evaluate cells at the same time.
+     *
+     * <p>The new reader never sends batches to the cache manager itself. When
+     * its share of this reader's quantum is full, it throws
+     * {@link CellRequestQuantumExceededException}; the caller then calls
+     * {@link #merge(FastBatchingCellReader)} to add the requests it recorded
+     * to this reader, and loads them in one phase.</p>
+     *
+     * @param share Number of readers among which this reader's quantum is
+     *     divided
+     * @return New reader
+     */
+    FastBatchingCellReader fork(int share) {
+        return new FastBatchingCellReader(
+            execution, cube, aggMgr, Math.max(1, cellRequestLimit / share), 0);
+    }
 
-        cellRequestLimit =
-            MondrianProperties.instance().CellBatchSize.get() <= 0
-                ? 100000 // TODO Make this logic into a pluggable algorithm.
-                : MondrianProperties.instance().CellBatchSize.get();
+    /**
+     * Adds the cell requests, statistics and pinned segments of a reader
+     * that was created by {@link #fork(int)} to this reader.
+     *
+     * <p>Must be called from the thread that owns this reader, after the
+     * forked reader is no longer in use.</p>
+     *
+     * @param reader Forked reader
+     */
+    void merge(FastBatchingCellReader reader) {
+        assert reader.pipelinedResponses.isEmpty();
+        missCount += reader.missCount;
+        hitCount += reader.hitCount;
+        pendingCount += reader.pendingCount;
+        dirty |= reader.dirty;
+        cellRequests.addAll(reader.cellRequests);
+        ((AggregationManager.PinSetImpl) pinnedSegments).addAll(
+            (AggregationManager.PinSetImpl) reader.pinnedSegments);
     }
 
     public Object get(RolapEvaluator evaluator) {
+        final Member[] members = evaluator.getNonAllMembers();
+        final List<List<List<Member>>> aggregationLists =
+            evaluator.getAggregationLists();
+        final boolean simple =
+            aggregationLists == null || aggregationLists.isEmpty();
+        if (simple) {
+            // Fast path. If the cell has the same shape as a recent cell, and
+            // is in the same segment, read it without creating a request.
+            for (CellLocator locator : locators) {
+                if (locator == null) {
+                    break;
+                }
+                final Object o = locator.get(members);
+                if (o != null) {
+                    ++hitCount;
+                    return o;
+                }
+            }
+        }
+
         final CellRequest request =
             RolapAggregationManager.makeRequest(evaluator);
 
@@ -122,11 +233,18 @@ public class FastBatchingCellReader implements CellReader {
 
         // Try to retrieve a cell and simultaneously pin the segment which
         // contains it.
-        final Object o = aggMgr.getCellFromCache(request, pinnedSegments);
+        segmentHolder[0] = null;
+        final Object o =
+            request.getMeasure().getStar().getCellFromCache(
+                request, pinnedSegments, segmentHolder);
 
         assert o != Boolean.TRUE : "getCellFromCache no longer returns TRUE";
         if (o != null) {
             ++hitCount;
+            if (simple) {
+                learn(members, request, segmentHolder[0]);
+            }
+            segmentHolder[0] = null;
             return o;
         }
 
@@ -155,6 +273,37 @@ public class FastBatchingCellReader implements CellReader {
         return RolapUtil.valueNotReadyException;
     }
 
+    /**
+     * Remembers the segment that holds a cell, so that the fast path in
+     * {@link #get(RolapEvaluator)} can read other cells of the same shape
+     * from it.
+     */
+    private void learn(
+        Member[] members,
+        CellRequest request,
+        SegmentWithData segment)
+    {
+        for (CellLocator locator : locators) {
+            if (locator == null) {
+                break;
+            }
+            if (locator.hasShape(members)) {
+                if (locator.segment.getConstrainedColumnsBitKey().equals(
+                        segment.getConstrainedColumnsBitKey()))
+                {
+                    locator.segment = segment;
+                }
+                return;
+            }
+        }
+        final CellLocator locator =
+            CellLocator.create(members, request, segment);
+        if (locator != null) {
+            locators[nextLocator] = locator;
+            nextLocator = (nextLocator + 1) % locators.length;
+        }
+    }
+
     public int getMissCount() {
         return missCount;
     }
@@ -172,6 +321,19 @@ public class FastBatchingCellReader implements CellReader {
         ++missCount;
         cellRequests.add(request);
         if (cellRequests.size() % cellRequestLimit == 0) {
+            if (pipelinedResponses.size() < pipelineDepth) {
+                // Send the full batch to the cache manager now, so that its
+                // SQL runs while evaluation continues. The next phase will
+                // collect the segments.
+                final List<CellRequest> batch =
+                    new ArrayList<CellRequest>(
+                        cellRequests.subList(
+                            cellRequests.size() - cellRequestLimit,
+                            cellRequests.size()));
+                preloadColumnCardinality(batch);
+                pipelinedResponses.add(loadBatch(batch));
+                return;
+            }
             // Signal that it's time to ask the cache manager if it has cells
             // we need in the cache. Not really an exception.
             throw CellRequestQuantumExceededException.INSTANCE;
@@ -227,7 +389,17 @@ public class FastBatchingCellReader implements CellReader {
         if (!isDirty()) {
             return false;
         }
+        final long startNanos = System.nanoTime();
+        final List<CellRequest> batch =
+            new ArrayList<CellRequest>(cellRequests);
+        final boolean full = batch.size() >= cellRequestLimit;
+        sqlCellCount = 0;
+        loadAggregationsImpl();
+        adaptQuantum(batch, full, System.nanoTime() - startNanos);
+        return true;
+    }
 
+    private void loadAggregationsImpl() {
         // List of futures yielding segments populated by SQL statements. If
         // loading requires several iterations, we just append to the list. We
         // don't mind if it takes a while for SQL statements to return.
@@ -237,127 +409,36 @@ public class FastBatchingCellReader implements CellReader {
         final List<CellRequest> cellRequests1 =
             new ArrayList<CellRequest>(cellRequests);
 
+        if (!pipelinedResponses.isEmpty()) {
+            // Collect the batches that were sent to the cache manager while
+            // evaluation was still running. Their SQL statements have had a
+            // head start; only the requests they did not satisfy go round the
+            // loop below.
+            for (BatchLoader.LoadBatchResponse response : pipelinedResponses) {
+                applyResponse(response);
+                sqlSegmentMapFutures.addAll(response.sqlSegmentMapFutures);
+            }
+            for (BatchLoader.LoadBatchResponse response : pipelinedResponses) {
+                awaitSegments(response);
+            }
+            awaitSql(sqlSegmentMapFutures);
+            sqlSegmentMapFutures.clear();
+            pipelinedResponses.clear();
+            retainUnsatisfied(cellRequests1);
+            if (cellRequests1.isEmpty()) {
+                dirty = false;
+                cellRequests.clear();
+                return;
+            }
+        }
+
         preloadColumnCardinality(cellRequests1);
 
         for (int iteration = 0;; ++iteration) {
             final BatchLoader.LoadBatchResponse response =
-                cacheMgr.execute(
-                    new BatchLoader.LoadBatchCommand(
-                        Locus.peek(),
-                        cacheMgr,
-                        getDialect(),
-                        cube,
-                        Collections.unmodifiableList(cellRequests1)));
-
-            int failureCount = 0;
-
-            // Segments that have been retrieved from cache this cycle. Allows
-            // us to reduce calls to the external cache.
-            Map<SegmentHeader, SegmentBody> headerBodies =
-                new HashMap<SegmentHeader, SegmentBody>();
-
-            // Load each suggested segment from cache, and place it in
-            // thread-local cache. Note that this step can't be done by the
-            // cacheMgr -- it's our cache.
-            for (SegmentHeader header : response.cacheSegments) {
-                final SegmentBody body = cacheMgr.compositeCache.get(header);
-                if (body == null) {
-                    // REVIEW: This is an async call. It will return before the
-                    // index is informed that this header is there,
-                    // so a LoadBatchCommand might still return
-                    // it on the next iteration.
-                    if (cube.getStar() != null) {
-                        cacheMgr.remove(cube.getStar(), header);
-                    }
-                    ++failureCount;
-                    continue;
-                }
-                headerBodies.put(header, body);
-                final SegmentWithData segmentWithData =
-                    response.convert(header, body);
-                segmentWithData.getStar().register(segmentWithData);
-            }
-
-            // Perform each suggested rollup.
-            //
-            // TODO this could be improved.
-            // See http://jira.pentaho.com/browse/MONDRIAN-1195
-
-            // Rollups that succeeded. Will tell cache mgr to put the headers
-            // into the index and the header/bodies in cache.
-            final Map<SegmentHeader, SegmentBody> succeededRollups =
-                new HashMap<SegmentHeader, SegmentBody>();
-
-            for (final BatchLoader.RollupInfo rollup : response.rollups) {
-                // Gather the required segments.
-                Map<SegmentHeader, SegmentBody> map =
-                    findResidentRollupCandidate(headerBodies, rollup);
-                if (map == null) {
-                    // None of the candidate segment-sets for this rollup was
-                    // all present in the cache.
-                    continue;
-                }
-
-                final Set<String> keepColumns = new HashSet<String>();
-                for (RolapStar.Column column : rollup.constrainedColumns) {
-                    keepColumns.add(
-                        column.getExpression().getGenericExpression());
-                }
-                Pair<SegmentHeader, SegmentBody> rollupHeaderBody =
-                    SegmentBuilder.rollup(
-                        map,
-                        keepColumns,
-                        rollup.constrainedColumnsBitKey,
-                        rollup.measure.getAggregator().getRollup(),
-                        rollup.measure.getDatatype());
-
-                final SegmentHeader header = rollupHeaderBody.left;
-                final SegmentBody body = rollupHeaderBody.right;
-
-                if (headerBodies.containsKey(header)) {
-                    // We had already created this segment, somehow.
-                    continue;
-                }
+                loadBatch(cellRequests1);
 
-                headerBodies.put(header, body);
-                succeededRollups.put(header, body);
-
-                final SegmentWithData segmentWithData =
-                    response.convert(header, body);
-
-                // Register this segment with the local star.
-                segmentWithData.getStar().register(segmentWithData);
-
-                // Make sure that the cache manager knows about this new
-                // segment. First thing we do is to add it to the index.
-                // Then we insert the segment body into the SlotFuture.
-                // This has to be done on the SegmentCacheManager's
-                // Actor thread to ensure thread safety.
-                if (!MondrianProperties.instance().DisableCaching.get()) {
-                    final Locus locus = Locus.peek();
-                    cacheMgr.execute(
-                        new SegmentCacheManager.Command<Void>() {
-                            public Void call() throws Exception {
-                                SegmentCacheIndex index =
-                                    cacheMgr.getIndexRegistry()
-                                    .getIndex(segmentWithData.getStar());
-                                index.add(
-                                    segmentWithData.getHeader(),
-                                    response.converterMap.get(
-                                        SegmentCacheIndexImpl
-                                            .makeConverterKey(
-                                                segmentWithData.getHeader())),
-                                    true);
-                                index.loadSucceeded(
-                                    segmentWithData.getHeader(), body);
-                                return null;
-                            }
-                            public Locus getLocus() {
-                                return locus;
-                            }
-                        });
-                }
-            }
+            final int failureCount = applyResponse(response);
 
             // Wait for SQL statements to end -- but only if there are no
             // failures.
@@ -371,35 +452,8 @@ public class FastBatchingCellReader implements CellReader {
             // only way to make progress.
             sqlSegmentMapFutures.addAll(response.sqlSegmentMapFutures);
             if (failureCount == 0 || iteration > 0) {
-                // Wait on segments being loaded by someone else.
-                for (Map.Entry<SegmentHeader, Future<SegmentBody>> entry
-                    : response.futures.entrySet())
-                {
-                    final SegmentHeader header = entry.getKey();
-                    final Future<SegmentBody> bodyFuture = entry.getValue();
-                    final SegmentBody body = Util.safeGet(
-                        bodyFuture,
-                        "Waiting for someone else's segment to load via SQL");
-                    final SegmentWithData segmentWithData =
-                        response.convert(header, body);
-                    segmentWithData.getStar().register(segmentWithData);
-                }
-
-                // Wait on segments being loaded by SQL statements we asked for.
-                for (Future<Map<Segment, SegmentWithData>> sqlSegmentMapFuture
-                    : sqlSegmentMapFutures)
-                {
-                    final Map<Segment, SegmentWithData> segmentMap =
-                        Util.safeGet(
-                            sqlSegmentMapFuture,
-                            "Waiting for segment to load via SQL");
-                    for (SegmentWithData segmentWithData : segmentMap.values())
-                    {
-                        segmentWithData.getStar().register(segmentWithData);
-                    }
-                    // TODO: also pass back SegmentHeader and SegmentBody,
-                    // and add these to headerBodies. Might help?
-                }
+                awaitSegments(response);
+                awaitSql(sqlSegmentMapFutures);
             }
 
             if (failureCount == 0) {
@@ -408,22 +462,14 @@ public class FastBatchingCellReader implements CellReader {
 
             // Figure out which cell requests are not satisfied by any of the
             // segments retrieved.
-            @SuppressWarnings("unchecked")
-            List<CellRequest> old = new ArrayList<CellRequest>(cellRequests1);
-            cellRequests1.clear();
-            for (CellRequest cellRequest : old) {
-                if (cellRequest.getMeasure().getStar()
-                    .getCellFromCache(cellRequest, null) == null)
-                {
-                    cellRequests1.add(cellRequest);
-                }
-            }
+            final int oldSize = cellRequests1.size();
+            retainUnsatisfied(cellRequests1);
 
             if (cellRequests1.isEmpty()) {
                 break;
             }
 
-            if (cellRequests1.size() >= old.size()
+            if (cellRequests1.size() >= oldSize
                 && iteration > 10)
             {
                 throw Util.newError(
@@ -442,7 +488,281 @@ public class FastBatchingCellReader implements CellReader {
 
         dirty = false;
         cellRequests.clear();
-        return true;
+    }
+
+    /**
+     * Tells the quantum of each star that a batch used how the batch went,
+     * and takes the smallest of their new quanta as the limit for the next
+     * batch.
+     *
+     * @param batch Cell requests that were loaded
+     * @param full Whether the batch had reached the limit
+     * @param loadNanos Time taken to load the batch
+     */
+    private void adaptQuantum(
+        List<CellRequest> batch,
+        boolean full,
+        long loadNanos)
+    {
+        final Map<RolapStar, Integer> starCounts =
+            new HashMap<RolapStar, Integer>();
+        for (CellRequest request : batch) {
+            final RolapStar star = request.getMeasure().getStar();
+            final Integer count = starCounts.get(star);
+            starCounts.put(star, count == null ? 1 : count + 1);
+        }
+        int limit = Integer.MAX_VALUE;
+        for (Map.Entry<RolapStar, Integer> entry : starCounts.entrySet()) {
+            final CellBatchQuantum quantum =
+                entry.getKey().getCellBatchQuantum();
+            final int count = entry.getValue();
+            quantum.record(
+                count, full, loadNanos, sqlCellCount * count / batch.size());
+            limit = Math.min(limit, quantum.get());
+        }
+        if (limit < Integer.MAX_VALUE) {
+            cellRequestLimit = limit;
+        }
+    }
+
+    /**
+     * Places the segments of a response that are in cache, or that can be
+     * rolled up from segments in cache, into the thread-local cache.
+     *
+     * @param response Response from the cache manager
+     * @return Number of segments that the cache manager said were in cache
+     *   but that could not be retrieved
+     */
+    private int applyResponse(final BatchLoader.LoadBatchResponse response) {
+        int failureCount = 0;
+
+        // Segments that have been retrieved from cache this cycle. Allows
+        // us to reduce calls to the external cache.
+        Map<SegmentHeader, SegmentBody> headerBodies =
+            new HashMap<SegmentHeader, SegmentBody>();
+
+        // Load each suggested segment from cache, and place it in
+        // thread-local cache. Note that this step can't be done by the
+        // cacheMgr -- it's our cache.
+        for (SegmentHeader header : response.cacheSegments) {
+            final SegmentBody body = cacheMgr.compositeCache.get(header);
+            if (body == null) {
+                // REVIEW: This is an async call. It will return before the
+                // index is informed that this header is there,
+                // so a LoadBatchCommand might still return
+                // it on the next iteration.
+                if (cube.getStar() != null) {
+                    cacheMgr.remove(cube.getStar(), header);
+                }
+                ++failureCount;
+                continue;
+            }
+            headerBodies.put(header, body);
+            cacheMgr.recordHit(header);
+            final SegmentWithData segmentWithData =
+                response.convert(header, body);
+            segmentWithData.getStar().register(segmentWithData);
+        }
+
+        // Perform each suggested rollup.
+        //
+        // TODO this could be improved.
+        // See http://jira.pentaho.com/browse/MONDRIAN-1195
+
+        // Rollups that succeeded. Will tell cache mgr to put the headers
+        // into the index and the header/bodies in cache.
+        final Map<SegmentHeader, SegmentBody> succeededRollups =
+            new HashMap<SegmentHeader, SegmentBody>();
+
+        for (final BatchLoader.RollupInfo rollup : response.rollups) {
+            // Gather the required segments.
+            Map<SegmentHeader, SegmentBody> map =
+                findResidentRollupCandidate(headerBodies, rollup);
+            if (map == null) {
+                // None of the candidate segment-sets for this rollup was
+                // all present in the cache.
+                continue;
+            }
+
+            final Set<String> keepColumns = new HashSet<String>();
+            for (RolapStar.Column column : rollup.constrainedColumns) {
+                keepColumns.add(
+                    column.getExpression().getGenericExpression());
+            }
+            Pair<SegmentHeader, SegmentBody> rollupHeaderBody =
+                SegmentBuilder.rollup(
+                    map,
+                    keepColumns,
+                    rollup.constrainedColumnsBitKey,
+                    rollup.measure.getAggregator().getRollup(),
+                    rollup.measure.getDatatype());
+
+            final SegmentHeader header = rollupHeaderBody.left;
+            final SegmentBody body = rollupHeaderBody.right;
+
+            if (headerBodies.containsKey(header)) {
+                // We had already created this segment, somehow.
+                continue;
+            }
+
+            headerBodies.put(header, body);
+            succeededRollups.put(header, body);
+
+            final SegmentWithData segmentWithData =
+                response.convert(header, body);
+
+            // Register this segment with the local star.
+            segmentWithData.getStar().register(segmentWithData);
+
+            // Make sure that the cache manager knows about this new
+            // segment. First thing we do is to add it to the index.
+            // Then we insert the segment body into the SlotFuture.
+            // This has to be done on the SegmentCacheManager's
+            // Actor thread to ensure thread safety.
+            if (!MondrianProperties.instance().DisableCaching.get()) {
+                final Locus locus = Locus.peek();
+                cacheMgr.execute(
+                    segmentWithData.getStar(),
+                    new SegmentCacheManager.Command<Void>() {
+                        public Void call() throws Exception {
+                            SegmentCacheIndex index =
+                                cacheMgr.getIndexRegistry()
+                                .getIndex(segmentWithData.getStar());
+                            index.add(
+                                segmentWithData.getHeader(),
+                                response.converterMap.get(
+                                    SegmentCacheIndexImpl
+                                        .makeConverterKey(
+                                            segmentWithData.getHeader())),
+                                true);
+                            index.loadSucceeded(
+                                segmentWithData.getHeader(), body);
+                            return null;
+                        }
+                        public Locus getLocus() {
+                            return locus;
+                        }
+                    });
+            }
+        }
+        return failureCount;
+    }
+
+    /**
+     * Waits for the segments of a response that are being loaded by other
+     * statements, and places them into the thread-local cache.
+     *
+     * @param response Response from the cache manager
+     */
+    private void awaitSegments(BatchLoader.LoadBatchResponse response) {
+        // Wait on segments being loaded by someone else.
+        for (Map.Entry<SegmentHeader, Future<SegmentBody>> entry
+            : response.futures.entrySet())
+        {
+            final SegmentHeader header = entry.getKey();
+            final Future<SegmentBody> bodyFuture = entry.getValue();
+            final SegmentBody body = Util.safeGet(
+                bodyFuture,
+                "Waiting for someone else's segment to load via SQL");
+            final SegmentWithData segmentWithData =
+                response.convert(header, body);
+            segmentWithData.getStar().register(segmentWithData);
+        }
+    }
+
+    /**
+     * Waits for the SQL statements this reader asked for, and places the
+     * segments they load into the thread-local cache.
+     *
+     * @param sqlSegmentMapFutures Futures of the SQL statements
+     */
+    private void awaitSql(
+        List<Future<Map<Segment, SegmentWithData>>> sqlSegmentMapFutures)
+    {
+        // Wait on segments being loaded by SQL statements we asked for.
+        for (Future<Map<Segment, SegmentWithData>> sqlSegmentMapFuture
+            : sqlSegmentMapFutures)
+        {
+            final Map<Segment, SegmentWithData> segmentMap =
+                Util.safeGet(
+                    sqlSegmentMapFuture,
+                    "Waiting for segment to load via SQL");
+            for (SegmentWithData segmentWithData : segmentMap.values())
+            {
+                segmentWithData.getStar().register(segmentWithData);
+                sqlCellCount += segmentWithData.getCellCount();
+            }
+            // TODO: also pass back SegmentHeader and SegmentBody,
+            // and add these to headerBodies. Might help?
+        }
+    }
+
+    /**
+     * Removes from a list the cell requests that can now be satisfied from
+     * the thread-local cache.
+     */
+    private static void retainUnsatisfied(List<CellRequest> cellRequests) {
+        final List<CellRequest> old = new ArrayList<CellRequest>(cellRequests);
+        cellRequests.clear();
+        for (CellRequest cellRequest : old) {
+            if (cellRequest.getMeasure().getStar()
+                .getCellFromCache(cellRequest, null) == null)
+            {
+                cellRequests.add(cellRequest);
+            }
+        }
+    }
+
+    /**
+     * Asks the cache manager which segments will satisfy a list of cell
+     * requests.
+     *
+     * <p>If the cache manager is partitioned, the requests are split by star
+     * and each group is sent to the partition that owns its star; the
+     * responses are then merged.</p>
+     *
+     * @param cellRequests Cell requests
+     * @return Response
+     */
+    private BatchLoader.LoadBatchResponse loadBatch(
+        List<CellRequest> cellRequests)
+    {
+        if (!cacheMgr.isPartitioned()) {
+            return cacheMgr.execute(
+                new BatchLoader.LoadBatchCommand(
+                    Locus.peek(),
+                    cacheMgr,
+                    getDialect(),
+                    cube,
+                    Collections.unmodifiableList(cellRequests)));
+        }
+        final Map<RolapStar, List<CellRequest>> requestsByStar =
+            new LinkedHashMap<RolapStar, List<CellRequest>>();
+        for (CellRequest request : cellRequests) {
+            final RolapStar star = request.getMeasure().getStar();
+            List<CellRequest> list = requestsByStar.get(star);
+            if (list == null) {
+                list = new ArrayList<CellRequest>();
+                requestsByStar.put(star, list);
+            }
+            list.add(request);
+        }
+        final List<BatchLoader.LoadBatchResponse> responses =
+            new ArrayList<BatchLoader.LoadBatchResponse>();
+        for (Map.Entry<RolapStar, List<CellRequest>> entry
+            : requestsByStar.entrySet())
+        {
+            responses.add(
+                cacheMgr.execute(
+                    entry.getKey(),
+                    new BatchLoader.LoadBatchCommand(
+                        Locus.peek(),
+                        cacheMgr,
+                        getDialect(),
+                        cube,
+                        Collections.unmodifiableList(entry.getValue()))));
+        }
+        return BatchLoader.LoadBatchResponse.merge(responses);
     }
 
     /**
@@ -470,6 +790,11 @@ public class FastBatchingCellReader implements CellReader {
      * for which the bodies of all segments are in cache. Returns a map
      * from segment-to-body if found, or null if not found.
      *
+     * <p>Candidates whose segments are all in cache are preferred. Failing
+     * those, if another statement is loading some of the segments of the
+     * candidate that {@link BatchLoader} chose, waits for those loads rather
+     * than issuing SQL for the rolled-up segment.</p>
+     *
      * @param headerBodies Cache of bodies previously retrieved from external
      *                     cache
      *
@@ -483,24 +808,71 @@ public class FastBatchingCellReader implements CellReader {
         Map<SegmentHeader, SegmentBody> headerBodies,
         BatchLoader.RollupInfo rollup)
     {
-        candidateLoop:
-        for (List<SegmentHeader> headers : rollup.candidateLists) {
-            final Map<SegmentHeader, SegmentBody> map =
-                new HashMap<SegmentHeader, SegmentBody>();
-            for (SegmentHeader header : headers) {
-                SegmentBody body = loadSegmentFromCache(headerBodies, header);
-                if (body == null) {
-                    // To proceed with a candidate, require all headers to
-                    // be in cache.
-                    continue candidateLoop;
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean wait = pass > 0;
+            candidateLoop:
+            for (List<SegmentHeader> headers : rollup.candidateLists) {
+                final Map<SegmentHeader, SegmentBody> map =
+                    new HashMap<SegmentHeader, SegmentBody>();
+                for (SegmentHeader header : headers) {
+                    final Future<SegmentBody> future =
+                        rollup.pendingBodies.get(header);
+                    final SegmentBody body;
+                    if (future != null) {
+                        if (!wait && !future.isDone()) {
+                            continue candidateLoop;
+                        }
+                        body = awaitPendingBody(headerBodies, header, future);
+                    } else if (rollup.loadingHeaders.contains(header)) {
+                        // Loading, but not in the chosen candidate. Looking
+                        // in the cache would find no body, and would remove
+                        // the header from the index once it has loaded.
+                        continue candidateLoop;
+                    } else {
+                        body = loadSegmentFromCache(headerBodies, header);
+                    }
+                    if (body == null) {
+                        // To proceed with a candidate, require all headers to
+                        // be in cache.
+                        continue candidateLoop;
+                    }
+                    map.put(header, body);
                 }
-                map.put(header, body);
+                return map;
             }
-            return map;
         }
         return null;
     }
 
+    /**
+     * Waits for a segment that another statement is loading.
+     *
+     * @return Segment body, or null if the load failed
+     */
+    private SegmentBody awaitPendingBody(
+        Map<SegmentHeader, SegmentBody> headerBodies,
+        SegmentHeader header,
+        Future<SegmentBody> future)
+    {
+        SegmentBody body = headerBodies.get(header);
+        if (body != null) {
+            return body;
+        }
+        try {
+            body = future.get();
+        } catch (InterruptedException e) {
+            throw Util.newError(
+                e, "Interrupted while waiting for segment to load via SQL");
+        } catch (ExecutionException e) {
+            // The other statement failed. If we still need the cells, we
+            // will be back, and will load them ourselves.
+            return null;
+        }
+        headerBodies.put(header, body);
+        cacheMgr.recordHit(header);
+        return body;
+    }
+
     private SegmentBody loadSegmentFromCache(
         Map<SegmentHeader, SegmentBody> headerBodies,
         SegmentHeader header)
@@ -517,6 +889,7 @@ public class FastBatchingCellReader implements CellReader {
             return null;
         }
         headerBodies.put(header, body);
+        cacheMgr.recordHit(header);
         return body;
     }
 
@@ -541,6 +914,207 @@ public class FastBatchingCellReader implements CellReader {
         this.dirty = dirty;
     }
 
+    /**
+     * Reads cells of a particular shape from a segment, without creating a
+     * {@link CellRequest}.
+     *
+     * <p>The shape of a cell is its measure and the level of each of its
+     * non-all members. If each of those levels is a regular level of the
+     * measure's cube, the request for the cell constrains the key column of
+     * each member's level, and of the levels of its ancestors up to the
+     * first unique level. So every cell of that shape has the same
+     * dimensionality, and its coordinates in a segment can be read directly
+     * from the keys of the members.</p>
+     *
+     * <p>A locator is only created if the coordinates it computes for the
+     * first cell agree with the request for that cell. It uses scratch
+     * arrays, and so is not thread-safe; neither is the reader.</p>
+     */
+    private static class CellLocator {
+        private final RolapStoredMeasure measure;
+        /** Level of each non-all member; the first element is null. */
+        private final Level[] levels;
+        /** For each axis, the ordinal of the member whose key it holds. */
+        private final int[] memberOrdinals;
+        /**
+         * For each axis, the number of generations between that member and
+         * the ancestor whose key the axis holds.
+         */
+        private final int[] depths;
+        /** For each axis, the level of that ancestor. */
+        private final Level[] axisLevels;
+        private final Object[] keys;
+        private final CellKey cellKey;
+        SegmentWithData segment;
+
+        private CellLocator(
+            RolapStoredMeasure measure,
+            Level[] levels,
+            int[] memberOrdinals,
+            int[] depths,
+            Level[] axisLevels,
+            SegmentWithData segment)
+        {
+            this.measure = measure;
+            this.levels = levels;
+            this.memberOrdinals = memberOrdinals;
+            this.depths = depths;
+            this.axisLevels = axisLevels;
+            this.keys = new Object[memberOrdinals.length];
+            this.cellKey = CellKey.Generator.newCellKey(memberOrdinals.length);
+            this.segment = segment;
+        }
+
+        /**
+         * Creates a locator for cells of the same shape as a given cell,
+         * or returns null if the shape is not one that a locator can handle.
+         *
+         * @param members Non-all members of the evaluator
+         * @param request Request for the cell
+         * @param segment Segment that holds the cell
+         * @return Locator, or null
+         */
+        static CellLocator create(
+            Member[] members,
+            CellRequest request,
+            SegmentWithData segment)
+        {
+            if (members.length == 0
+                || !(members[0] instanceof RolapStoredMeasure))
+            {
+                return null;
+            }
+            final RolapStoredMeasure measure =
+                (RolapStoredMeasure) members[0];
+            final RolapCube baseCube = measure.getCube();
+            final RolapStar.Column[] columns = segment.getColumns();
+            final int[] memberOrdinals = new int[columns.length];
+            Arrays.fill(memberOrdinals, -1);
+            final int[] depths = new int[columns.length];
+            final Level[] axisLevels = new Level[columns.length];
+            final Level[] levels = new Level[members.length];
+            for (int i = 1; i < members.length; i++) {
+                if (!(members[i] instanceof RolapCubeMember)
+                    || members[i].isCalculated())
+                {
+                    return null;
+                }
+                RolapCubeMember member = (RolapCubeMember) members[i];
+                levels[i] = member.getLevel();
+                for (int depth = 0;; depth++) {
+                    final RolapCubeLevel level = member.getLevel();
+                    if (!(level.getLevelReader()
+                            instanceof RolapCubeLevel.RegularLevelReader)
+                        || level.isParentChild())
+                    {
+                        return null;
+                    }
+                    final RolapStar.Column column =
+                        level.getBaseStarKeyColumn(baseCube);
+                    if (column == null) {
+                        return null;
+                    }
+                    final int axis = indexOf(columns, column);
+                    if (axis < 0 || memberOrdinals[axis] >= 0) {
+                        return null;
+                    }
+                    memberOrdinals[axis] = i;
+                    depths[axis] = depth;
+                    axisLevels[axis] = level;
+                    if (level.isUnique()) {
+                        break;
+                    }
+                    member = member.getParentMember();
+                    if (member == null || member.isAll()) {
+                        // In a ragged hierarchy, another member of this
+                        // level may have more ancestors.
+                        if (level.getDepth()
+                            > (level.getHierarchy().hasAll() ? 1 : 0))
+                        {
+                            return null;
+                        }
+                        break;
+                    }
+                }
+            }
+            for (int memberOrdinal : memberOrdinals) {
+                if (memberOrdinal < 0) {
+                    return null;
+                }
+            }
+            final CellLocator locator =
+                new CellLocator(
+                    measure, levels, memberOrdinals, depths, axisLevels,
+                    segment);
+            if (!locator.computeKeys(members)
+                || !Arrays.equals(locator.keys, request.getSingleValues()))
+            {
+                return null;
+            }
+            return locator;
+        }
+
+        private static int indexOf(
+            RolapStar.Column[] columns,
+            RolapStar.Column column)
+        {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].getBitPosition() == column.getBitPosition()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns whether a cell has the shape of the cells this locator
+         * reads.
+         */
+        boolean hasShape(Member[] members) {
+            if (members.length != levels.length || members[0] != measure) {
+                return false;
+            }
+            for (int i = 1; i < members.length; i++) {
+                final Member member = members[i];
+                if (member == null
+                    || member.getLevel() != levels[i]
+                    || member.isCalculated())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean computeKeys(Member[] members) {
+            for (int i = 0; i < keys.length; i++) {
+                Member member = members[memberOrdinals[i]];
+                for (int j = 0; j < depths[i] && member != null; j++) {
+                    member = member.getParentMember();
+                }
+                if (member == null || member.getLevel() != axisLevels[i]) {
+                    return false;
+                }
+                final Object key = ((RolapMember) member).getKey();
+                if (key == null) {
+                    return false;
+                }
+                keys[i] = key;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the value of a cell, or null if the cell does not have the
+         * shape of this locator or is not in its segment.
+         */
+        Object get(Member[] members) {
+            if (!hasShape(members) || !computeKeys(members)) {
+                return null;
+            }
+            return segment.getCellValue(keys, cellKey);
+        }
+    }
 }
 
 /**
@@ -727,10 +1301,9 @@ class BatchLoader {
                     mappedCellValues,
                     request.getCompoundPredicateStrings());
             if (!rollup.isEmpty()) {
-                rollups.add(
-                    new RollupInfo(
-                        request,
-                        rollup));
+                final RollupInfo rollupInfo = new RollupInfo(request, rollup);
+                choosePendingCandidate(index, rollupInfo);
+                rollups.add(rollupInfo);
                 rollupBitmaps.add(request.getConstrainedColumnsBitKey());
                 converterMap.put(
                     SegmentCacheIndexImpl.makeConverterKey(request, key),
@@ -743,6 +1316,51 @@ class BatchLoader {
         return false;
     }
 
+    /**
+     * Notes which segments of a rollup's candidates are still loading, for
+     * this or another execution, and chooses the candidate whose loads the
+     * reader will wait for, rather than issue SQL for the rolled-up segment.
+     *
+     * <p>If some candidate has no segment that is loading, the reader can
+     * roll up from cache, and no candidate is chosen. Otherwise the first
+     * candidate is chosen, and this execution is registered as a client of
+     * its loads only; that keeps each load alive if the execution that
+     * started it is canceled.</p>
+     *
+     * @param index Segment index of the star
+     * @param rollupInfo Rollup
+     */
+    private void choosePendingCandidate(
+        SegmentCacheIndex index,
+        RollupInfo rollupInfo)
+    {
+        List<SegmentHeader> chosen = null;
+        boolean resident = false;
+        for (List<SegmentHeader> candidates : rollupInfo.candidateLists) {
+            boolean loading = false;
+            for (SegmentHeader header : candidates) {
+                if (index.isLoading(header)) {
+                    rollupInfo.loadingHeaders.add(header);
+                    loading = true;
+                }
+            }
+            if (!loading) {
+                resident = true;
+            } else if (chosen == null) {
+                chosen = candidates;
+            }
+        }
+        if (resident || chosen == null) {
+            return;
+        }
+        for (SegmentHeader header : chosen) {
+            if (rollupInfo.loadingHeaders.contains(header)) {
+                rollupInfo.pendingBodies.put(
+                    header, index.getFuture(locus.execution, header));
+            }
+        }
+    }
+
       /**
        * Checks if the request can be satisfied by a rollup already in place
        * and moves that rollup to the top of the list if not there.
@@ -1086,6 +1704,19 @@ class BatchLoader {
         final RolapStar.Measure measure;
         final List<List<SegmentHeader>> candidateLists;
 
+        /**
+         * Candidate segments that were being loaded when the rollup was
+         * planned.
+         */
+        final Set<SegmentHeader> loadingHeaders = new HashSet<SegmentHeader>();
+
+        /**
+         * Futures of the loading segments of the candidate chosen to wait
+         * for, if any.
+         */
+        final Map<SegmentHeader, Future<SegmentBody>> pendingBodies =
+            new HashMap<SegmentHeader, Future<SegmentBody>>();
+
         RollupInfo(
             CellRequest request,
             List<List<SegmentHeader>> candidateLists)
@@ -1162,6 +1793,46 @@ class BatchLoader {
                     SegmentCacheIndexImpl.makeConverterKey(header));
             return converter.convert(header, body);
         }
+
+        /**
+         * Combines the responses of several partitions of the cache manager
+         * into one response.
+         *
+         * @param responses Responses
+         * @return Combined response
+         */
+        static LoadBatchResponse merge(List<LoadBatchResponse> responses) {
+            if (responses.size() == 1) {
+                return responses.get(0);
+            }
+            final List<CellRequest> cellRequests =
+                new ArrayList<CellRequest>();
+            final List<SegmentHeader> cacheSegments =
+                new ArrayList<SegmentHeader>();
+            final List<RollupInfo> rollups = new ArrayList<RollupInfo>();
+            final Map<List, SegmentBuilder.SegmentConverter> converterMap =
+                new HashMap<List, SegmentBuilder.SegmentConverter>();
+            final List<Future<Map<Segment, SegmentWithData>>>
+                sqlSegmentMapFutures =
+                new ArrayList<Future<Map<Segment, SegmentWithData>>>();
+            final Map<SegmentHeader, Future<SegmentBody>> futures =
+                new HashMap<SegmentHeader, Future<SegmentBody>>();
+            for (LoadBatchResponse response : responses) {
+                cellRequests.addAll(response.cellRequests);
+                cacheSegments.addAll(response.cacheSegments);
+                rollups.addAll(response.rollups);
+                converterMap.putAll(response.converterMap);
+                sqlSegmentMapFutures.addAll(response.sqlSegmentMapFutures);
+                futures.putAll(response.futures);
+            }
+            return new LoadBatchResponse(
+                cellRequests,
+                cacheSegments,
+                rollups,
+                converterMap,
+                sqlSegmentMapFutures,
+                futures);
+        }
     }
 
     public class Batch {
@@ -1262,9 +1933,32 @@ class BatchLoader {
             final StarColumnPredicate[] predicates = initPredicates();
             final long t1 = System.currentTimeMillis();
 
-            // TODO: optimize key sets; drop a constraint if more than x% of
-            // the members are requested; whether we should get just the cells
-            // requested or expand to a n-cube
+            // Aggregation.optimizePredicates will drop a constraint if more
+            // than a given fraction of the members are requested, expanding
+            // the request to an n-cube.
+
+            // Load measures whose cells are sketches individually. Unless the
+            // database computes the sketches, the query returns a row for
+            // each distinct value of the measure in each cell, which would
+            // not do for other measures.
+            for (Iterator<RolapStar.Measure> iterator =
+                     measuresList.iterator();
+                 iterator.hasNext();)
+            {
+                final RolapStar.Measure measure = iterator.next();
+                if (measure.getAggregator().isSketch()) {
+                    AggregationManager.loadAggregation(
+                        cacheMgr,
+                        cellRequestCount,
+                        Collections.singletonList(measure),
+                        columns,
+                        batchKey,
+                        predicates,
+                        groupingSetsCollector,
+                        segmentFutures);
+                    iterator.remove();
+                }
+            }
 
             // If the database cannot execute "count(distinct ...)", split the
             // distinct aggregations out.
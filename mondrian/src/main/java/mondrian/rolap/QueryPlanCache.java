@@ -0,0 +1,206 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.*;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/**
+ * Cache of queries that have been parsed, validated and compiled, shared by
+ * the statements against a schema.
+ *
+ * <p>Parsing an MDX statement, resolving its identifiers and compiling its
+ * expressions takes a large part of the time of a small query. If
+ * {@link MondrianProperties#QueryPlanCacheSize} is positive, a statement that
+ * has finished with a {@link Query} returns it to this cache, and a statement
+ * that is about to parse the same MDX text, for a connection with the same
+ * role and locale, takes it from the cache and executes it again.</p>
+ *
+ * <p>A {@link Query} holds the state of its execution, such as the values of
+ * its parameters and its cache of expression results, so it cannot be
+ * executed by two statements at the same time. The cache therefore holds,
+ * for each key, a list of idle queries; {@link #checkOut} removes a query
+ * from the cache, and {@link #checkIn} puts it back, after unsetting the
+ * values of its parameters, so that the next execution binds its own values
+ * or uses their defaults.</p>
+ *
+ * <p>The cache holds at most {@link MondrianProperties#QueryPlanCacheSize}
+ * queries, and discards the queries of the least recently used key when it
+ * is full. Each schema has its own cache, so a schema that is reloaded
+ * starts with an empty cache. Any flush or edit of members through
+ * {@link CacheControl} empties the cache, and increments its epoch, because
+ * queries hold the members that their identifiers resolved to; a query that
+ * was checked out or parsed before the flush is not checked in.</p>
+ *
+ * <p>Thread safe.</p>
+ */
+public class QueryPlanCache {
+    private static final Logger LOGGER =
+        Logger.getLogger(QueryPlanCache.class);
+
+    private final LinkedHashMap<List<Object>, LinkedList<Query>> map =
+        new LinkedHashMap<List<Object>, LinkedList<Query>>(16, 0.75f, true);
+
+    /** Number of queries in the cache, over all keys. */
+    private int queryCount;
+
+    private long epoch;
+
+    private long hitCount;
+
+    private long missCount;
+
+    /**
+     * Returns whether the cache is enabled.
+     */
+    public static boolean isEnabled() {
+        return getMaxSize() > 0;
+    }
+
+    private static int getMaxSize() {
+        return MondrianProperties.instance().QueryPlanCacheSize.get();
+    }
+
+    /**
+     * Returns the key of a query in the cache.
+     *
+     * @param mdx MDX text of the query
+     * @param connection Connection that executes the query
+     * @param preferList Whether the statement evaluates axes as lists
+     * @return Key
+     */
+    public static List<Object> makeKey(
+        String mdx,
+        RolapConnection connection,
+        boolean preferList)
+    {
+        return Arrays.<Object>asList(
+            mdx,
+            connection.getRole(),
+            connection.getLocale(),
+            preferList);
+    }
+
+    /**
+     * Returns the current epoch. The epoch increases each time the cache is
+     * flushed.
+     *
+     * <p>A statement reads the epoch before it calls {@link #checkOut} or
+     * parses a query, and passes it to {@link #checkIn}.
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Removes a query from the cache, and counts a hit or a miss. The caller
+     * has exclusive use of the query until it calls {@link #checkIn}.
+     *
+     * @param key Key
+     * @return Query, or null if there is no idle query with this key
+     */
+    public synchronized Query checkOut(List<Object> key) {
+        final LinkedList<Query> queries = map.get(key);
+        if (queries == null) {
+            ++missCount;
+            return null;
+        }
+        final Query query = queries.removeFirst();
+        if (queries.isEmpty()) {
+            map.remove(key);
+        }
+        --queryCount;
+        ++hitCount;
+        return query;
+    }
+
+    /**
+     * Returns a query to the cache, after unsetting its parameters, and
+     * discards the least recently used queries if the cache is full.
+     *
+     * <p>Discards the query instead if the cache has been flushed since
+     * the query was checked out or parsed, because it may hold members that
+     * are no longer valid.
+     *
+     * @param key Key
+     * @param query Query that is no longer executing
+     * @param epoch Epoch when the query was checked out or parsed
+     */
+    public void checkIn(List<Object> key, Query query, long epoch) {
+        for (Parameter parameter : query.getParameters()) {
+            if (parameter.isSet()) {
+                parameter.unsetValue();
+            }
+        }
+        synchronized (this) {
+            final int maxSize = getMaxSize();
+            if (maxSize <= 0 || epoch != this.epoch) {
+                return;
+            }
+            LinkedList<Query> queries = map.get(key);
+            if (queries == null) {
+                queries = new LinkedList<Query>();
+                map.put(key, queries);
+            }
+            queries.add(query);
+            ++queryCount;
+            final Iterator<LinkedList<Query>> iterator =
+                map.values().iterator();
+            while (queryCount > maxSize) {
+                final LinkedList<Query> eldest = iterator.next();
+                eldest.removeFirst();
+                --queryCount;
+                if (eldest.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all queries and increments the epoch.
+     */
+    public synchronized void flush() {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                "Flushing query plan cache: size=" + queryCount
+                + ", hits=" + hitCount + ", misses=" + missCount);
+        }
+        map.clear();
+        queryCount = 0;
+        ++epoch;
+    }
+
+    /**
+     * Returns the number of queries in the cache.
+     */
+    public synchronized int size() {
+        return queryCount;
+    }
+
+    /**
+     * Returns the number of calls to {@link #checkOut} that found a query.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of calls to {@link #checkOut} that found no query.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
+
+// End QueryPlanCache.java
@@ -17,7 +17,9 @@ import mondrian.olap.fun.AggregateFunDef;
 import mondrian.olap.fun.FunUtil;
 import mondrian.spi.Dialect;
 import mondrian.spi.Dialect.Datatype;
+import mondrian.util.HyperLogLog;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -253,12 +255,74 @@ public abstract class RolapAggregator
             };
         };
 
+    /**
+     * Aggregator that estimates the number of distinct values.
+     *
+     * <p>If {@link MondrianProperties#ApproxDistinctCountSketches} is true,
+     * the value of each cell in a segment is a {@link HyperLogLog} sketch,
+     * and sketches are merged to roll up; see {@link #isSketch()}. Otherwise
+     * the database computes the count, and the aggregator behaves like
+     * {@link #DistinctCount}.</p>
+     */
+    public static final RolapAggregator ApproxDistinctCount =
+        new RolapAggregator("approx-distinct-count", index++, true) {
+            public RolapAggregator getNonDistinctAggregator() {
+                return Count;
+            }
+
+            public Object aggregate(
+                Evaluator evaluator, TupleList members, Calc exp)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            public String getExpression(String operand) {
+                return "count(distinct " + operand + ")";
+            }
+
+            public String getExpression(String operand, Dialect dialect) {
+                final String expression =
+                    dialect.generateApproxCountDistinct(operand);
+                return expression == null
+                    ? getExpression(operand)
+                    : expression;
+            }
+
+            public boolean isSketch() {
+                return MondrianProperties.instance()
+                    .ApproxDistinctCountSketches.get();
+            }
+
+            public boolean supportsFastAggregates(Dialect.Datatype dataType) {
+                return isSketch();
+            }
+
+            public Object aggregate(List<Object> rawData, Datatype datatype) {
+                final List<HyperLogLog> sketches =
+                    new ArrayList<HyperLogLog>(rawData.size());
+                for (Object data : rawData) {
+                    if (data instanceof HyperLogLog) {
+                        sketches.add((HyperLogLog) data);
+                    } else if (data != null && data != Util.nullValue) {
+                        // A cell loaded when sketches were disabled holds
+                        // a count, and counts cannot be merged.
+                        throw new MondrianException(
+                            "Cannot roll up value " + data + " of "
+                            + getName() + " measure; expected a sketch");
+                    }
+                }
+                return HyperLogLog.union(sketches);
+            }
+        };
+
     /**
      * List of all valid aggregation operators.
      */
     public static final EnumeratedValues<RolapAggregator> enumeration =
         new EnumeratedValues<RolapAggregator>(
-            new RolapAggregator[] {Sum, Count, Min, Max, Avg, DistinctCount});
+            new RolapAggregator[] {
+                Sum, Count, Min, Max, Avg, DistinctCount, ApproxDistinctCount
+            });
 
     /**
      * This is the base class for implementing aggregators over sum and
@@ -452,6 +516,31 @@ public abstract class RolapAggregator
         return buf.toString();
     }
 
+    /**
+     * Returns the expression to apply this aggregator to an operand in a
+     * particular SQL dialect. By default, the same as
+     * {@link #getExpression(String)}.
+     */
+    public String getExpression(String operand, Dialect dialect) {
+        return getExpression(operand);
+    }
+
+    /**
+     * Returns whether the cells of measures with this aggregator hold
+     * {@link HyperLogLog} sketches rather than the values of the measure.
+     *
+     * <p>A sketch is loaded by selecting the distinct values of the
+     * measure's expression for each cell, or by calling
+     * {@link Dialect#generateDistinctCountSketch(String)} if the dialect
+     * supports it. Sketches are merged to roll up, and
+     * {@link mondrian.rolap.agg.SegmentWithData#getCellValue(Object[])}
+     * returns their estimate. Aggregate tables are not used for such
+     * measures.</p>
+     */
+    public boolean isSketch() {
+        return false;
+    }
+
     /**
      * If this is a distinct aggregator, returns the corresponding non-distinct
      * aggregator, otherwise throws an error.
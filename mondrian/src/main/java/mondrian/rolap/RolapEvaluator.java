@@ -14,6 +14,7 @@ package mondrian.rolap;
 
 import mondrian.calc.Calc;
 import mondrian.calc.ParameterSlot;
+import mondrian.calc.TupleCursor;
 import mondrian.calc.TupleList;
 import mondrian.calc.impl.DelegatingTupleList;
 import mondrian.olap.*;
@@ -356,8 +357,9 @@ public class RolapEvaluator implements Evaluator {
 
     public final Member[] getNonAllMembers() {
         if (nonAllMembers == null) {
-            nonAllMembers = new RolapMember[root.nonAllPositionCount];
-            for (int i = 0; i < root.nonAllPositionCount; i++) {
+            final int nonAllPositionCount = root.nonAllPositionCount;
+            nonAllMembers = new RolapMember[nonAllPositionCount];
+            for (int i = 0; i < nonAllPositionCount; i++) {
                 int nonAllPosition = root.nonAllPositions[i];
                 nonAllMembers[i] = currentMembers[nonAllPosition];
             }
@@ -657,8 +659,7 @@ public class RolapEvaluator implements Evaluator {
         }
         currentMembers[ordinal] = m;
         if (previous.isAll() && !m.isAll() && isNewPosition(ordinal)) {
-            root.nonAllPositions[root.nonAllPositionCount] = ordinal;
-            root.nonAllPositionCount++;
+            root.addNonAllPosition(ordinal);
         }
         if (m.isEvaluated()) {
             addCalculation(m, false);
@@ -695,8 +696,7 @@ public class RolapEvaluator implements Evaluator {
         }
         currentMembers[ordinal] = m;
         if (previous.isAll() && !m.isAll() && isNewPosition(ordinal)) {
-            root.nonAllPositions[root.nonAllPositionCount] = ordinal;
-            root.nonAllPositionCount++;
+            root.addNonAllPosition(ordinal);
         }
         if (m.isEvaluated()) {
             addCalculation(m, false);
@@ -730,8 +730,9 @@ public class RolapEvaluator implements Evaluator {
     }
 
     private boolean isNewPosition(int ordinal) {
-        for (int nonAllPosition : root.nonAllPositions) {
-            if (ordinal == nonAllPosition) {
+        final int nonAllPositionCount = root.nonAllPositionCount;
+        for (int i = 0; i < nonAllPositionCount; i++) {
+            if (ordinal == root.nonAllPositions[i]) {
                 return false;
             }
         }
@@ -830,6 +831,65 @@ public class RolapEvaluator implements Evaluator {
         return o;
     }
 
+    /**
+     * Evaluates a measure at each tuple of a list, and returns the values of
+     * the cells as a batch.
+     *
+     * <p>Equivalent to setting the context to each tuple, then to the
+     * measure, and calling {@link #evaluateCurrent()}; but a cell with no
+     * calculated member in its context is read straight from the cell
+     * reader, which reads a run of cells from the same segment without
+     * creating a cell request for each.
+     *
+     * <p>Does not modify the contents of the evaluator.
+     *
+     * @param tuples Tuples
+     * @param measure Measure, or null to evaluate the measure in the context
+     *     of each tuple
+     * @param nullCheck Whether a cell is null if the measure's cube does not
+     *     join to the context; see
+     *     {@link #needToReturnNullForUnrelatedDimension(Member[])}
+     * @return Values of the cells, or null if a cell has a value that is
+     *     neither a number nor null
+     */
+    public CellBatch evaluateBatch(
+        TupleList tuples,
+        Member measure,
+        boolean nullCheck)
+    {
+        final CellBatch batch = new CellBatch(tuples.size());
+        final Member[] measures =
+            measure == null ? null : new Member[] {measure};
+        final TupleCursor cursor = tuples.tupleCursor();
+        int i = 0;
+        while (cursor.forward()) {
+            CancellationChecker.checkCancelOrTimeout(i, root.execution);
+            final int savepoint = savepoint();
+            try {
+                cursor.setContext(this);
+                if (measure != null) {
+                    setContext(measure);
+                }
+                final Object o;
+                if (nullCheck
+                    && needToReturnNullForUnrelatedDimension(measures))
+                {
+                    o = null;
+                } else if (calculationCount == 0) {
+                    o = cellReader.get(this);
+                } else {
+                    o = evaluateCurrent();
+                }
+                if (!batch.set(i++, o)) {
+                    return null;
+                }
+            } finally {
+                restore(savepoint);
+            }
+        }
+        return batch;
+    }
+
     void setExpanding(Member member) {
         assert member != null;
         ensureCommandCapacity(commandCount + 3);
@@ -1079,12 +1139,60 @@ public class RolapEvaluator implements Evaluator {
         return key;
     }
 
+    /**
+     * Creates the key of an expression in the cache shared with other
+     * statements, or returns null if its result may not be shared.
+     *
+     * <p>Like {@link #getExpResultCacheKey(ExpCacheDescriptor)}, the key
+     * contains the current member of each hierarchy that the expression
+     * depends on, or of every hierarchy in NON EMPTY mode.
+     */
+    private List<Object> getSharedExpResultCacheKey(
+        ExpCacheDescriptor descriptor)
+    {
+        if (aggregationLists != null || slicerTuples != null) {
+            // The context is more than the current members.
+            return null;
+        }
+        final List<Member> members;
+        if (nonEmpty) {
+            members = Arrays.<Member>asList(currentMembers);
+        } else {
+            final int[] hierarchyOrdinals =
+                descriptor.getDependentHierarchyOrdinals();
+            members = new ArrayList<Member>(hierarchyOrdinals.length);
+            for (int hierarchyOrdinal : hierarchyOrdinals) {
+                members.add(currentMembers[hierarchyOrdinal]);
+            }
+        }
+        final List<Object> key =
+            SharedExpResultCache.makeKey(descriptor, root, members);
+        if (key != null) {
+            key.add(nonEmpty);
+        }
+        return key;
+    }
+
     public final Object getCachedResult(ExpCacheDescriptor cacheDescriptor) {
         // Look up a cached result, and if not present, compute one and add to
         // cache. Use a dummy value to represent nulls.
         final Object key = getExpResultCacheKey(cacheDescriptor);
         Object result = root.getCacheResult(key);
         if (result == null) {
+            // Look in the cache shared with other statements.
+            final List<Object> sharedKey =
+                root.sharedExpResultCache == null
+                    ? null
+                    : getSharedExpResultCacheKey(cacheDescriptor);
+            long epoch = 0;
+            if (sharedKey != null) {
+                result = root.sharedExpResultCache.get(sharedKey);
+                if (result != null) {
+                    root.putCacheResult(key, result, true);
+                    return result == nullResult ? null : result;
+                }
+                epoch = root.sharedExpResultCache.getEpoch();
+            }
             boolean aggCacheDirty = cellReader.isDirty();
             int aggregateCacheMissCountBefore = cellReader.getMissCount();
             result = cacheDescriptor.evaluate(this);
@@ -1110,6 +1218,10 @@ public class RolapEvaluator implements Evaluator {
                 key,
                 result == null ? nullResult : result,
                 isValidResult);
+            if (isValidResult && sharedKey != null) {
+                root.sharedExpResultCache.put(
+                    sharedKey, result == null ? nullResult : result, epoch);
+            }
         } else if (result == nullResult) {
             result = null;
         }
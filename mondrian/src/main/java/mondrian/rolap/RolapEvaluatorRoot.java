@@ -48,7 +48,13 @@ class RolapEvaluatorRoot {
      */
     final RolapMember[] defaultMembers;
     final int[] nonAllPositions;
-    int nonAllPositionCount;
+
+    /**
+     * Number of entries in {@link #nonAllPositions}. Volatile, and written
+     * after the entry, so that a thread that reads the count can read the
+     * entries below it without locking.
+     */
+    volatile int nonAllPositionCount;
 
     final SolveOrderMode solveOrderMode =
         Util.lookup(
@@ -56,7 +62,21 @@ class RolapEvaluatorRoot {
             MondrianProperties.instance().SolveOrderMode.get().toUpperCase(),
             SolveOrderMode.ABSOLUTE);
 
-    final Set<Exp> activeNativeExpansions = new HashSet<Exp>();
+    final Set<Exp> activeNativeExpansions =
+        Collections.synchronizedSet(new HashSet<Exp>());
+
+    /**
+     * Cache shared by statements against the same schema, or null if the
+     * shared cache is disabled.
+     */
+    final SharedExpResultCache sharedExpResultCache;
+
+    /**
+     * Text of each expression whose result may be shared between statements,
+     * or null if it may not be shared.
+     */
+    private final Map<Exp, String> sharedExpStrings =
+        new HashMap<Exp, String>();
 
     /**
      * The size of the command stack at which we will next check for recursion.
@@ -123,6 +143,50 @@ class RolapEvaluatorRoot {
             DialectManager.createDialect(schemaReader.getDataSource(), null);
 
         this.recursionCheckCommandCount = (defaultMembers.length << 4);
+        this.sharedExpResultCache =
+            SharedExpResultCache.isEnabled()
+            && connection.getScenario() == null
+                ? cube.getSchema().getSharedExpResultCache()
+                : null;
+    }
+
+    /**
+     * Returns the text of an expression, if its result may be shared with
+     * other statements through the {@link SharedExpResultCache}, otherwise
+     * null.
+     *
+     * @param exp Expression
+     * @return Text of expression, or null
+     */
+    final synchronized String getSharedExpString(Exp exp) {
+        if (sharedExpStrings.containsKey(exp)) {
+            return sharedExpStrings.get(exp);
+        }
+        final String expString =
+            SharedExpResultCache.isShareable(exp, query)
+                ? Util.unparse(exp)
+                : null;
+        sharedExpStrings.put(exp, expString);
+        return expString;
+    }
+
+    /**
+     * Records that the context of an evaluator has contained a member other
+     * than the 'all' member of the hierarchy with a given ordinal.
+     *
+     * <p>Synchronized, because the cells of a result may be evaluated by
+     * several threads that share this root.
+     *
+     * @param ordinal Ordinal of hierarchy in cube
+     */
+    final synchronized void addNonAllPosition(int ordinal) {
+        for (int i = 0; i < nonAllPositionCount; i++) {
+            if (nonAllPositions[i] == ordinal) {
+                return;
+            }
+        }
+        nonAllPositions[nonAllPositionCount] = ordinal;
+        nonAllPositionCount++;
     }
 
     /**
@@ -137,7 +201,7 @@ class RolapEvaluatorRoot {
      *     result style; ignored if expression is scalar
      * @return compiled expression
      */
-    final Calc getCompiled(
+    final synchronized Calc getCompiled(
         Exp exp,
         boolean scalar,
         ResultStyle resultStyle)
@@ -254,7 +318,7 @@ class RolapEvaluatorRoot {
      * @param result value to be cached
      * @param isValidResult indicate if this result is valid
      */
-    public final void putCacheResult(
+    public final synchronized void putCacheResult(
         Object key,
         Object result,
         boolean isValidResult)
@@ -272,7 +336,7 @@ class RolapEvaluatorRoot {
      * @param key cache key
      * @return cached expression
      */
-    public final Object getCacheResult(Object key) {
+    public final synchronized Object getCacheResult(Object key) {
         Object result = expResultCache.get(key);
         if (result == null) {
             result = tmpExpResultCache.get(key);
@@ -285,7 +349,9 @@ class RolapEvaluatorRoot {
      *
      * @param clearValidResult whether to clear valid expression results
      */
-    public final void clearResultCache(boolean clearValidResult) {
+    public final synchronized void clearResultCache(
+        boolean clearValidResult)
+    {
         if (clearValidResult) {
             expResultCache.clear();
         }
@@ -62,7 +62,15 @@ class RolapNamedSetEvaluator
         this.namedSet = namedSet;
     }
 
-    public TupleIterable evaluateTupleIterable(Evaluator evaluator) {
+    public TupleIterable evaluateTupleIterable(final Evaluator evaluator) {
+        if (list == null) {
+            rrer.defer(
+                new Runnable() {
+                    public void run() {
+                        ensureList(evaluator);
+                    }
+                });
+        }
         ensureList(evaluator);
         return list;
     }
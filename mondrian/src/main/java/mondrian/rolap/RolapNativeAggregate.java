@@ -0,0 +1,502 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.calc.ResultStyle;
+import mondrian.mdx.ResolvedFunCall;
+import mondrian.olap.*;
+import mondrian.rolap.aggmatcher.AggStar;
+import mondrian.rolap.cache.*;
+import mondrian.rolap.sql.*;
+import mondrian.server.Locus;
+import mondrian.spi.Dialect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+/**
+ * Computes a Count or Sum over a set in SQL.
+ *
+ * <p>Rather than reading the tuples of the set and evaluating a cell for
+ * each, the statement wraps the statement that would read the tuples in an
+ * outer statement that aggregates them:</p>
+ *
+ * <blockquote><pre>SELECT count(*) FROM (
+ *   SELECT "store_state", "gender"
+ *   FROM ... GROUP BY "store_state", "gender") AS "tuples"</pre>
+ * </blockquote>
+ *
+ * <p>Handles:</p>
+ *
+ * <ul>
+ * <li><code>Count(NonEmptyCrossJoin(&lt;set&gt;, &lt;set&gt;)
+ *     [, INCLUDEEMPTY | EXCLUDEEMPTY])</code> and
+ *     <code>Count(&lt;set&gt;, EXCLUDEEMPTY)</code>; as for a native
+ *     <code>NonEmptyCrossJoin</code>, the statement joins to the fact
+ *     table, so only tuples that have rows are counted; with
+ *     EXCLUDEEMPTY, the measure in the context must be a stored count or
+ *     distinct count, which is empty exactly when there are no rows;</li>
+ * <li><code>Sum(&lt;set&gt;, &lt;numeric expr&gt;)</code>, where the
+ *     expression can be converted to SQL, as for
+ *     {@link RolapNativeTopCount}; the inner statement computes the
+ *     expression for each tuple, and the outer statement adds them up.
+ *     Empty tuples add nothing, so losing them in the join does not change
+ *     the sum.</li>
+ * </ul>
+ *
+ * <p>In each case the set must be one that {@link RolapNativeCrossJoin}
+ * could evaluate, with no duplicate or calculated members, over a cube that
+ * is not virtual.</p>
+ */
+public class RolapNativeAggregate extends RolapNativeSet {
+    /** Alias of the value of the numeric expression in the inner statement. */
+    private static final String VALUE_ALIAS = "m";
+
+    private SmartCache<Object, Object> valueCache =
+        new SoftSmartCache<Object, Object>();
+
+    public RolapNativeAggregate() {
+        super.setEnabled(
+            MondrianProperties.instance().EnableNativeAggregate.get());
+    }
+
+    static class AggregateConstraint extends SetConstraint {
+        private final Exp valueExpr;
+        private final boolean count;
+
+        /**
+         * Creates an AggregateConstraint.
+         *
+         * @param args Cross join arguments
+         * @param evaluator Evaluator
+         * @param valueExpr Expression to compute for each tuple, or null
+         * @param count Whether the statement counts the tuples, rather than
+         *   summing the expression
+         */
+        AggregateConstraint(
+            CrossJoinArg[] args,
+            RolapEvaluator evaluator,
+            Exp valueExpr,
+            boolean count)
+        {
+            super(args, evaluator, true);
+            this.valueExpr = valueExpr;
+            this.count = count;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>The statement always joins to the fact table, to find the
+         * tuples that have rows, and to compute the expression.
+         */
+        protected boolean isJoinRequired() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsAggTables() {
+            return true;
+        }
+
+        public void addConstraint(
+            SqlQuery sqlQuery,
+            RolapCube baseCube,
+            AggStar aggStar)
+        {
+            if (valueExpr != null) {
+                RolapNativeSql sql =
+                    new RolapNativeSql(
+                        sqlQuery, aggStar, getEvaluator(), null);
+                sqlQuery.addSelect(
+                    sql.generateTopCountOrderBy(valueExpr),
+                    null,
+                    VALUE_ALIAS);
+            }
+            super.addConstraint(sqlQuery, baseCube, aggStar);
+        }
+
+        public Object getCacheKey() {
+            List<Object> key = new ArrayList<Object>();
+            key.add(super.getCacheKey());
+            // Note: need to use string in order for caching to work
+            if (valueExpr != null) {
+                key.add(valueExpr.toString());
+            }
+            key.add(count);
+            key.add(this.getEvaluator().isNonEmpty());
+            return key;
+        }
+    }
+
+    protected boolean restrictMemberTypes() {
+        return true;
+    }
+
+    /**
+     * Returns whether a call to Count or Sum has a form that this class
+     * might compute in SQL.
+     *
+     * <p>Called once, when the call is compiled. A call that is not a
+     * candidate is always evaluated by the interpreter, and does not raise
+     * an alert; {@link #createEvaluator} raises alerts only for candidates
+     * whose set turns out not to be suitable.
+     *
+     * @param evaluator Evaluator of the compiler
+     * @param fun Function
+     * @param args Arguments to the function
+     * @return whether the call is a candidate for native evaluation
+     */
+    public static boolean isCandidate(
+        Evaluator evaluator,
+        FunDef fun,
+        Exp[] args)
+    {
+        if (!MondrianProperties.instance().EnableNativeAggregate.get()
+            || !(evaluator instanceof RolapEvaluator)
+            || ((RolapEvaluator) evaluator).getCube().isVirtual())
+        {
+            return false;
+        }
+        final String funName = fun.getName();
+        final boolean count;
+        if ("Count".equalsIgnoreCase(funName)) {
+            count = true;
+        } else if ("Sum".equalsIgnoreCase(funName)) {
+            count = false;
+        } else {
+            return false;
+        }
+        final SqlQuery sqlQuery =
+            SqlQuery.newQuery(
+                evaluator.getSchemaReader().getDataSource(),
+                "NativeAggregate");
+        if (!sqlQuery.getDialect().allowsFromQuery()) {
+            return false;
+        }
+        if (count) {
+            return isNonEmptyCount(args);
+        }
+        if (args.length != 2) {
+            return false;
+        }
+        final RolapNativeSql sql =
+            new RolapNativeSql(
+                sqlQuery, null, (RolapEvaluator) evaluator, null);
+        return sql.generateTopCountOrderBy(args[1]) != null
+            && sql.getStoredMeasure() != null;
+    }
+
+    /**
+     * Returns whether the arguments to Count are of the form
+     * <code>Count(NonEmptyCrossJoin(...) [, INCLUDEEMPTY | EXCLUDEEMPTY])
+     * </code> or <code>Count(&lt;set&gt;, EXCLUDEEMPTY)</code>, that is,
+     * whether the count excludes empty tuples.
+     */
+    private static boolean isNonEmptyCount(Exp[] args) {
+        final boolean nonEmptySet =
+            args[0] instanceof ResolvedFunCall
+            && "NonEmptyCrossJoin".equalsIgnoreCase(
+                ((ResolvedFunCall) args[0]).getFunName());
+        return nonEmptySet || isExcludeEmpty(args);
+    }
+
+    /**
+     * Returns whether the second argument to Count is the symbol
+     * EXCLUDEEMPTY.
+     */
+    private static boolean isExcludeEmpty(Exp[] args) {
+        return args.length > 1
+            && args[1] instanceof Literal
+            && "EXCLUDEEMPTY".equals(((Literal) args[1]).getValue());
+    }
+
+    NativeEvaluator createEvaluator(
+        RolapEvaluator evaluator,
+        FunDef fun,
+        Exp[] args)
+    {
+        if (!isEnabled() || !isValidContext(evaluator)) {
+            return null;
+        }
+        final String funName = fun.getName();
+        final boolean count;
+        if ("Count".equalsIgnoreCase(funName)) {
+            count = true;
+        } else if ("Sum".equalsIgnoreCase(funName)) {
+            count = false;
+        } else {
+            return null;
+        }
+        // Calls in a virtual cube, on a dialect without sub-queries, or of
+        // another form were rejected by isCandidate when they were compiled,
+        // and should not get here; they are not worth an alert.
+        if (evaluator.getCube().isVirtual()) {
+            return null;
+        }
+        SchemaReader schemaReader = evaluator.getSchemaReader();
+        DataSource ds = schemaReader.getDataSource();
+        SqlQuery sqlQuery = SqlQuery.newQuery(ds, "NativeAggregate");
+        if (!sqlQuery.getDialect().allowsFromQuery()) {
+            return null;
+        }
+
+        final RolapStoredMeasure storedMeasure;
+        final Exp valueExpr;
+        if (count) {
+            if (!isNonEmptyCount(args)) {
+                return null;
+            }
+            // With EXCLUDEEMPTY, the interpreter counts the tuples for which
+            // the measure in the context is not empty. The join counts the
+            // tuples that have rows; the two agree only for some measures.
+            if (isExcludeEmpty(args)
+                && !isEmptyExactlyWhenNoRows(evaluator.getMembers()[0]))
+            {
+                alertNonNative(
+                    funName,
+                    "Measure in context may be empty for tuples that have "
+                    + "rows.");
+                return null;
+            }
+            // As for a native NonEmptyCrossJoin, the join uses the fact table
+            // of the measure in the context.
+            storedMeasure = null;
+            valueExpr = null;
+        } else {
+            // Sum(<set>, <numeric expr>)
+            if (args.length != 2) {
+                return null;
+            }
+            RolapNativeSql sql =
+                new RolapNativeSql(
+                    sqlQuery, null, evaluator, null);
+            if (sql.generateTopCountOrderBy(args[1]) == null) {
+                alertNonNative(
+                    funName, "Cannot convert numeric expression to SQL.");
+                return null;
+            }
+            storedMeasure = sql.getStoredMeasure();
+            if (storedMeasure == null) {
+                alertNonNative(
+                    funName, "Numeric expression does not use a measure.");
+                return null;
+            }
+            valueExpr = args[1];
+        }
+
+        // extract the set expression
+        List<CrossJoinArg[]> allArgs =
+            crossJoinArgFactory().checkCrossJoinArg(evaluator, args[0]);
+        if (allArgs == null || allArgs.isEmpty() || allArgs.get(0) == null) {
+            alertNonNative(
+                funName, "Set in 1st argument does not support native eval.");
+            return null;
+        }
+        CrossJoinArg[] cjArgs = allArgs.get(0);
+        for (CrossJoinArg cjArg : cjArgs) {
+            if (!isDistinct(cjArg)) {
+                alertNonNative(
+                    funName,
+                    "Set in 1st argument has calculated or duplicate members.");
+                return null;
+            }
+        }
+
+        final int savepoint = evaluator.savepoint();
+        try {
+            overrideContext(evaluator, cjArgs, storedMeasure);
+
+            CrossJoinArg[] combinedArgs = cjArgs;
+            if (allArgs.size() == 2 && allArgs.get(1) != null) {
+                // Combine the CJ and the additional predicate args
+                // to form the TupleConstraint.
+                combinedArgs = Util.appendArrays(cjArgs, allArgs.get(1));
+            }
+            AggregateConstraint constraint =
+                new AggregateConstraint(
+                    combinedArgs, evaluator, valueExpr, count);
+            LOGGER.debug("using native " + funName);
+            return new AggregateEvaluator(
+                cjArgs, schemaReader, constraint, funName, count);
+        } finally {
+            evaluator.restore(savepoint);
+        }
+    }
+
+    /**
+     * Returns whether each tuple that a cross join argument contributes is
+     * read by SQL exactly once. The statement groups by tuple, so would read
+     * a duplicate member once, and would not read a calculated member at
+     * all; the interpreter would aggregate each occurrence.
+     */
+    private static boolean isDistinct(CrossJoinArg arg) {
+        if (arg.getLevel() != null
+            && arg.getLevel().getHierarchy().getUniqueKeyLevelName() != null)
+        {
+            // Statements for such hierarchies may omit the GROUP BY.
+            return false;
+        }
+        if (!(arg instanceof MemberListCrossJoinArg)) {
+            return true;
+        }
+        final MemberListCrossJoinArg memberListArg =
+            (MemberListCrossJoinArg) arg;
+        if (memberListArg.hasCalcMembers()) {
+            return false;
+        }
+        final List<RolapMember> members = memberListArg.getMembers();
+        return new HashSet<RolapMember>(members).size() == members.size();
+    }
+
+    private void alertNonNative(String funName, String msg) {
+        RolapUtil.alertNonNative(funName, msg);
+    }
+
+    // package-local visibility for testing purposes
+    boolean isValidContext(RolapEvaluator evaluator) {
+        return AggregateConstraint.isValidContext(
+            evaluator, restrictMemberTypes());
+    }
+
+    /** disable garbage collection for test */
+    void useHardCache(boolean hard) {
+        super.useHardCache(hard);
+        if (hard) {
+            valueCache = new HardSmartCache<Object, Object>();
+        } else {
+            valueCache = new SoftSmartCache<Object, Object>();
+        }
+    }
+
+    public void flushCache() {
+        super.flushCache();
+        valueCache.clear();
+    }
+
+    /**
+     * Evaluator that computes the aggregate in one SQL statement.
+     *
+     * <p>Returns a {@link Number}, or {@link Util#nullValue} if the sum is
+     * empty.
+     */
+    private class AggregateEvaluator extends SetEvaluator {
+        private final CrossJoinArg[] args;
+        private final SchemaReader schemaReader;
+        private final AggregateConstraint constraint;
+        private final String funName;
+        private final boolean count;
+
+        AggregateEvaluator(
+            CrossJoinArg[] args,
+            SchemaReader schemaReader,
+            AggregateConstraint constraint,
+            String funName,
+            boolean count)
+        {
+            super(args, schemaReader, constraint);
+            this.args = args;
+            this.schemaReader = schemaReader;
+            this.constraint = constraint;
+            this.funName = funName;
+            this.count = count;
+        }
+
+        public Object execute(ResultStyle desiredResultStyle) {
+            if (desiredResultStyle != ResultStyle.VALUE) {
+                throw ResultStyleException.generate(
+                    Collections.singletonList(ResultStyle.VALUE),
+                    Collections.singletonList(desiredResultStyle));
+            }
+            final SqlTupleReader tr = new SqlTupleReader(constraint);
+            for (CrossJoinArg arg : args) {
+                addLevel(tr, arg);
+            }
+
+            // As in executeList, the key includes the arguments and the
+            // role as well as the constraint.
+            List<Object> key = new ArrayList<Object>();
+            key.add(tr.getCacheKey());
+            key.addAll(Arrays.asList(args));
+            key.add(schemaReader.getRole());
+
+            Object value = valueCache.get(key);
+            if (value != null) {
+                if (listener != null) {
+                    TupleEvent e = new TupleEvent(this, tr);
+                    listener.foundInCache(e);
+                }
+                return value;
+            }
+            if (listener != null) {
+                TupleEvent e = new TupleEvent(this, tr);
+                listener.executingSql(e);
+            }
+            value = executeSql(tr);
+            if (!MondrianProperties.instance().DisableCaching.get()) {
+                valueCache.put(key, value);
+            }
+            return value;
+        }
+
+        /**
+         * Generates and executes the statement that computes the aggregate.
+         */
+        private Object executeSql(SqlTupleReader tr) {
+            final DataSource dataSource =
+                constraint.getEvaluator().getSchemaReader().getDataSource();
+            final SqlQuery sqlQuery =
+                SqlQuery.newQuery(
+                    dataSource,
+                    "while computing " + funName + " of a set in SQL");
+            final Dialect dialect = sqlQuery.getDialect();
+            sqlQuery.addFromQuery(
+                tr.makeUnorderedTuplesSql(dataSource), "tuples", true);
+            if (count) {
+                sqlQuery.addSelect("count(*)", null);
+            } else {
+                sqlQuery.addSelect(
+                    "sum(" + dialect.quoteIdentifier(VALUE_ALIAS) + ")",
+                    null);
+            }
+            final SqlStatement stmt =
+                RolapUtil.executeQuery(
+                    dataSource,
+                    sqlQuery.toString(),
+                    new Locus(
+                        Locus.peek().execution,
+                        "RolapNativeAggregate.execute",
+                        "while computing " + funName + " of a set in SQL"));
+            try {
+                final ResultSet resultSet = stmt.getResultSet();
+                Util.assertTrue(resultSet.next());
+                ++stmt.rowCount;
+                if (count) {
+                    return resultSet.getInt(1);
+                }
+                final double value = resultSet.getDouble(1);
+                return resultSet.wasNull() ? Util.nullValue : value;
+            } catch (SQLException e) {
+                throw stmt.handle(e);
+            } finally {
+                stmt.close();
+            }
+        }
+    }
+}
+
+// End RolapNativeAggregate.java
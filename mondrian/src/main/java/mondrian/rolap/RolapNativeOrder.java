@@ -0,0 +1,251 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.mdx.ResolvedFunCall;
+import mondrian.olap.*;
+import mondrian.rolap.aggmatcher.AggStar;
+import mondrian.rolap.sql.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+/**
+ * Computes an Order in SQL.
+ *
+ * <p>Handles <code>Order(&lt;set&gt;, &lt;numeric expr&gt;, BASC)</code> and
+ * <code>Order(&lt;set&gt;, &lt;numeric expr&gt;, BDESC)</code>, where the
+ * set can be evaluated natively, the numeric expression can be converted to
+ * SQL, as for {@link RolapNativeTopCount}, and the tuples of the set are
+ * known to be non-empty: either the set is evaluated in a non-empty context,
+ * or it is a <code>NonEmptyCrossJoin</code> and the measure in the context
+ * is a count or distinct count, which is empty exactly when there are no
+ * rows. The statement joins to the fact table, and sorts on the expression
+ * before the keys of the levels, so the tuples come back already in
+ * order.</p>
+ *
+ * <p>The forms that preserve the hierarchy (ASC and DESC) are not handled,
+ * and nor are virtual cubes, whose statements are unions that the expression
+ * cannot be sorted across.</p>
+ */
+public class RolapNativeOrder extends RolapNativeSet {
+
+    public RolapNativeOrder() {
+        super.setEnabled(
+            MondrianProperties.instance().EnableNativeOrder.get());
+    }
+
+    static class OrderConstraint extends SetConstraint {
+        private final Exp orderByExpr;
+        private final boolean ascending;
+
+        OrderConstraint(
+            CrossJoinArg[] args,
+            RolapEvaluator evaluator,
+            Exp orderByExpr,
+            boolean ascending)
+        {
+            super(args, evaluator, true);
+            this.orderByExpr = orderByExpr;
+            this.ascending = ascending;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>Order always joins to the fact table, to compute the
+         * expression that it sorts on.
+         */
+        protected boolean isJoinRequired() {
+            return true;
+        }
+
+        @Override
+        public boolean supportsAggTables() {
+            return true;
+        }
+
+        public void addConstraint(
+            SqlQuery sqlQuery,
+            RolapCube baseCube,
+            AggStar aggStar)
+        {
+            RolapNativeSql sql =
+                new RolapNativeSql(
+                    sqlQuery, aggStar, getEvaluator(), null);
+            final String orderBySql =
+                sql.generateTopCountOrderBy(orderByExpr);
+            final String orderByAlias =
+                sqlQuery.addSelect(orderBySql, null);
+            // Order treats an empty value as less than any other value (see
+            // FunUtil.compareValues), so empty values come first in ascending
+            // order and last in descending order, whichever way the database
+            // collates NULL by default. Tuples with equal values, including
+            // empty ones, stay in the order of the keys.
+            sqlQuery.addOrderBy(
+                orderBySql,
+                orderByAlias,
+                ascending,
+                true,
+                true,
+                !ascending);
+            super.addConstraint(sqlQuery, baseCube, aggStar);
+        }
+
+        public Object getCacheKey() {
+            List<Object> key = new ArrayList<Object>();
+            key.add(super.getCacheKey());
+            // Note: need to use string in order for caching to work
+            key.add(orderByExpr.toString());
+            key.add(ascending);
+            key.add(getEvaluator().isNonEmpty());
+            key.add(((RolapEvaluator) getEvaluator()).getSlicerMembers());
+            return key;
+        }
+    }
+
+    protected boolean restrictMemberTypes() {
+        return true;
+    }
+
+    NativeEvaluator createEvaluator(
+        RolapEvaluator evaluator,
+        FunDef fun,
+        Exp[] args)
+    {
+        if (!isEnabled() || !isValidContext(evaluator)) {
+            return null;
+        }
+
+        // is this "Order(<set>, <numeric expr>, BASC|BDESC)"
+        if (!"Order".equalsIgnoreCase(fun.getName()) || args.length != 3) {
+            return null;
+        }
+        final boolean ascending;
+        final String flag = getSymbol(args[2]);
+        if ("BASC".equalsIgnoreCase(flag)) {
+            ascending = true;
+        } else if ("BDESC".equalsIgnoreCase(flag)) {
+            ascending = false;
+        } else {
+            alertNonNativeOrder(
+                "Only BASC and BDESC can be evaluated natively.");
+            return null;
+        }
+        if (evaluator.getCube().isVirtual()) {
+            alertNonNativeOrder("Cannot sort tuples of a virtual cube in SQL.");
+            return null;
+        }
+
+        // A set that is not known to be non-empty may contain tuples that
+        // have no rows in the fact table; the join would lose them.
+        final Exp setExp = args[0];
+        final boolean nonEmptySet =
+            setExp instanceof ResolvedFunCall
+            && "NonEmptyCrossJoin".equalsIgnoreCase(
+                ((ResolvedFunCall) setExp).getFunName());
+        if (!nonEmptySet && !evaluator.isNonEmpty()) {
+            alertNonNativeOrder(
+                "Set in 1st argument may contain empty tuples.");
+            return null;
+        }
+
+        // extract the set expression
+        List<CrossJoinArg[]> allArgs =
+            crossJoinArgFactory().checkCrossJoinArg(evaluator, setExp);
+        if (allArgs == null || allArgs.isEmpty() || allArgs.get(0) == null) {
+            alertNonNativeOrder(
+                "Set in 1st argument does not support native eval.");
+            return null;
+        }
+        CrossJoinArg[] cjArgs = allArgs.get(0);
+        if (isPreferInterpreter(cjArgs, false)) {
+            alertNonNativeOrder("One or more args prefer non-native.");
+            return null;
+        }
+
+        // generate the ORDER BY clause, to determine whether it can be
+        // created; the statement could use an aggregate table later
+        SchemaReader schemaReader = evaluator.getSchemaReader();
+        DataSource ds = schemaReader.getDataSource();
+        SqlQuery sqlQuery = SqlQuery.newQuery(ds, "NativeOrder");
+        RolapNativeSql sql =
+            new RolapNativeSql(
+                sqlQuery, null, evaluator, null);
+        if (sql.generateTopCountOrderBy(args[1]) == null) {
+            alertNonNativeOrder("Cannot convert order by expression to SQL.");
+            return null;
+        }
+        final RolapStoredMeasure storedMeasure = sql.getStoredMeasure();
+
+        // NonEmptyCrossJoin removes the tuples that are empty for the measure
+        // in the context; the join removes the tuples that have no rows in
+        // the fact table of the measure that the set is sorted on. They agree
+        // only if the measure in the context is of the same cube, and is
+        // empty exactly when there are no rows. A sum of a column that is
+        // null in every row of a tuple is empty, so NonEmptyCrossJoin may
+        // remove a tuple that the join keeps and sorts among the nulls.
+        if (nonEmptySet && !evaluator.isNonEmpty()) {
+            final Member contextMeasure = evaluator.getMembers()[0];
+            if (storedMeasure == null
+                || !isEmptyExactlyWhenNoRows(contextMeasure)
+                || ((RolapStoredMeasure) contextMeasure).getCube()
+                    != storedMeasure.getCube())
+            {
+                alertNonNativeOrder(
+                    "Measure in context is not a count of the cube of the "
+                    + "sort expression.");
+                return null;
+            }
+        }
+
+        final int savepoint = evaluator.savepoint();
+        try {
+            overrideContext(evaluator, cjArgs, storedMeasure);
+
+            CrossJoinArg[] combinedArgs = cjArgs;
+            if (allArgs.size() == 2 && allArgs.get(1) != null) {
+                // Combine the CJ and the additional predicate args
+                // to form the TupleConstraint.
+                combinedArgs = Util.appendArrays(cjArgs, allArgs.get(1));
+            }
+            OrderConstraint constraint =
+                new OrderConstraint(
+                    combinedArgs, evaluator, args[1], ascending);
+            LOGGER.debug("using native order");
+            return new SetEvaluator(cjArgs, schemaReader, constraint);
+        } finally {
+            evaluator.restore(savepoint);
+        }
+    }
+
+    private static String getSymbol(Exp exp) {
+        if (exp instanceof Literal
+            && exp.getCategory() == Category.Symbol)
+        {
+            return String.valueOf(((Literal) exp).getValue());
+        }
+        return null;
+    }
+
+    private void alertNonNativeOrder(String msg) {
+        RolapUtil.alertNonNative("Order", msg);
+    }
+
+    // package-local visibility for testing purposes
+    boolean isValidContext(RolapEvaluator evaluator) {
+        return OrderConstraint.isValidContext(
+            evaluator, restrictMemberTypes());
+    }
+}
+
+// End RolapNativeOrder.java
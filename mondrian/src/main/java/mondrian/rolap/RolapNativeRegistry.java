@@ -40,6 +40,10 @@ public class RolapNativeRegistry extends RolapNative {
         register("CrossJoin".toUpperCase(), new RolapNativeCrossJoin());
         register("TopCount".toUpperCase(), new RolapNativeTopCount());
         register("Filter".toUpperCase(), new RolapNativeFilter());
+        register("Order".toUpperCase(), new RolapNativeOrder());
+        final RolapNativeAggregate nativeAggregate = new RolapNativeAggregate();
+        register("Count".toUpperCase(), nativeAggregate);
+        register("Sum".toUpperCase(), nativeAggregate);
     }
 
     /**
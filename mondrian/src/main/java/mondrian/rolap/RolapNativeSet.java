@@ -390,7 +390,7 @@ public abstract class RolapNativeSet extends RolapNative {
                 }};
         }
 
-        private void addLevel(TupleReader tr, CrossJoinArg arg) {
+        void addLevel(TupleReader tr, CrossJoinArg arg) {
             RolapLevel level = arg.getLevel();
             if (level == null) {
                 // Level can be null if the CrossJoinArg represent
@@ -450,6 +450,26 @@ public abstract class RolapNativeSet extends RolapNative {
         return true;
     }
 
+    /**
+     * Returns whether a measure is empty exactly when the fact table has no
+     * rows for the cell, which is what the join to the fact table tests.
+     *
+     * <p>True of a count or distinct count of a stored measure, which is 0,
+     * not empty, if its column is null in every row. A sum, minimum,
+     * maximum or average of a column that is null in every row is empty
+     * although there are rows, and a calculated measure may be empty or not
+     * regardless of the rows.
+     */
+    protected static boolean isEmptyExactlyWhenNoRows(Member measure) {
+        if (!(measure instanceof RolapStoredMeasure)) {
+            return false;
+        }
+        final RolapAggregator aggregator =
+            ((RolapStoredMeasure) measure).getAggregator();
+        return aggregator == RolapAggregator.Count
+            || aggregator == RolapAggregator.DistinctCount;
+    }
+
     /** disable garbage collection for test */
     @SuppressWarnings({ "unchecked", "rawtypes" })
     void useHardCache(boolean hard) {
@@ -214,7 +214,7 @@ public class RolapNativeSql {
                     ? "*" : defExp.getExpression(sqlQuery);
             }
 
-            String expr = aggregator.getExpression(exprInner);
+            String expr = aggregator.getExpression(exprInner, dialect);
             if (dialect.getDatabaseProduct().getFamily()
                 == Dialect.DatabaseProduct.DB2)
             {
@@ -129,7 +129,9 @@ public class RolapNativeTopCount extends RolapNativeSet {
             }
             final RolapStoredMeasure measure =
                 (RolapStoredMeasure) memberExpr.getMember();
-            return measure.getAggregator() != RolapAggregator.DistinctCount;
+            return measure.getAggregator() != RolapAggregator.DistinctCount
+                && measure.getAggregator()
+                    != RolapAggregator.ApproxDistinctCount;
         }
 
         public Object getCacheKey() {
@@ -29,6 +29,9 @@ import mondrian.util.*;
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 /**
@@ -52,6 +55,26 @@ public class RolapResult extends ResultBase {
     private final int maxEvalDepth =
             MondrianProperties.instance().MaxEvalDepth.get();
 
+    /**
+     * Number of cells below which a result is always evaluated on the
+     * calling thread.
+     */
+    private static final long PARALLEL_MIN_CELL_COUNT = 1000;
+
+    /**
+     * Number of tasks per thread into which parallel cell evaluation divides
+     * the positions of the last axis. More than one, so that threads that
+     * finish early can take work from threads whose cells are expensive.
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    /**
+     * Pool that evaluates cells in parallel. Created on first use, with the
+     * value of {@link MondrianProperties#CellEvaluationParallelism} at that
+     * time, and never replaced.
+     */
+    private static ForkJoinPool cellEvaluationPool;
+
     private final Map<Integer, Boolean> positionsHighCardinality =
         new HashMap<Integer, Boolean>();
     private final Map<Integer, TupleCursor> positionsIterators =
@@ -98,7 +121,7 @@ public class RolapResult extends ResultBase {
 
         this.cellInfos =
             (query.axes.length > 4)
-                ? new CellInfoMap(point)
+                ? new CellInfoMap()
                 : new CellInfoPool(query.axes.length);
 
         if (!execute) {
@@ -1010,10 +1033,20 @@ public class RolapResult extends ResultBase {
         // evaluator which collects requests.
         int count = 0;
         final int savepoint = evaluator.savepoint();
+        int parallelism = getCellEvaluationParallelism(evaluator, query);
         while (true) {
             evaluator.setCellReader(batchingReader);
             try {
-                executeStripe(query.axes.length - 1, evaluator, pos);
+                if (parallelism > 1
+                    && !executeStripeParallel(evaluator, pos, parallelism))
+                {
+                    parallelism = 1;
+                }
+                if (parallelism <= 1) {
+                    executeStripe(
+                        query.axes.length - 1, evaluator, pos, point,
+                        cellInfos);
+                }
             } catch (CellRequestQuantumExceededException e) {
                 // Safe to ignore. Need to call 'phase' and loop again.
                 // Decrement count because it wasn't a recursive formula that
@@ -1056,6 +1089,207 @@ public class RolapResult extends ResultBase {
         }
     }
 
+    /**
+     * Returns the number of threads that should evaluate the cells of this
+     * result, or 1 if they should be evaluated on the calling thread.
+     *
+     * <p>Parallel evaluation is used only if
+     * {@link MondrianProperties#CellEvaluationParallelism} is greater than
+     * 1, the result has at least {@link #PARALLEL_MIN_CELL_COUNT} cells, and
+     * the query can be evaluated by several threads with the same result:
+     * the evaluator is not a profiling or dependency-testing evaluator, no
+     * axis is high-cardinality (whose positions are read through a shared
+     * cursor), and no measure is a distinct-count measure (whose visual total
+     * expressions are rewritten during evaluation).
+     */
+    private int getCellEvaluationParallelism(
+        RolapEvaluator evaluator,
+        Query query)
+    {
+        final int parallelism =
+            MondrianProperties.instance().CellEvaluationParallelism.get();
+        if (parallelism <= 1
+            || evaluator.getClass() != RolapEvaluator.class
+            || query.axes.length == 0)
+        {
+            return 1;
+        }
+        long cellCount = 1;
+        for (int i = 0; i < axes.length; i++) {
+            final TupleList tupleList = ((RolapAxis) axes[i]).getTupleList();
+            if (isAxisHighCardinality(i, tupleList)) {
+                return 1;
+            }
+            cellCount *= tupleList.size();
+        }
+        if (cellCount < PARALLEL_MIN_CELL_COUNT
+            || ((RolapAxis) axes[axes.length - 1]).getTupleList().size() < 2)
+        {
+            return 1;
+        }
+        for (Member measure : query.getMeasuresMembers()) {
+            if (measure instanceof RolapBaseCubeMeasure) {
+                final RolapAggregator aggregator =
+                    ((RolapBaseCubeMeasure) measure).getAggregator();
+                if (aggregator == RolapAggregator.DistinctCount
+                    || aggregator == RolapAggregator.ApproxDistinctCount)
+                {
+                    return 1;
+                }
+            }
+        }
+        return parallelism;
+    }
+
+    /**
+     * Evaluates every cell of this result, using several threads.
+     *
+     * <p>The positions of the last axis are divided into ranges, and the
+     * cells of each range are evaluated by a task in the cell evaluation
+     * pool. Each task has its own evaluator, its own reader (created by
+     * {@link FastBatchingCellReader#fork(int)}), its own copy of the calling
+     * thread's local segments, and writes cells into a synchronized view of
+     * {@link #cellInfos}. When all tasks have finished, the cell requests
+     * they recorded are merged into {@link #batchingReader} in the order of
+     * the ranges, so that the next phase loads them as one batch.
+     *
+     * <p>Named sets, and the default values of parameters, are evaluated
+     * through {@link #batchingReader}, which only this thread may use. If a
+     * task needs one that has not been evaluated, it stops and the value is
+     * evaluated on this thread before the tasks are run again; see
+     * {@link RolapResultEvaluatorRoot#defer(Runnable)}.</p>
+     *
+     * @param evaluator Evaluator
+     * @param pos Cell position
+     * @param parallelism Number of threads
+     * @return Whether the cells were evaluated; false if a named set or
+     *     parameter that the tasks needed could not be evaluated first, in
+     *     which case the caller should evaluate the cells serially
+     * @throws CellRequestQuantumExceededException if any task's share of
+     *     the cell batch was full
+     */
+    private boolean executeStripeParallel(
+        RolapEvaluator evaluator,
+        int[] pos,
+        int parallelism)
+    {
+        final RolapResultEvaluatorRoot root =
+            (RolapResultEvaluatorRoot) evaluator.root;
+        List<StripeTask> tasks;
+        List<Future<Boolean>> futures;
+        for (int attempt = 0;; attempt++) {
+            tasks = createStripeTasks(evaluator, pos, parallelism);
+            final List<Runnable> deferred;
+            root.parallel = true;
+            try {
+                futures = getCellEvaluationPool(parallelism).invokeAll(tasks);
+            } finally {
+                root.parallel = false;
+                deferred = root.takeDeferred();
+            }
+            if (deferred.isEmpty()) {
+                break;
+            }
+            // Some tasks needed a set or parameter that had not been
+            // evaluated. Evaluate them on this thread, then evaluate the
+            // cells again, discarding the requests the tasks recorded. A set
+            // that is not saved between uses, such as the alias of a dynamic
+            // named set, would be deferred every time, so give up after a
+            // few attempts.
+            if (attempt >= maxEvalDepth) {
+                return false;
+            }
+            try {
+                for (Runnable runnable : deferred) {
+                    runnable.run();
+                }
+            } catch (RuntimeException e) {
+                // Let the serial evaluation report the error against the
+                // cells, as it would if parallelism were disabled.
+                return false;
+            }
+        }
+        boolean complete = true;
+        RuntimeException exception = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                complete &= Util.safeGet(futures.get(i), "Evaluating cells");
+            } catch (RuntimeException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+            batchingReader.merge(tasks.get(i).reader);
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        if (!complete) {
+            throw CellRequestQuantumExceededException.INSTANCE;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the tasks that evaluate the cells of this result in parallel,
+     * one for each range of positions of the last axis.
+     */
+    private List<StripeTask> createStripeTasks(
+        RolapEvaluator evaluator,
+        int[] pos,
+        int parallelism)
+    {
+        final int axisOrdinal = axes.length - 1;
+        final TupleList tupleList =
+            ((RolapAxis) axes[axisOrdinal]).getTupleList();
+        final int taskCount =
+            Math.min(tupleList.size(), parallelism * TASKS_PER_THREAD);
+        final CellInfoContainer sharedCellInfos =
+            new SynchronizedCellInfoContainer(cellInfos);
+        final Collection<RolapStar> stars = getCube().getSchema().getStars();
+        final List<StripeTask> tasks = new ArrayList<StripeTask>();
+        for (int i = 0; i < taskCount; i++) {
+            final Map<RolapStar, RolapStar.Bar> bars =
+                new HashMap<RolapStar, RolapStar.Bar>();
+            for (RolapStar star : stars) {
+                bars.put(star, star.copyLocalBar());
+            }
+            final RolapEvaluator taskEvaluator = evaluator.push();
+            final FastBatchingCellReader reader =
+                batchingReader.fork(taskCount);
+            taskEvaluator.setCellReader(reader);
+            tasks.add(
+                new StripeTask(
+                    taskEvaluator,
+                    reader,
+                    bars,
+                    tupleList,
+                    (int) ((long) tupleList.size() * i / taskCount),
+                    (int) ((long) tupleList.size() * (i + 1) / taskCount),
+                    pos,
+                    sharedCellInfos));
+        }
+        return tasks;
+    }
+
+    /**
+     * Returns the pool that evaluates cells in parallel, creating it if
+     * necessary.
+     *
+     * <p>The pool is created once, with as many threads as the parallelism
+     * at the time of the first call. If the property changes later, it
+     * changes how many tasks a result is divided into, but not the number of
+     * threads, so no pool is ever abandoned with live threads.</p>
+     */
+    private static synchronized ForkJoinPool getCellEvaluationPool(
+        int parallelism)
+    {
+        if (cellEvaluationPool == null) {
+            cellEvaluationPool = new ForkJoinPool(parallelism);
+        }
+        return cellEvaluationPool;
+    }
+
     boolean isDirty() {
         return batchingReader.isDirty();
     }
@@ -1065,6 +1299,10 @@ public class RolapResult extends ResultBase {
      *
      * <p>Does not modify the contents of the evaluator.
      *
+     * <p>Loads cells through this result's reader, so must be called only by
+     * the thread that is executing the statement; see
+     * {@link RolapResultEvaluatorRoot#defer(Runnable)}.
+     *
      * @param calc Compiled expression
      * @param slicerEvaluator Evaluation context for slicers
      * @param contextEvaluator Evaluation context (optional)
@@ -1137,7 +1375,9 @@ public class RolapResult extends ResultBase {
     private void executeStripe(
         int axisOrdinal,
         RolapEvaluator revaluator,
-        final int[] pos)
+        final int[] pos,
+        CellKey cellKey,
+        CellInfoContainer cellInfoContainer)
     {
         if (axisOrdinal < 0) {
             RolapAxis axis = (RolapAxis) slicerAxis;
@@ -1170,7 +1410,7 @@ public class RolapResult extends ResultBase {
 
                     // Create a CellInfo object for the given position
                     // integer array.
-                    ci = cellInfos.create(point.getOrdinals());
+                    ci = cellInfoContainer.create(cellKey.getOrdinals());
 
                     String cachedFormatString = null;
 
@@ -1263,12 +1503,14 @@ public class RolapResult extends ResultBase {
                     pi = positionIndex;
                 }
                 for (final List<Member> tuple : subTuples) {
-                    point.setAxis(axisOrdinal, pi);
+                    cellKey.setAxis(axisOrdinal, pi);
                     final int savepoint = revaluator.savepoint();
                     try {
                         revaluator.setContext(tuple);
                         execution.checkCancelOrTimeout();
-                        executeStripe(axisOrdinal - 1, revaluator, pos);
+                        executeStripe(
+                            axisOrdinal - 1, revaluator, pos, cellKey,
+                            cellInfoContainer);
                     } finally {
                         revaluator.restore(savepoint);
                     }
@@ -1284,7 +1526,9 @@ public class RolapResult extends ResultBase {
                             RolapBaseCubeMeasure baseCubeMeasure =
                                 (RolapBaseCubeMeasure) measure;
                             if (baseCubeMeasure.getAggregator()
-                                == RolapAggregator.DistinctCount)
+                                == RolapAggregator.DistinctCount
+                                || baseCubeMeasure.getAggregator()
+                                == RolapAggregator.ApproxDistinctCount)
                             {
                                 processDistinctMeasureExpr(
                                     tuple, baseCubeMeasure);
@@ -1295,13 +1539,15 @@ public class RolapResult extends ResultBase {
 
                 int tupleIndex = 0;
                 for (final List<Member> tuple : tupleList) {
-                    point.setAxis(axisOrdinal, tupleIndex);
+                    cellKey.setAxis(axisOrdinal, tupleIndex);
                     final int savepoint = revaluator.savepoint();
                     try {
                         revaluator.setEvalAxes( true );
                         revaluator.setContext(tuple);
                         execution.checkCancelOrTimeout();
-                        executeStripe(axisOrdinal - 1, revaluator, pos);
+                        executeStripe(
+                            axisOrdinal - 1, revaluator, pos, cellKey,
+                            cellInfoContainer);
                     } finally {
                         revaluator.restore(savepoint);
                     }
@@ -1657,6 +1903,17 @@ public class RolapResult extends ResultBase {
             new HashMap<String, RolapNamedSetEvaluator>();
 
         final RolapResult result;
+
+        /**
+         * Whether the cells of the result are being evaluated by several
+         * threads. While they are, sets and parameters that have not been
+         * evaluated are deferred.
+         */
+        volatile boolean parallel;
+
+        /** Evaluations deferred while cells are evaluated in parallel. */
+        private final List<Runnable> deferred = new ArrayList<Runnable>();
+
         private static final Object CycleSentinel = new Object();
         private static final Object NullSentinel = new Object();
 
@@ -1665,7 +1922,43 @@ public class RolapResult extends ResultBase {
             this.result = result;
         }
 
-        protected Evaluator.NamedSetEvaluator evaluateNamedSet(
+        /**
+         * Called before evaluating a set or parameter that has not been
+         * evaluated yet.
+         *
+         * <p>If the cells of the result are being evaluated by several
+         * threads, records the evaluation and throws
+         * {@link CellRequestQuantumExceededException} to stop the calling
+         * task. When all tasks have stopped,
+         * {@link RolapResult#executeStripeParallel} performs the deferred
+         * evaluations on the statement's thread, which alone may load cells
+         * through the result's reader, and evaluates the cells again. Each
+         * set is thus evaluated once, and no task waits for another.
+         *
+         * @param evaluation Evaluation of the set or parameter
+         */
+        void defer(Runnable evaluation) {
+            if (parallel) {
+                synchronized (deferred) {
+                    deferred.add(evaluation);
+                }
+                throw CellRequestQuantumExceededException.INSTANCE;
+            }
+        }
+
+        /**
+         * Returns and clears the evaluations deferred by
+         * {@link #defer(Runnable)}.
+         */
+        List<Runnable> takeDeferred() {
+            synchronized (deferred) {
+                final List<Runnable> list = new ArrayList<Runnable>(deferred);
+                deferred.clear();
+                return list;
+            }
+        }
+
+        protected synchronized Evaluator.NamedSetEvaluator evaluateNamedSet(
             final NamedSet namedSet,
             boolean create)
         {
@@ -1683,7 +1976,7 @@ public class RolapResult extends ResultBase {
             return value;
         }
 
-        protected Evaluator.SetEvaluator evaluateSet(
+        protected synchronized Evaluator.SetEvaluator evaluateSet(
             final Exp exp,
             boolean create)
         {
@@ -1714,7 +2007,7 @@ public class RolapResult extends ResultBase {
             return value;
         }
 
-        public Object getParameterValue(ParameterSlot slot) {
+        public Object getParameterValue(final ParameterSlot slot) {
             if (slot.isParameterSet()) {
                 return slot.getParameterValue();
             }
@@ -1759,6 +2052,12 @@ public class RolapResult extends ResultBase {
                 }
                 return value;
             }
+            defer(
+                new Runnable() {
+                    public void run() {
+                        getParameterValue(slot);
+                    }
+                });
             // Set value to a sentinel, so we can detect cyclic evaluation.
             slot.setCachedDefaultValue(CycleSentinel);
             value =
@@ -1868,6 +2167,94 @@ public class RolapResult extends ResultBase {
         }
     }
 
+    /**
+     * Task that evaluates the cells of a range of positions of the last axis,
+     * on behalf of {@link #executeStripeParallel}.
+     */
+    private class StripeTask implements Callable<Boolean> {
+        private final RolapEvaluator evaluator;
+        private final FastBatchingCellReader reader;
+        private final Map<RolapStar, RolapStar.Bar> bars;
+        private final TupleList tupleList;
+        private final int start;
+        private final int end;
+        private final int[] pos;
+        private final CellInfoContainer cellInfoContainer;
+        private final CellKey cellKey;
+
+        /**
+         * Creates a StripeTask.
+         *
+         * @param evaluator Evaluator, used only by this task
+         * @param reader Reader that records this task's cell requests
+         * @param bars Local segments of each star, used only by this task
+         * @param tupleList Positions of the last axis
+         * @param start Ordinal of first position to evaluate
+         * @param end Ordinal after last position to evaluate
+         * @param pos Cell position
+         * @param cellInfoContainer Container to write cells into
+         */
+        StripeTask(
+            RolapEvaluator evaluator,
+            FastBatchingCellReader reader,
+            Map<RolapStar, RolapStar.Bar> bars,
+            TupleList tupleList,
+            int start,
+            int end,
+            int[] pos,
+            CellInfoContainer cellInfoContainer)
+        {
+            this.evaluator = evaluator;
+            this.reader = reader;
+            this.bars = bars;
+            this.tupleList = tupleList;
+            this.start = start;
+            this.end = end;
+            this.pos = pos;
+            this.cellInfoContainer = cellInfoContainer;
+            this.cellKey = CellKey.Generator.newCellKey(axes.length);
+        }
+
+        /**
+         * Evaluates the cells of this task's range.
+         *
+         * @return Whether all cells were evaluated; false if this task's
+         *     share of the cell batch was full
+         */
+        public Boolean call() {
+            final Locus locus = new Locus(execution, null, "Loading cells");
+            Locus.push(locus);
+            for (Map.Entry<RolapStar, RolapStar.Bar> entry : bars.entrySet()) {
+                entry.getKey().setLocalBar(entry.getValue());
+            }
+            final int axisOrdinal = axes.length - 1;
+            try {
+                for (int i = start; i < end; i++) {
+                    cellKey.setAxis(axisOrdinal, i);
+                    final int savepoint = evaluator.savepoint();
+                    try {
+                        evaluator.setEvalAxes(true);
+                        evaluator.setContext(tupleList.get(i));
+                        execution.checkCancelOrTimeout();
+                        executeStripe(
+                            axisOrdinal - 1, evaluator, pos, cellKey,
+                            cellInfoContainer);
+                    } finally {
+                        evaluator.restore(savepoint);
+                    }
+                }
+                return true;
+            } catch (CellRequestQuantumExceededException e) {
+                return false;
+            } finally {
+                for (RolapStar star : bars.keySet()) {
+                    star.setLocalBar(null);
+                }
+                Locus.pop(locus);
+            }
+        }
+    }
+
     /**
      * Synchronized Map from Locale to ValueFormatter. It is expected that
      * there will be only a small number of Locale's.
@@ -1991,23 +2378,14 @@ public class RolapResult extends ResultBase {
     /**
      * Implementation of {@link CellInfoContainer} which uses a {@link Map} to
      * store CellInfo Objects.
-     *
-     * <p>Note that the CellKey point instance variable is the same
-     * Object (NOT a copy) that is used and modified during
-     * the recursive calls to executeStripe - the
-     * <code>create</code> method relies on this fact.
      */
     static class CellInfoMap implements CellInfoContainer {
         private final Map<CellKey, CellInfo> cellInfoMap;
-        private final CellKey point;
 
         /**
-         * Creates a CellInfoMap
-         *
-         * @param point Cell position
+         * Creates a CellInfoMap.
          */
-        CellInfoMap(CellKey point) {
-            this.point = point;
+        CellInfoMap() {
             this.cellInfoMap = new HashMap<CellKey, CellInfo>();
         }
         public int size() {
@@ -2020,7 +2398,7 @@ public class RolapResult extends ResultBase {
             this.cellInfoMap.clear();
         }
         public CellInfo create(int[] pos) {
-            CellKey key = this.point.copy();
+            CellKey key = CellKey.Generator.newCellKey(pos);
             CellInfo ci = this.cellInfoMap.get(key);
             if (ci == null) {
                 ci = new CellInfo(0);
@@ -2034,6 +2412,39 @@ public class RolapResult extends ResultBase {
         }
     }
 
+    /**
+     * Implementation of {@link CellInfoContainer} that can be used by several
+     * threads at the same time; each method is synchronized and delegates to
+     * an underlying container.
+     */
+    static class SynchronizedCellInfoContainer implements CellInfoContainer {
+        private final CellInfoContainer cellInfos;
+
+        /**
+         * Creates a SynchronizedCellInfoContainer.
+         *
+         * @param cellInfos Underlying container
+         */
+        SynchronizedCellInfoContainer(CellInfoContainer cellInfos) {
+            this.cellInfos = cellInfos;
+        }
+        public synchronized int size() {
+            return cellInfos.size();
+        }
+        public synchronized void trimToSize() {
+            cellInfos.trimToSize();
+        }
+        public synchronized void clear() {
+            cellInfos.clear();
+        }
+        public synchronized CellInfo create(int[] pos) {
+            return cellInfos.create(pos);
+        }
+        public synchronized CellInfo lookup(int[] pos) {
+            return cellInfos.lookup(pos);
+        }
+    }
+
     /**
      * Implementation of {@link CellInfoContainer} which uses an
      * {@link ObjectPool} to store {@link CellInfo} Objects.
@@ -214,6 +214,10 @@ public class RolapSchema implements Schema {
         this(key, connectInfo, dataSource, md5Bytes, md5Bytes != null);
         load(catalogUrl, catalogStr, connectInfo);
         assert this.md5Bytes != null;
+        // let cache manager re-load the segments that were most used
+        // before the server restarted, if any
+        MondrianServer.forConnection(internalConnection)
+            .getAggregationManager().getCacheMgr().schemaLoaded(this);
     }
 
     /**
@@ -261,6 +265,10 @@ public class RolapSchema implements Schema {
         // Cleanup the segment data.
         flushSegments();
 
+        // Cleanup shared expression results and parsed queries.
+        sharedExpResultCache.flush();
+        queryPlanCache.flush();
+
         // Cleanup the agg JDBC cache
         flushJdbcSchema();
     }
@@ -1431,6 +1439,27 @@ System.out.println("RolapSchema.createMemberReader: CONTAINS NAME");
 
     final RolapNativeRegistry nativeRegistry = new RolapNativeRegistry();
 
+    private final SharedExpResultCache sharedExpResultCache =
+        new SharedExpResultCache();
+
+    /**
+     * Returns the cache of expression results that statements against this
+     * schema share.
+     */
+    public SharedExpResultCache getSharedExpResultCache() {
+        return sharedExpResultCache;
+    }
+
+    private final QueryPlanCache queryPlanCache = new QueryPlanCache();
+
+    /**
+     * Returns the cache of parsed queries that statements against this schema
+     * share.
+     */
+    public QueryPlanCache getQueryPlanCache() {
+        return queryPlanCache;
+    }
+
     RolapNativeRegistry getNativeRegistry() {
         return nativeRegistry;
     }
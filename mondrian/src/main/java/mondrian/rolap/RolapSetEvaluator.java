@@ -61,6 +61,14 @@ class RolapSetEvaluator
     }
 
     public TupleIterable evaluateTupleIterable() {
+        if (list == null) {
+            rrer.defer(
+                new Runnable() {
+                    public void run() {
+                        ensureList();
+                    }
+                });
+        }
         ensureList();
         return list;
     }
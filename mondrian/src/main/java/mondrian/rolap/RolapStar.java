@@ -89,6 +89,8 @@ public class RolapStar {
 
     private final RolapStatisticsCache statisticsCache;
 
+    private final CellBatchQuantum cellBatchQuantum = new CellBatchQuantum();
+
     /**
      * Creates a RolapStar. Please use
      * {@link RolapSchema.RolapStarRegistry#getOrCreateStar} to create a
@@ -138,6 +140,24 @@ public class RolapStar {
     public Object getCellFromCache(
         CellRequest request,
         RolapAggregationManager.PinSet pinSet)
+    {
+        return getCellFromCache(request, pinSet, null);
+    }
+
+    /**
+     * Looks for a given cell, specified by a list of column-value pairs, in
+     * the thread-local cache, and also returns the segment that holds it.
+     *
+     * @param request Cell request
+     * @param pinSet Set to pin the segment into, or null
+     * @param segmentHolder Array of length 1 into which to write the segment
+     *   that holds the cell, or null
+     * @return Cell value, or null if not in the thread-local cache
+     */
+    public Object getCellFromCache(
+        CellRequest request,
+        RolapAggregationManager.PinSet pinSet,
+        SegmentWithData[] segmentHolder)
     {
         // REVIEW: Is it possible to optimize this so not every cell lookup
         // causes an AggregationKey to be created?
@@ -160,6 +180,9 @@ public class RolapStar {
                 if (pinSet != null) {
                     ((AggregationManager.PinSetImpl) pinSet).add(segment);
                 }
+                if (segmentHolder != null) {
+                    segmentHolder[0] = segment;
+                }
                 return o;
             }
         }
@@ -192,10 +215,43 @@ public class RolapStar {
             new SoftReference<SegmentWithData>(segment));
     }
 
+    /**
+     * Returns a copy of the calling thread's local cache, so that a thread
+     * which evaluates cells on behalf of the calling thread can see the same
+     * segments.
+     *
+     * @see #setLocalBar(Bar)
+     */
+    Bar copyLocalBar() {
+        return localBars.get().copy();
+    }
+
+    /**
+     * Sets the calling thread's local cache.
+     *
+     * @param bar Local cache, or null to discard the calling thread's local
+     *     cache
+     */
+    void setLocalBar(Bar bar) {
+        if (bar == null) {
+            localBars.remove();
+        } else {
+            localBars.set(bar);
+        }
+    }
+
     public RolapStatisticsCache getStatisticsCache() {
         return statisticsCache;
     }
 
+    /**
+     * Returns the number of cell requests against this star that a query
+     * collects before it loads them.
+     */
+    CellBatchQuantum getCellBatchQuantum() {
+        return cellBatchQuantum;
+    }
+
     /**
      * Temporary. Contains the local cache for a particular thread. Because
      * it is accessed via a thread-local, the data structures can be accessed
@@ -210,6 +266,13 @@ public class RolapStar {
 
         private final List<SoftReference<SegmentWithData>> segmentRefs =
             new ArrayList<SoftReference<SegmentWithData>>();
+
+        Bar copy() {
+            final Bar bar = new Bar();
+            bar.aggregations.putAll(aggregations);
+            bar.segmentRefs.addAll(segmentRefs);
+            return bar;
+        }
     }
 
     private final ThreadLocal<Bar> localBars =
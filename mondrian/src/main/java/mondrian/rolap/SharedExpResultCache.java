@@ -0,0 +1,247 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.mdx.*;
+import mondrian.olap.*;
+import mondrian.olap.fun.UdfResolver;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/**
+ * Cache of expression results that is shared by all statements against a
+ * schema.
+ *
+ * <p>Each statement has its own expression result cache (see
+ * {@link Evaluator#getCachedResult(ExpCacheDescriptor)}), which is discarded
+ * when the statement ends. If {@link MondrianProperties#SharedExpCacheSize}
+ * is positive, results that were computed from fully loaded cells are also
+ * put into this cache, so that later statements, for example the tiles of a
+ * dashboard that use the same <code>Cache(...)</code> expression, can reuse
+ * them.</p>
+ *
+ * <p>An entry's key consists of the text of the expression, the class of its
+ * compiled form, the cube, the role of the connection, and the members of
+ * the evaluation context on which the expression depends. Expressions that
+ * refer to calculated members, named sets or parameters defined in the query,
+ * that call user-defined functions or functions whose value changes over
+ * time, such as <code>Now()</code>, are not shared.</p>
+ *
+ * <p>Each schema has its own cache, so a schema that is reloaded starts with
+ * an empty cache. Any flush of cells or members through {@link CacheControl}
+ * empties the cache of the schema, and increments its epoch; a result
+ * computed by a statement that began before the flush is not added to the
+ * cache.</p>
+ *
+ * <p>The cache holds at most {@link MondrianProperties#SharedExpCacheSize}
+ * entries, and discards the least recently used entry when it is full.</p>
+ *
+ * <p>Thread safe.</p>
+ */
+public class SharedExpResultCache {
+    private static final Logger LOGGER =
+        Logger.getLogger(SharedExpResultCache.class);
+
+    /**
+     * Names, in upper case, of built-in functions whose value changes over
+     * time.
+     */
+    private static final Set<String> VOLATILE_FUNCTIONS =
+        new HashSet<String>(Arrays.asList("NOW", "DATE", "TIME", "TIMER"));
+
+    private final Map<List<Object>, Object> map =
+        new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                Map.Entry<List<Object>, Object> eldest)
+            {
+                return size() > getMaxSize();
+            }
+        };
+
+    private long epoch;
+
+    private long hitCount;
+
+    private long missCount;
+
+    /**
+     * Returns whether the shared cache is enabled.
+     */
+    static boolean isEnabled() {
+        return MondrianProperties.instance().SharedExpCacheSize.get() > 0
+            && MondrianProperties.instance().EnableExpCache.get()
+            && !MondrianProperties.instance().DisableCaching.get();
+    }
+
+    private static int getMaxSize() {
+        return MondrianProperties.instance().SharedExpCacheSize.get();
+    }
+
+    /**
+     * Returns the current epoch. The epoch increases each time the cache is
+     * flushed.
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Looks up a result, and counts a hit or a miss.
+     *
+     * @param key Key
+     * @return Result, or null if not in cache
+     */
+    synchronized Object get(List<Object> key) {
+        final Object result = map.get(key);
+        if (result == null) {
+            ++missCount;
+        } else {
+            ++hitCount;
+        }
+        return result;
+    }
+
+    /**
+     * Adds a result to the cache, unless the cache has been flushed since a
+     * given epoch.
+     *
+     * @param key Key
+     * @param result Result; not null
+     * @param epoch Epoch when the computation of the result began
+     */
+    synchronized void put(List<Object> key, Object result, long epoch) {
+        assert result != null;
+        if (epoch == this.epoch && getMaxSize() > 0) {
+            map.put(key, result);
+        }
+    }
+
+    /**
+     * Removes all entries and increments the epoch.
+     */
+    public synchronized void flush() {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                "Flushing shared expression cache: size=" + map.size()
+                + ", hits=" + hitCount + ", misses=" + missCount);
+        }
+        map.clear();
+        ++epoch;
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns the number of lookups that found a result.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups that did not find a result.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns whether the result of an expression may be shared between
+     * queries. It may not if the expression refers to anything that is
+     * defined in the query, or calls a function whose value may differ
+     * between calls with the same arguments.
+     *
+     * @param exp Expression
+     * @param query Query that the expression belongs to
+     * @return Whether result of expression may be shared
+     */
+    static boolean isShareable(Exp exp, final Query query) {
+        final boolean[] shareable = {true};
+        exp.accept(
+            new MdxVisitorImpl() {
+                public Object visit(ParameterExpr parameterExpr) {
+                    shareable[0] = false;
+                    return null;
+                }
+
+                public Object visit(MemberExpr memberExpr) {
+                    if (memberExpr.getMember().isCalculatedInQuery()) {
+                        shareable[0] = false;
+                    }
+                    return null;
+                }
+
+                public Object visit(NamedSetExpr namedSetExpr) {
+                    for (Formula formula : query.getFormulas()) {
+                        if (!formula.isMember()
+                            && formula.getNamedSet()
+                            == namedSetExpr.getNamedSet())
+                        {
+                            shareable[0] = false;
+                        }
+                    }
+                    return null;
+                }
+
+                public Object visit(ResolvedFunCall call) {
+                    final FunDef funDef = call.getFunDef();
+                    if (UdfResolver.isUdf(funDef)
+                        || VOLATILE_FUNCTIONS.contains(
+                            funDef.getName().toUpperCase()))
+                    {
+                        shareable[0] = false;
+                    }
+                    return null;
+                }
+            });
+        return shareable[0];
+    }
+
+    /**
+     * Returns the key of an expression's result in the shared cache, or null
+     * if the result may not be shared.
+     *
+     * @param descriptor Expression
+     * @param root Root evaluation context
+     * @param members Members of the context that the result depends on
+     * @return Key, or null
+     */
+    static List<Object> makeKey(
+        ExpCacheDescriptor descriptor,
+        RolapEvaluatorRoot root,
+        List<? extends Member> members)
+    {
+        final String expString = root.getSharedExpString(descriptor.getExp());
+        if (expString == null) {
+            return null;
+        }
+        final List<Object> key = new ArrayList<Object>(members.size() + 4);
+        key.add(expString);
+        key.add(descriptor.getCalc().getClass());
+        key.add(root.cube);
+        key.add(root.schemaReader.getRole());
+        for (Member member : members) {
+            if (member.isCalculatedInQuery()) {
+                return null;
+            }
+            key.add(member);
+        }
+        return key;
+    }
+}
+
+// End SharedExpResultCache.java
@@ -0,0 +1,290 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.Util;
+import mondrian.server.Execution;
+
+import java.util.*;
+import javax.sql.DataSource;
+
+/**
+ * Limits the number of SQL statements that run at the same time against
+ * each data source.
+ *
+ * <p>Each data source has a gate with a number of permits; by default,
+ * {@link MondrianProperties#SqlConcurrencyLimit}, and 0 means that
+ * statements never wait. A statement that finds no free permit waits in a
+ * queue. Permits go to the waiting statements of the highest
+ * {@link Priority} first. Within a priority, the roles of the waiting
+ * statements take turns, so that one role cannot fill the queue and starve
+ * the others; the statements of a role are served in the order they
+ * arrived.</p>
+ *
+ * <p>Because each data source has its own gate, statements against a slow
+ * data source do not delay statements against another data source.</p>
+ *
+ * @see SqlStatement
+ */
+public class SqlScheduler {
+    private static final SqlScheduler INSTANCE = new SqlScheduler();
+
+    /**
+     * Time, in milliseconds, that a waiting statement sleeps before it checks
+     * whether its execution has been canceled or has timed out.
+     */
+    private static final long CHECK_INTERVAL_MILLIS = 100;
+
+    /** Permit returned when a statement does not need to wait. */
+    private static final Permit NO_PERMIT = new Permit(null, 0);
+
+    private final Map<DataSource, Gate> gates =
+        new WeakHashMap<DataSource, Gate>();
+
+    /**
+     * Returns the scheduler.
+     */
+    public static SqlScheduler instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the maximum number of statements that may run at the same time
+     * against a data source, overriding
+     * {@link MondrianProperties#SqlConcurrencyLimit}.
+     *
+     * @param dataSource Data source
+     * @param limit Maximum number of statements; 0 means no limit; negative
+     *     means use the default
+     */
+    public void setLimit(DataSource dataSource, int limit) {
+        final Gate gate = getGate(dataSource);
+        synchronized (gate) {
+            gate.limit = limit;
+            gate.dispatch();
+        }
+    }
+
+    /**
+     * Waits until a statement may run against a data source.
+     *
+     * <p>The caller must call {@link Permit#release()} when the statement has
+     * finished.</p>
+     *
+     * @param dataSource Data source
+     * @param priority Priority of the statement
+     * @param role Role of the connection that issued the statement, or null
+     * @param execution Execution that issued the statement; if it is canceled
+     *     or times out while waiting, this method throws
+     * @return Permit
+     */
+    public Permit acquire(
+        DataSource dataSource,
+        Priority priority,
+        Object role,
+        Execution execution)
+    {
+        final Gate gate = getGate(dataSource);
+        final long startNanos = System.nanoTime();
+        final Waiter waiter = new Waiter();
+        synchronized (gate) {
+            final int limit = gate.getLimit();
+            if (limit <= 0) {
+                return NO_PERMIT;
+            }
+            if (gate.active < limit && gate.waiterCount == 0) {
+                ++gate.active;
+                return new Permit(gate, 0);
+            }
+            gate.enqueue(priority, role, waiter);
+            try {
+                while (!waiter.granted) {
+                    if (execution.isCancelOrTimeout()) {
+                        break;
+                    }
+                    gate.wait(CHECK_INTERVAL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!waiter.granted) {
+                gate.dequeue(priority, role, waiter);
+            }
+        }
+        if (!waiter.granted) {
+            execution.checkCancelOrTimeout();
+            throw Util.newError("Interrupted while waiting to execute SQL");
+        }
+        return new Permit(gate, System.nanoTime() - startNanos);
+    }
+
+    private Gate getGate(DataSource dataSource) {
+        synchronized (gates) {
+            Gate gate = gates.get(dataSource);
+            if (gate == null) {
+                gate = new Gate();
+                gates.put(dataSource, gate);
+            }
+            return gate;
+        }
+    }
+
+    /**
+     * Priority of an SQL statement. Values are in descending order of
+     * priority.
+     */
+    public enum Priority {
+        /** Statement that loads cells for a query. */
+        INTERACTIVE,
+
+        /** Statement that loads members. */
+        MEMBER_LOADING,
+
+        /** Drill-through statement. */
+        DRILL_THROUGH,
+
+        /** Statement that loads segments to warm the cache. */
+        CACHE_WARMING
+    }
+
+    /**
+     * Right to run a statement against a data source.
+     */
+    public static class Permit {
+        private Gate gate;
+
+        /**
+         * Time, in nanoseconds, that the statement waited for this permit.
+         */
+        public final long waitNanos;
+
+        Permit(Gate gate, long waitNanos) {
+            this.gate = gate;
+            this.waitNanos = waitNanos;
+        }
+
+        /**
+         * Releases this permit. Idempotent.
+         */
+        public void release() {
+            final Gate gate = this.gate;
+            if (gate == null) {
+                return;
+            }
+            this.gate = null;
+            synchronized (gate) {
+                --gate.active;
+                gate.dispatch();
+            }
+        }
+    }
+
+    /**
+     * Statement waiting for a permit.
+     */
+    private static class Waiter {
+        private boolean granted;
+    }
+
+    /**
+     * Permits and queues of a data source. All fields are guarded by the
+     * gate's monitor.
+     */
+    private static class Gate {
+        /** Limit set by {@link SqlScheduler#setLimit}; negative if none. */
+        private int limit = -1;
+
+        private int active;
+
+        private int waiterCount;
+
+        /**
+         * For each priority, the waiting statements of each role. The role
+         * that is next to be served is first.
+         */
+        private final List<LinkedHashMap<Object, LinkedList<Waiter>>> queues =
+            new ArrayList<LinkedHashMap<Object, LinkedList<Waiter>>>();
+
+        Gate() {
+            for (int i = 0; i < Priority.values().length; i++) {
+                queues.add(new LinkedHashMap<Object, LinkedList<Waiter>>());
+            }
+        }
+
+        int getLimit() {
+            return limit >= 0
+                ? limit
+                : MondrianProperties.instance().SqlConcurrencyLimit.get();
+        }
+
+        void enqueue(Priority priority, Object role, Waiter waiter) {
+            final Map<Object, LinkedList<Waiter>> queue =
+                queues.get(priority.ordinal());
+            LinkedList<Waiter> waiters = queue.get(role);
+            if (waiters == null) {
+                waiters = new LinkedList<Waiter>();
+                queue.put(role, waiters);
+            }
+            waiters.add(waiter);
+            ++waiterCount;
+            dispatch();
+        }
+
+        void dequeue(Priority priority, Object role, Waiter waiter) {
+            final Map<Object, LinkedList<Waiter>> queue =
+                queues.get(priority.ordinal());
+            final LinkedList<Waiter> waiters = queue.get(role);
+            if (waiters != null && waiters.remove(waiter)) {
+                --waiterCount;
+                if (waiters.isEmpty()) {
+                    queue.remove(role);
+                }
+            }
+        }
+
+        /**
+         * Grants permits to waiting statements while there are permits free,
+         * and wakes them.
+         */
+        void dispatch() {
+            final int limit = getLimit();
+            boolean granted = false;
+            while (waiterCount > 0 && (limit <= 0 || active < limit)) {
+                for (LinkedHashMap<Object, LinkedList<Waiter>> queue
+                    : queues)
+                {
+                    if (queue.isEmpty()) {
+                        continue;
+                    }
+                    final Map.Entry<Object, LinkedList<Waiter>> entry =
+                        queue.entrySet().iterator().next();
+                    final Object role = entry.getKey();
+                    final LinkedList<Waiter> waiters = entry.getValue();
+                    waiters.removeFirst().granted = true;
+                    --waiterCount;
+                    ++active;
+                    granted = true;
+                    // Move the role to the back of the line.
+                    queue.remove(role);
+                    if (!waiters.isEmpty()) {
+                        queue.put(role, waiters);
+                    }
+                    break;
+                }
+            }
+            if (granted) {
+                notifyAll();
+            }
+        }
+    }
+}
+
+// End SqlScheduler.java
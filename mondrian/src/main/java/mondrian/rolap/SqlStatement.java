@@ -78,6 +78,7 @@ public class SqlStatement {
     private final int resultSetType;
     private final int resultSetConcurrency;
     private boolean haveSemaphore;
+    private SqlScheduler.Permit permit;
     public int rowCount;
     private long startTimeNanos;
     private long startTimeMillis;
@@ -137,6 +138,9 @@ public class SqlStatement {
             // Check execution state
             locus.execution.checkCancelOrTimeout();
 
+            permit =
+                SqlScheduler.instance().acquire(
+                    dataSource, getPriority(), getRole(), locus.execution);
             this.jdbcConnection = dataSource.getConnection();
             querySemaphore.acquire();
             haveSemaphore = true;
@@ -196,7 +200,8 @@ public class SqlStatement {
                     locus,
                     sql,
                     getPurpose(),
-                    getCellRequestCount()));
+                    getCellRequestCount(),
+                    permit.waitNanos));
 
             this.resultSet = statement.executeQuery(sql);
 
@@ -284,6 +289,10 @@ public class SqlStatement {
             haveSemaphore = false;
             querySemaphore.release();
         }
+        if (permit != null) {
+            permit.release();
+            permit = null;
+        }
 
         // According to the JDBC spec, closing a statement automatically closes
         // its result sets, and closing a connection automatically closes its
@@ -501,6 +510,31 @@ public class SqlStatement {
         }
     }
 
+    private SqlScheduler.Priority getPriority() {
+        final SqlScheduler.Priority priority =
+            locus.execution.getSqlPriority();
+        if (priority != null) {
+            return priority;
+        }
+        switch (getPurpose()) {
+        case TUPLES:
+            return SqlScheduler.Priority.MEMBER_LOADING;
+        case DRILL_THROUGH:
+            return SqlScheduler.Priority.DRILL_THROUGH;
+        default:
+            return SqlScheduler.Priority.INTERACTIVE;
+        }
+    }
+
+    private Role getRole() {
+        final mondrian.server.Statement statement =
+            locus.execution.getMondrianStatement();
+        if (statement == null) {
+            return null;
+        }
+        return statement.getMondrianConnection().getRole();
+    }
+
     private int getCellRequestCount() {
         if (locus instanceof StatementLocus) {
             return ((StatementLocus) locus).cellRequestCount;
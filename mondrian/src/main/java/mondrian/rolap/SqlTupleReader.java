@@ -1106,6 +1106,25 @@ public class SqlTupleReader implements TupleReader {
         }
     }
 
+    /**
+     * Generates the SQL statement that reads the tuples of this reader's
+     * targets, without an ORDER BY clause, so that another statement can use
+     * it as a sub-query.
+     *
+     * <p>The cube of the query must not be virtual; the statement for a
+     * virtual cube is a union.
+     *
+     * @param dataSource Data source
+     * @return SQL statement
+     */
+    String makeUnorderedTuplesSql(DataSource dataSource) {
+        final RolapCube cube =
+            (RolapCube) constraint.getEvaluator().getQuery().getCube();
+        assert !cube.isVirtual();
+        return generateSelectForLevels(
+            dataSource, cube, WhichSelect.NOT_LAST, targets).left;
+    }
+
     /**
      * Returns true if one or more targets in targetGroup do not
      * fully join to the set of base cubes.  False otherwise.
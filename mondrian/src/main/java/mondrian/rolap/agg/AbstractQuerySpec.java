@@ -73,7 +73,29 @@ public abstract class AbstractQuerySpec implements QuerySpec {
             measure.getExpression() == null
                 ? "*"
                 : measure.generateExprString(sqlQuery);
-        String exprOuter = measure.getAggregator().getExpression(exprInner);
+        final RolapAggregator aggregator = measure.getAggregator();
+        final Dialect dialect = sqlQuery.getDialect();
+        if (aggregator.isSketch()) {
+            if (dialect.supportsDistinctCountSketch()) {
+                sqlQuery.addSelect(
+                    dialect.generateDistinctCountSketch(exprInner),
+                    SqlStatement.Type.OBJECT,
+                    getMeasureAlias(i));
+            } else {
+                // Select the distinct values of the measure in each cell;
+                // SegmentLoader folds them into a sketch per cell.
+                final String alias =
+                    sqlQuery.addSelect(
+                        exprInner,
+                        SqlStatement.Type.OBJECT,
+                        getMeasureAlias(i));
+                if (isAggregate()) {
+                    sqlQuery.addGroupBy(exprInner, alias);
+                }
+            }
+            return;
+        }
+        String exprOuter = aggregator.getExpression(exprInner, dialect);
         sqlQuery.addSelect(
             exprOuter,
             measure.getInternalType(),
@@ -221,7 +243,8 @@ public abstract class AbstractQuerySpec implements QuerySpec {
 
     /**
      * Returns the number of measures whose aggregation function is
-     * distinct-count.
+     * distinct-count. Measures whose cells are sketches are not counted,
+     * because they do not use "count(distinct ...)".
      *
      * @return Number of distinct-count measures
      */
@@ -229,7 +252,9 @@ public abstract class AbstractQuerySpec implements QuerySpec {
         int k = 0;
         for (int i = 0, count = getMeasureCount(); i < count; i++) {
             RolapStar.Measure measure = getMeasure(i);
-            if (measure.getAggregator().isDistinct()) {
+            if (measure.getAggregator().isDistinct()
+                && !measure.getAggregator().isSketch())
+            {
                 ++k;
             }
         }
@@ -10,6 +10,7 @@ package mondrian.rolap.agg;
 
 import mondrian.rolap.CellKey;
 import mondrian.spi.SegmentBody;
+import mondrian.util.HyperLogLog;
 import mondrian.util.Pair;
 
 import java.util.*;
@@ -47,6 +48,21 @@ abstract class AbstractSegmentBody implements SegmentBody {
         return nullAxisFlags;
     }
 
+    /**
+     * Returns the axes of this body in the form accepted by the constructor.
+     *
+     * @return List of (axis values, whether axis contains null) pairs
+     */
+    List<Pair<SortedSet<Comparable>, Boolean>> axisPairs() {
+        final List<Pair<SortedSet<Comparable>, Boolean>> list =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>(
+                axisValueSets.length);
+        for (int i = 0; i < axisValueSets.length; i++) {
+            list.add(Pair.of(axisValueSets[i], nullAxisFlags[i]));
+        }
+        return list;
+    }
+
     public Map<CellKey, Object> getValueMap() {
         return new AbstractMap<CellKey, Object>() {
             public Set<Entry<CellKey, Object>> entrySet() {
@@ -94,6 +110,94 @@ abstract class AbstractSegmentBody implements SegmentBody {
 
     protected abstract Object getObject(int i);
 
+    /**
+     * Returns an estimate of the number of bytes of heap occupied by this
+     * segment body, including its axis values.
+     *
+     * <p>The estimate assumes a 64-bit JVM without compressed references. It
+     * is used to decide which segments to evict from a cache that has a
+     * memory budget, so it needs to be cheap rather than exact.</p>
+     *
+     * @return Estimated size in bytes
+     */
+    long estimateSize() {
+        long size =
+            OBJECT_OVERHEAD
+            + arraySize(REFERENCE_SIZE, axisValueSets.length)
+            + arraySize(1, nullAxisFlags.length);
+        for (SortedSet<Comparable> axisValueSet : axisValueSets) {
+            size += OBJECT_OVERHEAD;
+            for (Comparable value : axisValueSet) {
+                size += SET_ENTRY_OVERHEAD + estimateValueSize(value);
+            }
+        }
+        return size + estimateCellsSize();
+    }
+
+    /**
+     * Returns an estimate of the number of bytes occupied by the cell values
+     * of this segment body, excluding the axes.
+     *
+     * @return Estimated size in bytes
+     */
+    protected abstract long estimateCellsSize();
+
+    /**
+     * Returns the estimated size of an array.
+     *
+     * @param elementSize Size of each element, in bytes
+     * @param length Number of elements
+     * @return Estimated size in bytes
+     */
+    static long arraySize(int elementSize, int length) {
+        return OBJECT_OVERHEAD + (long) elementSize * length;
+    }
+
+    /**
+     * Returns the estimated size of a {@link BitSet} that can hold a given
+     * number of bits.
+     *
+     * @param bitCount Number of bits
+     * @return Estimated size in bytes
+     */
+    static long bitSetSize(int bitCount) {
+        return OBJECT_OVERHEAD + arraySize(8, (bitCount + 63) / 64);
+    }
+
+    /**
+     * Returns the estimated size of a cell or axis value, not including the
+     * reference to it.
+     *
+     * @param value Value
+     * @return Estimated size in bytes
+     */
+    static long estimateValueSize(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return OBJECT_OVERHEAD
+                + arraySize(2, ((String) value).length());
+        }
+        if (value instanceof HyperLogLog) {
+            return OBJECT_OVERHEAD
+                + arraySize(1, ((HyperLogLog) value).getByteCount());
+        }
+        return BOXED_VALUE_SIZE;
+    }
+
+    /** Estimated size of an object header, in bytes. */
+    static final int OBJECT_OVERHEAD = 16;
+
+    /** Estimated size of an object reference, in bytes. */
+    static final int REFERENCE_SIZE = 8;
+
+    /** Estimated size of a boxed number or date, in bytes. */
+    static final int BOXED_VALUE_SIZE = 24;
+
+    /** Estimated size of an entry in a {@link TreeSet}, in bytes. */
+    static final int SET_ENTRY_OVERHEAD = 40;
+
     /**
      * Iterator over all (cellkey, value) pairs in this data set.
      */
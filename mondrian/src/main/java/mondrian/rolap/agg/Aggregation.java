@@ -229,7 +229,9 @@ public class Aggregation {
                 continue;
             }
 
-            if (valueCount > maxConstraints) {
+            if (valueCount > maxConstraints
+                && newPredicate.getSqlTermCount() > maxConstraints)
+            {
                 // Some databases can handle only a limited number of elements
                 // in 'WHERE IN (...)'. This set is greater than this database
                 // can handle, so we drop this constraint. Hopefully there are
@@ -327,14 +329,15 @@ public class Aggregation {
         Arrays.sort(indexes, comparator);
 
         // Eliminate constraints one by one, until the constrained cell count
-        // became half of the unconstrained cell count. We can not have an
-        // absolute value here, because its
+        // became a given fraction (by default, half) of the unconstrained cell
+        // count. We can not have an absolute value here, because its
         // very different if we fetch data for 2 years or 10 years (5 times
         // more means 5 times slower). So a relative comparison is ok here
         // but not an absolute one.
 
         double abloat = 1.0;
-        final double aBloatLimit = .5;
+        final double aBloatLimit =
+            MondrianProperties.instance().OptimizePredicatesThreshold.get();
 
         for (Integer j : indexes) {
             abloat = abloat * bloats[j];
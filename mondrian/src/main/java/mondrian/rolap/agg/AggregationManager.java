@@ -126,21 +126,50 @@ public class AggregationManager extends RolapAggregationManager {
     {
         return new CacheControlImpl(connection) {
             protected void flushNonUnion(final CellRegion region) {
-                final SegmentCacheManager.FlushResult result =
-                    cacheMgr.execute(
-                        new SegmentCacheManager.FlushCommand(
-                            Locus.peek(),
-                            cacheMgr,
-                            region,
-                            this));
+                final List<SegmentCacheManager.FlushResult> results =
+                    new ArrayList<SegmentCacheManager.FlushResult>();
+                if (cacheMgr.isPartitioned()) {
+                    // Each star's index lives in its own partition, so flush
+                    // each star on the partition that owns it.
+                    for (RolapStar star : getStarList(region)) {
+                        results.add(
+                            cacheMgr.execute(
+                                star,
+                                new SegmentCacheManager.FlushCommand(
+                                    Locus.peek(),
+                                    cacheMgr,
+                                    region,
+                                    this,
+                                    star)));
+                    }
+                } else {
+                    results.add(
+                        cacheMgr.execute(
+                            new SegmentCacheManager.FlushCommand(
+                                Locus.peek(),
+                                cacheMgr,
+                                region,
+                                this)));
+                }
                 final List<Future<Boolean>> futures =
                     new ArrayList<Future<Boolean>>();
-                for (Callable<Boolean> task : result.tasks) {
-                    futures.add(cacheMgr.cacheExecutor.submit(task));
+                for (SegmentCacheManager.FlushResult result : results) {
+                    for (Callable<Boolean> task : result.tasks) {
+                        futures.add(cacheMgr.cacheExecutor.submit(task));
+                    }
                 }
                 for (Future<Boolean> future : futures) {
                     Util.discard(Util.safeGet(future, "Flush cache"));
                 }
+                cacheMgr.segmentsFlushed(getStarList(region));
+            }
+
+            protected void refreshAppendedNonUnion(final CellRegion region) {
+                final List<RolapStar> starList = getStarList(region);
+                for (RolapStar star : starList) {
+                    cacheMgr.refreshAppended(star, region, this);
+                }
+                cacheMgr.segmentsFlushed(starList);
             }
 
             public void flush(final CellRegion region) {
@@ -234,8 +263,17 @@ public class AggregationManager extends RolapAggregationManager {
             // Do not use Aggregate tables if compound predicates are present.
             hasCompoundPredicates = true;
         }
+        // Aggregate tables hold counts, not the sketches of
+        // approx-distinct-count measures.
+        boolean hasSketches = false;
+        for (Segment segment : groupingSetsList.getDefaultSegments()) {
+            if (segment.measure.getAggregator().isSketch()) {
+                hasSketches = true;
+            }
+        }
         if (MondrianProperties.instance().UseAggregates.get()
-             && !hasCompoundPredicates)
+             && !hasCompoundPredicates
+             && !hasSketches)
         {
             final boolean[] rollup = {false};
             AggStar aggStar = findAgg(star, levelBitKey, measureBitKey, rollup);
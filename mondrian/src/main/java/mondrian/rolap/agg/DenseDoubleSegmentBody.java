@@ -67,6 +67,11 @@ class DenseDoubleSegmentBody extends AbstractSegmentBody {
         return values.length - nullValues.cardinality();
     }
 
+    @Override
+    protected long estimateCellsSize() {
+        return arraySize(8, values.length) + bitSetSize(values.length);
+    }
+
     @Override
     protected Object getObject(int i) {
         double value = values[i];
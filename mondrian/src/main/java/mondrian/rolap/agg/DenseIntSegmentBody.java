@@ -66,6 +66,11 @@ class DenseIntSegmentBody extends AbstractSegmentBody {
         return values.length - nullValues.cardinality();
     }
 
+    @Override
+    protected long estimateCellsSize() {
+        return arraySize(4, values.length) + bitSetSize(values.length);
+    }
+
     protected Object getObject(int i) {
         int value = values[i];
         if (value == 0 && nullValues.get(i)) {
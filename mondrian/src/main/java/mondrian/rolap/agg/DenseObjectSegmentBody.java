@@ -54,6 +54,15 @@ class DenseObjectSegmentBody extends AbstractSegmentBody {
     protected int getSize() {
         return values.length;
     }
+
+    @Override
+    protected long estimateCellsSize() {
+        long size = arraySize(REFERENCE_SIZE, values.length);
+        for (Object value : values) {
+            size += estimateValueSize(value);
+        }
+        return size;
+    }
 }
 
 // End DenseObjectSegmentBody.java
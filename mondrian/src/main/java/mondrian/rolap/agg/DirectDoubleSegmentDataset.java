@@ -0,0 +1,98 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.rolap.SqlStatement;
+import mondrian.spi.SegmentBody;
+import mondrian.util.Pair;
+
+import java.nio.DoubleBuffer;
+import java.util.*;
+
+/**
+ * Read-only implementation of {@link mondrian.rolap.agg.DenseSegmentDataset}
+ * that reads values of type {@code double} from a {@link DoubleBuffer}.
+ *
+ * <p>Created from a {@link DirectDoubleSegmentBody}; the buffer is shared with
+ * the body. Since the dataset is read-only, the {@code populateFrom} methods
+ * throw.</p>
+ */
+class DirectDoubleSegmentDataset extends DenseNativeSegmentDataset {
+    private final DoubleBuffer values;
+
+    /**
+     * Creates a DirectDoubleSegmentDataset.
+     *
+     * @param axes Segment axes, containing actual column values
+     * @param values Cell values; not copied
+     * @param nullIndicators Null indicators
+     */
+    DirectDoubleSegmentDataset(
+        SegmentAxis[] axes, DoubleBuffer values, BitSet nullIndicators)
+    {
+        super(axes, nullIndicators);
+        this.values = values;
+    }
+
+    public double getDouble(CellKey key) {
+        int offset = key.getOffset(axisMultipliers);
+        return values.get(offset);
+    }
+
+    public Object getObject(CellKey pos) {
+        if (values.capacity() == 0) {
+            // No values means they are all null.
+            return null;
+        }
+        int offset = pos.getOffset(axisMultipliers);
+        return getObject(offset);
+    }
+
+    public Double getObject(int offset) {
+        final double value = values.get(offset);
+        if (value == 0 && isNull(offset)) {
+            return null;
+        }
+        return value;
+    }
+
+    public boolean exists(CellKey pos) {
+        return true;
+    }
+
+    public void populateFrom(int[] pos, SegmentDataset data, CellKey key) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void populateFrom(
+        int[] pos, SegmentLoader.RowList rowList, int column)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public SqlStatement.Type getType() {
+        return SqlStatement.Type.DOUBLE;
+    }
+
+    protected int getSize() {
+        return values.capacity();
+    }
+
+    public SegmentBody createSegmentBody(
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        return new DirectDoubleSegmentBody(
+            nullValues,
+            values,
+            axes);
+    }
+}
+
+// End DirectDoubleSegmentDataset.java
@@ -0,0 +1,116 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.util.Pair;
+
+import java.io.ObjectStreamException;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Implementation of a segment body which reads its data directly from
+ * an {@link IntBuffer}, typically a view onto memory outside the Java heap.
+ *
+ * <p>This is the zero-copy equivalent of {@link DenseIntSegmentBody}.
+ * The buffer is shared, not copied, with the
+ * {@link DirectIntSegmentDataset} that is created when the body is
+ * converted into a segment, so cell values are never brought onto the
+ * heap.</p>
+ *
+ * <p>When serialized, the body is replaced by an equivalent
+ * {@link DenseIntSegmentBody}.</p>
+ *
+ * @see SegmentBodyBuffers
+ */
+class DirectIntSegmentBody extends AbstractSegmentBody {
+    private static final long serialVersionUID = 4718623025618129436L;
+
+    private final transient IntBuffer values;
+    private final BitSet nullValues;
+
+    /**
+     * Creates a DirectIntSegmentBody.
+     *
+     * @param nullValues A bit-set indicating whether values are null
+     * @param values Cell values; not copied; must not be modified afterwards
+     * @param axes Axes
+     */
+    DirectIntSegmentBody(
+        BitSet nullValues,
+        IntBuffer values,
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        super(axes);
+        this.values = values;
+        this.nullValues = nullValues;
+    }
+
+    /**
+     * Returns the buffer that holds the cell values.
+     */
+    IntBuffer getBuffer() {
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Copies the values onto the heap.</p>
+     */
+    @Override
+    public Object getValueArray() {
+        final int[] array = new int[values.capacity()];
+        values.duplicate().get(array);
+        return array;
+    }
+
+    @Override
+    public BitSet getNullValueIndicators() {
+        return nullValues;
+    }
+
+    @Override
+    protected int getSize() {
+        return values.capacity();
+    }
+
+    @Override
+    protected int getEffectiveSize() {
+        return values.capacity() - nullValues.cardinality();
+    }
+
+    @Override
+    protected long estimateCellsSize() {
+        // Only the null indicators are on the heap.
+        return OBJECT_OVERHEAD + bitSetSize(values.capacity());
+    }
+
+    @Override
+    protected Object getObject(int i) {
+        int value = values.get(i);
+        if (value == 0 && nullValues.get(i)) {
+            return null;
+        }
+        return value;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return new DenseIntSegmentBody(
+            nullValues, (int[]) getValueArray(), axisPairs());
+    }
+
+    @Override
+    public String toString() {
+        return "DirectIntSegmentBody(size=" + values.capacity()
+            + ", direct=" + values.isDirect() + ")";
+    }
+}
+
+// End DirectIntSegmentBody.java
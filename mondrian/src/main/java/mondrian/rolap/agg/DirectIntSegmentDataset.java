@@ -0,0 +1,98 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.rolap.SqlStatement;
+import mondrian.spi.SegmentBody;
+import mondrian.util.Pair;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Read-only implementation of {@link mondrian.rolap.agg.DenseSegmentDataset}
+ * that reads values of type {@code int} from an {@link IntBuffer}.
+ *
+ * <p>Created from a {@link DirectIntSegmentBody}; the buffer is shared with
+ * the body. Since the dataset is read-only, the {@code populateFrom} methods
+ * throw.</p>
+ */
+class DirectIntSegmentDataset extends DenseNativeSegmentDataset {
+    private final IntBuffer values;
+
+    /**
+     * Creates a DirectIntSegmentDataset.
+     *
+     * @param axes Segment axes, containing actual column values
+     * @param values Cell values; not copied
+     * @param nullIndicators Null indicators
+     */
+    DirectIntSegmentDataset(
+        SegmentAxis[] axes, IntBuffer values, BitSet nullIndicators)
+    {
+        super(axes, nullIndicators);
+        this.values = values;
+    }
+
+    public int getInt(CellKey key) {
+        int offset = key.getOffset(axisMultipliers);
+        return values.get(offset);
+    }
+
+    public Object getObject(CellKey pos) {
+        if (values.capacity() == 0) {
+            // No values means they are all null.
+            return null;
+        }
+        int offset = pos.getOffset(axisMultipliers);
+        return getObject(offset);
+    }
+
+    protected Integer getObject(int offset) {
+        final int value = values.get(offset);
+        if (value == 0 && isNull(offset)) {
+            return null;
+        }
+        return value;
+    }
+
+    public boolean exists(CellKey pos) {
+        return true;
+    }
+
+    public void populateFrom(int[] pos, SegmentDataset data, CellKey key) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void populateFrom(
+        int[] pos, SegmentLoader.RowList rowList, int column)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    public SqlStatement.Type getType() {
+        return SqlStatement.Type.INT;
+    }
+
+    protected int getSize() {
+        return values.capacity();
+    }
+
+    public SegmentBody createSegmentBody(
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        return new DirectIntSegmentBody(
+            nullValues,
+            values,
+            axes);
+    }
+}
+
+// End DirectIntSegmentDataset.java
@@ -9,9 +9,11 @@
 
 package mondrian.rolap.agg;
 
+import mondrian.olap.MondrianProperties;
 import mondrian.olap.Util;
 import mondrian.rolap.*;
 import mondrian.rolap.sql.SqlQuery;
+import mondrian.spi.Dialect;
 
 import java.util.*;
 
@@ -313,6 +315,12 @@ public class ListColumnPredicate extends AbstractColumnPredicate {
             return;
         }
 
+        final Ranges ranges = findRanges();
+        if (ranges != null) {
+            ranges.toSql(sqlQuery, buf);
+            return;
+        }
+
         int notNullCount = 0;
         final RolapStar.Column column = getConstrainedColumn();
         final String expr = column.generateExprString(sqlQuery);
@@ -384,6 +392,151 @@ public class ListColumnPredicate extends AbstractColumnPredicate {
             break;
         }
     }
+
+    /**
+     * Returns the number of terms in the SQL for this predicate: the number
+     * of values, less those that fall in ranges, plus the number of ranges.
+     * See {@link MondrianProperties#PredicateRangeMinLength}.
+     */
+    public int getSqlTermCount() {
+        final Ranges ranges = findRanges();
+        if (ranges == null) {
+            return children.size();
+        }
+        return ranges.bounds.size() / 2
+            + ranges.singles.size()
+            + (ranges.hasNull ? 1 : 0);
+    }
+
+    /**
+     * Divides the values of this predicate into runs of consecutive integers,
+     * each at least {@link MondrianProperties#PredicateRangeMinLength} long,
+     * and other values. Returns null if the property is not set, if a value
+     * is not an integer or null, or if there are no such runs.
+     */
+    private Ranges findRanges() {
+        final int minLength =
+            MondrianProperties.instance().PredicateRangeMinLength.get();
+        if (minLength < 2 || values == null || values.size() < minLength) {
+            return null;
+        }
+        final List<Object> sorted = new ArrayList<Object>(values.size());
+        boolean hasNull = false;
+        for (Object value : values) {
+            if (value == RolapUtil.sqlNullValue) {
+                hasNull = true;
+            } else if (value instanceof Integer
+                || value instanceof Long
+                || value instanceof Short
+                || value instanceof Byte)
+            {
+                sorted.add(value);
+            } else {
+                return null;
+            }
+        }
+        Collections.sort(
+            sorted,
+            new Comparator<Object>() {
+                public int compare(Object o1, Object o2) {
+                    final long l1 = ((Number) o1).longValue();
+                    final long l2 = ((Number) o2).longValue();
+                    return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+                }
+            });
+        final Ranges ranges = new Ranges(getConstrainedColumn(), hasNull);
+        int start = 0;
+        for (int i = 1; i <= sorted.size(); i++) {
+            if (i < sorted.size()
+                && ((Number) sorted.get(i)).longValue()
+                == ((Number) sorted.get(i - 1)).longValue() + 1)
+            {
+                continue;
+            }
+            if (i - start >= minLength) {
+                ranges.bounds.add(sorted.get(start));
+                ranges.bounds.add(sorted.get(i - 1));
+            } else {
+                ranges.singles.addAll(sorted.subList(start, i));
+            }
+            start = i;
+        }
+        if (ranges.bounds.isEmpty()) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Values of a list predicate, compacted into ranges of consecutive
+     * integers, other values, and null.
+     */
+    private static class Ranges {
+        private final RolapStar.Column column;
+        private final boolean hasNull;
+
+        /** Lower and upper bound of each range, inclusive. */
+        private final List<Object> bounds = new ArrayList<Object>();
+
+        private final List<Object> singles = new ArrayList<Object>();
+
+        Ranges(RolapStar.Column column, boolean hasNull) {
+            this.column = column;
+            this.hasNull = hasNull;
+        }
+
+        /**
+         * Generates SQL such as
+         * <code>(x between 1 and 12 or x in (15, 17) or x is null)</code>.
+         */
+        void toSql(SqlQuery sqlQuery, StringBuilder buf) {
+            final String expr = column.generateExprString(sqlQuery);
+            final Dialect dialect = sqlQuery.getDialect();
+            final Dialect.Datatype datatype = column.getDatatype();
+            final int termCount =
+                bounds.size() / 2
+                + (singles.isEmpty() ? 0 : 1)
+                + (hasNull ? 1 : 0);
+            if (termCount > 1) {
+                buf.append('(');
+            }
+            for (int i = 0; i < bounds.size(); i += 2) {
+                if (i > 0) {
+                    buf.append(" or ");
+                }
+                buf.append(expr);
+                buf.append(" between ");
+                dialect.quote(buf, bounds.get(i), datatype);
+                buf.append(" and ");
+                dialect.quote(buf, bounds.get(i + 1), datatype);
+            }
+            if (singles.size() == 1) {
+                buf.append(" or ");
+                buf.append(expr);
+                buf.append(" = ");
+                dialect.quote(buf, singles.get(0), datatype);
+            } else if (!singles.isEmpty()) {
+                buf.append(" or ");
+                buf.append(expr);
+                buf.append(" in (");
+                for (int i = 0; i < singles.size(); i++) {
+                    if (i > 0) {
+                        buf.append(", ");
+                    }
+                    dialect.quote(buf, singles.get(i), datatype);
+                }
+                buf.append(')');
+            }
+            if (hasNull) {
+                buf.append(" or ");
+                buf.append(expr);
+                buf.append(" is null");
+            }
+            if (termCount > 1) {
+                buf.append(')');
+            }
+        }
+    }
 }
 
 // End ListColumnPredicate.java
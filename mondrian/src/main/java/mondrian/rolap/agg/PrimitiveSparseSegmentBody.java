@@ -0,0 +1,155 @@
+/*
+* This software is subject to the terms of the Eclipse Public License v1.0
+* Agreement, available at the following URL:
+* http://www.eclipse.org/legal/epl-v10.html.
+* You must accept the terms of that agreement to use this software.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.util.Pair;
+
+import java.util.*;
+
+/**
+ * Implementation of a segment body which stores the data of a sparse segment
+ * in a {@link SparseCellIndex} and an array of {@code double}, {@code int} or
+ * {@link Object} values.
+ *
+ * <p>{@link #getValueMap()} returns a view onto the body; it does not copy
+ * the cells into a new map.</p>
+ *
+ * @see PrimitiveSparseSegmentDataset
+ */
+class PrimitiveSparseSegmentBody extends AbstractSegmentBody {
+    private static final long serialVersionUID = 2316370942163504386L;
+
+    final SparseCellIndex index;
+
+    /** Cell values, a {@code double[]}, {@code int[]} or {@code Object[]},
+     * in order of cell index. */
+    final Object values;
+
+    /** Null indicators of cells, if {@link #values} is a primitive array;
+     * otherwise null. */
+    final BitSet nullValues;
+
+    /**
+     * Creates a PrimitiveSparseSegmentBody.
+     *
+     * @param index Cell index; not copied
+     * @param values Cell values; not copied
+     * @param nullValues Null indicators, or null if values are objects
+     * @param axes Axes
+     */
+    PrimitiveSparseSegmentBody(
+        SparseCellIndex index,
+        Object values,
+        BitSet nullValues,
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        super(axes);
+        assert values instanceof double[]
+            || values instanceof int[]
+            || values instanceof Object[];
+        assert (nullValues == null) == (values instanceof Object[]);
+        this.index = index;
+        this.values = values;
+        this.nullValues = nullValues;
+    }
+
+    @Override
+    protected int getSize() {
+        return index.size();
+    }
+
+    @Override
+    protected Object getObject(int i) {
+        if (nullValues != null && nullValues.get(i)) {
+            return null;
+        }
+        if (values instanceof double[]) {
+            return ((double[]) values)[i];
+        } else if (values instanceof int[]) {
+            return ((int[]) values)[i];
+        } else {
+            return ((Object[]) values)[i];
+        }
+    }
+
+    @Override
+    protected long estimateCellsSize() {
+        final int n = index.size();
+        long size = index.estimateSize();
+        if (values instanceof double[]) {
+            size += arraySize(8, n) + bitSetSize(n);
+        } else if (values instanceof int[]) {
+            size += arraySize(4, n) + bitSetSize(n);
+        } else {
+            size += arraySize(REFERENCE_SIZE, n);
+            for (Object value : (Object[]) values) {
+                size += estimateValueSize(value);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Map<CellKey, Object> getValueMap() {
+        return new AbstractMap<CellKey, Object>() {
+            public int size() {
+                return index.size();
+            }
+
+            public boolean containsKey(Object key) {
+                return key instanceof CellKey
+                    && index.get((CellKey) key) >= 0;
+            }
+
+            public Object get(Object key) {
+                if (!(key instanceof CellKey)) {
+                    return null;
+                }
+                final int i = index.get((CellKey) key);
+                return i < 0 ? null : getObject(i);
+            }
+
+            public Set<Entry<CellKey, Object>> entrySet() {
+                return new AbstractSet<Entry<CellKey, Object>>() {
+                    public int size() {
+                        return index.size();
+                    }
+
+                    public Iterator<Entry<CellKey, Object>> iterator() {
+                        return new Iterator<Entry<CellKey, Object>>() {
+                            int i = 0;
+
+                            public boolean hasNext() {
+                                return i < index.size();
+                            }
+
+                            public Entry<CellKey, Object> next() {
+                                if (i >= index.size()) {
+                                    throw new NoSuchElementException();
+                                }
+                                final Pair<CellKey, Object> entry =
+                                    Pair.of(index.getCellKey(i), getObject(i));
+                                ++i;
+                                return entry;
+                            }
+
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+}
+
+// End PrimitiveSparseSegmentBody.java
@@ -0,0 +1,288 @@
+/*
+* This software is subject to the terms of the Eclipse Public License v1.0
+* Agreement, available at the following URL:
+* http://www.eclipse.org/legal/epl-v10.html.
+* You must accept the terms of that agreement to use this software.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+import mondrian.rolap.SqlStatement;
+import mondrian.spi.SegmentBody;
+import mondrian.util.Pair;
+
+import java.util.*;
+
+/**
+ * Implementation of {@link SegmentDataset} for sparse segments that stores
+ * cell coordinates in a {@link SparseCellIndex} and cell values in a
+ * primitive array.
+ *
+ * <p>Values of type {@link SqlStatement.Type#DOUBLE} and
+ * {@link SqlStatement.Type#INT} are stored in a {@code double[]} or
+ * {@code int[]} plus a bit set of null indicators, and are not boxed until
+ * they are read as objects. Values of other types are stored in an
+ * {@code Object[]}. Populating the dataset and looking up a cell do not
+ * create any {@link CellKey} objects.</p>
+ *
+ * <p>Compared to {@link SparseSegmentDataset}, which needs (4 + d) words per
+ * cell plus a boxed value, this dataset needs about 3 words plus the value.</p>
+ *
+ * <p>NOTE: This class is not synchronized.</p>
+ */
+class PrimitiveSparseSegmentDataset implements SegmentDataset {
+    private final SparseCellIndex index;
+    private final SqlStatement.Type type;
+    private double[] doubles;
+    private int[] ints;
+    private Object[] objects;
+    private final BitSet nullValues;
+
+    /**
+     * Creates an empty PrimitiveSparseSegmentDataset.
+     *
+     * @param axes Segment axes
+     * @param type Type of the values
+     */
+    PrimitiveSparseSegmentDataset(SegmentAxis[] axes, SqlStatement.Type type) {
+        final int[] axisLengths = new int[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            axisLengths[i] = axes[i].getKeys().length;
+        }
+        this.index = new SparseCellIndex(axisLengths, 16);
+        switch (type) {
+        case DOUBLE:
+            this.type = type;
+            this.doubles = new double[16];
+            this.nullValues = new BitSet();
+            break;
+        case INT:
+            this.type = type;
+            this.ints = new int[16];
+            this.nullValues = new BitSet();
+            break;
+        default:
+            this.type = SqlStatement.Type.OBJECT;
+            this.objects = new Object[16];
+            this.nullValues = null;
+        }
+    }
+
+    /**
+     * Creates a PrimitiveSparseSegmentDataset that reads the cells of a
+     * segment body.
+     *
+     * @param body Segment body
+     */
+    PrimitiveSparseSegmentDataset(PrimitiveSparseSegmentBody body) {
+        this.index = body.index;
+        this.nullValues = body.nullValues;
+        if (body.values instanceof double[]) {
+            this.type = SqlStatement.Type.DOUBLE;
+            this.doubles = (double[]) body.values;
+        } else if (body.values instanceof int[]) {
+            this.type = SqlStatement.Type.INT;
+            this.ints = (int[]) body.values;
+        } else {
+            this.type = SqlStatement.Type.OBJECT;
+            this.objects = (Object[]) body.values;
+        }
+    }
+
+    public Object getObject(CellKey pos) {
+        return getObject(index.get(pos));
+    }
+
+    private Object getObject(int i) {
+        if (i < 0 || nullValues != null && nullValues.get(i)) {
+            return null;
+        }
+        switch (type) {
+        case DOUBLE:
+            return doubles[i];
+        case INT:
+            return ints[i];
+        default:
+            return objects[i];
+        }
+    }
+
+    public int getInt(CellKey pos) {
+        final int i = index.get(pos);
+        if (i < 0) {
+            return 0;
+        }
+        switch (type) {
+        case DOUBLE:
+            return (int) doubles[i];
+        case INT:
+            return ints[i];
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public double getDouble(CellKey pos) {
+        final int i = index.get(pos);
+        if (i < 0) {
+            return 0d;
+        }
+        switch (type) {
+        case DOUBLE:
+            return doubles[i];
+        case INT:
+            return ints[i];
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public boolean isNull(CellKey pos) {
+        return getObject(index.get(pos)) == null;
+    }
+
+    public boolean exists(CellKey pos) {
+        return index.get(pos) >= 0;
+    }
+
+    public double getBytes() {
+        final int n = index.size();
+        switch (type) {
+        case DOUBLE:
+            return index.estimateSize() + n * 8;
+        case INT:
+            return index.estimateSize() + n * 4;
+        default:
+            // assume a reference is 4 bytes
+            return index.estimateSize() + n * 4;
+        }
+    }
+
+    public void populateFrom(int[] pos, SegmentDataset data, CellKey key) {
+        final int i = add(pos);
+        final Object o = data.getObject(key);
+        switch (type) {
+        case DOUBLE:
+            if (o == null) {
+                nullValues.set(i);
+            } else {
+                doubles[i] = ((Number) o).doubleValue();
+            }
+            break;
+        case INT:
+            if (o == null) {
+                nullValues.set(i);
+            } else {
+                ints[i] = ((Number) o).intValue();
+            }
+            break;
+        default:
+            objects[i] = o;
+        }
+    }
+
+    public void populateFrom(
+        int[] pos, SegmentLoader.RowList rowList, int column)
+    {
+        final int i = add(pos);
+        switch (type) {
+        case DOUBLE:
+            doubles[i] = rowList.getDouble(column);
+            if (doubles[i] == 0d && rowList.isNull(column)) {
+                nullValues.set(i);
+            }
+            break;
+        case INT:
+            ints[i] = rowList.getInt(column);
+            if (ints[i] == 0 && rowList.isNull(column)) {
+                nullValues.set(i);
+            }
+            break;
+        default:
+            objects[i] = rowList.getObject(column);
+        }
+    }
+
+    /**
+     * Adds a cell, growing the value array if necessary, and returns its
+     * index. If the cell already exists, its null indicator is cleared.
+     */
+    private int add(int[] pos) {
+        final int i = index.add(pos);
+        final int n = index.size();
+        switch (type) {
+        case DOUBLE:
+            if (n > doubles.length) {
+                doubles = Arrays.copyOf(doubles, n * 2);
+            }
+            break;
+        case INT:
+            if (n > ints.length) {
+                ints = Arrays.copyOf(ints, n * 2);
+            }
+            break;
+        default:
+            if (n > objects.length) {
+                objects = Arrays.copyOf(objects, n * 2);
+            }
+        }
+        if (nullValues != null) {
+            nullValues.clear(i);
+        }
+        return i;
+    }
+
+    public Iterator<Map.Entry<CellKey, Object>> iterator() {
+        return new Iterator<Map.Entry<CellKey, Object>>() {
+            int i = 0;
+
+            public boolean hasNext() {
+                return i < index.size();
+            }
+
+            public Map.Entry<CellKey, Object> next() {
+                if (i >= index.size()) {
+                    throw new NoSuchElementException();
+                }
+                final Pair<CellKey, Object> entry =
+                    Pair.of(index.getCellKey(i), getObject(i));
+                ++i;
+                return entry;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public SqlStatement.Type getType() {
+        return type;
+    }
+
+    public SegmentBody createSegmentBody(
+        List<Pair<SortedSet<Comparable>, Boolean>> axes)
+    {
+        // No more cells will be added, so release unused capacity. The body
+        // shares the index and arrays with this dataset.
+        index.trim();
+        final int n = index.size();
+        final Object values;
+        switch (type) {
+        case DOUBLE:
+            values = doubles = Arrays.copyOf(doubles, n);
+            break;
+        case INT:
+            values = ints = Arrays.copyOf(ints, n);
+            break;
+        default:
+            values = objects = Arrays.copyOf(objects, n);
+        }
+        return new PrimitiveSparseSegmentBody(index, values, nullValues, axes);
+    }
+}
+
+// End PrimitiveSparseSegmentDataset.java
@@ -277,7 +277,7 @@ public class Segment {
         int size)
     {
         if (sparse) {
-            return new SparseSegmentDataset();
+            return new PrimitiveSparseSegmentDataset(axes, type);
         } else {
             switch (type) {
             case OBJECT:
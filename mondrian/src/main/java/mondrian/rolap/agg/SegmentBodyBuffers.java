@@ -0,0 +1,297 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.spi.SegmentBody;
+import mondrian.util.Pair;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Writes segment bodies into, and reads them from, {@link ByteBuffer}s.
+ *
+ * <p>The layout is designed so that the values of dense segments of
+ * {@code double} and {@code int} values can be read in place: they are stored
+ * as aligned primitive arrays in the platform's byte order, and
+ * {@link #decode(ByteBuffer)} returns a body that wraps a view onto the
+ * buffer rather than a copy. If the buffer is direct or memory-mapped, the
+ * cell values therefore never occupy the Java heap. Axis values, null
+ * indicators and the values of object and sparse segments are copied onto
+ * the heap when the body is decoded.</p>
+ *
+ * <p>Layout:</p>
+ *
+ * <pre>
+ * int      magic
+ * byte     version
+ * byte     kind (DOUBLE, INT, OBJECT or SPARSE)
+ * byte     byte order of the primitive arrays (0 = big, 1 = little endian)
+ * byte     reserved
+ * int      length of the metadata section
+ * int      cell count (DOUBLE and INT only)
+ * byte[]   metadata: for DOUBLE and INT, the axes; for OBJECT and SPARSE,
+ *          the whole body; both in the encoding of {@link SegmentCodec}
+ * padding  to a multiple of 8 bytes
+ * double[] or int[] cell values (DOUBLE and INT only)
+ * padding  to a multiple of 8 bytes
+ * long[]   null indicators, one bit per cell (DOUBLE and INT only)
+ * </pre>
+ *
+ * <p>The header is always big-endian.</p>
+ *
+ * @see mondrian.rolap.cache.OffHeapSegmentCache
+ */
+public final class SegmentBodyBuffers {
+    private static final int MAGIC = 0x4d534231; // "MSB1"
+    private static final byte VERSION = 2;
+    private static final int HEADER_LENGTH = 16;
+
+    private static final byte DOUBLE = 0;
+    private static final byte INT = 1;
+    private static final byte OBJECT = 2;
+    private static final byte SPARSE = 3;
+
+    private SegmentBodyBuffers() {
+    }
+
+    /**
+     * Writes a segment body into a buffer.
+     *
+     * <p>A buffer holds at most {@link Integer#MAX_VALUE} bytes, so a body
+     * whose encoding would be larger, such as a dense {@code double} body of
+     * more than about 268 million cells, is refused.</p>
+     *
+     * @param body Segment body
+     * @param allocator Allocates a buffer of the required size
+     * @return Buffer containing the encoded body, positioned at 0, or null if
+     *   the body is too large to encode
+     * @throws IOException on error
+     */
+    public static ByteBuffer encode(SegmentBody body, Allocator allocator)
+        throws IOException
+    {
+        final byte kind;
+        final Object values;
+        final int cellCount;
+        final SegmentCodec.Writer out = new SegmentCodec.Writer(256);
+        if (body instanceof DenseDoubleSegmentBody
+            || body instanceof DirectDoubleSegmentBody)
+        {
+            kind = DOUBLE;
+            values = body instanceof DirectDoubleSegmentBody
+                ? ((DirectDoubleSegmentBody) body).getBuffer()
+                : body.getValueArray();
+            cellCount = ((AbstractSegmentBody) body).getSize();
+            SegmentCodec.writeAxes(out, body);
+        } else if (body instanceof DenseIntSegmentBody
+            || body instanceof DirectIntSegmentBody)
+        {
+            kind = INT;
+            values = body instanceof DirectIntSegmentBody
+                ? ((DirectIntSegmentBody) body).getBuffer()
+                : body.getValueArray();
+            cellCount = ((AbstractSegmentBody) body).getSize();
+            SegmentCodec.writeAxes(out, body);
+        } else {
+            // Object and sparse bodies are copied onto the heap when decoded
+            // anyway, so store them in the compact encoding.
+            kind = body instanceof DenseObjectSegmentBody ? OBJECT : SPARSE;
+            values = null;
+            cellCount = 0;
+            SegmentCodec.writeBody(out, body);
+        }
+        final byte[] meta = out.toByteArray();
+
+        // Compute the layout in long, so that a large body cannot overflow.
+        final long valuesOffset = align(HEADER_LENGTH + (long) meta.length);
+        final long valuesLength = valuesLength(kind, cellCount);
+        final long nullsOffset = align(valuesOffset + valuesLength);
+        final long length =
+            kind == DOUBLE || kind == INT
+                ? nullsOffset + 8L * wordCount(cellCount)
+                : valuesOffset;
+        if (length > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        final ByteBuffer buffer = allocator.allocate((int) length);
+        final ByteOrder order = ByteOrder.nativeOrder();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.put(4, VERSION);
+        buffer.put(5, kind);
+        buffer.put(6, order == ByteOrder.BIG_ENDIAN ? (byte) 0 : (byte) 1);
+        buffer.put(7, (byte) 0);
+        buffer.putInt(8, meta.length);
+        buffer.putInt(12, cellCount);
+        region(buffer, HEADER_LENGTH, meta.length).put(meta);
+        if (kind == DOUBLE) {
+            final DoubleBuffer target =
+                region(buffer, valuesOffset, valuesLength)
+                    .order(order).asDoubleBuffer();
+            if (values instanceof DoubleBuffer) {
+                target.put(((DoubleBuffer) values).duplicate());
+            } else {
+                target.put((double[]) values);
+            }
+        } else if (kind == INT) {
+            final IntBuffer target =
+                region(buffer, valuesOffset, valuesLength)
+                    .order(order).asIntBuffer();
+            if (values instanceof IntBuffer) {
+                target.put(((IntBuffer) values).duplicate());
+            } else {
+                target.put((int[]) values);
+            }
+        }
+        if (kind == DOUBLE || kind == INT) {
+            final long[] words =
+                Arrays.copyOf(
+                    body.getNullValueIndicators().toLongArray(),
+                    wordCount(cellCount));
+            region(buffer, nullsOffset, 8L * words.length)
+                .order(order).asLongBuffer().put(words);
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
+    /**
+     * Reads a segment body from a buffer that was written by
+     * {@link #encode(SegmentBody, Allocator)}.
+     *
+     * <p>Does not modify the position of the buffer. If the body contains
+     * dense {@code double} or {@code int} values, the returned body reads them
+     * from the buffer, so the buffer must not be modified while the body is in
+     * use.</p>
+     *
+     * @param buffer Buffer
+     * @return Segment body
+     * @throws IOException if the buffer does not contain a valid body
+     */
+    public static SegmentBody decode(ByteBuffer buffer) throws IOException {
+        final ByteBuffer header =
+            buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (header.limit() < HEADER_LENGTH || header.getInt(0) != MAGIC) {
+            throw new StreamCorruptedException("Not a segment body");
+        }
+        if (header.get(4) != VERSION) {
+            throw new InvalidClassException(
+                "Unsupported segment body version " + header.get(4));
+        }
+        final byte kind = header.get(5);
+        final ByteOrder order =
+            header.get(6) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        final int metaLength = header.getInt(8);
+        final int cellCount = header.getInt(12);
+        if (metaLength < 0
+            || HEADER_LENGTH + (long) metaLength > header.limit())
+        {
+            throw new StreamCorruptedException("Truncated segment body");
+        }
+
+        final byte[] meta = new byte[metaLength];
+        region(buffer, HEADER_LENGTH, metaLength).get(meta);
+        final SegmentCodec.Reader in =
+            new SegmentCodec.Reader(meta, 0, metaLength);
+        if (kind == OBJECT || kind == SPARSE) {
+            return SegmentCodec.readBody(in);
+        }
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            SegmentCodec.readAxes(in);
+
+        if (kind != DOUBLE && kind != INT) {
+            throw new StreamCorruptedException(
+                "Unknown segment body kind " + kind);
+        }
+        final long valuesOffset = align(HEADER_LENGTH + (long) metaLength);
+        final long valuesLength = valuesLength(kind, cellCount);
+        final long nullsOffset = align(valuesOffset + valuesLength);
+        if (cellCount < 0
+            || nullsOffset + 8L * wordCount(cellCount) > buffer.limit())
+        {
+            throw new StreamCorruptedException("Truncated segment body");
+        }
+        final BitSet nulls = readNulls(buffer, nullsOffset, cellCount, order);
+        final ByteBuffer values =
+            region(buffer, valuesOffset, valuesLength)
+                .asReadOnlyBuffer().order(order);
+        if (kind == DOUBLE) {
+            return new DirectDoubleSegmentBody(
+                nulls, values.asDoubleBuffer(), axes);
+        } else {
+            return new DirectIntSegmentBody(
+                nulls, values.asIntBuffer(), axes);
+        }
+    }
+
+    private static BitSet readNulls(
+        ByteBuffer buffer, long offset, int cellCount, ByteOrder order)
+    {
+        return BitSet.valueOf(
+            region(buffer, offset, 8L * wordCount(cellCount))
+                .order(order).asLongBuffer());
+    }
+
+    /**
+     * Returns a big-endian view of a region of a buffer, positioned at 0.
+     * The caller has checked that the region lies within the buffer, so its
+     * bounds fit in an {@code int}.
+     */
+    private static ByteBuffer region(
+        ByteBuffer buffer, long offset, long length)
+    {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit((int) (offset + length));
+        duplicate.position((int) offset);
+        return duplicate.slice();
+    }
+
+    /**
+     * Returns the number of bytes of cell values of a DOUBLE or INT body, or
+     * 0 for other kinds of body.
+     */
+    private static long valuesLength(byte kind, int cellCount) {
+        switch (kind) {
+        case DOUBLE:
+            return 8L * cellCount;
+        case INT:
+            return 4L * cellCount;
+        default:
+            return 0;
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static int wordCount(int bitCount) {
+        return (int) ((bitCount + 63L) / 64);
+    }
+
+    /**
+     * Allocates the buffer into which a segment body is encoded.
+     */
+    public interface Allocator {
+        /**
+         * Returns a buffer with capacity of at least the given number of
+         * bytes, positioned at 0.
+         *
+         * @param length Number of bytes required
+         * @return Buffer
+         * @throws IOException on error
+         */
+        ByteBuffer allocate(int length) throws IOException;
+    }
+}
+
+// End SegmentBodyBuffers.java
@@ -90,8 +90,24 @@ public class SegmentBuilder {
             dataSet =
                 new DenseObjectSegmentDataset(
                     axes, (Object[]) body.getValueArray());
+        } else if (body instanceof PrimitiveSparseSegmentBody) {
+            dataSet =
+                new PrimitiveSparseSegmentDataset(
+                    (PrimitiveSparseSegmentBody) body);
         } else if (body instanceof SparseSegmentBody) {
             dataSet = new SparseSegmentDataset(body.getValueMap());
+        } else if (body instanceof DirectDoubleSegmentBody) {
+            dataSet =
+                new DirectDoubleSegmentDataset(
+                    axes,
+                    ((DirectDoubleSegmentBody) body).getBuffer(),
+                    body.getNullValueIndicators());
+        } else if (body instanceof DirectIntSegmentBody) {
+            dataSet =
+                new DirectIntSegmentDataset(
+                    axes,
+                    ((DirectIntSegmentBody) body).getBuffer(),
+                    body.getNullValueIndicators());
         } else {
             throw Util.newInternal(
                 "Unknown segment body type: " + body.getClass() + ": " + body);
@@ -122,35 +138,10 @@ public class SegmentBuilder {
         final List<StarColumnPredicate> predicateList =
             new ArrayList<StarColumnPredicate>();
         for (int i = 0; i < constrainedColumns.length; i++) {
-            RolapStar.Column constrainedColumn = constrainedColumns[i];
-            final SortedSet<Comparable> values =
-                header.getConstrainedColumns().get(i).values;
-            StarColumnPredicate predicate;
-            if (values == null) {
-                predicate =
-                    new LiteralStarPredicate(
-                        constrainedColumn,
-                        true);
-            } else if (values.size() == 1) {
-                predicate =
-                    new ValueColumnPredicate(
-                        constrainedColumn,
-                        values.first());
-            } else {
-                final List<StarColumnPredicate> valuePredicateList =
-                    new ArrayList<StarColumnPredicate>();
-                for (Object value : values) {
-                    valuePredicateList.add(
-                        new ValueColumnPredicate(
-                            constrainedColumn,
-                            value));
-                }
-                predicate =
-                    new ListColumnPredicate(
-                        constrainedColumn,
-                        valuePredicateList);
-            }
-            predicateList.add(predicate);
+            predicateList.add(
+                toPredicate(
+                    constrainedColumns[i],
+                    header.getConstrainedColumns().get(i).values));
         }
 
         return new Segment(
@@ -164,6 +155,157 @@ public class SegmentBuilder {
             compoundPredicates);
     }
 
+    /**
+     * Creates a predicate that constrains a column to a set of values.
+     *
+     * @param column Column
+     * @param values Values, or null if the column is not constrained
+     * @return Predicate
+     */
+    private static StarColumnPredicate toPredicate(
+        RolapStar.Column column,
+        SortedSet<Comparable> values)
+    {
+        if (values == null) {
+            return new LiteralStarPredicate(column, true);
+        } else if (values.size() == 1) {
+            return new ValueColumnPredicate(column, values.first());
+        } else {
+            final List<StarColumnPredicate> valuePredicateList =
+                new ArrayList<StarColumnPredicate>();
+            for (Object value : values) {
+                valuePredicateList.add(
+                    new ValueColumnPredicate(column, value));
+            }
+            return new ListColumnPredicate(column, valuePredicateList);
+        }
+    }
+
+    /**
+     * Converts a region, such as the region returned by
+     * {@link mondrian.rolap.CacheControlImpl#findAxisValues}, into a
+     * predicate on the columns of a star.
+     *
+     * <p>Returns null if the region cannot be expressed as a predicate: if it
+     * has no columns, if one of its columns is not constrained to a list of
+     * values, or if a column does not match exactly one column of the
+     * star.</p>
+     *
+     * @param star Star
+     * @param region Columns of the region, and their values
+     * @return Predicate, or null
+     */
+    static StarPredicate toPredicate(RolapStar star, SegmentColumn[] region) {
+        if (region.length == 0) {
+            return null;
+        }
+        final List<StarPredicate> predicateList =
+            new ArrayList<StarPredicate>();
+        for (SegmentColumn segmentColumn : region) {
+            if (segmentColumn.values == null) {
+                return null;
+            }
+            RolapStar.Column column = null;
+            for (int i = 0; i < star.getColumnCount(); i++) {
+                final RolapStar.Column starColumn = star.getColumn(i);
+                if (starColumn instanceof RolapStar.Measure
+                    || starColumn.getExpression() == null
+                    || !segmentColumn.columnExpression.equals(
+                        starColumn.getExpression().getGenericExpression()))
+                {
+                    continue;
+                }
+                if (column != null) {
+                    // The expression is ambiguous.
+                    return null;
+                }
+                column = starColumn;
+            }
+            if (column == null) {
+                return null;
+            }
+            predicateList.add(toPredicate(column, segmentColumn.values));
+        }
+        return predicateList.size() == 1
+            ? predicateList.get(0)
+            : new AndPredicate(predicateList);
+    }
+
+    /**
+     * Creates grouping sets for segments that have the same constraints.
+     * Distinct-count measures each have their own grouping set, as in
+     * {@link mondrian.rolap.FastBatchingCellReader}; other measures share
+     * one.
+     *
+     * @param segments Segments
+     * @return Grouping sets
+     */
+    static List<GroupingSet> toGroupingSets(List<Segment> segments) {
+        final List<GroupingSet> groupingSets = new ArrayList<GroupingSet>();
+        final List<Segment> shared = new ArrayList<Segment>();
+        for (Segment segment : segments) {
+            if (segment.measure.getAggregator().isDistinct()) {
+                groupingSets.add(
+                    toGroupingSet(Collections.singletonList(segment)));
+            } else {
+                shared.add(segment);
+            }
+        }
+        if (!shared.isEmpty()) {
+            Collections.sort(
+                shared,
+                new Comparator<Segment>() {
+                    public int compare(Segment o1, Segment o2) {
+                        return Integer.valueOf(
+                            o1.measure.getBitPosition())
+                            .compareTo(o2.measure.getBitPosition());
+                    }
+                });
+            groupingSets.add(toGroupingSet(shared));
+        }
+        return groupingSets;
+    }
+
+    private static GroupingSet toGroupingSet(List<Segment> segments) {
+        final Segment segment0 = segments.get(0);
+        final BitKey levelBitKey = segment0.getConstrainedColumnsBitKey();
+        final BitKey measureBitKey = levelBitKey.emptyCopy();
+        for (Segment segment : segments) {
+            measureBitKey.set(segment.measure.getBitPosition());
+        }
+        return new GroupingSet(
+            segments,
+            levelBitKey,
+            measureBitKey,
+            segment0.predicates,
+            segment0.getColumns());
+    }
+
+    /**
+     * Converts a segment header into a segment without data, for a given
+     * measure of the header's star.
+     *
+     * @param header The header to convert
+     * @param measure Measure
+     * @param compoundPredicates Compound predicates
+     * @return Segment
+     */
+    public static Segment toSegment(
+        SegmentHeader header,
+        RolapStar.Measure measure,
+        List<StarPredicate> compoundPredicates)
+    {
+        return toSegment(
+            header,
+            measure.getStar(),
+            header.getConstrainedColumnsBitKey(),
+            getConstrainedColumns(
+                measure.getStar(),
+                header.getConstrainedColumnsBitKey()),
+            measure,
+            compoundPredicates);
+    }
+
     /**
      * Given a collection of segments, all of the same dimensionality, rolls up
      * to create a segment with reduced dimensionality.
@@ -286,47 +428,53 @@ public class SegmentBuilder {
 
         // Populate cells.
         //
-        // (This is a rough implementation, very inefficient. It makes all
-        // segment types pretend to be sparse, for purposes of reading. It
-        // maps all axis ordinals to a value, then back to an axis ordinal,
-        // even if this translation were not necessary, say if the source and
-        // target axes had the same set of values. And it always creates a
-        // sparse segment.
+        // This maps all axis ordinals to a value, then back to an axis
+        // ordinal, even if this translation were not necessary, say if the
+        // source and target axes had the same set of values.
         //
-        // We should do really efficient rollup if the source is an array: we
-        // should box values (e.g double to Double and back), and we should read
-        // a stripe of values from the and add them up into a single cell.
-        final Map<CellKey, List<Object>> cellValues =
-            new HashMap<CellKey, List<Object>>();
-        List<List<Comparable>> addedIntersections =
-            new ArrayList<List<Comparable>>();
+        // Target cells are collected in a sparse cell index, so neither the
+        // source nor the target cells are represented as CellKey objects.
+        final int[] targetAxisLengths = new int[axes.size()];
+        for (int i = 0; i < axes.size(); i++) {
+            // One extra ordinal for the null value.
+            targetAxisLengths[i] = axes.get(i).values.length + 1;
+        }
+        final SparseCellIndex cellIndex =
+            new SparseCellIndex(targetAxisLengths, 16);
+        final List<List<Object>> cellValues = new ArrayList<List<Object>>();
+        final Set<List<Comparable>> addedIntersections =
+            new HashSet<List<Comparable>>();
 
         for (Map.Entry<SegmentHeader, SegmentBody> entry : map.entrySet()) {
             final int[] pos = new int[axes.size()];
             final Comparable[][] valueArrays =
                 new Comparable[firstHeaderConstrainedColumns.size()][];
             final SegmentBody body = entry.getValue();
+            final Comparable[][] allValueArrays =
+                new Comparable[body.getAxisValueSets().length][];
 
             // Copy source value sets into arrays. For axes that are being
             // projected away, store null.
             z = 0;
             for (SortedSet<Comparable> set : body.getAxisValueSets()) {
-                    valueArrays[z] = keepColumns.contains(
-                        firstHeaderConstrainedColumns.get(z).columnExpression)
-                        ? set.toArray(new Comparable[set.size()])
-                        : null;
+                allValueArrays[z] = set.toArray(new Comparable[set.size()]);
+                valueArrays[z] = keepColumns.contains(
+                    firstHeaderConstrainedColumns.get(z).columnExpression)
+                    ? allValueArrays[z]
+                    : null;
                 ++z;
             }
-            Map<CellKey, Object> v = body.getValueMap();
+            final CellCursor cursor = CellCursor.of(body);
             entryLoop:
-            for (Map.Entry<CellKey, Object> vEntry : v.entrySet()) {
+            while (cursor.next()) {
+                final int[] ordinals = cursor.ordinals;
                 z = 0;
-                for (int i = 0; i < vEntry.getKey().size(); i++) {
+                for (int i = 0; i < ordinals.length; i++) {
                     final Comparable[] valueArray = valueArrays[i];
                     if (valueArray == null) {
                         continue;
                     }
-                    final int ordinal = vEntry.getKey().getOrdinals()[i];
+                    final int ordinal = ordinals[i];
                     final int targetOrdinal;
                     if (axes.get(z).hasNull && ordinal == valueArray.length) {
                         targetOrdinal = axes.get(z).valueSet.size();
@@ -350,17 +498,16 @@ public class SegmentBuilder {
                         continue entryLoop;
                     }
                 }
-                final CellKey ck = CellKey.Generator.newCellKey(pos);
-                if (!cellValues.containsKey(ck)) {
-                    cellValues.put(ck, new ArrayList<Object>());
+                final int cell = cellIndex.add(pos);
+                if (cell == cellValues.size()) {
+                    cellValues.add(new ArrayList<Object>());
                 }
-                List<Comparable> colValues =  getColumnValsAtCellKey(
-                    body, vEntry.getKey());
-                if (!addedIntersections.contains(colValues)) {
+                List<Comparable> colValues = getColumnValsAtCellKey(
+                    allValueArrays, body.getNullAxisFlags(), ordinals);
+                if (addedIntersections.add(colValues)) {
                     // only add the cell value if we haven't already.
                     // there is a potential double add if segments overlap
-                    cellValues.get(ck).add(vEntry.getValue());
-                    addedIntersections.add(colValues);
+                    cellValues.get(cell).add(cursor.value);
                 }
             }
         }
@@ -368,125 +515,12 @@ public class SegmentBuilder {
         // Build the axis list.
         final List<Pair<SortedSet<Comparable>, Boolean>> axisList =
             new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
-        BigInteger bigValueCount = BigInteger.ONE;
         for (AxisInfo axis : axes) {
             axisList.add(Pair.of(axis.valueSet, axis.hasNull));
-            int size = axis.values.length;
-            bigValueCount = bigValueCount.multiply(
-                BigInteger.valueOf(axis.hasNull ? size + 1 : size));
-        }
-
-        // The logic used here for the sparse check follows
-        // SegmentLoader.setAxisDataAndDecideSparseUse.
-        // The two methods use different data structures (AxisInfo/SegmentAxis)
-        // so combining logic is probably more trouble than it's worth.
-        final boolean sparse =
-            bigValueCount.compareTo
-                (BigInteger.valueOf(Integer.MAX_VALUE)) > 0
-                || SegmentLoader.useSparse(
-                    bigValueCount.doubleValue(),
-                    cellValues.size());
-        final int[] axisMultipliers =
-            computeAxisMultipliers(axisList);
-
-        final SegmentBody body;
-        // Peak at the values and determine the best way to store them
-        // (whether to use a dense native dataset or a sparse one.
-        if (cellValues.size() == 0) {
-            // Just store the data into an empty dense object dataset.
-            body =
-                new DenseObjectSegmentBody(
-                    new Object[0],
-                    axisList);
-        } else if (sparse) {
-            // The rule says we must use a sparse dataset.
-            // First, aggregate the values of each key.
-            final Map<CellKey, Object> data =
-                new HashMap<CellKey, Object>();
-            for (Entry<CellKey, List<Object>> entry
-                : cellValues.entrySet())
-            {
-                data.put(
-                    CellKey.Generator.newCellKey(entry.getKey().getOrdinals()),
-                    rollupAggregator.aggregate(
-                        entry.getValue(),
-                        datatype));
-            }
-            body =
-                new SparseSegmentBody(
-                    data,
-                    axisList);
-        } else {
-            final BitSet nullValues;
-            final int valueCount = bigValueCount.intValue();
-            switch (datatype) {
-            case Integer:
-                final int[] ints = new int[valueCount];
-                nullValues = Util.bitSetBetween(0, valueCount);
-                for (Entry<CellKey, List<Object>> entry
-                    : cellValues.entrySet())
-                {
-                    final int offset =
-                        CellKey.Generator.getOffset(
-                            entry.getKey().getOrdinals(), axisMultipliers);
-                    final Object value =
-                        rollupAggregator.aggregate(
-                            entry.getValue(),
-                            datatype);
-                    if (value != null) {
-                        ints[offset] = (Integer) value;
-                        nullValues.clear(offset);
-                    }
-                }
-                body =
-                    new DenseIntSegmentBody(
-                        nullValues,
-                        ints,
-                        axisList);
-                  break;
-            case Numeric:
-                final double[] doubles = new double[valueCount];
-                nullValues = Util.bitSetBetween(0, valueCount);
-                for (Entry<CellKey, List<Object>> entry
-                    : cellValues.entrySet())
-                {
-                    final int offset =
-                        CellKey.Generator.getOffset(
-                            entry.getKey().getOrdinals(), axisMultipliers);
-                    final Object value =
-                        rollupAggregator.aggregate(
-                            entry.getValue(),
-                            datatype);
-                    if (value != null) {
-                        doubles[offset] = (Double) value;
-                        nullValues.clear(offset);
-                    }
-                }
-                body =
-                    new DenseDoubleSegmentBody(
-                        nullValues,
-                        doubles,
-                        axisList);
-                break;
-            default:
-                final Object[] objects = new Object[valueCount];
-                for (Entry<CellKey, List<Object>> entry
-                    : cellValues.entrySet())
-                {
-                    final int offset =
-                        CellKey.Generator.getOffset(
-                            entry.getKey().getOrdinals(), axisMultipliers);
-                    objects[offset] =
-                        rollupAggregator.aggregate(
-                            entry.getValue(),
-                            datatype);
-                }
-                body =
-                    new DenseObjectSegmentBody(
-                        objects,
-                        axisList);
-            }
         }
+        final SegmentBody body =
+            toBody(
+                axisList, cellIndex, cellValues, rollupAggregator, datatype);
 
         // Create header.
         final List<SegmentColumn> constrainedColumns =
@@ -512,7 +546,7 @@ public class SegmentBuilder {
                 firstHeader.compoundPredicates,
                 firstHeader.rolapStarFactTableName,
                 targetBitkey,
-                Collections.<SegmentColumn>emptyList());
+                Collections.<SegmentColumn[]>emptyList());
         if (LOGGER.isDebugEnabled()) {
             StringBuilder builder = new StringBuilder();
             builder.append("Rolling up segments with parameters: \n");
@@ -556,18 +590,215 @@ public class SegmentBuilder {
         return Pair.of(header, body);
     }
 
+    /**
+     * Merges two bodies of a segment, such as the body of a cached segment
+     * and the body of the rows that have since been appended to its fact
+     * table.
+     *
+     * <p>The bodies must have the same axes, in the same order, but may have
+     * different values on each axis. The axes of the result are the union of
+     * the axes of the bodies. The values of a cell that occurs in both bodies
+     * are combined using the rollup aggregator.</p>
+     *
+     * @param body Body of the segment
+     * @param delta Body to merge into it
+     * @param rollupAggregator The aggregator to use to combine cells
+     * @param datatype The data type to use
+     * @return Merged segment body
+     */
+    public static SegmentBody merge(
+        SegmentBody body,
+        SegmentBody delta,
+        Aggregator rollupAggregator,
+        Datatype datatype)
+    {
+        final int axisCount = body.getAxisValueSets().length;
+        assert delta.getAxisValueSets().length == axisCount;
+        final List<Pair<SortedSet<Comparable>, Boolean>> axisList =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>();
+        final Comparable[][] values = new Comparable[axisCount][];
+        final int[] targetAxisLengths = new int[axisCount];
+        for (int i = 0; i < axisCount; i++) {
+            final SortedSet<Comparable> valueSet =
+                new TreeSet<Comparable>(body.getAxisValueSets()[i]);
+            valueSet.addAll(delta.getAxisValueSets()[i]);
+            axisList.add(
+                Pair.of(
+                    valueSet,
+                    body.getNullAxisFlags()[i]
+                    || delta.getNullAxisFlags()[i]));
+            values[i] = valueSet.toArray(new Comparable[valueSet.size()]);
+            // One extra ordinal for the null value.
+            targetAxisLengths[i] = values[i].length + 1;
+        }
+
+        // Map the cells of both bodies onto the merged axes, and collect the
+        // values of each merged cell.
+        final SparseCellIndex cellIndex =
+            new SparseCellIndex(targetAxisLengths, 16);
+        final List<List<Object>> cellValues = new ArrayList<List<Object>>();
+        final int[] pos = new int[axisCount];
+        for (SegmentBody source : Arrays.asList(body, delta)) {
+            final Comparable[][] sourceValues = new Comparable[axisCount][];
+            for (int i = 0; i < axisCount; i++) {
+                final SortedSet<Comparable> set =
+                    source.getAxisValueSets()[i];
+                sourceValues[i] = set.toArray(new Comparable[set.size()]);
+            }
+            final CellCursor cursor = CellCursor.of(source);
+            while (cursor.next()) {
+                for (int i = 0; i < axisCount; i++) {
+                    final int ordinal = cursor.ordinals[i];
+                    final Comparable value =
+                        ordinal == sourceValues[i].length
+                            ? null
+                            : sourceValues[i][ordinal];
+                    pos[i] = value == null
+                        ? values[i].length
+                        : Util.binarySearch(
+                            values[i], 0, values[i].length, value);
+                }
+                final int cell = cellIndex.add(pos);
+                if (cell == cellValues.size()) {
+                    cellValues.add(new ArrayList<Object>(2));
+                }
+                cellValues.get(cell).add(cursor.value);
+            }
+        }
+        return toBody(
+            axisList, cellIndex, cellValues, rollupAggregator, datatype);
+    }
+
+    /**
+     * Creates a segment body from the values of its cells. Each cell's value
+     * is the aggregate of its list of values.
+     *
+     * @param axisList Values on each axis, and whether the axis has a null
+     * @param cellIndex Index of the cells that have values
+     * @param cellValues Values of each cell, in the order of the cell index
+     * @param rollupAggregator The aggregator to use to aggregate cell values
+     * @param datatype The data type to use
+     * @return Segment body
+     */
+    private static SegmentBody toBody(
+        List<Pair<SortedSet<Comparable>, Boolean>> axisList,
+        SparseCellIndex cellIndex,
+        List<List<Object>> cellValues,
+        Aggregator rollupAggregator,
+        Datatype datatype)
+    {
+        BigInteger bigValueCount = BigInteger.ONE;
+        for (Pair<SortedSet<Comparable>, Boolean> axis : axisList) {
+            final int size = axis.left.size();
+            bigValueCount = bigValueCount.multiply(
+                BigInteger.valueOf(axis.right ? size + 1 : size));
+        }
+
+        // The logic used here for the sparse check follows
+        // SegmentLoader.setAxisDataAndDecideSparseUse.
+        // The two methods use different data structures (AxisInfo/SegmentAxis)
+        // so combining logic is probably more trouble than it's worth.
+        final int cellCount = cellIndex.size();
+        final boolean sparse =
+            bigValueCount.compareTo
+                (BigInteger.valueOf(Integer.MAX_VALUE)) > 0
+                || SegmentLoader.useSparse(
+                    bigValueCount.doubleValue(),
+                    cellCount);
+        final int[] axisMultipliers =
+            computeAxisMultipliers(axisList);
+
+        final SegmentBody body;
+        // Peak at the values and determine the best way to store them
+        // (whether to use a dense native dataset or a sparse one.
+        if (cellCount == 0) {
+            // Just store the data into an empty dense object dataset.
+            body =
+                new DenseObjectSegmentBody(
+                    new Object[0],
+                    axisList);
+        } else {
+            // Aggregate the values of each cell. If the rule says we must use
+            // a sparse dataset, store them in the order of the cell index;
+            // otherwise, at the cell's offset in a dense array.
+            cellIndex.trim();
+            final int valueCount =
+                sparse ? cellCount : bigValueCount.intValue();
+            final int[] ordinals = new int[axisList.size()];
+            final int[] offsets = new int[cellCount];
+            final Object[] aggregates = new Object[cellCount];
+            for (int i = 0; i < cellCount; i++) {
+                cellIndex.getOrdinals(i, ordinals);
+                offsets[i] = sparse
+                    ? i
+                    : CellKey.Generator.getOffset(ordinals, axisMultipliers);
+                aggregates[i] =
+                    rollupAggregator.aggregate(cellValues.get(i), datatype);
+            }
+            // Store numbers in a primitive array, but sketches as objects.
+            final boolean objectValues =
+                rollupAggregator instanceof RolapAggregator
+                && ((RolapAggregator) rollupAggregator).isSketch();
+            final BitSet nullValues;
+            switch (objectValues ? Datatype.String : datatype) {
+            case Integer:
+                final int[] ints = new int[valueCount];
+                nullValues = Util.bitSetBetween(0, valueCount);
+                for (int i = 0; i < cellCount; i++) {
+                    if (aggregates[i] != null) {
+                        ints[offsets[i]] = (Integer) aggregates[i];
+                        nullValues.clear(offsets[i]);
+                    }
+                }
+                body = sparse
+                    ? new PrimitiveSparseSegmentBody(
+                        cellIndex, ints, nullValues, axisList)
+                    : new DenseIntSegmentBody(nullValues, ints, axisList);
+                break;
+            case Numeric:
+                final double[] doubles = new double[valueCount];
+                nullValues = Util.bitSetBetween(0, valueCount);
+                for (int i = 0; i < cellCount; i++) {
+                    if (aggregates[i] != null) {
+                        doubles[offsets[i]] = (Double) aggregates[i];
+                        nullValues.clear(offsets[i]);
+                    }
+                }
+                body = sparse
+                    ? new PrimitiveSparseSegmentBody(
+                        cellIndex, doubles, nullValues, axisList)
+                    : new DenseDoubleSegmentBody(nullValues, doubles, axisList);
+                break;
+            default:
+                final Object[] objects;
+                if (sparse) {
+                    objects = aggregates;
+                } else {
+                    objects = new Object[valueCount];
+                    for (int i = 0; i < cellCount; i++) {
+                        objects[offsets[i]] = aggregates[i];
+                    }
+                }
+                body = sparse
+                    ? new PrimitiveSparseSegmentBody(
+                        cellIndex, objects, null, axisList)
+                    : new DenseObjectSegmentBody(objects, axisList);
+            }
+        }
+        return body;
+    }
+
     private static List<Comparable> getColumnValsAtCellKey(
-        SegmentBody body, CellKey cellKey)
+        Comparable[][] axisValueArrays, boolean[] nullAxisFlags, int[] ordinals)
     {
-        List<Comparable> columnValues = new ArrayList<Comparable>();
-        for (int i = 0; i < body.getAxisValueSets().length; i++) {
-            List<Comparable> columnVals = new ArrayList<Comparable>();
-            columnVals.addAll(body.getAxisValueSets()[i]);
-            int valCoord = body.getNullAxisFlags()[i]
-                ? cellKey.getAxis(i) - 1
-                : cellKey.getAxis(i);
+        List<Comparable> columnValues =
+            new ArrayList<Comparable>(axisValueArrays.length);
+        for (int i = 0; i < axisValueArrays.length; i++) {
+            int valCoord = nullAxisFlags[i]
+                ? ordinals[i] - 1
+                : ordinals[i];
             if (valCoord >= 0) {
-                columnValues.add(columnVals.get(valCoord));
+                columnValues.add(axisValueArrays[i][valCoord]);
             } else {
                 columnValues.add(null);
             }
@@ -604,31 +835,132 @@ public class SegmentBuilder {
         return axisMultipliers;
     }
 
+    /**
+     * Iterates over the cells of a segment body, exposing the coordinates and
+     * value of the current cell. Coordinates are written into an array that
+     * is reused from one cell to the next.
+     */
+    private static abstract class CellCursor {
+        int[] ordinals;
+        Object value;
+
+        /**
+         * Moves to the next cell.
+         *
+         * @return Whether there is a next cell
+         */
+        abstract boolean next();
+
+        static CellCursor of(SegmentBody body) {
+            if (body instanceof PrimitiveSparseSegmentBody) {
+                final PrimitiveSparseSegmentBody sparseBody =
+                    (PrimitiveSparseSegmentBody) body;
+                return new CellCursor() {
+                    int i = -1;
+
+                    {
+                        ordinals = new int[sparseBody.index.getArity()];
+                    }
+
+                    boolean next() {
+                        if (++i >= sparseBody.index.size()) {
+                            return false;
+                        }
+                        sparseBody.index.getOrdinals(i, ordinals);
+                        value = sparseBody.getObject(i);
+                        return true;
+                    }
+                };
+            }
+            final Iterator<Map.Entry<CellKey, Object>> iterator =
+                body.getValueMap().entrySet().iterator();
+            return new CellCursor() {
+                boolean next() {
+                    if (!iterator.hasNext()) {
+                        return false;
+                    }
+                    final Map.Entry<CellKey, Object> entry = iterator.next();
+                    ordinals = entry.getKey().getOrdinals();
+                    value = entry.getValue();
+                    return true;
+                }
+            };
+        }
+    }
+
     private static class ExcludedRegionList
         extends AbstractList<Segment.ExcludedRegion>
+    {
+        private final List<Segment.ExcludedRegion> regions =
+            new ArrayList<Segment.ExcludedRegion>();
+
+        public ExcludedRegionList(SegmentHeader header) {
+            for (SegmentColumn[] region : header.getExcludedRegions()) {
+                regions.add(new HeaderExcludedRegion(header, region));
+            }
+        }
+
+        public ExcludedRegion get(int index) {
+            return regions.get(index);
+        }
+
+        public int size() {
+            return regions.size();
+        }
+    }
+
+    /**
+     * Excluded region of a segment header. A cell is in the region if, for
+     * each column of the region, the region contains the cell's value of
+     * that column.
+     */
+    private static class HeaderExcludedRegion
         implements Segment.ExcludedRegion
     {
+        private final int arity;
+        private final SegmentColumn[] region;
+        private final int[] ordinals;
         private final int cellCount;
-        private final SegmentHeader header;
-        public ExcludedRegionList(SegmentHeader header) {
-            this.header = header;
+
+        HeaderExcludedRegion(SegmentHeader header, SegmentColumn[] region) {
+            final List<SegmentColumn> columns = header.getConstrainedColumns();
+            this.arity = columns.size();
+            this.region = region;
+            this.ordinals = new int[region.length];
             int cellCount = 1;
-            for (SegmentColumn cc : header.getExcludedRegions()) {
+            for (int i = 0; i < region.length; i++) {
+                ordinals[i] = -1;
+                for (int j = 0; j < columns.size(); j++) {
+                    if (columns.get(j).columnExpression.equals(
+                            region[i].columnExpression))
+                    {
+                        ordinals[i] = j;
+                        break;
+                    }
+                }
                 // TODO find a way to approximate the cardinality
                 // of wildcard columns.
-                if (cc.values != null) {
-                    cellCount *= cc.values.size();
+                if (region[i].values != null) {
+                    cellCount *= region[i].values.size();
                 }
             }
             this.cellCount = cellCount;
         }
 
         public void describe(StringBuilder buf) {
-            // TODO
+            buf.append('{');
+            for (int i = 0; i < region.length; i++) {
+                if (i > 0) {
+                    buf.append(", ");
+                }
+                buf.append(region[i].columnExpression).append('=')
+                    .append(region[i].values == null ? "*" : region[i].values);
+            }
+            buf.append('}');
         }
 
         public int getArity() {
-            return header.getConstrainedColumns().size();
+            return arity;
         }
 
         public int getCellCount() {
@@ -636,27 +968,16 @@ public class SegmentBuilder {
         }
 
         public boolean wouldContain(Object[] keys) {
-            assert keys.length == header.getConstrainedColumns().size();
-            for (int i = 0; i < keys.length; i++) {
-                final SegmentColumn excl =
-                    header.getExcludedRegion(
-                        header.getConstrainedColumns().get(i).columnExpression);
-                if (excl == null) {
+            assert keys.length == arity;
+            for (int i = 0; i < region.length; i++) {
+                if (region[i].values == null || ordinals[i] < 0) {
                     continue;
                 }
-                if (excl.values.contains(keys[i])) {
-                    return true;
+                if (!region[i].values.contains(keys[ordinals[i]])) {
+                    return false;
                 }
             }
-            return false;
-        }
-
-        public ExcludedRegion get(int index) {
-            return this;
-        }
-
-        public int size() {
-            return 1;
+            return true;
         }
     }
 
@@ -769,7 +1090,34 @@ public class SegmentBuilder {
             cp,
             segment.star.getFactTable().getAlias(),
             segment.constrainedColumnsBitKey,
-            Collections.<SegmentColumn>emptyList());
+            Collections.<SegmentColumn[]>emptyList());
+    }
+
+    /**
+     * Returns an estimate of the number of bytes of heap occupied by a
+     * segment body.
+     *
+     * <p>Bodies created by Mondrian know their own layout; for other
+     * implementations the estimate is derived from the number of cells.</p>
+     *
+     * @param body Segment body
+     * @return Estimated size in bytes
+     */
+    public static long estimateSize(SegmentBody body) {
+        if (body instanceof AbstractSegmentBody) {
+            return ((AbstractSegmentBody) body).estimateSize();
+        }
+        long size = AbstractSegmentBody.OBJECT_OVERHEAD;
+        for (SortedSet<Comparable> axisValueSet : body.getAxisValueSets()) {
+            size += axisValueSet.size()
+                * (AbstractSegmentBody.SET_ENTRY_OVERHEAD
+                   + AbstractSegmentBody.BOXED_VALUE_SIZE);
+        }
+        return size
+            + body.getValueMap().size()
+            * (AbstractSegmentBody.OBJECT_OVERHEAD
+               + AbstractSegmentBody.REFERENCE_SIZE
+               + AbstractSegmentBody.BOXED_VALUE_SIZE);
     }
 
     private static RolapStar.Column[] getConstrainedColumns(
@@ -869,15 +1217,7 @@ public class SegmentBuilder {
             SegmentBody body)
         {
             final Segment segment =
-                toSegment(
-                    header,
-                    measure.getStar(),
-                    header.getConstrainedColumnsBitKey(),
-                    getConstrainedColumns(
-                        measure.getStar(),
-                        header.getConstrainedColumnsBitKey()),
-                    measure,
-                    compoundPredicateList);
+                toSegment(header, measure, compoundPredicateList);
             return addData(segment, body);
         }
     }
@@ -22,9 +22,12 @@ import mondrian.util.*;
 
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
 import java.util.concurrent.*;
+import javax.sql.DataSource;
 
 /**
  * Active object that maintains the "global cache" (in JVM, but shared between
@@ -38,6 +41,17 @@ import java.util.concurrent.*;
  *     <tr><td>Local</td><td>Initial state of a segment</td></tr>
  * </table>
  *
+ * <p>Partitions</p>
+ *
+ * <p>By default, one actor thread processes every command and event. If
+ * {@link MondrianProperties#SegmentCacheManagerPartitionCount} is greater
+ * than 1, the manager starts that many actors, each with its own queue, and
+ * assigns each {@link RolapStar} to one of them by hashing the alias of its
+ * fact table. Each star then has its own {@link SegmentCacheIndex}, confined
+ * to the thread of its partition. Commands that concern one star are sent to
+ * that star's partition; commands that span stars (flush, printing the cache
+ * state, cancelling an execution) are sent to each partition in turn.</p>
+ *
  * <h2>Decisions to be reviewed</h2>
  *
  * <p>1. Create variant of actor that processes all requests synchronously,
@@ -192,12 +206,6 @@ import java.util.concurrent.*;
  *
  * <p>21. Obsolete {@link mondrian.util.CombiningGenerator}.</p>
  *
- * <p>22. {@link SegmentHeader#constrain(mondrian.spi.SegmentColumn[])} is
- * broken for N-dimensional regions where N &gt; 1. Each call currently
- * creates N more 1-dimensional regions, but should create 1 more N-dimensional
- * region. {@link SegmentHeader#excludedRegions} should be a list of
- * {@link SegmentColumn} arrays.</p>
- *
  * <p>23. All code that calls {@link Future#get} should probably handle
  * {@link CancellationException}.</p>
  *
@@ -212,6 +220,29 @@ public class SegmentCacheManager {
     public final Thread thread;
     private final Set<String> starFactTablesToSync;
 
+    /**
+     * Headers restored from a snapshot without their bodies, whose bodies are
+     * held by an external cache. Added to the index by
+     * {@link #loadCacheForStar(RolapStar)}.
+     */
+    private final List<SegmentHeader> restoredHeaders =
+        new CopyOnWriteArrayList<SegmentHeader>();
+
+    /**
+     * Segments restored from a snapshot with their bodies. Held aside, so
+     * that they neither use the budget of the local cache nor are found by
+     * lookups, until {@link #loadCacheForStar(RolapStar)} has checked that
+     * they were created by the current version of their schema.
+     */
+    private final Map<SegmentHeader, SegmentBody> restoredBodies =
+        new ConcurrentHashMap<SegmentHeader, SegmentBody>();
+
+    /**
+     * Actors, one per partition. The first is {@link #ACTOR}, which also
+     * processes commands that are not associated with a particular star.
+     */
+    private final List<Actor> actors;
+
     /**
      * Executor with which to send requests to external caches.
      */
@@ -237,31 +268,12 @@ public class SegmentCacheManager {
             });
 
     /**
-     * Executor with which to execute SQL requests.
-     *
-     * <p>TODO: create using factory and/or configuration parameters. Executor
-     * should be shared within MondrianServer or target JDBC database.
+     * Executors with which to execute SQL requests, one per data source, so
+     * that statements against a slow data source cannot occupy the threads
+     * that another data source needs. Guarded by itself.
      */
-    public final ExecutorService sqlExecutor =
-        Util.getExecutorService(
-            // We use the same value for coreSize and maxSize
-            // because that's the behavior we want. All extra
-            // tasks will be put on an unbounded queue.
-            MondrianProperties.instance()
-                .SegmentCacheManagerNumberSqlThreads.get(),
-            MondrianProperties.instance()
-                .SegmentCacheManagerNumberSqlThreads.get(),
-            1,
-            "mondrian.rolap.agg.SegmentCacheManager$sqlExecutor",
-            new RejectedExecutionHandler() {
-                public void rejectedExecution(
-                    Runnable r,
-                    ThreadPoolExecutor executor)
-                {
-                    throw MondrianResource.instance()
-                        .SqlQueryLimitReached.ex();
-                }
-            });
+    private final Map<DataSource, ExecutorService> sqlExecutors =
+        new WeakHashMap<DataSource, ExecutorService>();
 
     // NOTE: This list is only mutable for testing purposes. Would rather it
     // were immutable.
@@ -269,19 +281,41 @@ public class SegmentCacheManager {
         new CopyOnWriteArrayList<SegmentCacheWorker>();
 
     public final SegmentCache compositeCache;
+    private final MemorySegmentCache localCache;
     private final SegmentCacheIndexRegistry indexRegistry;
+    private final SegmentCacheWarmer warmer;
 
     private static final Logger LOGGER =
         Logger.getLogger(AggregationManager.class);
+
+    /** Time, in seconds, after which an idle SQL thread ends. */
+    private static final long SQL_THREAD_KEEP_ALIVE_SECONDS = 60;
+
     private final MondrianServer server;
 
     public SegmentCacheManager(MondrianServer server) {
         this.server = server;
-        ACTOR = new Actor();
-        thread = new Thread(
-            ACTOR, "mondrian.rolap.agg.SegmentCacheManager$ACTOR");
-        thread.setDaemon(true);
-        thread.start();
+        final int partitionCount =
+            Math.max(
+                1,
+                MondrianProperties.instance()
+                    .SegmentCacheManagerPartitionCount.get());
+        final List<Actor> actorList = new ArrayList<Actor>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < partitionCount; i++) {
+            final Actor actor =
+                new Actor(
+                    i == 0
+                        ? "mondrian.rolap.agg.SegmentCacheManager$ACTOR"
+                        : "mondrian.rolap.agg.SegmentCacheManager$ACTOR-"
+                        + i);
+            actor.thread.start();
+            actorList.add(actor);
+            threads.add(actor.thread);
+        }
+        actors = Collections.unmodifiableList(actorList);
+        ACTOR = actors.get(0);
+        thread = ACTOR.thread;
 
         // Create the index registry.
         this.indexRegistry = new SegmentCacheIndexRegistry();
@@ -290,9 +324,15 @@ public class SegmentCacheManager {
         if (!MondrianProperties.instance().DisableLocalSegmentCache.get()
             && !MondrianProperties.instance().DisableCaching.get())
         {
-            final MemorySegmentCache cache = new MemorySegmentCache();
+            localCache =
+                new MemorySegmentCache(
+                    MondrianProperties.instance()
+                        .LocalSegmentCacheMemoryBudget.get()
+                    * 1024L * 1024L);
             segmentCacheWorkers.add(
-                new SegmentCacheWorker(cache, thread));
+                new SegmentCacheWorker(localCache, threads));
+        } else {
+            localCache = null;
         }
 
         // Add an external cache, if configured.
@@ -300,14 +340,52 @@ public class SegmentCacheManager {
         for (SegmentCache cache : externalCache) {
             // Create a worker for this external cache
             segmentCacheWorkers.add(
-                new SegmentCacheWorker(cache, thread));
+                new SegmentCacheWorker(cache, threads));
             // Hook up a listener so it can update
             // the segment index.
             cache.addListener(
-                new AsyncCacheListener(this, server));
+                new AsyncCacheListener(
+                    this, server, CellCacheEvent.Source.EXTERNAL));
+        }
+
+        // If the local cache has a memory budget, segments it evicts must be
+        // removed from the index, unless an external cache still holds them.
+        if (localCache != null
+            && localCache.getBudget() > 0
+            && externalCache.isEmpty())
+        {
+            localCache.addListener(
+                new AsyncCacheListener(
+                    this, server, CellCacheEvent.Source.EVICTION));
         }
 
         compositeCache = new CompositeSegmentCache(segmentCacheWorkers);
+        restoreSnapshot();
+
+        // Create a warmer, if needed.
+        final int warmCount =
+            MondrianProperties.instance().SegmentCacheWarmerSegmentCount.get();
+        if (warmCount > 0
+            && !MondrianProperties.instance().DisableCaching.get())
+        {
+            warmer =
+                new SegmentCacheWarmer(
+                    this,
+                    warmCount,
+                    MondrianProperties.instance()
+                        .SegmentCacheWarmerMaxConcurrency.get());
+            final File dir = getSnapshotDirectory();
+            if (dir != null) {
+                try {
+                    warmer.restore(dir);
+                } catch (IOException e) {
+                    LOGGER.warn(
+                        "Could not restore segment workload from " + dir, e);
+                }
+            }
+        } else {
+            warmer = null;
+        }
         // sync elements already in external cache:
         // we're not able to have indexes at this point,
         // have to wait until the schema has been loaded
@@ -316,6 +394,437 @@ public class SegmentCacheManager {
         for (SegmentHeader header : headers) {
             starFactTablesToSync.add(header.rolapStarFactTableName);
         }
+        for (SegmentHeader header : restoredHeaders) {
+            starFactTablesToSync.add(header.rolapStarFactTableName);
+        }
+        for (SegmentHeader header : restoredBodies.keySet()) {
+            starFactTablesToSync.add(header.rolapStarFactTableName);
+        }
+    }
+
+    /**
+     * Returns the directory in which the cache is persisted, or null if the
+     * cache is not persisted.
+     */
+    private static File getSnapshotDirectory() {
+        final String dir =
+            MondrianProperties.instance().SegmentCachePersistDirectory.get();
+        return Util.isEmpty(dir) ? null : new File(dir);
+    }
+
+    /**
+     * Restores the segments saved by {@link #saveSnapshot()} when the
+     * previous server shut down.
+     *
+     * <p>Bodies are held aside until their star is loaded. A header without
+     * a body is only kept if there is an external cache, which may still hold
+     * its body; if it does not, the segment is removed from the index the
+     * first time it is used, and is loaded again. When their star is loaded,
+     * bodies are put into the local cache and segments are added to the
+     * index, but only if the schema checksum still matches; see
+     * {@link #loadCacheForStar(RolapStar)}.</p>
+     */
+    private void restoreSnapshot() {
+        final File dir = getSnapshotDirectory();
+        if (dir == null) {
+            return;
+        }
+        final List<Pair<SegmentHeader, SegmentBody>> segments;
+        try {
+            segments =
+                SegmentCacheSnapshot.read(
+                    new File(dir, SegmentCacheSnapshot.FILE_NAME));
+        } catch (IOException e) {
+            LOGGER.warn("Could not restore segment cache from " + dir, e);
+            return;
+        }
+        final boolean hasExternalCache =
+            segmentCacheWorkers.size() > (localCache == null ? 0 : 1);
+        int count = 0;
+        for (Pair<SegmentHeader, SegmentBody> segment : segments) {
+            final SegmentHeader header = segment.left;
+            if (segment.right != null && localCache != null) {
+                restoredBodies.put(header, segment.right);
+                ++count;
+            } else if (hasExternalCache) {
+                restoredHeaders.add(header);
+                ++count;
+            }
+        }
+        LOGGER.info(
+            "Restored " + count + " of " + segments.size()
+            + " segments from " + dir);
+    }
+
+    /**
+     * Saves the segments in the cache, so that they can be restored when the
+     * server restarts. Does nothing unless
+     * {@link MondrianProperties#SegmentCachePersistDirectory} is set.
+     *
+     * <p>If {@link MondrianProperties#SegmentCachePersistBodies} is true,
+     * saves the headers and bodies of the segments in the local cache;
+     * otherwise saves the headers of all segments in the cache.</p>
+     */
+    private void saveSnapshot() {
+        final File dir = getSnapshotDirectory();
+        if (dir == null) {
+            return;
+        }
+        final boolean bodies =
+            MondrianProperties.instance().SegmentCachePersistBodies.get();
+        if (bodies && localCache == null) {
+            return;
+        }
+        try {
+            final int count =
+                SegmentCacheSnapshot.write(
+                    new File(dir, SegmentCacheSnapshot.FILE_NAME),
+                    bodies ? localCache : compositeCache,
+                    bodies);
+            LOGGER.info("Saved " + count + " segments to " + dir);
+        } catch (IOException e) {
+            LOGGER.warn("Could not save segment cache to " + dir, e);
+        }
+    }
+
+    /**
+     * Called when a schema has been loaded. Starts re-loading the segments
+     * that were most used by the schema when the server last shut down.
+     *
+     * @param schema Schema
+     */
+    public void schemaLoaded(RolapSchema schema) {
+        if (warmer != null) {
+            warmer.warm(schema);
+        }
+    }
+
+    /**
+     * Called when segments of some stars have been flushed. Starts
+     * re-loading the most used segments of those stars.
+     *
+     * @param stars Stars
+     */
+    public void segmentsFlushed(List<RolapStar> stars) {
+        if (warmer != null) {
+            warmer.warm(stars);
+        }
+    }
+
+    /**
+     * Records that a segment in the cache has been used to answer a query,
+     * so that the most used segments can be re-loaded after a flush.
+     *
+     * @param header Segment header
+     */
+    public void recordHit(SegmentHeader header) {
+        if (warmer != null) {
+            warmer.recordHit(header);
+        }
+    }
+
+    /**
+     * Refreshes the segments of a star after rows have been appended to its
+     * fact table, all of them within a given region.
+     *
+     * <p>Segments that do not intersect the region are unchanged. For each
+     * segment that intersects the region, the appended rows are loaded,
+     * aggregated to the segment's dimensionality, and merged into the
+     * segment's body. Segments of the same dimensionality are loaded in one
+     * SQL statement.</p>
+     *
+     * <p>A segment is discarded, as if it had been flushed, if the rows
+     * cannot be merged into it: if it has compound predicates, if its measure
+     * cannot be rolled up in memory (for example a distinct-count measure),
+     * or if its body is no longer in the cache. If the region cannot be
+     * expressed as a predicate on the columns of the star, for example if it
+     * is a range of members, the whole region is flushed.</p>
+     *
+     * <p>The appended rows must be committed before this method is called.
+     * Rows are counted twice in a segment that was loaded after they were
+     * committed but before this method was called.</p>
+     *
+     * @param star Star
+     * @param region Region that contains every appended row
+     * @param cacheControlImpl Cache control, for tracing
+     */
+    public void refreshAppended(
+        final RolapStar star,
+        final CellRegion region,
+        CacheControlImpl cacheControlImpl)
+    {
+        final SegmentColumn[] appendRegion =
+            CacheControlImpl.findAxisValues(region);
+        final StarPredicate predicate =
+            SegmentBuilder.toPredicate(star, appendRegion);
+        if (predicate == null) {
+            cacheControlImpl.trace(
+                "flush region - appended rows cannot be loaded separately");
+            flush(star, region, cacheControlImpl);
+            return;
+        }
+
+        // Find the segments that intersect the region, and their measures.
+        final Locus locus = Locus.peek();
+        final Map<SegmentHeader, RolapStar.Measure> measureMap =
+            execute(
+                star,
+                new Command<Map<SegmentHeader, RolapStar.Measure>>() {
+                    public Map<SegmentHeader, RolapStar.Measure> call() {
+                        return intersectRegion(star, region, appendRegion);
+                    }
+
+                    public Locus getLocus() {
+                        return locus;
+                    }
+                });
+
+        // Create a segment for the appended rows of each segment, and group
+        // them by dimensionality.
+        final List<SegmentHeader> discardList = new ArrayList<SegmentHeader>();
+        final Map<Segment, SegmentHeader> headerMap =
+            new HashMap<Segment, SegmentHeader>();
+        final Map<List<Object>, List<Segment>> segmentMap =
+            new LinkedHashMap<List<Object>, List<Segment>>();
+        for (Map.Entry<SegmentHeader, RolapStar.Measure> entry
+            : measureMap.entrySet())
+        {
+            final SegmentHeader header = entry.getKey();
+            if (!canAppend(header, entry.getValue())) {
+                cacheControlImpl.trace(
+                    "discard segment - appended rows cannot be merged:\n"
+                    + header.getDescription());
+                discardList.add(header);
+                continue;
+            }
+            final Segment segment =
+                SegmentBuilder.toSegment(
+                    header,
+                    entry.getValue(),
+                    Collections.singletonList(predicate));
+            headerMap.put(segment, header);
+            final List<Object> key =
+                Arrays.<Object>asList(
+                    header.getConstrainedColumnsBitKey(),
+                    header.getConstrainedColumns());
+            List<Segment> segments = segmentMap.get(key);
+            if (segments == null) {
+                segments = new ArrayList<Segment>();
+                segmentMap.put(key, segments);
+            }
+            segments.add(segment);
+        }
+        discard(star, discardList);
+
+        // Load the appended rows, and merge them into the segments. If
+        // anything fails, discard the segments that have not been merged;
+        // they are stale.
+        final Set<SegmentHeader> pendingSet =
+            new HashSet<SegmentHeader>(headerMap.values());
+        final SegmentLoader loader = new SegmentLoader(this, false);
+        try {
+            for (List<Segment> segments : segmentMap.values()) {
+                for (GroupingSet groupingSet
+                    : SegmentBuilder.toGroupingSets(segments))
+                {
+                    final Map<Segment, SegmentWithData> deltaMap =
+                        loader.loadImpl(
+                            0,
+                            Collections.singletonList(groupingSet),
+                            Collections.singletonList(predicate));
+                    for (Segment segment : groupingSet.getSegments()) {
+                        final SegmentHeader header = headerMap.get(segment);
+                        final SegmentWithData delta = deltaMap.get(segment);
+                        if (delta != null
+                            && merge(star, header, segment.measure, delta))
+                        {
+                            cacheControlImpl.trace(
+                                "merge appended rows into segment:\n"
+                                + header.getDescription());
+                            pendingSet.remove(header);
+                        }
+                    }
+                }
+            }
+        } finally {
+            discard(star, pendingSet);
+        }
+    }
+
+    /**
+     * Returns the segments of a star that intersect a region, and the
+     * measure of each. Must be called from the star's actor thread.
+     */
+    private Map<SegmentHeader, RolapStar.Measure> intersectRegion(
+        RolapStar star,
+        CellRegion region,
+        SegmentColumn[] appendRegion)
+    {
+        final Map<SegmentHeader, RolapStar.Measure> map =
+            new LinkedHashMap<SegmentHeader, RolapStar.Measure>();
+        final SegmentCacheIndex index = indexRegistry.getIndex(star);
+        for (Member member : CacheControlImpl.findMeasures(region)) {
+            if (!(member instanceof RolapStoredMeasure)) {
+                continue;
+            }
+            final RolapStoredMeasure storedMeasure =
+                (RolapStoredMeasure) member;
+            final RolapStar.Measure measure =
+                (RolapStar.Measure) storedMeasure.getStarMeasure();
+            if (measure.getStar() != star) {
+                continue;
+            }
+            final RolapSchema schema =
+                (RolapSchema) member.getDimension().getSchema();
+            for (SegmentHeader header
+                : index.intersectRegion(
+                    schema.getName(),
+                    schema.getChecksum(),
+                    storedMeasure.getCube().getName(),
+                    storedMeasure.getName(),
+                    star.getFactTable().getAlias(),
+                    appendRegion))
+            {
+                map.put(header, measure);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns whether rows appended to the fact table can be merged into a
+     * segment.
+     */
+    private static boolean canAppend(
+        SegmentHeader header,
+        RolapStar.Measure measure)
+    {
+        // The predicates of a compound segment cannot be re-created from its
+        // header.
+        if (!header.compoundPredicates.isEmpty()) {
+            return false;
+        }
+        final RolapAggregator aggregator = measure.getAggregator();
+        return (!aggregator.isDistinct() || aggregator.isSketch())
+            && aggregator.getRollup().supportsFastAggregates(
+                measure.getDatatype());
+    }
+
+    /**
+     * Merges the rows appended to a segment into its body, and replaces the
+     * body in the cache and the index.
+     *
+     * @return false if the segment's body is no longer in the cache
+     */
+    private boolean merge(
+        final RolapStar star,
+        final SegmentHeader header,
+        RolapStar.Measure measure,
+        SegmentWithData delta)
+    {
+        final SegmentBody body = compositeCache.get(header);
+        if (body == null) {
+            return false;
+        }
+        compositeCache.put(
+            header,
+            SegmentBuilder.merge(
+                body,
+                SegmentLoader.createSegmentBody(delta),
+                measure.getAggregator().getRollup(),
+                measure.getDatatype()));
+
+        // The index holds the old body of a segment that was loaded by this
+        // server. Re-index the segment, so that the new body is read from the
+        // cache. If the segment has been flushed meanwhile, remove it from the
+        // cache again.
+        final Locus locus = Locus.peek();
+        final boolean indexed =
+            execute(
+                star,
+                new Command<Boolean>() {
+                    public Boolean call() {
+                        final SegmentCacheIndex index =
+                            indexRegistry.getIndex(star);
+                        if (!index.contains(header)) {
+                            return false;
+                        }
+                        final SegmentBuilder.SegmentConverter converter =
+                            getConverter(star, header);
+                        index.remove(header);
+                        index.add(header, converter, false);
+                        return true;
+                    }
+
+                    public Locus getLocus() {
+                        return locus;
+                    }
+                });
+        if (!indexed) {
+            compositeCache.remove(header);
+        }
+        return true;
+    }
+
+    /**
+     * Removes segments of a star from the index and from the cache.
+     */
+    private void discard(
+        final RolapStar star,
+        final Collection<SegmentHeader> headers)
+    {
+        if (headers.isEmpty()) {
+            return;
+        }
+        final Locus locus = Locus.peek();
+        execute(
+            star,
+            new Command<Void>() {
+                public Void call() {
+                    final SegmentCacheIndex index =
+                        indexRegistry.getIndex(star);
+                    for (SegmentHeader header : headers) {
+                        index.remove(header);
+                    }
+                    return null;
+                }
+
+                public Locus getLocus() {
+                    return locus;
+                }
+            });
+        for (SegmentHeader header : headers) {
+            compositeCache.remove(header);
+        }
+    }
+
+    /**
+     * Flushes the segments of a star in a region.
+     */
+    private void flush(
+        RolapStar star,
+        CellRegion region,
+        CacheControlImpl cacheControlImpl)
+    {
+        final FlushResult result =
+            execute(
+                star,
+                new FlushCommand(
+                    Locus.peek(), this, region, cacheControlImpl, star));
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (Callable<Boolean> task : result.tasks) {
+            futures.add(cacheExecutor.submit(task));
+        }
+        for (Future<Boolean> future : futures) {
+            Util.safeGet(future, "Flush cache");
+        }
+    }
+
+    /**
+     * Returns the cache warmer, or null if cache warming is disabled.
+     */
+    public SegmentCacheWarmer getWarmer() {
+        return warmer;
     }
 
     /**
@@ -324,6 +833,10 @@ public class SegmentCacheManager {
      * SegmentHeader, MondrianServer) externalSegmentCreated}
      * but the index is created if not there.
      *
+     * <p>Segments created by a schema whose checksum is different from the
+     * star's schema, for example segments restored from a snapshot taken
+     * before the schema changed, are ignored.</p>
+     *
      * @param star the star for which the cache is loaded
      * @return true if elements existed for this star.
      */
@@ -333,8 +846,38 @@ public class SegmentCacheManager {
             // make sure the index is created,
             // using get with star instead of header
             SegmentCacheIndex index = indexRegistry.getIndex(star);
-            for (SegmentHeader header : compositeCache.getSegmentHeaders()) {
+            final ByteString checksum = star.getSchema().getChecksum();
+            final Set<SegmentHeader> headers =
+                new LinkedHashSet<SegmentHeader>(
+                    compositeCache.getSegmentHeaders());
+            for (SegmentHeader header : restoredHeaders) {
                 if (header.rolapStarFactTableName.equals(starFactTableAlias)) {
+                    headers.add(header);
+                    restoredHeaders.remove(header);
+                }
+            }
+            // Restored bodies go into the local cache only if they are still
+            // valid; the others are dropped.
+            final Iterator<Map.Entry<SegmentHeader, SegmentBody>> iterator =
+                restoredBodies.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<SegmentHeader, SegmentBody> entry =
+                    iterator.next();
+                final SegmentHeader header = entry.getKey();
+                if (!header.rolapStarFactTableName.equals(starFactTableAlias)) {
+                    continue;
+                }
+                iterator.remove();
+                if (Util.equals(header.schemaChecksum, checksum)
+                    && localCache.put(header, entry.getValue()))
+                {
+                    headers.add(header);
+                }
+            }
+            for (SegmentHeader header : headers) {
+                if (header.rolapStarFactTableName.equals(starFactTableAlias)
+                    && Util.equals(header.schemaChecksum, checksum))
+                {
                     if (index != null) {
                         index.add(header, null, false);
                         server.getMonitor().sendEvent(
@@ -355,6 +898,69 @@ public class SegmentCacheManager {
         return ACTOR.execute(handler, command);
     }
 
+    /**
+     * Executes a command on the partition that owns a given star.
+     *
+     * <p>Commands that read or modify the {@link SegmentCacheIndex} of a star
+     * must be executed using this method, because each index may only be
+     * accessed from the thread of its partition.</p>
+     *
+     * @param star Star whose index the command accesses
+     * @param command Command
+     * @return Result of command
+     */
+    public <T> T execute(RolapStar star, Command<T> command) {
+        return getActor(star).execute(handler, command);
+    }
+
+    /**
+     * Executes a command once on every partition, and waits for all of them
+     * to complete. The partitions execute the command concurrently.
+     *
+     * @param command Command
+     */
+    public void executeOnAllPartitions(Command<Void> command) {
+        if (actors.size() == 1) {
+            ACTOR.execute(handler, command);
+            return;
+        }
+        for (Actor actor : actors) {
+            actor.submit(handler, command);
+        }
+        for (Actor actor : actors) {
+            actor.await(command);
+        }
+    }
+
+    /**
+     * Returns whether this cache manager has more than one partition.
+     */
+    public boolean isPartitioned() {
+        return actors.size() > 1;
+    }
+
+    /**
+     * Returns a snapshot of the queue depth and wait statistics of each
+     * partition.
+     *
+     * @return List of partition statistics, one per partition
+     */
+    public List<PartitionInfo> getPartitionInfos() {
+        final List<PartitionInfo> list = new ArrayList<PartitionInfo>();
+        for (Actor actor : actors) {
+            list.add(actor.getInfo());
+        }
+        return list;
+    }
+
+    private Actor getActor(RolapStar star) {
+        if (actors.size() == 1 || star == null) {
+            return ACTOR;
+        }
+        final int hash = star.getFactTable().getAlias().hashCode();
+        return actors.get((hash & Integer.MAX_VALUE) % actors.size());
+    }
+
     public SegmentCacheIndexRegistry getIndexRegistry() {
         return indexRegistry;
     }
@@ -376,7 +982,7 @@ public class SegmentCacheManager {
         SegmentBody body)
     {
         final Locus locus = Locus.peek();
-        ACTOR.event(
+        getActor(star).event(
             handler,
             new SegmentLoadSucceededEvent(
                 System.currentTimeMillis(),
@@ -406,7 +1012,7 @@ public class SegmentCacheManager {
         Throwable throwable)
     {
         final Locus locus = Locus.peek();
-        ACTOR.event(
+        getActor(star).event(
             handler,
             new SegmentLoadFailedEvent(
                 System.currentTimeMillis(),
@@ -435,7 +1041,7 @@ public class SegmentCacheManager {
         SegmentHeader header)
     {
         final Locus locus = Locus.peek();
-        ACTOR.event(
+        getActor(star).event(
             handler,
             new SegmentRemoveEvent(
                 System.currentTimeMillis(),
@@ -461,7 +1067,7 @@ public class SegmentCacheManager {
             // Ignore cache requests.
             return;
         }
-        ACTOR.event(
+        getActor(getStar(header)).event(
             handler,
             new ExternalSegmentCreatedEvent(
                 System.currentTimeMillis(),
@@ -481,12 +1087,31 @@ public class SegmentCacheManager {
     public void externalSegmentDeleted(
         SegmentHeader header,
         MondrianServer server)
+    {
+        externalSegmentDeleted(
+            header, server, CellCacheEvent.Source.EXTERNAL);
+    }
+
+    /**
+     * Tells the cache that a segment is no longer available in a cache,
+     * either because an external cache removed it or because the local
+     * cache evicted it.
+     *
+     * @param header Segment header
+     * @param server Server
+     * @param source Reason for deletion; {@link CellCacheEvent.Source#EXTERNAL}
+     *               or {@link CellCacheEvent.Source#EVICTION}
+     */
+    public void externalSegmentDeleted(
+        SegmentHeader header,
+        MondrianServer server,
+        CellCacheEvent.Source source)
     {
         if (MondrianProperties.instance().DisableCaching.get()) {
             // Ignore cache requests.
             return;
         }
-        ACTOR.event(
+        getActor(getStar(header)).event(
             handler,
             new ExternalSegmentDeletedEvent(
                 System.currentTimeMillis(),
@@ -496,7 +1121,26 @@ public class SegmentCacheManager {
                 0,
                 0,
                 this,
-                header));
+                header,
+                source));
+    }
+
+    /**
+     * Tells the local segment cache how long it took to load a segment from
+     * SQL, so that it can weigh the segment's cost when it has to evict
+     * segments, and the cache warmer, so that it can rank the segment. Must
+     * be called before the segment is put into the cache.
+     *
+     * @param header Segment header
+     * @param nanos Time taken to load the segment, in nanoseconds
+     */
+    public void recordLoadCost(SegmentHeader header, long nanos) {
+        if (localCache != null) {
+            localCache.recordLoadCost(header, nanos);
+        }
+        if (warmer != null) {
+            warmer.recordLoad(header, nanos);
+        }
     }
 
     public void printCacheState(
@@ -504,18 +1148,98 @@ public class SegmentCacheManager {
         PrintWriter pw,
         Locus locus)
     {
-        ACTOR.execute(
-            handler,
-            new PrintCacheStateCommand(region, pw, locus));
+        final List<RolapStar> starList =
+            CacheControlImpl.getStarList(region);
+        Collections.sort(
+            starList,
+            new Comparator<RolapStar>() {
+                public int compare(RolapStar o1, RolapStar o2) {
+                    return o1.getFactTable().getAlias().compareTo(
+                        o2.getFactTable().getAlias());
+                }
+            });
+        for (RolapStar star : starList) {
+            getActor(star).execute(
+                handler,
+                new PrintCacheStateCommand(star, pw, locus));
+        }
     }
 
     /**
      * Shuts down this cache manager and all active threads and indexes.
      */
     public void shutdown() {
-        execute(new ShutdownCommand());
+        for (Actor actor : actors) {
+            actor.execute(handler, new ShutdownCommand());
+        }
+        if (warmer != null) {
+            warmer.shutdown();
+        }
+        saveSnapshot();
         cacheExecutor.shutdown();
-        sqlExecutor.shutdown();
+        synchronized (sqlExecutors) {
+            for (ExecutorService sqlExecutor : sqlExecutors.values()) {
+                sqlExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns the executor with which to execute SQL requests against a
+     * data source.
+     *
+     * <p>Each data source has its own pool of
+     * {@link MondrianProperties#SegmentCacheManagerNumberSqlThreads} threads.
+     * Idle threads end after a while, so that a data source that is no
+     * longer used does not hold threads.</p>
+     *
+     * @param dataSource Data source
+     * @return Executor
+     */
+    public ExecutorService getSqlExecutor(DataSource dataSource) {
+        synchronized (sqlExecutors) {
+            ExecutorService sqlExecutor = sqlExecutors.get(dataSource);
+            if (sqlExecutor == null) {
+                sqlExecutor =
+                    Util.getExecutorService(
+                        // We use the same value for coreSize and maxSize
+                        // because that's the behavior we want. All extra
+                        // tasks will be put on an unbounded queue.
+                        MondrianProperties.instance()
+                            .SegmentCacheManagerNumberSqlThreads.get(),
+                        MondrianProperties.instance()
+                            .SegmentCacheManagerNumberSqlThreads.get(),
+                        SQL_THREAD_KEEP_ALIVE_SECONDS,
+                        "mondrian.rolap.agg.SegmentCacheManager$sqlExecutor",
+                        new RejectedExecutionHandler() {
+                            public void rejectedExecution(
+                                Runnable r,
+                                ThreadPoolExecutor executor)
+                            {
+                                throw MondrianResource.instance()
+                                    .SqlQueryLimitReached.ex();
+                            }
+                        });
+                ((ThreadPoolExecutor) sqlExecutor)
+                    .allowCoreThreadTimeOut(true);
+                sqlExecutors.put(dataSource, sqlExecutor);
+            }
+            return sqlExecutor;
+        }
+    }
+
+    /**
+     * Returns whether any SQL request is waiting for a thread.
+     */
+    public boolean isSqlQueued() {
+        synchronized (sqlExecutors) {
+            for (ExecutorService sqlExecutor : sqlExecutors.values()) {
+                if (!((ThreadPoolExecutor) sqlExecutor).getQueue().isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     public SegmentBuilder.SegmentConverter getConverter(
@@ -555,6 +1279,7 @@ public class SegmentCacheManager {
     public SegmentWithData peek(final CellRequest request) {
         final SegmentCacheManager.PeekResponse response =
             execute(
+                request.getMeasure().getStar(),
                 new PeekCommand(request, Locus.peek()));
         for (SegmentHeader header : response.headerMap.keySet()) {
             final SegmentBody body = compositeCache.get(header);
@@ -719,7 +1444,7 @@ public class SegmentCacheManager {
                     event.statementId,
                     event.executionId,
                     event.header.getConstrainedColumns().size(),
-                    CellCacheEvent.Source.EXTERNAL));
+                    event.source));
         }
     }
 
@@ -732,23 +1457,50 @@ public class SegmentCacheManager {
 
     /**
      * Command to flush a particular region from cache.
+     *
+     * <p>If the command is restricted to a star, it only flushes segments of
+     * measures of that star, and only touches that star's index; it must
+     * then be executed on the partition that owns the star. This allows a
+     * flush to be fanned out over the partitions of the cache manager.</p>
      */
     public static final class FlushCommand implements Command<FlushResult> {
         private final CellRegion region;
         private final CacheControlImpl cacheControlImpl;
         private final Locus locus;
         private final SegmentCacheManager cacheMgr;
+        private final RolapStar star;
 
         public FlushCommand(
             Locus locus,
             SegmentCacheManager mgr,
             CellRegion region,
             CacheControlImpl cacheControlImpl)
+        {
+            this(locus, mgr, region, cacheControlImpl, null);
+        }
+
+        /**
+         * Creates a FlushCommand.
+         *
+         * @param locus Locus
+         * @param mgr Cache manager
+         * @param region Region to flush
+         * @param cacheControlImpl Cache control, for tracing
+         * @param star Star to restrict the flush to, or null to flush
+         *   segments of all stars in the region
+         */
+        public FlushCommand(
+            Locus locus,
+            SegmentCacheManager mgr,
+            CellRegion region,
+            CacheControlImpl cacheControlImpl,
+            RolapStar star)
         {
             this.locus = locus;
             this.cacheMgr = mgr;
             this.region = region;
             this.cacheControlImpl = cacheControlImpl;
+            this.star = star;
         }
 
         public Locus getLocus() {
@@ -765,7 +1517,9 @@ public class SegmentCacheManager {
             final SegmentColumn[] flushRegion =
                 CacheControlImpl.findAxisValues(region);
             final List<RolapStar> starList =
-                CacheControlImpl.getStarList(region);
+                this.star == null
+                    ? CacheControlImpl.getStarList(region)
+                    : Collections.singletonList(this.star);
 
             for (Member member : measures) {
                 if (!(member instanceof RolapStoredMeasure)) {
@@ -774,6 +1528,9 @@ public class SegmentCacheManager {
                 final RolapStoredMeasure storedMeasure =
                     (RolapStoredMeasure) member;
                 final RolapStar star = storedMeasure.getCube().getStar();
+                if (this.star != null && star != this.star) {
+                    continue;
+                }
                 final SegmentCacheIndex index =
                     cacheMgr.indexRegistry.getIndex(star);
                 headers.addAll(
@@ -902,33 +1659,21 @@ public class SegmentCacheManager {
     {
         private final PrintWriter pw;
         private final Locus locus;
-        private final CellRegion region;
+        private final RolapStar star;
 
         public PrintCacheStateCommand(
-            CellRegion region,
+            RolapStar star,
             PrintWriter pw,
             Locus locus)
         {
-            this.region = region;
+            this.star = star;
             this.pw = pw;
             this.locus = locus;
         }
 
         public Void call() {
-            final List<RolapStar> starList =
-                CacheControlImpl.getStarList(region);
-            Collections.sort(
-                starList,
-                new Comparator<RolapStar>() {
-                    public int compare(RolapStar o1, RolapStar o2) {
-                        return o1.getFactTable().getAlias().compareTo(
-                            o2.getFactTable().getAlias());
-                    }
-                });
-            for (RolapStar star : starList) {
-                indexRegistry.getIndex(star)
-                    .printCacheState(pw);
-            }
+            indexRegistry.getIndex(star)
+                .printCacheState(pw);
             return null;
         }
 
@@ -988,19 +1733,38 @@ public class SegmentCacheManager {
      */
     private static class Actor implements Runnable {
 
-        private final BlockingQueue<Pair<Handler, Message>> eventQueue =
-            new ArrayBlockingQueue<Pair<Handler, Message>>(1000);
+        private final BlockingQueue<Envelope> eventQueue =
+            new ArrayBlockingQueue<Envelope>(1000);
 
         private final BlockingHashMap<Command<?>, Pair<Object, Throwable>>
             responseMap =
             new BlockingHashMap<Command<?>, Pair<Object, Throwable>>(1000);
 
+        private final Thread thread;
+
+        // Statistics. Written only by this actor's thread.
+        private volatile long messageCount;
+        private volatile long totalWaitNanos;
+        private volatile long maxWaitNanos;
+
+        Actor(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
         public void run() {
             try {
                 for (;;) {
-                    final Pair<Handler, Message> entry = eventQueue.take();
-                    final Handler handler = entry.left;
-                    final Message message = entry.right;
+                    final Envelope entry = eventQueue.take();
+                    final Handler handler = entry.handler;
+                    final Message message = entry.message;
+                    final long waitNanos =
+                        System.nanoTime() - entry.enqueueNanos;
+                    ++messageCount;
+                    totalWaitNanos += waitNanos;
+                    if (waitNanos > maxWaitNanos) {
+                        maxWaitNanos = waitNanos;
+                    }
                     try {
                         // A message is either a command or an event.
                         // A command returns a value that must be read by
@@ -1050,11 +1814,19 @@ public class SegmentCacheManager {
         }
 
         <T> T execute(Handler handler, Command<T> command) {
+            submit(handler, command);
+            return await(command);
+        }
+
+        void submit(Handler handler, Command<?> command) {
             try {
-                eventQueue.put(Pair.<Handler, Message>of(handler, command));
+                eventQueue.put(new Envelope(handler, command));
             } catch (InterruptedException e) {
                 throw Util.newError(e, "Exception while executing " + command);
             }
+        }
+
+        <T> T await(Command<T> command) {
             try {
                 final Pair<Object, Throwable> pair =
                     responseMap.get(command);
@@ -1076,11 +1848,88 @@ public class SegmentCacheManager {
 
         public void event(Handler handler, Event event) {
             try {
-                eventQueue.put(Pair.<Handler, Message>of(handler, event));
+                eventQueue.put(new Envelope(handler, event));
             } catch (InterruptedException e) {
                 throw Util.newError(e, "Exception while executing " + event);
             }
         }
+
+        PartitionInfo getInfo() {
+            return new PartitionInfo(
+                thread.getName(),
+                eventQueue.size(),
+                messageCount,
+                totalWaitNanos,
+                maxWaitNanos);
+        }
+    }
+
+    /**
+     * Message on an actor's queue, with the time that it was enqueued.
+     */
+    private static class Envelope {
+        final Handler handler;
+        final Message message;
+        final long enqueueNanos;
+
+        Envelope(Handler handler, Message message) {
+            this.handler = handler;
+            this.message = message;
+            this.enqueueNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Statistics about one partition of the cache manager.
+     */
+    public static class PartitionInfo {
+        /**
+         * Name of the partition's actor thread.
+         */
+        public final String name;
+
+        /**
+         * Number of messages currently waiting on the partition's queue.
+         */
+        public final int queueDepth;
+
+        /**
+         * Number of messages processed since the partition started.
+         */
+        public final long messageCount;
+
+        /**
+         * Cumulative time that processed messages spent waiting on the queue.
+         */
+        public final long totalWaitNanos;
+
+        /**
+         * Longest time that a processed message spent waiting on the queue.
+         */
+        public final long maxWaitNanos;
+
+        public PartitionInfo(
+            String name,
+            int queueDepth,
+            long messageCount,
+            long totalWaitNanos,
+            long maxWaitNanos)
+        {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.messageCount = messageCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public String toString() {
+            return name
+                + "{queueDepth=" + queueDepth
+                + ", messageCount=" + messageCount
+                + ", totalWaitNanos=" + totalWaitNanos
+                + ", maxWaitNanos=" + maxWaitNanos
+                + "}";
+        }
     }
 
     private static class SegmentLoadSucceededEvent extends Event {
@@ -1247,6 +2096,7 @@ public class SegmentCacheManager {
         private final int connectionId;
         private final long statementId;
         private final long executionId;
+        private final CellCacheEvent.Source source;
 
         public ExternalSegmentDeletedEvent(
             long timestamp,
@@ -1256,7 +2106,8 @@ public class SegmentCacheManager {
             long statementId,
             long executionId,
             SegmentCacheManager cacheMgr,
-            SegmentHeader header)
+            SegmentHeader header,
+            CellCacheEvent.Source source)
         {
             this.timestamp = timestamp;
             this.monitor = monitor;
@@ -1268,6 +2119,7 @@ public class SegmentCacheManager {
             assert cacheMgr != null;
             this.cacheMgr = cacheMgr;
             this.header = header;
+            this.source = source;
         }
 
         public void acceptWithoutResponse(Visitor visitor) {
@@ -1285,13 +2137,24 @@ public class SegmentCacheManager {
     {
         private final SegmentCacheManager cacheMgr;
         private final MondrianServer server;
+        private final CellCacheEvent.Source deleteSource;
 
+        /**
+         * Creates an AsyncCacheListener.
+         *
+         * @param cacheMgr Cache manager
+         * @param server Server
+         * @param deleteSource Source reported to the monitor when a segment
+         *                     is deleted from the cache
+         */
         public AsyncCacheListener(
             SegmentCacheManager cacheMgr,
-            MondrianServer server)
+            MondrianServer server,
+            CellCacheEvent.Source deleteSource)
         {
             this.cacheMgr = cacheMgr;
             this.server = server;
+            this.deleteSource = deleteSource;
         }
 
         public void handle(final SegmentCacheEvent e) {
@@ -1326,7 +2189,8 @@ public class SegmentCacheManager {
                                     public Void call() {
                                         cacheMgr.externalSegmentDeleted(
                                             e.getSource(),
-                                            server);
+                                            server,
+                                            deleteSource);
                                         return null;
                                     }
                                     public Locus getLocus() {
@@ -1402,10 +2266,18 @@ public class SegmentCacheManager {
             if (MondrianProperties.instance().DisableCaching.get()) {
                 return true;
             }
+            if (workers.isEmpty()) {
+                return true;
+            }
+            // Stored if at least one cache holds the body; the others may
+            // have declined it.
+            boolean result = false;
             for (SegmentCacheWorker worker : workers) {
-                worker.put(header, body);
+                if (worker.put(header, body)) {
+                    result = true;
+                }
             }
-            return true;
+            return result;
         }
 
         public boolean remove(SegmentHeader header) {
@@ -1568,9 +2440,20 @@ public class SegmentCacheManager {
      * The index is based off the checksum of the schema.
      */
     public class SegmentCacheIndexRegistry {
-        private final Map<SchemaKey, SegmentCacheIndex> indexes =
+        /**
+         * Indexes, keyed by schema key and, if the cache manager is
+         * partitioned, the alias of the star's fact table.
+         */
+        private final Map<List, SegmentCacheIndex> indexes =
+            Collections.synchronizedMap(
+                new HashMap<List, SegmentCacheIndex>());
+
+        /**
+         * Thread of the partition that owns each index.
+         */
+        private final Map<SegmentCacheIndex, Thread> owners =
             Collections.synchronizedMap(
-                new HashMap<SchemaKey, SegmentCacheIndex>());
+                new IdentityHashMap<SegmentCacheIndex, Thread>());
 
         /**
          * Returns the {@link SegmentCacheIndex} for a given
@@ -1581,17 +2464,27 @@ public class SegmentCacheManager {
                 "SegmentCacheManager.SegmentCacheIndexRegistry.getIndex:"
                 + System.identityHashCode(star));
 
-            if (!indexes.containsKey(star.getSchema().getKey())) {
-                final SegmentCacheIndexImpl index =
-                    new SegmentCacheIndexImpl(thread);
-                LOGGER.trace(
-                    "SegmentCacheManager.SegmentCacheIndexRegistry.getIndex:"
-                    + "Creating New Index "
-                    + System.identityHashCode(index));
-                indexes.put(star.getSchema().getKey(), index);
+            final List key =
+                Arrays.asList(
+                    star.getSchema().getKey(),
+                    isPartitioned()
+                        ? star.getFactTable().getAlias()
+                        : null);
+            final SegmentCacheIndex index;
+            synchronized (indexes) {
+                if (!indexes.containsKey(key)) {
+                    final Thread owner = getActor(star).thread;
+                    final SegmentCacheIndexImpl newIndex =
+                        new SegmentCacheIndexImpl(owner);
+                    LOGGER.trace(
+                        "SegmentCacheManager.SegmentCacheIndexRegistry"
+                        + ".getIndex:Creating New Index "
+                        + System.identityHashCode(newIndex));
+                    owners.put(newIndex, owner);
+                    indexes.put(key, newIndex);
+                }
+                index = indexes.get(key);
             }
-            final SegmentCacheIndex index =
-                indexes.get(star.getSchema().getKey());
             LOGGER.trace(
                 "SegmentCacheManager.SegmentCacheIndexRegistry.getIndex:"
                 + "Returning Index "
@@ -1616,9 +2509,20 @@ public class SegmentCacheManager {
                 return getIndex(star);
             }
         }
+        /**
+         * Cancels the segment registrations of an execution in every index
+         * owned by the current partition. Must be called on each partition;
+         * see {@link SegmentCacheManager#executeOnAllPartitions}.
+         */
         public void cancelExecutionSegments(Execution exec) {
-            for (SegmentCacheIndex index : indexes.values()) {
-                index.cancel(exec);
+            final List<SegmentCacheIndex> list;
+            synchronized (indexes) {
+                list = new ArrayList<SegmentCacheIndex>(indexes.values());
+            }
+            for (SegmentCacheIndex index : list) {
+                if (owners.get(index) == Thread.currentThread()) {
+                    index.cancel(exec);
+                }
             }
         }
     }
@@ -0,0 +1,206 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.spi.*;
+import mondrian.util.Pair;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Snapshot of the segments in a cache, saved to a file so that the cache can
+ * be restored after the server restarts.
+ *
+ * <p>Headers and bodies are encoded using {@link SegmentCodec}. Bodies are
+ * optional; a snapshot without bodies is a catalog of segments, such as the
+ * segments that were in the cache, or the segments that
+ * {@link SegmentCacheWarmer} should load.</p>
+ *
+ * <p>The snapshot is written to a temporary file, which is then renamed, so
+ * that a reader never sees a partly written snapshot. The file ends with a
+ * marker; a file that has been truncated is rejected.</p>
+ *
+ * <p>The snapshot does not check whether its segments are still valid. The
+ * caller must check the {@link SegmentHeader#schemaChecksum schema checksum}
+ * of each restored header before it uses the segment.</p>
+ *
+ * @see mondrian.olap.MondrianProperties#SegmentCachePersistDirectory
+ */
+class SegmentCacheSnapshot {
+    /** Name of the file that holds the snapshot of the segment cache. */
+    static final String FILE_NAME = "segment-cache.snapshot";
+
+    private static final int MAGIC = 0x4d534353; // "MSCS"
+    private static final int VERSION = 1;
+    private static final int END = -1;
+    private static final int NO_BODY = -2;
+
+    private SegmentCacheSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of a cache.
+     *
+     * <p>If {@code bodies} is true, segments whose body is no longer in the
+     * cache are omitted.</p>
+     *
+     * @param file File to write the snapshot to; its directory is created if
+     *   it does not exist
+     * @param cache Cache
+     * @param bodies Whether to write the segment bodies
+     * @return Number of segments written
+     * @throws IOException on error
+     */
+    static int write(File file, SegmentCache cache, boolean bodies)
+        throws IOException
+    {
+        return write(file, cache.getSegmentHeaders(), bodies ? cache : null);
+    }
+
+    /**
+     * Writes a snapshot of a list of segment headers, without bodies.
+     *
+     * @param file File to write the snapshot to; its directory is created if
+     *   it does not exist
+     * @param headers Segment headers
+     * @return Number of segments written
+     * @throws IOException on error
+     */
+    static int write(File file, List<SegmentHeader> headers)
+        throws IOException
+    {
+        return write(file, headers, null);
+    }
+
+    private static int write(
+        File file,
+        List<SegmentHeader> headers,
+        SegmentCache cache)
+        throws IOException
+    {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        final File tmpFile = new File(directory, file.getName() + ".tmp");
+        int count = 0;
+        final DataOutputStream out =
+            new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (SegmentHeader header : headers) {
+                byte[] bodyBytes = null;
+                if (cache != null) {
+                    final SegmentBody body = cache.get(header);
+                    if (body == null) {
+                        continue;
+                    }
+                    bodyBytes = SegmentCodec.COMPRESSED.encodeBody(body);
+                }
+                writeBytes(out, SegmentCodec.DEFAULT.encodeHeader(header));
+                if (bodyBytes == null) {
+                    out.writeInt(NO_BODY);
+                } else {
+                    writeBytes(out, bodyBytes);
+                }
+                ++count;
+            }
+            out.writeInt(END);
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a snapshot, and deletes it.
+     *
+     * <p>The snapshot is deleted even if it cannot be read, so that a
+     * corrupt or stale snapshot is never read twice.</p>
+     *
+     * @param file Snapshot file
+     * @return List of segments, each with its body, or a null body if the
+     *   snapshot does not contain bodies; empty if there is no snapshot
+     * @throws IOException if the snapshot is corrupt
+     */
+    static List<Pair<SegmentHeader, SegmentBody>> read(File file)
+        throws IOException
+    {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        final List<Pair<SegmentHeader, SegmentBody>> list =
+            new ArrayList<Pair<SegmentHeader, SegmentBody>>();
+        final DataInputStream in =
+            new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new StreamCorruptedException(
+                    "Not a segment cache snapshot: " + file);
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new StreamCorruptedException(
+                    "Unsupported snapshot version " + version + ": " + file);
+            }
+            for (;;) {
+                final int headerLength = in.readInt();
+                if (headerLength == END) {
+                    break;
+                }
+                final SegmentHeader header =
+                    SegmentCodec.DEFAULT.decodeHeader(
+                        readBytes(in, headerLength));
+                final int bodyLength = in.readInt();
+                final SegmentBody body =
+                    bodyLength == NO_BODY
+                        ? null
+                        : SegmentCodec.DEFAULT.decodeBody(
+                            readBytes(in, bodyLength));
+                list.add(Pair.of(header, body));
+            }
+        } finally {
+            in.close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        return list;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+        throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length)
+        throws IOException
+    {
+        if (length < 0) {
+            throw new StreamCorruptedException("Invalid length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
+
+// End SegmentCacheSnapshot.java
@@ -0,0 +1,495 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.rolap.*;
+import mondrian.rolap.cache.SegmentCacheIndex;
+import mondrian.server.Execution;
+import mondrian.server.Locus;
+import mondrian.spi.*;
+import mondrian.util.Pair;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the segments that queries use most often back into the cache after
+ * the cache has been flushed or the server has been restarted.
+ *
+ * <p>The warmer records each segment that is loaded from SQL, with the time
+ * it took to load, and counts the number of times each segment is used to
+ * answer a query. Segments are ranked by the number of uses multiplied by the
+ * average load time, so a segment that is used often and is expensive to
+ * load ranks first. The warmer tracks a bounded number of segments; when
+ * there are too many, it forgets the lowest-ranked segments and halves the
+ * use counts of the others, so that the ranking follows the recent
+ * workload.</p>
+ *
+ * <p>After a flush, the top
+ * {@link MondrianProperties#SegmentCacheWarmerSegmentCount} segments of the
+ * flushed stars that are no longer in the cache are loaded again. When the
+ * server shuts down, the top segments are saved to
+ * {@link MondrianProperties#SegmentCachePersistDirectory}, if set, and are
+ * loaded when their schema is next loaded, if its checksum has not
+ * changed.</p>
+ *
+ * <p>Loads run on the warmer's own low-priority threads, at most
+ * {@link MondrianProperties#SegmentCacheWarmerMaxConcurrency} at a time, and
+ * never on the SQL threads of the cache manager (see
+ * {@link SegmentCacheManager#getSqlExecutor}). Before each load, the
+ * warmer waits until no interactive load is queued for an SQL thread, and
+ * its statements have the lowest priority in {@link SqlScheduler}.
+ * Segments with the same constraints are loaded by a single SQL
+ * statement.</p>
+ *
+ * <p>Segments that have compound predicates or excluded regions are not
+ * recorded, because they cannot be rebuilt from their header.</p>
+ */
+public class SegmentCacheWarmer {
+    private static final Logger LOGGER =
+        Logger.getLogger(SegmentCacheWarmer.class);
+
+    /** Name of the file in which the top segments are saved. */
+    static final String FILE_NAME = "segment-workload.snapshot";
+
+    /**
+     * Maximum number of segments tracked, as a multiple of the number of
+     * segments to load.
+     */
+    private static final int TRACKED_FACTOR = 10;
+
+    /**
+     * Time to wait, in milliseconds, before checking again whether
+     * interactive loads are queued.
+     */
+    private static final long BUSY_WAIT_MILLIS = 100;
+
+    private final SegmentCacheManager cacheMgr;
+    private final int segmentCount;
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<SegmentHeader, Usage> usages =
+        new ConcurrentHashMap<SegmentHeader, Usage>();
+
+    /** Segments that the warmer is loading; loading them is not a use. */
+    private final Set<SegmentHeader> loading =
+        Collections.newSetFromMap(
+            new ConcurrentHashMap<SegmentHeader, Boolean>());
+
+    /** Segments restored from a previous server, not yet loaded. */
+    private final List<SegmentHeader> restoredHeaders =
+        new CopyOnWriteArrayList<SegmentHeader>();
+
+    /**
+     * Creates a SegmentCacheWarmer.
+     *
+     * @param cacheMgr Cache manager
+     * @param segmentCount Number of segments to load after a flush or restart
+     * @param maxConcurrency Maximum number of segments loaded at a time
+     */
+    SegmentCacheWarmer(
+        SegmentCacheManager cacheMgr,
+        int segmentCount,
+        int maxConcurrency)
+    {
+        this.cacheMgr = cacheMgr;
+        this.segmentCount = segmentCount;
+        final int threadCount = Math.max(1, maxConcurrency);
+        this.executor =
+            new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                1,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        final Thread t =
+                            Executors.defaultThreadFactory().newThread(r);
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        t.setName(
+                            "mondrian.rolap.agg.SegmentCacheWarmer$executor_"
+                            + counter.incrementAndGet());
+                        return t;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Records that a segment has been loaded from SQL.
+     *
+     * @param header Segment header
+     * @param nanos Time taken to load the segment, in nanoseconds
+     */
+    void recordLoad(SegmentHeader header, long nanos) {
+        final Usage usage = usage(header);
+        if (usage != null) {
+            usage.load(nanos, !loading.contains(header));
+        }
+    }
+
+    /**
+     * Records that a segment in the cache has been used to answer a query.
+     *
+     * @param header Segment header
+     */
+    void recordHit(SegmentHeader header) {
+        final Usage usage = usage(header);
+        if (usage != null) {
+            usage.hit();
+        }
+    }
+
+    private Usage usage(SegmentHeader header) {
+        if (!header.compoundPredicates.isEmpty()
+            || !header.getExcludedRegions().isEmpty())
+        {
+            return null;
+        }
+        Usage usage = usages.get(header);
+        if (usage == null) {
+            final Usage newUsage = new Usage();
+            usage = usages.putIfAbsent(header, newUsage);
+            if (usage == null) {
+                usage = newUsage;
+                if (usages.size() > segmentCount * TRACKED_FACTOR) {
+                    prune();
+                }
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Forgets the lowest-ranked segments, and ages the use counts of the
+     * others.
+     */
+    private synchronized void prune() {
+        final List<SegmentHeader> ranked = rank();
+        final int keep = segmentCount * TRACKED_FACTOR / 2;
+        for (int i = keep; i < ranked.size(); i++) {
+            usages.remove(ranked.get(i));
+        }
+        for (Usage usage : usages.values()) {
+            usage.age();
+        }
+    }
+
+    /**
+     * Returns all tracked segments, highest ranked first.
+     */
+    private List<SegmentHeader> rank() {
+        final List<Pair<SegmentHeader, Double>> list =
+            new ArrayList<Pair<SegmentHeader, Double>>();
+        for (Map.Entry<SegmentHeader, Usage> entry : usages.entrySet()) {
+            list.add(Pair.of(entry.getKey(), entry.getValue().score()));
+        }
+        Collections.sort(
+            list,
+            new Comparator<Pair<SegmentHeader, Double>>() {
+                public int compare(
+                    Pair<SegmentHeader, Double> o1,
+                    Pair<SegmentHeader, Double> o2)
+                {
+                    return o2.right.compareTo(o1.right);
+                }
+            });
+        final List<SegmentHeader> headers =
+            new ArrayList<SegmentHeader>(list.size());
+        for (Pair<SegmentHeader, Double> pair : list) {
+            headers.add(pair.left);
+        }
+        return headers;
+    }
+
+    /**
+     * Returns the top-ranked segments, highest ranked first.
+     *
+     * @return List of at most
+     *   {@link MondrianProperties#SegmentCacheWarmerSegmentCount} segment
+     *   headers
+     */
+    public List<SegmentHeader> getTopSegments() {
+        final List<SegmentHeader> ranked = rank();
+        return ranked.subList(0, Math.min(segmentCount, ranked.size()));
+    }
+
+    /**
+     * Loads the top-ranked segments of some stars that are not in the cache.
+     * Called after segments of those stars have been flushed.
+     *
+     * @param stars Stars
+     */
+    void warm(Collection<RolapStar> stars) {
+        final List<SegmentHeader> topSegments = getTopSegments();
+        for (RolapStar star : stars) {
+            final List<SegmentHeader> headers = new ArrayList<SegmentHeader>();
+            for (SegmentHeader header : topSegments) {
+                if (belongsTo(header, star)) {
+                    headers.add(header);
+                }
+            }
+            submit(star, headers);
+        }
+    }
+
+    /**
+     * Loads the segments of a schema that were saved when the server last
+     * shut down. Called when the schema has been loaded.
+     *
+     * @param schema Schema
+     */
+    void warm(RolapSchema schema) {
+        final Map<RolapStar, List<SegmentHeader>> map =
+            new LinkedHashMap<RolapStar, List<SegmentHeader>>();
+        for (SegmentHeader header : restoredHeaders) {
+            if (!header.schemaChecksum.equals(schema.getChecksum())) {
+                continue;
+            }
+            restoredHeaders.remove(header);
+            final RolapStar star =
+                schema.getStar(header.rolapStarFactTableName);
+            if (star == null) {
+                continue;
+            }
+            List<SegmentHeader> headers = map.get(star);
+            if (headers == null) {
+                headers = new ArrayList<SegmentHeader>();
+                map.put(star, headers);
+            }
+            headers.add(header);
+        }
+        for (Map.Entry<RolapStar, List<SegmentHeader>> entry
+            : map.entrySet())
+        {
+            submit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static boolean belongsTo(SegmentHeader header, RolapStar star) {
+        return header.rolapStarFactTableName.equals(
+                star.getFactTable().getAlias())
+            && header.schemaChecksum.equals(star.getSchema().getChecksum());
+    }
+
+    /**
+     * Submits tasks to load segments of a star. Segments that have the same
+     * constraints are loaded by the same task.
+     */
+    private void submit(
+        final RolapStar star,
+        List<SegmentHeader> headers)
+    {
+        final Map<List<Object>, List<SegmentHeader>> shapes =
+            new LinkedHashMap<List<Object>, List<SegmentHeader>>();
+        for (SegmentHeader header : headers) {
+            final List<Object> key =
+                Arrays.<Object>asList(
+                    header.getConstrainedColumnsBitKey(),
+                    header.getConstrainedColumns());
+            List<SegmentHeader> list = shapes.get(key);
+            if (list == null) {
+                list = new ArrayList<SegmentHeader>();
+                shapes.put(key, list);
+            }
+            list.add(header);
+        }
+        for (final List<SegmentHeader> list : shapes.values()) {
+            try {
+                executor.execute(
+                    new Runnable() {
+                        public void run() {
+                            load(star, list);
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loads segments of a star that have the same constraints, if they are
+     * not in the cache. Runs on one of the warmer's threads.
+     */
+    private void load(final RolapStar star, final List<SegmentHeader> headers) {
+        try {
+            waitWhileBusy();
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            final RolapConnection connection =
+                star.getSchema().getInternalConnection();
+            final Execution execution =
+                new Execution(connection.getInternalStatement(), 0);
+            execution.setSqlPriority(SqlScheduler.Priority.CACHE_WARMING);
+            Locus.execute(
+                execution,
+                "SegmentCacheWarmer.load",
+                new Locus.Action<Void>() {
+                    public Void execute() {
+                        loadInLocus(star, headers);
+                        return null;
+                    }
+                });
+        } catch (Throwable e) {
+            LOGGER.warn("Failed to warm segments " + headers, e);
+        } finally {
+            loading.removeAll(headers);
+        }
+    }
+
+    private void loadInLocus(
+        final RolapStar star,
+        final List<SegmentHeader> headers)
+    {
+        final Locus locus = Locus.peek();
+        final SegmentLoader loader = new SegmentLoader(cacheMgr);
+        // Create the segments that are not in the index, and register them
+        // in the index as loading, in a single step on the cache manager's
+        // thread.
+        final List<GroupingSet> groupingSets =
+            cacheMgr.execute(
+                star,
+                new SegmentCacheManager.Command<List<GroupingSet>>() {
+                    public List<GroupingSet> call() {
+                        final SegmentCacheIndex index =
+                            cacheMgr.getIndexRegistry().getIndex(star);
+                        final List<Segment> segments =
+                            new ArrayList<Segment>();
+                        for (SegmentHeader header : headers) {
+                            if (index.contains(header)) {
+                                continue;
+                            }
+                            final RolapStar.Measure measure =
+                                star.getFactTable().lookupMeasureByName(
+                                    header.cubeName, header.measureName);
+                            if (measure == null) {
+                                continue;
+                            }
+                            segments.add(
+                                SegmentBuilder.toSegment(
+                                    header,
+                                    measure,
+                                    Collections.<StarPredicate>emptyList()));
+                            loading.add(header);
+                        }
+                        final List<GroupingSet> groupingSets =
+                            SegmentBuilder.toGroupingSets(segments);
+                        loader.register(
+                            groupingSets,
+                            Collections.<StarPredicate>emptyList());
+                        return groupingSets;
+                    }
+
+                    public Locus getLocus() {
+                        return locus;
+                    }
+                });
+        for (GroupingSet groupingSet : groupingSets) {
+            loader.loadImpl(
+                0,
+                Collections.singletonList(groupingSet),
+                Collections.<StarPredicate>emptyList());
+        }
+    }
+
+    /**
+     * Waits until no interactive segment load is waiting for an SQL thread.
+     */
+    private void waitWhileBusy() throws InterruptedException {
+        while (cacheMgr.isSqlQueued()) {
+            Thread.sleep(BUSY_WAIT_MILLIS);
+        }
+    }
+
+    /**
+     * Saves the top-ranked segments to a directory.
+     *
+     * @param directory Directory
+     * @throws IOException on error
+     */
+    void save(File directory) throws IOException {
+        SegmentCacheSnapshot.write(
+            new File(directory, FILE_NAME), getTopSegments());
+    }
+
+    /**
+     * Restores the segments saved by {@link #save(File)}. They are loaded
+     * when their schema is loaded; see {@link #warm(RolapSchema)}.
+     *
+     * @param directory Directory
+     * @throws IOException on error
+     */
+    void restore(File directory) throws IOException {
+        for (Pair<SegmentHeader, SegmentBody> pair
+            : SegmentCacheSnapshot.read(new File(directory, FILE_NAME)))
+        {
+            restoredHeaders.add(pair.left);
+            usage(pair.left);
+        }
+    }
+
+    /**
+     * Stops the warmer. Loads in progress are interrupted.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Use statistics of a segment.
+     */
+    private static class Usage {
+        private int hits;
+        private int loads;
+        private long loadNanos;
+
+        synchronized void load(long nanos, boolean hit) {
+            ++loads;
+            loadNanos += nanos;
+            if (hit) {
+                ++hits;
+            }
+        }
+
+        synchronized void hit() {
+            ++hits;
+        }
+
+        synchronized void age() {
+            hits /= 2;
+        }
+
+        /**
+         * Returns the score of this segment: the number of uses multiplied
+         * by the average load time. A segment that has never been loaded
+         * by this server scores by uses alone.
+         */
+        synchronized double score() {
+            return loads == 0
+                ? hits
+                : (double) (hits + 1) * loadNanos / loads;
+        }
+    }
+}
+
+// End SegmentCacheWarmer.java
@@ -11,6 +11,8 @@ package mondrian.rolap.agg;
 
 import mondrian.olap.MondrianProperties;
 import mondrian.resource.MondrianResource;
+import mondrian.rolap.cache.MemorySegmentCache;
+import mondrian.rolap.cache.OffHeapSegmentCache;
 import mondrian.spi.*;
 import mondrian.util.ClassResolver;
 import mondrian.util.ServiceDiscovery;
@@ -31,7 +33,7 @@ public final class SegmentCacheWorker {
         Logger.getLogger(SegmentCacheWorker.class);
 
     final SegmentCache cache;
-    private final Thread cacheMgrThread;
+    private final Collection<Thread> cacheMgrThreads;
     private final boolean supportsRichIndex;
 
     /**
@@ -44,8 +46,27 @@ public final class SegmentCacheWorker {
      *                       Pass null if methods can be called from any thread.
      */
     public SegmentCacheWorker(SegmentCache cache, Thread cacheMgrThread) {
+        this(
+            cache,
+            cacheMgrThread == null
+                ? Collections.<Thread>emptyList()
+                : Collections.singletonList(cacheMgrThread));
+    }
+
+    /**
+     * Creates a worker for a cache manager that has several actor threads.
+     *
+     * @param cache Cache managed by this worker
+     * @param cacheMgrThreads Threads that the cache manager actors are running
+     *                        on, none of which should be used for potentially
+     *                        long-running calls to this cache
+     */
+    public SegmentCacheWorker(
+        SegmentCache cache,
+        Collection<Thread> cacheMgrThreads)
+    {
         this.cache = cache;
-        this.cacheMgrThread = cacheMgrThread;
+        this.cacheMgrThreads = cacheMgrThreads;
 
         // no need to call checkThread(): supportsRichIndex is a fast call
         this.supportsRichIndex = cache.supportsRichIndex();
@@ -146,21 +167,33 @@ public final class SegmentCacheWorker {
      * Places a segment in the cache. Returns true or false
      * if the operation succeeds.
      *
+     * <p>A cache may decline to store a segment. The local
+     * {@link MemorySegmentCache} and the {@link OffHeapSegmentCache} do so
+     * for a segment that does not fit in their memory budget, which is
+     * routine and logged at debug level; for other caches, which give no
+     * reason, a warning is logged.</p>
+     *
      * @param header A header to search for in the segment cache.
      * @param body The segment body to cache.
+     * @return Whether the cache stored the segment
      */
-    public void put(SegmentHeader header, SegmentBody body) {
+    public boolean put(SegmentHeader header, SegmentBody body) {
         checkThread();
         try {
             final boolean result = cache.put(header, body);
             if (!result) {
-                LOGGER.error(
-                    MondrianResource.instance()
-                        .SegmentCacheFailedToSaveSegment
-                        .baseMessage);
-                throw MondrianResource.instance()
-                    .SegmentCacheFailedToSaveSegment.ex();
+                final String message =
+                    "Segment cache " + cache + " did not store segment:\n"
+                    + header;
+                if (cache instanceof MemorySegmentCache
+                    || cache instanceof OffHeapSegmentCache)
+                {
+                    LOGGER.debug(message);
+                } else {
+                    LOGGER.warn(message);
+                }
             }
+            return result;
         } catch (Throwable t) {
             LOGGER.error(
                 MondrianResource.instance()
@@ -219,9 +252,9 @@ public final class SegmentCacheWorker {
     }
 
     private void checkThread() {
-        assert cacheMgrThread != Thread.currentThread()
+        assert !cacheMgrThreads.contains(Thread.currentThread())
             : "this method is potentially slow; you should not call it from "
-            + "the cache manager thread, " + cacheMgrThread;
+            + "the cache manager thread, " + Thread.currentThread();
     }
 }
 
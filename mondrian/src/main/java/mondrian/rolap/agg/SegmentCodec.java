@@ -0,0 +1,1122 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+package mondrian.rolap.agg;
+
+import mondrian.olap.Util;
+import mondrian.rolap.BitKey;
+import mondrian.rolap.CellKey;
+import mondrian.rolap.RolapUtil;
+import mondrian.spi.*;
+import mondrian.util.ArraySortedSet;
+import mondrian.util.ByteString;
+import mondrian.util.HyperLogLog;
+import mondrian.util.Pair;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of {@link SegmentHeader} and {@link SegmentBody}
+ * objects, for use by {@link SegmentCache} implementations that need to
+ * store segments as bytes.
+ *
+ * <p>Compared to Java serialization, the encoding does not write class
+ * descriptors or object graphs, and uses a representation suited to each
+ * part of a segment:</p>
+ *
+ * <ul>
+ * <li>Integers and lengths are written as variable-length integers, so small
+ *     values take a single byte.</li>
+ * <li>The values of each axis (and of each constrained column of a header)
+ *     are written as a dictionary. If all values have the same type, the type
+ *     is written once; sorted integer, long and date values are written as
+ *     deltas from the previous value.</li>
+ * <li>Null indicators are written as a packed bitmap, and the values of null
+ *     cells are omitted.</li>
+ * <li>Values of dense {@code double} segments are written as 8-byte values, or
+ *     as variable-length integers if they are all integral; values of dense
+ *     {@code int} segments as variable-length integers.</li>
+ * <li>Optionally, the payload is compressed in independent blocks of
+ *     {@link #BLOCK_SIZE} bytes, using the deflate algorithm. A block that does
+ *     not get smaller is stored uncompressed.</li>
+ * </ul>
+ *
+ * <p>Each encoded object starts with a magic number, a format
+ * {@link #VERSION version}, the kind of object and flags. Decoders reject
+ * versions they do not know, so the format can evolve. The encoding is
+ * self-describing: decoding does not need any schema information, and a
+ * codec that compresses can decode uncompressed data and vice versa.</p>
+ *
+ * <p>A typical use in a {@link SegmentCache} implementation is as
+ * follows:</p>
+ *
+ * <blockquote><pre>
+ * public boolean put(SegmentHeader header, SegmentBody body) {
+ *     byte[] key = SegmentCodec.DEFAULT.encodeHeader(header);
+ *     byte[] value = SegmentCodec.COMPRESSED.encodeBody(body);
+ *     return store.put(key, value);
+ * }
+ *
+ * public SegmentBody get(SegmentHeader header) {
+ *     byte[] value = store.get(SegmentCodec.DEFAULT.encodeHeader(header));
+ *     return value == null ? null : SegmentCodec.DEFAULT.decodeBody(value);
+ * }
+ * </pre></blockquote>
+ *
+ * <p>Values of types that have no specific encoding are written using Java
+ * serialization.</p>
+ *
+ * <p>Instances are immutable and thread-safe.</p>
+ *
+ * @see SegmentBodyBuffers
+ */
+public final class SegmentCodec {
+    /**
+     * Version of the format written by this codec. Version 1 is still read;
+     * it differs only in the encoding of the excluded regions of a header.
+     */
+    public static final int VERSION = 2;
+
+    /** Size of a compression block, in bytes. */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Codec that does not compress. */
+    public static final SegmentCodec DEFAULT = new SegmentCodec(false);
+
+    /** Codec that compresses. */
+    public static final SegmentCodec COMPRESSED = new SegmentCodec(true);
+
+    private static final byte MAGIC0 = 'M';
+    private static final byte MAGIC1 = 'S';
+
+    private static final byte RECORD_HEADER = 1;
+    private static final byte RECORD_BODY = 2;
+
+    private static final int FLAG_COMPRESSED = 1;
+
+    private static final byte BLOCK_STORED = 0;
+    private static final byte BLOCK_DEFLATED = 1;
+
+    // Kinds of segment body.
+    static final byte DENSE_DOUBLE = 0;
+    static final byte DENSE_INT = 1;
+    static final byte DENSE_OBJECT = 2;
+    static final byte SPARSE = 3;
+
+    // Encodings of the values of a dense double body.
+    private static final byte DOUBLE_RAW = 0;
+    private static final byte DOUBLE_INTEGRAL = 1;
+
+    // Value type tags.
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_SQL_NULL = 1;
+    private static final byte TAG_STRING = 2;
+    private static final byte TAG_INTEGER = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_BIG_DECIMAL = 6;
+    private static final byte TAG_BIG_INTEGER = 7;
+    private static final byte TAG_BOOLEAN = 8;
+    private static final byte TAG_DATE = 9;
+    private static final byte TAG_TIME = 10;
+    private static final byte TAG_TIMESTAMP = 11;
+    private static final byte TAG_FLOAT = 12;
+    private static final byte TAG_SHORT = 13;
+    private static final byte TAG_BYTE = 14;
+    private static final byte TAG_SERIALIZED = 15;
+    /** Marks a dictionary whose values have different types. */
+    private static final byte TAG_MIXED = 16;
+    private static final byte TAG_SKETCH = 17;
+
+    private final boolean compress;
+
+    /**
+     * Creates a SegmentCodec.
+     *
+     * @param compress Whether to compress encoded data
+     */
+    public SegmentCodec(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Encodes a segment header.
+     *
+     * @param header Segment header
+     * @return Encoded header
+     */
+    public byte[] encodeHeader(SegmentHeader header) {
+        final Writer w = new Writer(256);
+        w.writeString(header.schemaName);
+        writeByteString(w, header.schemaChecksum);
+        w.writeString(header.cubeName);
+        w.writeString(header.measureName);
+        w.writeString(header.rolapStarFactTableName);
+        writeBitKey(w, header.constrainedColsBitKey);
+        writeColumns(w, header.getConstrainedColumns());
+        w.writeVarInt(header.compoundPredicates.size());
+        for (String compoundPredicate : header.compoundPredicates) {
+            w.writeString(compoundPredicate);
+        }
+        w.writeVarInt(header.getExcludedRegions().size());
+        for (SegmentColumn[] region : header.getExcludedRegions()) {
+            writeColumns(w, Arrays.asList(region));
+        }
+        return envelope(RECORD_HEADER, w);
+    }
+
+    /**
+     * Decodes a segment header that was encoded by
+     * {@link #encodeHeader(SegmentHeader)}.
+     *
+     * @param bytes Encoded header
+     * @return Segment header
+     * @throws IOException if the data is not a valid encoded header
+     */
+    public SegmentHeader decodeHeader(byte[] bytes) throws IOException {
+        final Reader r = open(RECORD_HEADER, bytes);
+        final String schemaName = r.readString();
+        final ByteString schemaChecksum = readByteString(r);
+        final String cubeName = r.readString();
+        final String measureName = r.readString();
+        final String factTableName = r.readString();
+        final BitKey bitKey = readBitKey(r);
+        final List<SegmentColumn> constrainedColumns = readColumns(r);
+        final int compoundPredicateCount = r.readVarInt();
+        final List<String> compoundPredicates =
+            new ArrayList<String>(compoundPredicateCount);
+        for (int i = 0; i < compoundPredicateCount; i++) {
+            compoundPredicates.add(r.readString());
+        }
+        final List<SegmentColumn[]> excludedRegions =
+            new ArrayList<SegmentColumn[]>();
+        if (r.version == 1) {
+            // Version 1 wrote a list of one-dimensional regions.
+            for (SegmentColumn column : readColumns(r)) {
+                excludedRegions.add(new SegmentColumn[] {column});
+            }
+        } else {
+            final int excludedRegionCount = r.readVarInt();
+            for (int i = 0; i < excludedRegionCount; i++) {
+                final List<SegmentColumn> region = readColumns(r);
+                excludedRegions.add(
+                    region.toArray(new SegmentColumn[region.size()]));
+            }
+        }
+        return new SegmentHeader(
+            schemaName,
+            schemaChecksum,
+            cubeName,
+            measureName,
+            constrainedColumns,
+            compoundPredicates,
+            factTableName,
+            bitKey,
+            excludedRegions);
+    }
+
+    /**
+     * Encodes a segment body.
+     *
+     * @param body Segment body
+     * @return Encoded body
+     */
+    public byte[] encodeBody(SegmentBody body) {
+        final Writer w = new Writer(1024);
+        writeBody(w, body);
+        return envelope(RECORD_BODY, w);
+    }
+
+    /**
+     * Decodes a segment body that was encoded by
+     * {@link #encodeBody(SegmentBody)}.
+     *
+     * @param bytes Encoded body
+     * @return Segment body
+     * @throws IOException if the data is not a valid encoded body
+     */
+    public SegmentBody decodeBody(byte[] bytes) throws IOException {
+        return readBody(open(RECORD_BODY, bytes));
+    }
+
+    // -- envelope ----------------------------------------------------------
+
+    private byte[] envelope(byte record, Writer payload) {
+        final Writer w = new Writer(payload.size() + 16);
+        w.writeByte(MAGIC0);
+        w.writeByte(MAGIC1);
+        w.writeVarInt(VERSION);
+        w.writeByte(record);
+        if (!compress) {
+            w.writeVarInt(0);
+            w.writeBytes(payload.buf, 0, payload.size());
+            return w.toByteArray();
+        }
+        w.writeVarInt(FLAG_COMPRESSED);
+        w.writeVarInt(payload.size());
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final byte[] block = new byte[BLOCK_SIZE + BLOCK_SIZE / 8 + 64];
+            for (int offset = 0; offset < payload.size();
+                offset += BLOCK_SIZE)
+            {
+                final int length =
+                    Math.min(BLOCK_SIZE, payload.size() - offset);
+                deflater.reset();
+                deflater.setInput(payload.buf, offset, length);
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished()
+                    && compressedLength < block.length)
+                {
+                    compressedLength +=
+                        deflater.deflate(
+                            block,
+                            compressedLength,
+                            block.length - compressedLength);
+                }
+                if (deflater.finished() && compressedLength < length) {
+                    w.writeByte(BLOCK_DEFLATED);
+                    w.writeVarInt(length);
+                    w.writeVarInt(compressedLength);
+                    w.writeBytes(block, 0, compressedLength);
+                } else {
+                    w.writeByte(BLOCK_STORED);
+                    w.writeVarInt(length);
+                    w.writeBytes(payload.buf, offset, length);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return w.toByteArray();
+    }
+
+    private static Reader open(byte record, byte[] bytes) throws IOException {
+        final Reader r = new Reader(bytes, 0, bytes.length);
+        if (bytes.length < 4
+            || r.readByte() != MAGIC0
+            || r.readByte() != MAGIC1)
+        {
+            throw new StreamCorruptedException("Not an encoded segment");
+        }
+        final int version = r.readVarInt();
+        r.version = version;
+        if (version < 1 || version > VERSION) {
+            throw new InvalidClassException(
+                "Unsupported segment encoding version " + version);
+        }
+        final byte actualRecord = r.readByte();
+        if (actualRecord != record) {
+            throw new StreamCorruptedException(
+                "Expected record type " + record + ", got " + actualRecord);
+        }
+        final int flags = r.readVarInt();
+        if ((flags & FLAG_COMPRESSED) == 0) {
+            return r;
+        }
+        final int rawLength = r.readVarInt();
+        final byte[] raw = new byte[rawLength];
+        final Inflater inflater = new Inflater();
+        try {
+            int offset = 0;
+            while (offset < rawLength) {
+                final byte method = r.readByte();
+                final int length = r.readVarInt();
+                if (length <= 0 || offset + length > rawLength) {
+                    throw new StreamCorruptedException("Bad block length");
+                }
+                switch (method) {
+                case BLOCK_STORED:
+                    r.readBytes(raw, offset, length);
+                    break;
+                case BLOCK_DEFLATED:
+                    final int compressedLength = r.readVarInt();
+                    final int start = r.skip(compressedLength);
+                    inflater.reset();
+                    inflater.setInput(r.buf, start, compressedLength);
+                    try {
+                        if (inflater.inflate(raw, offset, length) != length) {
+                            throw new StreamCorruptedException(
+                                "Truncated block");
+                        }
+                    } catch (DataFormatException e) {
+                        throw (IOException)
+                            new StreamCorruptedException(e.getMessage())
+                                .initCause(e);
+                    }
+                    break;
+                default:
+                    throw new StreamCorruptedException(
+                        "Unknown block method " + method);
+                }
+                offset += length;
+            }
+        } finally {
+            inflater.end();
+        }
+        final Reader inflated = new Reader(raw, 0, rawLength);
+        inflated.version = version;
+        return inflated;
+    }
+
+    // -- body --------------------------------------------------------------
+
+    /**
+     * Writes the kind, axes and cells of a segment body.
+     */
+    static void writeBody(Writer w, SegmentBody body) {
+        if (body instanceof DenseDoubleSegmentBody
+            || body instanceof DirectDoubleSegmentBody)
+        {
+            w.writeByte(DENSE_DOUBLE);
+            writeAxes(w, body);
+            final DoubleBuffer values =
+                body instanceof DirectDoubleSegmentBody
+                    ? ((DirectDoubleSegmentBody) body).getBuffer().duplicate()
+                    : DoubleBuffer.wrap((double[]) body.getValueArray());
+            final BitSet nulls = body.getNullValueIndicators();
+            final int n = values.capacity();
+            w.writeVarInt(n);
+            writeBitSet(w, nulls);
+            boolean integral = true;
+            for (int i = 0; i < n && integral; i++) {
+                final double d = values.get(i);
+                integral = d == (long) d
+                    && (d != 0d || 1d / d > 0d); // exclude -0.0
+            }
+            w.writeByte(integral ? DOUBLE_INTEGRAL : DOUBLE_RAW);
+            for (int i = 0; i < n; i++) {
+                if (nulls.get(i)) {
+                    continue;
+                }
+                if (integral) {
+                    w.writeZigZagLong((long) values.get(i));
+                } else {
+                    w.writeDouble(values.get(i));
+                }
+            }
+        } else if (body instanceof DenseIntSegmentBody
+            || body instanceof DirectIntSegmentBody)
+        {
+            w.writeByte(DENSE_INT);
+            writeAxes(w, body);
+            final IntBuffer values =
+                body instanceof DirectIntSegmentBody
+                    ? ((DirectIntSegmentBody) body).getBuffer().duplicate()
+                    : IntBuffer.wrap((int[]) body.getValueArray());
+            final BitSet nulls = body.getNullValueIndicators();
+            final int n = values.capacity();
+            w.writeVarInt(n);
+            writeBitSet(w, nulls);
+            for (int i = 0; i < n; i++) {
+                if (!nulls.get(i)) {
+                    w.writeZigZagLong(values.get(i));
+                }
+            }
+        } else if (body instanceof DenseObjectSegmentBody) {
+            w.writeByte(DENSE_OBJECT);
+            writeAxes(w, body);
+            final Object[] values = (Object[]) body.getValueArray();
+            w.writeVarInt(values.length);
+            for (Object value : values) {
+                writeValue(w, value);
+            }
+        } else {
+            w.writeByte(SPARSE);
+            writeAxes(w, body);
+            final Map<CellKey, Object> map = body.getValueMap();
+            w.writeVarInt(map.size());
+            for (Map.Entry<CellKey, Object> entry : map.entrySet()) {
+                for (int ordinal : entry.getKey().getOrdinals()) {
+                    w.writeVarInt(ordinal);
+                }
+                writeValue(w, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads a segment body written by {@link #writeBody(Writer, SegmentBody)}.
+     */
+    static SegmentBody readBody(Reader r) throws IOException {
+        final byte kind = r.readByte();
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes = readAxes(r);
+        switch (kind) {
+        case DENSE_DOUBLE:
+        {
+            final int n = r.readVarInt();
+            final BitSet nulls = readBitSet(r);
+            final boolean integral = r.readByte() == DOUBLE_INTEGRAL;
+            final double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                if (!nulls.get(i)) {
+                    values[i] = integral
+                        ? (double) r.readZigZagLong()
+                        : r.readDouble();
+                }
+            }
+            return new DenseDoubleSegmentBody(nulls, values, axes);
+        }
+        case DENSE_INT:
+        {
+            final int n = r.readVarInt();
+            final BitSet nulls = readBitSet(r);
+            final int[] values = new int[n];
+            for (int i = 0; i < n; i++) {
+                if (!nulls.get(i)) {
+                    values[i] = (int) r.readZigZagLong();
+                }
+            }
+            return new DenseIntSegmentBody(nulls, values, axes);
+        }
+        case DENSE_OBJECT:
+        {
+            final Object[] values = new Object[r.readVarInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(r);
+            }
+            return new DenseObjectSegmentBody(values, axes);
+        }
+        case SPARSE:
+        {
+            final int n = r.readVarInt();
+            final int arity = axes.size();
+            final Map<CellKey, Object> map =
+                new HashMap<CellKey, Object>(n * 3 / 2);
+            for (int i = 0; i < n; i++) {
+                final int[] ordinals = new int[arity];
+                for (int j = 0; j < arity; j++) {
+                    ordinals[j] = r.readVarInt();
+                }
+                map.put(CellKey.Generator.newCellKey(ordinals), readValue(r));
+            }
+            return new SparseSegmentBody(map, axes);
+        }
+        default:
+            throw new StreamCorruptedException(
+                "Unknown segment body kind " + kind);
+        }
+    }
+
+    /**
+     * Writes the axes of a segment body.
+     */
+    static void writeAxes(Writer w, SegmentBody body) {
+        final SortedSet<Comparable>[] axisValueSets = body.getAxisValueSets();
+        final boolean[] nullAxisFlags = body.getNullAxisFlags();
+        w.writeVarInt(axisValueSets.length);
+        for (int i = 0; i < axisValueSets.length; i++) {
+            w.writeByte(nullAxisFlags[i] ? 1 : 0);
+            writeValueSet(w, axisValueSets[i]);
+        }
+    }
+
+    /**
+     * Reads axes written by {@link #writeAxes(Writer, SegmentBody)}.
+     */
+    static List<Pair<SortedSet<Comparable>, Boolean>> readAxes(Reader r)
+        throws IOException
+    {
+        final int axisCount = r.readVarInt();
+        final List<Pair<SortedSet<Comparable>, Boolean>> axes =
+            new ArrayList<Pair<SortedSet<Comparable>, Boolean>>(axisCount);
+        for (int i = 0; i < axisCount; i++) {
+            final boolean containsNull = r.readByte() != 0;
+            axes.add(
+                Pair.<SortedSet<Comparable>, Boolean>of(
+                    readValueSet(r), containsNull));
+        }
+        return axes;
+    }
+
+    // -- header parts ------------------------------------------------------
+
+    private static void writeColumns(Writer w, List<SegmentColumn> columns) {
+        w.writeVarInt(columns.size());
+        for (SegmentColumn column : columns) {
+            w.writeString(column.columnExpression);
+            w.writeZigZagLong(column.valueCount);
+            if (column.values == null) {
+                w.writeByte(0);
+            } else {
+                w.writeByte(1);
+                writeValueSet(w, column.values);
+            }
+        }
+    }
+
+    private static List<SegmentColumn> readColumns(Reader r)
+        throws IOException
+    {
+        final int n = r.readVarInt();
+        final List<SegmentColumn> columns = new ArrayList<SegmentColumn>(n);
+        for (int i = 0; i < n; i++) {
+            final String columnExpression = r.readString();
+            final long valueCount = r.readZigZagLong();
+            final SortedSet<Comparable> values =
+                r.readByte() == 0 ? null : readValueSet(r);
+            columns.add(
+                new SegmentColumn(columnExpression, valueCount, values));
+        }
+        return columns;
+    }
+
+    private static void writeByteString(Writer w, ByteString byteString) {
+        w.writeVarInt(byteString.length());
+        for (int i = 0; i < byteString.length(); i++) {
+            w.writeByte(byteString.byteAt(i));
+        }
+    }
+
+    private static ByteString readByteString(Reader r) throws IOException {
+        final byte[] bytes = new byte[r.readVarInt()];
+        r.readBytes(bytes, 0, bytes.length);
+        return new ByteString(bytes);
+    }
+
+    private static void writeBitKey(Writer w, BitKey bitKey) {
+        // Write the capacity class, so that the decoded key has the same
+        // implementation as the original.
+        final BitSet bitSet = bitKey.toBitSet();
+        final int capacity;
+        if (bitKey instanceof BitKey.Small) {
+            capacity = 0;
+        } else if (bitKey instanceof BitKey.Mid128) {
+            capacity = 64;
+        } else {
+            capacity = Math.max(128, bitSet.length());
+        }
+        w.writeVarInt(capacity);
+        writeBitSet(w, bitSet);
+    }
+
+    private static BitKey readBitKey(Reader r) throws IOException {
+        final int capacity = r.readVarInt();
+        final BitSet bitSet = readBitSet(r);
+        final BitKey bitKey =
+            BitKey.Factory.makeBitKey(Math.max(capacity, bitSet.length()));
+        for (int i = bitSet.nextSetBit(0); i >= 0;
+            i = bitSet.nextSetBit(i + 1))
+        {
+            bitKey.set(i);
+        }
+        return bitKey;
+    }
+
+    private static void writeBitSet(Writer w, BitSet bitSet) {
+        final byte[] bytes = bitSet.toByteArray();
+        w.writeVarInt(bytes.length);
+        w.writeBytes(bytes, 0, bytes.length);
+    }
+
+    private static BitSet readBitSet(Reader r) throws IOException {
+        final byte[] bytes = new byte[r.readVarInt()];
+        r.readBytes(bytes, 0, bytes.length);
+        return BitSet.valueOf(bytes);
+    }
+
+    // -- values ------------------------------------------------------------
+
+    /**
+     * Writes a sorted set of values as a dictionary.
+     */
+    static void writeValueSet(Writer w, SortedSet<Comparable> values) {
+        w.writeVarInt(values.size());
+        if (values.isEmpty()) {
+            return;
+        }
+        byte commonTag = -1;
+        for (Comparable value : values) {
+            final byte tag = tag(value);
+            if (commonTag == -1) {
+                commonTag = tag;
+            } else if (tag != commonTag) {
+                commonTag = TAG_MIXED;
+                break;
+            }
+        }
+        w.writeByte(commonTag);
+        switch (commonTag) {
+        case TAG_MIXED:
+            for (Comparable value : values) {
+                writeValue(w, value);
+            }
+            break;
+        case TAG_INTEGER:
+        case TAG_LONG:
+        case TAG_SHORT:
+        case TAG_BYTE:
+        case TAG_DATE:
+            // Values are sorted, so deltas are small.
+            long previous = 0;
+            for (Comparable value : values) {
+                final long v = toLong(value);
+                w.writeZigZagLong(v - previous);
+                previous = v;
+            }
+            break;
+        default:
+            for (Comparable value : values) {
+                writeUntagged(w, commonTag, value);
+            }
+        }
+    }
+
+    /**
+     * Reads a set of values written by
+     * {@link #writeValueSet(Writer, SortedSet)}. The set preserves the order
+     * in which the values were written.
+     */
+    @SuppressWarnings({"unchecked"})
+    static SortedSet<Comparable> readValueSet(Reader r) throws IOException {
+        final Comparable[] values = new Comparable[r.readVarInt()];
+        if (values.length > 0) {
+            final byte commonTag = r.readByte();
+            switch (commonTag) {
+            case TAG_MIXED:
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = (Comparable) readValue(r);
+                }
+                break;
+            case TAG_INTEGER:
+            case TAG_LONG:
+            case TAG_SHORT:
+            case TAG_BYTE:
+            case TAG_DATE:
+                long previous = 0;
+                for (int i = 0; i < values.length; i++) {
+                    previous += r.readZigZagLong();
+                    values[i] = fromLong(commonTag, previous);
+                }
+                break;
+            default:
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = (Comparable) readUntagged(r, commonTag);
+                }
+            }
+        }
+        return new ArraySortedSet(values);
+    }
+
+    /**
+     * Writes a value preceded by its type tag.
+     */
+    static void writeValue(Writer w, Object value) {
+        final byte tag = tag(value);
+        w.writeByte(tag);
+        writeUntagged(w, tag, value);
+    }
+
+    /**
+     * Reads a value written by {@link #writeValue(Writer, Object)}.
+     */
+    static Object readValue(Reader r) throws IOException {
+        return readUntagged(r, r.readByte());
+    }
+
+    private static byte tag(Object o) {
+        if (o == null) {
+            return TAG_NULL;
+        } else if (o == RolapUtil.sqlNullValue) {
+            return TAG_SQL_NULL;
+        }
+        final Class<?> clazz = o.getClass();
+        if (clazz == String.class) {
+            return TAG_STRING;
+        } else if (clazz == Integer.class) {
+            return TAG_INTEGER;
+        } else if (clazz == Long.class) {
+            return TAG_LONG;
+        } else if (clazz == Double.class) {
+            return TAG_DOUBLE;
+        } else if (clazz == BigDecimal.class) {
+            return TAG_BIG_DECIMAL;
+        } else if (clazz == BigInteger.class) {
+            return TAG_BIG_INTEGER;
+        } else if (clazz == Boolean.class) {
+            return TAG_BOOLEAN;
+        } else if (clazz == java.sql.Date.class) {
+            return TAG_DATE;
+        } else if (clazz == java.sql.Time.class) {
+            return TAG_TIME;
+        } else if (clazz == java.sql.Timestamp.class) {
+            return TAG_TIMESTAMP;
+        } else if (clazz == Float.class) {
+            return TAG_FLOAT;
+        } else if (clazz == Short.class) {
+            return TAG_SHORT;
+        } else if (clazz == Byte.class) {
+            return TAG_BYTE;
+        } else if (clazz == HyperLogLog.class) {
+            return TAG_SKETCH;
+        } else {
+            return TAG_SERIALIZED;
+        }
+    }
+
+    private static long toLong(Object o) {
+        if (o instanceof java.util.Date) {
+            return ((java.util.Date) o).getTime();
+        }
+        return ((Number) o).longValue();
+    }
+
+    private static Comparable fromLong(byte tag, long v) {
+        switch (tag) {
+        case TAG_INTEGER:
+            return (int) v;
+        case TAG_LONG:
+            return v;
+        case TAG_SHORT:
+            return (short) v;
+        case TAG_BYTE:
+            return (byte) v;
+        case TAG_DATE:
+            return new java.sql.Date(v);
+        default:
+            throw Util.newInternal("Unknown value tag " + tag);
+        }
+    }
+
+    private static void writeUntagged(Writer w, byte tag, Object o) {
+        switch (tag) {
+        case TAG_NULL:
+        case TAG_SQL_NULL:
+            break;
+        case TAG_STRING:
+            w.writeString((String) o);
+            break;
+        case TAG_INTEGER:
+        case TAG_LONG:
+        case TAG_SHORT:
+        case TAG_BYTE:
+        case TAG_DATE:
+        case TAG_TIME:
+            w.writeZigZagLong(toLong(o));
+            break;
+        case TAG_DOUBLE:
+            w.writeDouble((Double) o);
+            break;
+        case TAG_FLOAT:
+            w.writeVarInt(Float.floatToRawIntBits((Float) o));
+            break;
+        case TAG_BIG_DECIMAL:
+            final BigDecimal bigDecimal = (BigDecimal) o;
+            w.writeZigZagLong(bigDecimal.scale());
+            final byte[] unscaled = bigDecimal.unscaledValue().toByteArray();
+            w.writeVarInt(unscaled.length);
+            w.writeBytes(unscaled, 0, unscaled.length);
+            break;
+        case TAG_BIG_INTEGER:
+            final byte[] bytes = ((BigInteger) o).toByteArray();
+            w.writeVarInt(bytes.length);
+            w.writeBytes(bytes, 0, bytes.length);
+            break;
+        case TAG_BOOLEAN:
+            w.writeByte((Boolean) o ? 1 : 0);
+            break;
+        case TAG_TIMESTAMP:
+            final java.sql.Timestamp timestamp = (java.sql.Timestamp) o;
+            w.writeZigZagLong(timestamp.getTime());
+            w.writeVarInt(timestamp.getNanos());
+            break;
+        case TAG_SKETCH:
+            final byte[] sketch = ((HyperLogLog) o).toByteArray();
+            w.writeVarInt(sketch.length);
+            w.writeBytes(sketch, 0, sketch.length);
+            break;
+        case TAG_SERIALIZED:
+            try {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final ObjectOutputStream oos = new ObjectOutputStream(out);
+                oos.writeObject(o);
+                oos.close();
+                final byte[] serialized = out.toByteArray();
+                w.writeVarInt(serialized.length);
+                w.writeBytes(serialized, 0, serialized.length);
+            } catch (IOException e) {
+                throw Util.newInternal(
+                    e, "Cannot serialize value " + o + " of " + o.getClass());
+            }
+            break;
+        default:
+            throw Util.newInternal("Unknown value tag " + tag);
+        }
+    }
+
+    private static Object readUntagged(Reader r, byte tag)
+        throws IOException
+    {
+        switch (tag) {
+        case TAG_NULL:
+            return null;
+        case TAG_SQL_NULL:
+            return RolapUtil.sqlNullValue;
+        case TAG_STRING:
+            return r.readString();
+        case TAG_INTEGER:
+        case TAG_LONG:
+        case TAG_SHORT:
+        case TAG_BYTE:
+        case TAG_DATE:
+            return fromLong(tag, r.readZigZagLong());
+        case TAG_TIME:
+            return new java.sql.Time(r.readZigZagLong());
+        case TAG_DOUBLE:
+            return r.readDouble();
+        case TAG_FLOAT:
+            return Float.intBitsToFloat(r.readVarInt());
+        case TAG_BIG_DECIMAL:
+        {
+            final int scale = (int) r.readZigZagLong();
+            final byte[] unscaled = new byte[r.readVarInt()];
+            r.readBytes(unscaled, 0, unscaled.length);
+            return new BigDecimal(new BigInteger(unscaled), scale);
+        }
+        case TAG_BIG_INTEGER:
+        {
+            final byte[] bytes = new byte[r.readVarInt()];
+            r.readBytes(bytes, 0, bytes.length);
+            return new BigInteger(bytes);
+        }
+        case TAG_BOOLEAN:
+            return r.readByte() != 0;
+        case TAG_TIMESTAMP:
+        {
+            final java.sql.Timestamp timestamp =
+                new java.sql.Timestamp(r.readZigZagLong());
+            timestamp.setNanos(r.readVarInt());
+            return timestamp;
+        }
+        case TAG_SKETCH:
+        {
+            final byte[] bytes = new byte[r.readVarInt()];
+            r.readBytes(bytes, 0, bytes.length);
+            try {
+                return HyperLogLog.fromByteArray(bytes);
+            } catch (IllegalArgumentException e) {
+                throw (IOException)
+                    new StreamCorruptedException(e.getMessage()).initCause(e);
+            }
+        }
+        case TAG_SERIALIZED:
+        {
+            final int length = r.readVarInt();
+            final int start = r.skip(length);
+            final ObjectInputStream ois =
+                new ObjectInputStream(
+                    new ByteArrayInputStream(r.buf, start, length));
+            try {
+                return ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw (IOException)
+                    new InvalidClassException(e.getMessage()).initCause(e);
+            } finally {
+                ois.close();
+            }
+        }
+        default:
+            throw new StreamCorruptedException("Unknown value tag " + tag);
+        }
+    }
+
+    // -- primitives --------------------------------------------------------
+
+    /**
+     * Growable buffer of bytes with methods to write primitive values.
+     */
+    static final class Writer {
+        private byte[] buf;
+        private int size;
+
+        Writer(int capacity) {
+            buf = new byte[Math.max(capacity, 16)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, size, length);
+            size += length;
+        }
+
+        /** Writes a non-negative int in 1 to 5 bytes. Negative values take
+         * 5 bytes. */
+        void writeVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        /** Writes a signed long so that values of small magnitude take few
+         * bytes. */
+        void writeZigZagLong(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buf[size++] = (byte) v;
+                v >>>= 8;
+            }
+        }
+
+        void writeDouble(double d) {
+            writeLong(Double.doubleToRawLongBits(d));
+        }
+
+        /** Writes a string, which may be null, as its length plus one
+         * followed by its UTF-8 bytes. */
+        void writeString(String s) {
+            if (s == null) {
+                writeVarInt(0);
+                return;
+            }
+            final byte[] bytes;
+            try {
+                bytes = s.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw Util.newInternal(e, "UTF-8 not supported");
+            }
+            writeVarInt(bytes.length + 1);
+            writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Reads primitive values from an array of bytes.
+     */
+    static final class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+        /** Version of the format being read. */
+        private int version = VERSION;
+
+        Reader(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = offset + length;
+        }
+
+        /** Skips a number of bytes and returns the offset of the first. */
+        int skip(int n) throws IOException {
+            if (n < 0 || pos + n > limit) {
+                throw new EOFException();
+            }
+            final int start = pos;
+            pos += n;
+            return start;
+        }
+
+        byte readByte() throws IOException {
+            if (pos >= limit) {
+                throw new EOFException();
+            }
+            return buf[pos++];
+        }
+
+        void readBytes(byte[] bytes, int offset, int length)
+            throws IOException
+        {
+            System.arraycopy(buf, skip(length), bytes, offset, length);
+        }
+
+        int readVarInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                final byte b = readByte();
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                final byte b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        long readZigZagLong() throws IOException {
+            final long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readLong() throws IOException {
+            final int start = skip(8);
+            long v = 0;
+            for (int i = 7; i >= 0; i--) {
+                v = (v << 8) | (buf[start + i] & 0xFFL);
+            }
+            return v;
+        }
+
+        double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        String readString() throws IOException {
+            final int n = readVarInt();
+            if (n == 0) {
+                return null;
+            }
+            return new String(buf, skip(n - 1), n - 1, "UTF-8");
+        }
+    }
+}
+
+// End SegmentCodec.java
@@ -56,13 +56,35 @@ public class SegmentLoader {
 
     private final SegmentCacheManager cacheMgr;
 
+    /**
+     * Whether loaded segments are put into the cache. If false, they are
+     * only returned to the caller of {@link #loadImpl}.
+     */
+    private final boolean cache;
+
     /**
      * Creates a SegmentLoader.
      *
      * @param cacheMgr Cache manager
      */
     public SegmentLoader(SegmentCacheManager cacheMgr) {
+        this(cacheMgr, true);
+    }
+
+    /**
+     * Creates a SegmentLoader that optionally does not cache the segments it
+     * loads.
+     *
+     * <p>A loader that does not cache is used to load the rows that have been
+     * appended to a segment; its segments need not be
+     * {@link #register registered}, and are never put into the index.</p>
+     *
+     * @param cacheMgr Cache manager
+     * @param cache Whether to put loaded segments into the cache
+     */
+    SegmentLoader(SegmentCacheManager cacheMgr, boolean cache) {
         this.cacheMgr = cacheMgr;
+        this.cache = cache;
     }
 
     /**
@@ -105,29 +127,12 @@ public class SegmentLoader {
         List<StarPredicate> compoundPredicateList,
         List<Future<Map<Segment, SegmentWithData>>> segmentFutures)
     {
-        if (!MondrianProperties.instance().DisableCaching.get()) {
-            for (GroupingSet groupingSet : groupingSets) {
-                for (Segment segment : groupingSet.getSegments()) {
-                    final SegmentCacheIndex index =
-                        cacheMgr.getIndexRegistry().getIndex(segment.star);
-                    index.add(
-                        segment.getHeader(),
-                        new SegmentBuilder.StarSegmentConverter(
-                            segment.measure,
-                            compoundPredicateList),
-                        true);
-                    // Make sure that we are registered as a client of
-                    // the segment by invoking getFuture.
-                    Util.discard(
-                        index.getFuture(
-                            Locus.peek().execution,
-                            segment.getHeader()));
-                }
-            }
-        }
+        register(groupingSets, compoundPredicateList);
+        final RolapStar star =
+            groupingSets.get(0).getSegments().get(0).getStar();
         try {
             segmentFutures.add(
-                cacheMgr.sqlExecutor.submit(
+                cacheMgr.getSqlExecutor(star.getDataSource()).submit(
                     new SegmentLoadCommand(
                         Locus.peek(),
                         this,
@@ -139,6 +144,42 @@ public class SegmentLoader {
         }
     }
 
+    /**
+     * Registers the segments of the grouping sets in the segment index as
+     * being loaded, and registers the current execution as a client of each
+     * segment. Must be called from the cache manager thread that owns the
+     * index.
+     *
+     * @param groupingSets Grouping sets whose segments are about to be loaded
+     * @param compoundPredicateList Compound predicates
+     */
+    void register(
+        List<GroupingSet> groupingSets,
+        List<StarPredicate> compoundPredicateList)
+    {
+        if (MondrianProperties.instance().DisableCaching.get()) {
+            return;
+        }
+        for (GroupingSet groupingSet : groupingSets) {
+            for (Segment segment : groupingSet.getSegments()) {
+                final SegmentCacheIndex index =
+                    cacheMgr.getIndexRegistry().getIndex(segment.star);
+                index.add(
+                    segment.getHeader(),
+                    new SegmentBuilder.StarSegmentConverter(
+                        segment.measure,
+                        compoundPredicateList),
+                    true);
+                // Make sure that we are registered as a client of
+                // the segment by invoking getFuture.
+                Util.discard(
+                    index.getFuture(
+                        Locus.peek().execution,
+                        segment.getHeader()));
+            }
+        }
+    }
+
     private static class SegmentLoadCommand
         implements Callable<Map<Segment, SegmentWithData>>
     {
@@ -175,7 +216,12 @@ public class SegmentLoader {
         }
     }
 
-    private Map<Segment, SegmentWithData> loadImpl(
+    /**
+     * Loads the segments of the grouping sets in the current thread. The
+     * segments must have been {@link #register registered}, unless this
+     * loader does not cache.
+     */
+    Map<Segment, SegmentWithData> loadImpl(
         int cellRequestCount,
         List<GroupingSet> groupingSets,
         List<StarPredicate> compoundPredicateList)
@@ -189,6 +235,7 @@ public class SegmentLoader {
         final Map<Segment, SegmentWithData> segmentMap =
             new HashMap<Segment, SegmentWithData>();
         Throwable throwable = null;
+        final long startNanos = System.nanoTime();
         try {
             int arity = defaultColumns.length;
             SortedSet<Comparable>[] axisValueSets =
@@ -212,6 +259,7 @@ public class SegmentLoader {
                     axisContainsNull,
                     axisValueSets,
                     groupingSetsList);
+            rows = foldSketches(rows, arity, groupingSetsList);
 
             boolean sparse =
                 setAxisDataAndDecideSparseUse(
@@ -233,7 +281,8 @@ public class SegmentLoader {
             setDataToSegments(
                 groupingSetsList,
                 groupingDataSetsMap,
-                segmentMap);
+                segmentMap,
+                System.nanoTime() - startNanos);
 
             return segmentMap;
         } catch (Throwable e) {
@@ -246,8 +295,10 @@ public class SegmentLoader {
             if (stmt != null) {
                 stmt.close();
             }
-            setFailOnStillLoadingSegments(
-                segmentMap, groupingSetsList, throwable);
+            if (cache) {
+                setFailOnStillLoadingSegments(
+                    segmentMap, groupingSetsList, throwable);
+            }
         }
     }
 
@@ -257,11 +308,14 @@ public class SegmentLoader {
      *
      * @param header Segment header
      * @param body Segment body
+     * @param loadNanos Time taken to execute the SQL statement and read its
+     *                  results, in nanoseconds
      */
     private void cacheSegment(
         RolapStar star,
         SegmentHeader header,
-        SegmentBody body)
+        SegmentBody body,
+        long loadNanos)
     {
         // Write the segment into external cache.
         //
@@ -273,8 +327,15 @@ public class SegmentLoader {
         // called cacheMgr.loadSucceeded. That call will allow the current
         // query to proceed.
         if (!MondrianProperties.instance().DisableCaching.get()) {
-            cacheMgr.compositeCache.put(header, body);
+            cacheMgr.recordLoadCost(header, loadNanos);
+            final boolean stored = cacheMgr.compositeCache.put(header, body);
             cacheMgr.loadSucceeded(star, header, body);
+            if (!stored) {
+                // The body went to the queries waiting for it, but no cache
+                // kept it (say it exceeds the local cache's budget), so the
+                // index must not offer it to later queries.
+                cacheMgr.remove(star, header);
+            }
         }
     }
 
@@ -416,7 +477,8 @@ public class SegmentLoader {
     private void setDataToSegments(
         GroupingSetsList groupingSetsList,
         Map<BitKey, GroupingSetsList.Cohort> datasetsMap,
-        Map<Segment, SegmentWithData> segmentSlotMap)
+        Map<Segment, SegmentWithData> segmentSlotMap,
+        long loadNanos)
     {
         List<GroupingSet> groupingSets = groupingSetsList.getGroupingSets();
         for (int i = 0; i < groupingSets.size(); i++) {
@@ -435,32 +497,42 @@ public class SegmentLoader {
                         cohort.axes);
 
                 segmentSlotMap.put(segment, segmentWithData);
+                if (!cache) {
+                    continue;
+                }
 
                 final SegmentHeader header = segmentWithData.getHeader();
-                final SegmentBody body =
-                    segmentWithData.getData().createSegmentBody(
-                        new AbstractList<
-                                Pair<SortedSet<Comparable>, Boolean>>()
-                        {
-                            public Pair<SortedSet<Comparable>, Boolean> get(
-                                int index)
-                            {
-                                return segmentWithData.axes[index]
-                                    .getValuesAndIndicator();
-                            }
-
-                            public int size() {
-                                return segmentWithData.axes.length;
-                            }
-                        });
+                final SegmentBody body = createSegmentBody(segmentWithData);
 
                 // Send a message to the agg manager. It will place the segment
                 // in the index.
-                cacheSegment(segment.star, header, body);
+                cacheSegment(segment.star, header, body, loadNanos);
             }
         }
     }
 
+    /**
+     * Creates the body of a segment that has been loaded.
+     *
+     * @param segmentWithData Segment with data
+     * @return Segment body
+     */
+    static SegmentBody createSegmentBody(
+        final SegmentWithData segmentWithData)
+    {
+        return segmentWithData.getData().createSegmentBody(
+            new AbstractList<Pair<SortedSet<Comparable>, Boolean>>() {
+                public Pair<SortedSet<Comparable>, Boolean> get(int index) {
+                    return segmentWithData.axes[index]
+                        .getValuesAndIndicator();
+                }
+
+                public int size() {
+                    return segmentWithData.axes.length;
+                }
+            });
+    }
+
     private Map<BitKey, GroupingSetsList.Cohort> createDataSetsForGroupingSets(
         GroupingSetsList groupingSetsList,
         boolean sparse,
@@ -578,6 +650,7 @@ public class SegmentLoader {
             new Util.Functor1<Void, Statement>() {
                 public Void apply(final Statement stmt) {
                     cacheMgr.execute(
+                        star,
                         new SegmentCacheManager.Command<Void>() {
                             public Void call() throws Exception {
                                 boolean atLeastOneActive = false;
@@ -635,7 +708,7 @@ public class SegmentLoader {
                 -1,
                 // Only one of the two callbacks are required, depending if we
                 // cache the segments or not.
-                MondrianProperties.instance().DisableCaching.get()
+                !cache || MondrianProperties.instance().DisableCaching.get()
                     ? callbackNoCaching
                     : callbackWithCaching);
         } catch (Throwable t) {
@@ -779,11 +852,13 @@ public class SegmentLoader {
                 }
             }
 
-            // pre-compute which measures are numeric
+            // pre-compute which measures are numeric; the values of a sketch
+            // measure are the distinct values of its expression, or sketches
             final boolean[] numeric = new boolean[measureCount];
             int k = 0;
             for (Segment segment : segments) {
-                numeric[k++] = segment.measure.getDatatype().isNumeric();
+                numeric[k++] = segment.measure.getDatatype().isNumeric()
+                    && !segment.measure.getAggregator().isSketch();
             }
 
             // get the measure
@@ -851,6 +926,115 @@ public class SegmentLoader {
         return processedRows;
     }
 
+    /**
+     * Replaces the values of measures whose cells are sketches (see
+     * {@link RolapAggregator#isSketch()}) with {@link HyperLogLog} sketches.
+     * Returns the rows unchanged if there are no such measures.
+     *
+     * <p>If the dialect computes sketches, each row holds the sketch of a
+     * cell, and this method converts it. Otherwise each row holds one
+     * distinct value of a cell, and this method merges the rows of each cell
+     * into one row that holds the sketch of those values. The caller must
+     * not load other measures in the same query, because their values would
+     * be merged too.</p>
+     *
+     * <p>All columns of the returned list have type
+     * {@link SqlStatement.Type#OBJECT}.</p>
+     */
+    RowList foldSketches(
+        RowList rows,
+        int arity,
+        GroupingSetsList groupingSetsList)
+    {
+        final List<Segment> segments = groupingSetsList.getDefaultSegments();
+        final boolean[] sketch = new boolean[segments.size()];
+        boolean found = false;
+        for (int i = 0; i < sketch.length; i++) {
+            sketch[i] = segments.get(i).measure.getAggregator().isSketch();
+            found |= sketch[i];
+        }
+        if (!found) {
+            return rows;
+        }
+        final Dialect dialect = groupingSetsList.getStar().getSqlQueryDialect();
+        final boolean sqlSketches = dialect.supportsDistinctCountSketch();
+        final int columnCount = rows.getTypes().size();
+
+        // Rows of the result, keyed by the values of the columns other than
+        // the sketches. Each sketch is null until it has a value.
+        final Map<List<Object>, Object[]> cells =
+            new LinkedHashMap<List<Object>, Object[]>();
+        for (rows.first(); rows.next();) {
+            final List<Object> key = new ArrayList<Object>(columnCount);
+            for (int c = 0; c < columnCount; c++) {
+                if (!isSketchColumn(c, arity, sketch)) {
+                    key.add(rows.isNull(c) ? null : rows.getObject(c));
+                }
+            }
+            Object[] row = cells.get(key);
+            if (row == null) {
+                row = new Object[columnCount];
+                for (int c = 0; c < columnCount; c++) {
+                    if (!isSketchColumn(c, arity, sketch)) {
+                        row[c] = rows.isNull(c) ? null : rows.getObject(c);
+                    }
+                }
+                cells.put(key, row);
+            }
+            for (int i = 0; i < sketch.length; i++) {
+                if (!sketch[i]) {
+                    continue;
+                }
+                final int c = arity + i;
+                final Object value = rows.isNull(c) ? null : rows.getObject(c);
+                if (value == null || value == Util.nullValue) {
+                    continue;
+                }
+                HyperLogLog cellSketch = (HyperLogLog) row[c];
+                if (sqlSketches) {
+                    final HyperLogLog valueSketch =
+                        dialect.toDistinctCountSketch(value);
+                    cellSketch = cellSketch == null
+                        ? valueSketch
+                        : HyperLogLog.union(
+                            Arrays.asList(cellSketch, valueSketch));
+                } else {
+                    if (cellSketch == null) {
+                        cellSketch = new HyperLogLog();
+                    }
+                    cellSketch.add(value);
+                }
+                row[c] = cellSketch;
+            }
+        }
+
+        final RowList folded =
+            new RowList(
+                Collections.nCopies(columnCount, SqlStatement.Type.OBJECT),
+                Math.max(cells.size(), 1));
+        for (Object[] row : cells.values()) {
+            folded.createRow();
+            for (int c = 0; c < columnCount; c++) {
+                Object value = row[c];
+                if (value == null && isSketchColumn(c, arity, sketch)) {
+                    // The cell has no non-null values; its count is 0.
+                    value = new HyperLogLog();
+                }
+                folded.setObject(c, value);
+            }
+        }
+        return folded;
+    }
+
+    private static boolean isSketchColumn(
+        int column,
+        int arity,
+        boolean[] sketch)
+    {
+        final int i = column - arity;
+        return i >= 0 && i < sketch.length && sketch[i];
+    }
+
     private void checkResultLimit(int currentCount) {
         final int limit =
             MondrianProperties.instance().ResultLimit.get();
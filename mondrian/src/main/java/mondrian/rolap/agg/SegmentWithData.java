@@ -11,6 +11,7 @@ package mondrian.rolap.agg;
 
 import mondrian.olap.Util;
 import mondrian.rolap.*;
+import mondrian.util.HyperLogLog;
 
 import java.util.*;
 
@@ -147,9 +148,22 @@ public class SegmentWithData extends Segment {
      * @see mondrian.olap.Util#deprecated(Object) make package-private?
      */
     public Object getCellValue(Object[] keys) {
+        return getCellValue(keys, CellKey.Generator.newCellKey(axes.length));
+    }
+
+    /**
+     * Retrieves the value at the location identified by
+     * <code>keys</code>, using a caller-supplied cell key as scratch space
+     * so that the lookup does not allocate.
+     *
+     * @param keys Key of each axis
+     * @param cellKey Cell key of the same arity as this segment; overwritten
+     * @return Value, as for {@link #getCellValue(Object[])}
+     */
+    public Object getCellValue(Object[] keys, CellKey cellKey) {
         assert keys.length == axes.length;
+        assert cellKey.size() == axes.length;
         int missed = 0;
-        CellKey cellKey = CellKey.Generator.newCellKey(axes.length);
         for (int i = 0; i < keys.length; i++) {
             Comparable key = (Comparable) keys[i];
             int offset = axes[i].getOffset(key);
@@ -179,6 +193,10 @@ public class SegmentWithData extends Segment {
             Object o = data.getObject(cellKey);
             if (o == null) {
                 o = Util.nullValue;
+            } else if (o instanceof HyperLogLog) {
+                // The cell of an approx-distinct-count measure holds a sketch
+                // so that it can be rolled up; its value is the estimate.
+                o = ((HyperLogLog) o).estimate();
             }
             return o;
         }
@@ -299,7 +317,8 @@ public class SegmentWithData extends Segment {
         SegmentDataset newData =
             createDataset(
                 axes,
-                data instanceof SparseSegmentDataset,
+                data instanceof SparseSegmentDataset
+                || data instanceof PrimitiveSparseSegmentDataset,
                 data.getType(),
                 valueCount);
 
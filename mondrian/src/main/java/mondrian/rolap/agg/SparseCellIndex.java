@@ -0,0 +1,293 @@
+/*
+* This software is subject to the terms of the Eclipse Public License v1.0
+* Agreement, available at the following URL:
+* http://www.eclipse.org/legal/epl-v10.html.
+* You must accept the terms of that agreement to use this software.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package mondrian.rolap.agg;
+
+import mondrian.rolap.CellKey;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Assigns consecutive indexes to the cells of a sparse segment, so that cell
+ * values can be stored in primitive arrays.
+ *
+ * <p>The coordinates of a cell are packed into a {@code long}, each axis
+ * taking as many bits as are needed to hold its largest ordinal, and the keys
+ * are held in an open-addressing hash table of primitive arrays. Adding or
+ * looking up a cell does not allocate any objects. The storage requirement
+ * is 8 bytes per cell for the key and at most 16 bytes per cell for the hash
+ * table, compared to around 100 bytes per cell for a {@link HashMap} of
+ * {@link CellKey}.</p>
+ *
+ * <p>If the coordinates do not fit into 63 bits, the index falls back to a
+ * {@link HashMap} keyed by {@link CellKey}.</p>
+ *
+ * <p>NOTE: This class is not synchronized.</p>
+ */
+class SparseCellIndex implements Serializable {
+    private static final long serialVersionUID = 4620183750921043172L;
+
+    private static final long NO_KEY = -1L;
+
+    private final int[] axisLengths;
+    private final int[] shifts;
+    private final long[] masks;
+
+    /** Packed keys, in order of index; null if coordinates do not fit. */
+    private long[] keys;
+
+    /** Open-addressing hash table. Each slot holds an index plus one, or 0
+     * if empty. Its length is a power of two. */
+    private int[] table;
+
+    private int size;
+
+    /** Fallback if coordinates do not fit into a long. */
+    private Map<CellKey, Integer> wideMap;
+    private List<CellKey> wideKeys;
+
+    /**
+     * Creates a SparseCellIndex.
+     *
+     * @param axisLengths Number of ordinals of each axis, including the
+     *                    null ordinal, if any
+     * @param capacity Expected number of cells
+     */
+    SparseCellIndex(int[] axisLengths, int capacity) {
+        this.axisLengths = axisLengths.clone();
+        this.shifts = new int[axisLengths.length];
+        this.masks = new long[axisLengths.length];
+        int bits = 0;
+        for (int i = axisLengths.length - 1; i >= 0; i--) {
+            final int width = 32 - Integer.numberOfLeadingZeros(
+                Math.max(axisLengths[i] - 1, 0));
+            shifts[i] = bits;
+            masks[i] = (1L << width) - 1;
+            bits += width;
+        }
+        if (bits < 64) {
+            keys = new long[Math.max(capacity, 4)];
+            table = new int[tableSize(capacity)];
+        } else {
+            wideMap = new HashMap<CellKey, Integer>();
+            wideKeys = new ArrayList<CellKey>();
+        }
+    }
+
+    private static int tableSize(int capacity) {
+        // Keep the load factor at or below 0.5.
+        return Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) << 1;
+    }
+
+    /**
+     * Returns the number of cells.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of axes.
+     */
+    int getArity() {
+        return axisLengths.length;
+    }
+
+    /**
+     * Returns the index of the cell with the given coordinates, or -1 if there
+     * is no such cell.
+     */
+    int get(int[] ordinals) {
+        if (keys == null) {
+            final Integer index =
+                wideMap.get(CellKey.Generator.newCellKey(ordinals));
+            return index == null ? -1 : index;
+        }
+        final long key = pack(ordinals);
+        return key == NO_KEY ? -1 : find(key);
+    }
+
+    /**
+     * Returns the index of the cell with the given coordinates, or -1 if there
+     * is no such cell.
+     */
+    int get(CellKey cellKey) {
+        if (keys == null) {
+            final Integer index = wideMap.get(cellKey);
+            return index == null ? -1 : index;
+        }
+        if (cellKey.size() != axisLengths.length) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < axisLengths.length; i++) {
+            final int ordinal = cellKey.getAxis(i);
+            if (ordinal < 0 || ordinal >= axisLengths[i]) {
+                return -1;
+            }
+            key |= (long) ordinal << shifts[i];
+        }
+        return find(key);
+    }
+
+    /**
+     * Returns the index of the cell with the given coordinates, adding the
+     * cell if it is not present. A new cell gets index {@link #size()} - 1.
+     *
+     * @param ordinals Coordinates; not retained
+     * @return Index of cell
+     */
+    int add(int[] ordinals) {
+        if (keys == null) {
+            final CellKey cellKey = CellKey.Generator.newCellKey(ordinals);
+            final Integer index = wideMap.get(cellKey);
+            if (index != null) {
+                return index;
+            }
+            wideMap.put(cellKey, size);
+            wideKeys.add(cellKey);
+            return size++;
+        }
+        final long key = pack(ordinals);
+        if (key == NO_KEY) {
+            throw new IllegalArgumentException(
+                "Coordinates out of range: " + Arrays.toString(ordinals));
+        }
+        final int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        for (;;) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                break;
+            }
+            if (keys[entry - 1] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(size * 2, 4));
+        }
+        keys[size] = key;
+        table[slot] = ++size;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return size - 1;
+    }
+
+    /**
+     * Writes the coordinates of the cell with a given index into an array.
+     */
+    void getOrdinals(int index, int[] ordinals) {
+        if (keys == null) {
+            final CellKey cellKey = wideKeys.get(index);
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = cellKey.getAxis(i);
+            }
+            return;
+        }
+        final long key = keys[index];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = (int) ((key >>> shifts[i]) & masks[i]);
+        }
+    }
+
+    /**
+     * Creates a cell key for the cell with a given index.
+     */
+    CellKey getCellKey(int index) {
+        if (keys == null) {
+            return wideKeys.get(index).copy();
+        }
+        final int[] ordinals = new int[axisLengths.length];
+        getOrdinals(index, ordinals);
+        return CellKey.Generator.newCellKey(ordinals);
+    }
+
+    /**
+     * Releases unused capacity. Call when no more cells will be added.
+     */
+    void trim() {
+        if (keys != null) {
+            if (keys.length > size) {
+                keys = Arrays.copyOf(keys, size);
+            }
+            if (table.length > tableSize(size)) {
+                rehash(tableSize(size));
+            }
+        }
+    }
+
+    /**
+     * Returns an estimate of the number of bytes used by this index.
+     */
+    long estimateSize() {
+        if (keys == null) {
+            // Hash map entry, cell key and boxed index.
+            return size * (AbstractSegmentBody.SET_ENTRY_OVERHEAD
+                + AbstractSegmentBody.OBJECT_OVERHEAD
+                + 4L * axisLengths.length
+                + AbstractSegmentBody.BOXED_VALUE_SIZE);
+        }
+        return AbstractSegmentBody.arraySize(8, keys.length)
+            + AbstractSegmentBody.arraySize(4, table.length);
+    }
+
+    private long pack(int[] ordinals) {
+        if (ordinals.length != axisLengths.length) {
+            return NO_KEY;
+        }
+        long key = 0;
+        for (int i = 0; i < ordinals.length; i++) {
+            final int ordinal = ordinals[i];
+            if (ordinal < 0 || ordinal >= axisLengths[i]) {
+                return NO_KEY;
+            }
+            key |= (long) ordinal << shifts[i];
+        }
+        return key;
+    }
+
+    private int find(long key) {
+        final int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        for (;;) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (keys[entry - 1] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(int tableSize) {
+        table = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(keys[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    private static int hash(long key) {
+        // Multiplicative hash; the high bits are well mixed.
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) ^ (int) h;
+    }
+}
+
+// End SparseCellIndex.java
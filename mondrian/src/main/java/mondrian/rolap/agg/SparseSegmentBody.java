@@ -46,6 +46,20 @@ class SparseSegmentBody extends AbstractSegmentBody {
         return keys.length;
     }
 
+    @Override
+    protected long estimateCellsSize() {
+        long size =
+            arraySize(REFERENCE_SIZE, keys.length)
+            + arraySize(REFERENCE_SIZE, data.length);
+        for (int i = 0; i < keys.length; i++) {
+            // A cell key holds one int ordinal per axis.
+            size += OBJECT_OVERHEAD
+                + arraySize(4, keys[i].size())
+                + estimateValueSize(data[i]);
+        }
+        return size;
+    }
+
     @Override
     protected Object getObject(int i) {
         throw new UnsupportedOperationException();
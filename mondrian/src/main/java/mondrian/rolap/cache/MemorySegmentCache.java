@@ -9,23 +9,61 @@
 
 package mondrian.rolap.cache;
 
+import mondrian.rolap.agg.SegmentBuilder;
 import mondrian.spi.*;
 
+import org.apache.log4j.Logger;
+
 import java.lang.ref.SoftReference;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of {@link mondrian.spi.SegmentCache} that stores segments
  * in memory.
  *
- * <p>Segments are held via soft references, so the garbage collector can remove
- * them if it sees fit.</p>
+ * <p>If the cache has no memory budget, segments are held via soft references,
+ * so the garbage collector can remove them if it sees fit.</p>
+ *
+ * <p>If the cache has a memory budget, segments are held via strong references
+ * and the cache keeps an estimate of the heap they occupy. When that estimate
+ * exceeds the budget, the cache evicts segments until it is back within
+ * budget. The policy is a variant of Greedy-Dual-Size-Frequency: each segment
+ * has a priority</p>
+ *
+ * <blockquote>inflation + hits &times; loadCost / size</blockquote>
+ *
+ * <p>which is recomputed every time the segment is read, and the segment with
+ * the lowest priority is evicted first. The inflation value rises to the
+ * priority of each segment that is evicted, so that segments which have not
+ * been used for a while gradually lose out to recently used ones. A segment
+ * that was expensive to load from SQL, or that is used often, or that is
+ * small, stays in the cache longer.</p>
+ *
+ * <p>The cost of loading a segment is reported by the segment loader via
+ * {@link #recordLoadCost(SegmentHeader, long)} before the segment is put into
+ * the cache. Segments whose cost is unknown, such as those created by rollup,
+ * are assumed to cost {@link #DEFAULT_LOAD_COST_NANOS}.</p>
+ *
+ * <p>Evictions are reported to listeners as
+ * {@link SegmentCacheListener.SegmentCacheEvent.EventType#ENTRY_DELETED}
+ * events that are not local, because they were not caused by a call from the
+ * cache's owner; this allows the segment index to forget the segment.</p>
  *
  * @author Julian Hyde
  */
 public class MemorySegmentCache implements SegmentCache {
+    private static final Logger LOGGER =
+        Logger.getLogger(MemorySegmentCache.class);
+
+    /**
+     * Load cost assumed for a segment whose cost was not recorded: one
+     * millisecond.
+     */
+    public static final long DEFAULT_LOAD_COST_NANOS = 1000000L;
+
     // Use a thread-safe map because the SegmentCache
     // interface requires thread safety.
     private final Map<SegmentHeader, SoftReference<SegmentBody>> map =
@@ -33,7 +71,78 @@ public class MemorySegmentCache implements SegmentCache {
     private final List<SegmentCacheListener> listeners =
         new CopyOnWriteArrayList<SegmentCacheListener>();
 
+    // Used instead of "map" if the cache has a memory budget.
+    private final long budget;
+    private final Map<SegmentHeader, Entry> entries =
+        new ConcurrentHashMap<SegmentHeader, Entry>();
+    private final Map<SegmentHeader, Long> pendingCosts =
+        new ConcurrentHashMap<SegmentHeader, Long>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private volatile double inflation;
+
+    /**
+     * Creates a MemorySegmentCache with no memory budget.
+     */
+    public MemorySegmentCache() {
+        this(0);
+    }
+
+    /**
+     * Creates a MemorySegmentCache.
+     *
+     * @param budget Maximum estimated size of the segment bodies held by this
+     *               cache, in bytes; if 0 or less, bodies are held via soft
+     *               references and there is no budget
+     */
+    public MemorySegmentCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the memory budget of this cache, in bytes, or 0 if bodies are
+     * held via soft references.
+     */
+    public long getBudget() {
+        return budget > 0 ? budget : 0;
+    }
+
+    /**
+     * Returns the estimated number of bytes occupied by the segment bodies
+     * in this cache. Always 0 if the cache has no budget.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Records how long it took to load a segment. Called before the segment
+     * is put into the cache; has no effect if the cache has no budget.
+     *
+     * @param header Segment header
+     * @param nanos Time taken to load the segment, in nanoseconds
+     */
+    public void recordLoadCost(SegmentHeader header, long nanos) {
+        if (budget <= 0) {
+            return;
+        }
+        final Entry entry = entries.get(header);
+        if (entry != null) {
+            entry.cost = Math.max(nanos, 1L);
+        } else {
+            pendingCosts.put(header, nanos);
+        }
+    }
+
     public SegmentBody get(SegmentHeader header) {
+        if (budget > 0) {
+            final Entry entry = entries.get(header);
+            if (entry == null) {
+                return null;
+            }
+            entry.touch(inflation);
+            return entry.body;
+        }
         final SoftReference<SegmentBody> ref = map.get(header);
         if (ref == null) {
             return null;
@@ -46,6 +155,9 @@ public class MemorySegmentCache implements SegmentCache {
     }
 
     public boolean contains(SegmentHeader header) {
+        if (budget > 0) {
+            return entries.containsKey(header);
+        }
         final SoftReference<SegmentBody> ref = map.get(header);
         if (ref == null) {
             return false;
@@ -59,15 +171,56 @@ public class MemorySegmentCache implements SegmentCache {
     }
 
     public List<SegmentHeader> getSegmentHeaders() {
+        if (budget > 0) {
+            return new ArrayList<SegmentHeader>(entries.keySet());
+        }
         return new ArrayList<SegmentHeader>(map.keySet());
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If the cache has a memory budget and the body alone exceeds it, the
+     * body is not stored, and this method returns false.
+     */
     public boolean put(final SegmentHeader header, SegmentBody body) {
         // REVIEW: What's the difference between returning false
         // and throwing an exception?
         assert header != null;
         assert body != null;
-        map.put(header, new SoftReference<SegmentBody>(body));
+        List<SegmentHeader> evicted = Collections.emptyList();
+        if (budget > 0) {
+            try {
+                final long size =
+                    Math.max(SegmentBuilder.estimateSize(body), 1L);
+                if (size > budget) {
+                    // The segment would not fit even in an empty cache.
+                    // Don't evict everything else to make room for it.
+                    LOGGER.debug(
+                        "MemorySegmentCache.put: segment of " + size
+                        + " bytes exceeds budget of " + budget + " bytes:\n"
+                        + header);
+                    return false;
+                }
+                final Long cost = pendingCosts.get(header);
+                final Entry entry =
+                    new Entry(
+                        body,
+                        size,
+                        cost == null ? DEFAULT_LOAD_COST_NANOS : cost,
+                        inflation);
+                final Entry previous = entries.put(header, entry);
+                usedBytes.addAndGet(
+                    previous == null ? size : size - previous.size);
+                if (usedBytes.get() > budget) {
+                    evicted = evict(header);
+                }
+            } finally {
+                pendingCosts.remove(header);
+            }
+        } else {
+            map.put(header, new SoftReference<SegmentBody>(body));
+        }
         fireSegmentCacheEvent(
             new SegmentCache.SegmentCacheListener.SegmentCacheEvent() {
                 public boolean isLocal() {
@@ -81,33 +234,79 @@ public class MemorySegmentCache implements SegmentCache {
                         .EventType.ENTRY_CREATED;
                 }
             });
+        for (SegmentHeader evictedHeader : evicted) {
+            fireDeleted(evictedHeader, false);
+        }
         return true; // success
     }
 
     public boolean remove(final SegmentHeader header) {
-        final boolean result =
-            map.remove(header) != null;
+        final boolean result;
+        if (budget > 0) {
+            pendingCosts.remove(header);
+            final Entry entry = entries.remove(header);
+            if (entry != null) {
+                usedBytes.addAndGet(-entry.size);
+            }
+            result = entry != null;
+        } else {
+            result = map.remove(header) != null;
+        }
         if (result) {
-            fireSegmentCacheEvent(
-                new SegmentCache.SegmentCacheListener.SegmentCacheEvent() {
-                    public boolean isLocal() {
-                        return true;
-                    }
-                    public SegmentHeader getSource() {
-                        return header;
-                    }
-                    public EventType getEventType() {
-                        return
-                            SegmentCacheListener.SegmentCacheEvent
-                                .EventType.ENTRY_DELETED;
-                    }
-                });
+            fireDeleted(header, true);
         }
         return result;
     }
 
+    /**
+     * Evicts segments, lowest priority first, until the estimated size of the
+     * cache is within budget.
+     *
+     * @param keep Header of the segment that has just been added, which is
+     *             not to be evicted
+     * @return Headers of the evicted segments
+     */
+    private List<SegmentHeader> evict(SegmentHeader keep) {
+        synchronized (evictionLock) {
+            if (usedBytes.get() <= budget) {
+                return Collections.emptyList();
+            }
+            // Snapshot the priorities; they change as other threads read
+            // segments, and the sort requires a consistent ordering.
+            final List<Candidate> candidates =
+                new ArrayList<Candidate>(entries.size());
+            for (Map.Entry<SegmentHeader, Entry> e : entries.entrySet()) {
+                if (!e.getKey().equals(keep)) {
+                    candidates.add(new Candidate(e.getKey(), e.getValue()));
+                }
+            }
+            Collections.sort(candidates);
+            final List<SegmentHeader> evicted = new ArrayList<SegmentHeader>();
+            for (Candidate candidate : candidates) {
+                if (usedBytes.get() <= budget) {
+                    break;
+                }
+                if (entries.remove(candidate.header, candidate.entry)) {
+                    usedBytes.addAndGet(-candidate.entry.size);
+                    inflation = Math.max(inflation, candidate.priority);
+                    evicted.add(candidate.header);
+                }
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                    "MemorySegmentCache.evict: evicted " + evicted.size()
+                    + " segments; " + usedBytes.get() + " of " + budget
+                    + " bytes used");
+            }
+            return evicted;
+        }
+    }
+
     public void tearDown() {
         map.clear();
+        entries.clear();
+        pendingCosts.clear();
+        usedBytes.set(0);
         listeners.clear();
     }
 
@@ -123,6 +322,23 @@ public class MemorySegmentCache implements SegmentCache {
         return true;
     }
 
+    private void fireDeleted(final SegmentHeader header, final boolean local) {
+        fireSegmentCacheEvent(
+            new SegmentCache.SegmentCacheListener.SegmentCacheEvent() {
+                public boolean isLocal() {
+                    return local;
+                }
+                public SegmentHeader getSource() {
+                    return header;
+                }
+                public EventType getEventType() {
+                    return
+                        SegmentCacheListener.SegmentCacheEvent
+                            .EventType.ENTRY_DELETED;
+                }
+            });
+    }
+
     public void fireSegmentCacheEvent(
         SegmentCache.SegmentCacheListener.SegmentCacheEvent evt)
     {
@@ -130,6 +346,52 @@ public class MemorySegmentCache implements SegmentCache {
             listener.handle(evt);
         }
     }
+
+    /**
+     * Segment body held by a cache that has a memory budget, with the
+     * statistics used to decide which segment to evict.
+     */
+    private static class Entry {
+        final SegmentBody body;
+        final long size;
+        volatile long cost;
+        // Updated without synchronization; an occasional lost update only
+        // makes the estimate slightly less accurate.
+        volatile int hits;
+        volatile double priority;
+
+        Entry(SegmentBody body, long size, long cost, double inflation) {
+            this.body = body;
+            this.size = size;
+            this.cost = Math.max(cost, 1L);
+            touch(inflation);
+        }
+
+        void touch(double inflation) {
+            final int hits = ++this.hits;
+            priority = inflation + (double) hits * cost / size;
+        }
+    }
+
+    /**
+     * Entry considered for eviction, with its priority at the time the
+     * eviction started.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        final SegmentHeader header;
+        final Entry entry;
+        final double priority;
+
+        Candidate(SegmentHeader header, Entry entry) {
+            this.header = header;
+            this.entry = entry;
+            this.priority = entry.priority;
+        }
+
+        public int compareTo(Candidate o) {
+            return Double.compare(priority, o.priority);
+        }
+    }
 }
 
 // End MemorySegmentCache.java
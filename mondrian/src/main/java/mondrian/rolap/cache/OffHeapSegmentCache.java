@@ -0,0 +1,331 @@
+/*
+* This software is subject to the terms of the Eclipse Public License v1.0
+* Agreement, available at the following URL:
+* http://www.eclipse.org/legal/epl-v10.html.
+* You must accept the terms of that agreement to use this software.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package mondrian.rolap.cache;
+
+import mondrian.olap.MondrianProperties;
+import mondrian.olap.Util;
+import mondrian.rolap.agg.SegmentBodyBuffers;
+import mondrian.spi.*;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implementation of {@link mondrian.spi.SegmentCache} that stores segment
+ * bodies outside the Java heap.
+ *
+ * <p>Each body is encoded by {@link SegmentBodyBuffers} into its own buffer.
+ * If {@link MondrianProperties#OffHeapSegmentCacheDirectory} is set, the
+ * buffer is a file in that directory mapped into memory, so the cache can be
+ * larger than physical memory and the operating system's page cache decides
+ * which parts are resident; otherwise it is a direct buffer. Either way, the
+ * garbage collector only sees the segment headers and a small object per
+ * segment.</p>
+ *
+ * <p>Bodies of dense {@code double} and {@code int} segments are read without
+ * copying: {@link #get(SegmentHeader)} returns a body that reads cell values
+ * from the buffer. Other bodies are decoded onto the heap.</p>
+ *
+ * <p>If {@link MondrianProperties#OffHeapSegmentCacheMaxSize} is set, the
+ * least recently used segments are evicted when the cache would exceed it,
+ * and listeners receive an
+ * {@link SegmentCacheListener.SegmentCacheEvent.EventType#ENTRY_DELETED}
+ * event.</p>
+ *
+ * <p>To use this cache, set {@link MondrianProperties#SegmentCache} to the
+ * name of this class. Usually you will also want to set
+ * {@link MondrianProperties#DisableLocalSegmentCache}, otherwise every segment
+ * is also held on the heap by the local cache.</p>
+ */
+public class OffHeapSegmentCache implements SegmentCache {
+    private static final Logger LOGGER =
+        Logger.getLogger(OffHeapSegmentCache.class);
+
+    private final File directory;
+    private final long maxSize;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final List<SegmentCacheListener> listeners =
+        new CopyOnWriteArrayList<SegmentCacheListener>();
+
+    // Access-ordered, so that the first entry is the least recently used.
+    // Guarded by itself.
+    private final LinkedHashMap<SegmentHeader, Slot> map =
+        new LinkedHashMap<SegmentHeader, Slot>(16, 0.75f, true);
+
+    /**
+     * Creates an OffHeapSegmentCache configured from
+     * {@link MondrianProperties}.
+     */
+    public OffHeapSegmentCache() {
+        this(
+            directory(
+                MondrianProperties.instance()
+                    .OffHeapSegmentCacheDirectory.get()),
+            MondrianProperties.instance().OffHeapSegmentCacheMaxSize.get()
+            * 1024L * 1024L);
+    }
+
+    /**
+     * Creates an OffHeapSegmentCache.
+     *
+     * @param directory Directory in which to create memory-mapped files, or
+     *                  null to use direct buffers
+     * @param maxSize Maximum number of bytes of segment data, or 0 if there is
+     *                no limit
+     */
+    public OffHeapSegmentCache(File directory, long maxSize) {
+        if (directory != null) {
+            try {
+                // Each cache has its own directory, so that several Mondrian
+                // instances can share the same parent.
+                final File dir =
+                    File.createTempFile("mondrian-segments-", "", directory);
+                if (!dir.delete() || !dir.mkdir()) {
+                    throw new IOException("Cannot create directory " + dir);
+                }
+                this.directory = dir;
+            } catch (IOException e) {
+                throw Util.newError(
+                    e,
+                    "Cannot create off-heap segment cache in " + directory);
+            }
+        } else {
+            this.directory = null;
+        }
+        this.maxSize = maxSize;
+    }
+
+    private static File directory(String path) {
+        return path == null || path.length() == 0 ? null : new File(path);
+    }
+
+    public SegmentBody get(SegmentHeader header) {
+        final Slot slot;
+        synchronized (map) {
+            slot = map.get(header);
+        }
+        if (slot == null) {
+            return null;
+        }
+        try {
+            return SegmentBodyBuffers.decode(slot.buffer);
+        } catch (IOException e) {
+            LOGGER.error("Failed to decode segment " + header, e);
+            remove(header);
+            return null;
+        }
+    }
+
+    public List<SegmentHeader> getSegmentHeaders() {
+        synchronized (map) {
+            return new ArrayList<SegmentHeader>(map.keySet());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Returns false, and stores nothing, if the body is larger than the
+     * maximum size of the cache, is too large to encode into a buffer, or
+     * cannot be written.</p>
+     */
+    public boolean put(SegmentHeader header, SegmentBody body) {
+        final Slot slot;
+        try {
+            slot = allocate(body);
+        } catch (IOException e) {
+            LOGGER.error("Failed to write segment " + header, e);
+            return false;
+        }
+        if (slot == null) {
+            // Too large to encode into a buffer.
+            return false;
+        }
+        if (maxSize > 0 && slot.size > maxSize) {
+            slot.release();
+            return false;
+        }
+        final List<SegmentHeader> evicted = new ArrayList<SegmentHeader>();
+        synchronized (map) {
+            release(map.put(header, slot));
+            usedBytes.addAndGet(slot.size);
+            if (maxSize > 0) {
+                final Iterator<Map.Entry<SegmentHeader, Slot>> iterator =
+                    map.entrySet().iterator();
+                while (usedBytes.get() > maxSize && iterator.hasNext()) {
+                    final Map.Entry<SegmentHeader, Slot> entry =
+                        iterator.next();
+                    if (entry.getKey().equals(header)) {
+                        continue;
+                    }
+                    iterator.remove();
+                    release(entry.getValue());
+                    evicted.add(entry.getKey());
+                }
+            }
+        }
+        for (SegmentHeader evictedHeader : evicted) {
+            fireEvicted(evictedHeader);
+        }
+        return true;
+    }
+
+    public boolean remove(SegmentHeader header) {
+        final Slot slot;
+        synchronized (map) {
+            slot = map.remove(header);
+            release(slot);
+        }
+        return slot != null;
+    }
+
+    public void tearDown() {
+        synchronized (map) {
+            for (Slot slot : map.values()) {
+                release(slot);
+            }
+            map.clear();
+        }
+        listeners.clear();
+        if (directory != null && !directory.delete()) {
+            directory.deleteOnExit();
+        }
+    }
+
+    public void addListener(SegmentCacheListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SegmentCacheListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean supportsRichIndex() {
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes of segment data held by this cache.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Encodes a body into a new buffer, or returns null if the body is too
+     * large to encode.
+     */
+    private Slot allocate(SegmentBody body) throws IOException {
+        if (directory == null) {
+            final ByteBuffer buffer =
+                SegmentBodyBuffers.encode(
+                    body,
+                    new SegmentBodyBuffers.Allocator() {
+                        public ByteBuffer allocate(int length) {
+                            return ByteBuffer.allocateDirect(length);
+                        }
+                    });
+            return buffer == null ? null : new Slot(buffer, null);
+        }
+        final File file = File.createTempFile("segment-", ".bin", directory);
+        boolean success = false;
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final ByteBuffer buffer =
+                    SegmentBodyBuffers.encode(
+                        body,
+                        new SegmentBodyBuffers.Allocator() {
+                            public ByteBuffer allocate(int length)
+                                throws IOException
+                            {
+                                // The mapping remains valid after the
+                                // channel is closed.
+                                return channel.map(
+                                    FileChannel.MapMode.READ_WRITE, 0, length);
+                            }
+                        });
+                if (buffer == null) {
+                    return null;
+                }
+                success = true;
+                return new Slot(buffer, file);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            if (!success && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private void release(Slot slot) {
+        if (slot != null) {
+            usedBytes.addAndGet(-slot.size);
+            slot.release();
+        }
+    }
+
+    private void fireEvicted(final SegmentHeader header) {
+        final SegmentCacheListener.SegmentCacheEvent event =
+            new SegmentCacheListener.SegmentCacheEvent() {
+                public boolean isLocal() {
+                    return false;
+                }
+                public SegmentHeader getSource() {
+                    return header;
+                }
+                public EventType getEventType() {
+                    return EventType.ENTRY_DELETED;
+                }
+            };
+        for (SegmentCacheListener listener : listeners) {
+            listener.handle(event);
+        }
+    }
+
+    /**
+     * Buffer holding an encoded segment body, and the file that backs it, if
+     * any.
+     */
+    private static class Slot {
+        final ByteBuffer buffer;
+        final File file;
+        final long size;
+
+        Slot(ByteBuffer buffer, File file) {
+            this.buffer = buffer;
+            this.file = file;
+            this.size = buffer.capacity();
+        }
+
+        /**
+         * Deletes the backing file. Bodies already returned by
+         * {@link OffHeapSegmentCache#get} keep reading from the mapping,
+         * which the operating system releases once the buffer is garbage
+         * collected.
+         */
+        void release() {
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
+
+// End OffHeapSegmentCache.java
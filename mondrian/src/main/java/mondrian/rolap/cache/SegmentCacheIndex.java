@@ -190,6 +190,16 @@ public interface SegmentCacheIndex {
      */
     Future<SegmentBody> getFuture(Execution exec, SegmentHeader header);
 
+    /**
+     * Returns whether a segment is currently loading. Unlike
+     * {@link #getFuture(Execution, SegmentHeader)}, does not register an
+     * execution as a client of the load.
+     *
+     * @param header Segment header
+     * @return Whether the segment is loading
+     */
+    boolean isLoading(SegmentHeader header);
+
     /**
      * This method must remove all registrations as a client
      * for the given execution.
@@ -41,8 +41,12 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
     private static final Logger LOGGER =
         Logger.getLogger(SegmentCacheIndexImpl.class);
 
-    private final Map<List, List<SegmentHeader>> bitkeyMap =
-        new HashMap<List, List<SegmentHeader>>();
+    /**
+     * The bitkey map indexes the segments of each dimensionality, so that
+     * we can quickly find which segments contain a cell.
+     */
+    private final Map<List, SegmentHeaderIndex> bitkeyMap =
+        new HashMap<List, SegmentHeaderIndex>();
 
     /**
      * The fact map allows us to spot quickly which
@@ -136,15 +140,17 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
                 constrainedColsBitKey,
                 measureName,
                 compoundPredicates);
-        final List<SegmentHeader> headerList = bitkeyMap.get(starKey);
-        if (headerList == null) {
+        final SegmentHeaderIndex headerIndex = bitkeyMap.get(starKey);
+        if (headerIndex == null) {
             LOGGER.trace(
                 "SegmentCacheIndexImpl("
                 + System.identityHashCode(this)
                 + ").locate:NOMATCH");
             return Collections.emptyList();
         }
-        for (SegmentHeader header : headerList) {
+        // The index narrows the search to the segments whose columns contain
+        // the coordinates; check exclusions on those only.
+        for (SegmentHeader header : headerIndex.locate(coordinates)) {
             if (matches(header, coordinates, compoundPredicates)) {
                 // Be lazy. Don't allocate a list unless there is at least one
                 // entry.
@@ -194,14 +200,12 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         }
 
         final List bitkeyKey = makeBitkeyKey(header);
-        List<SegmentHeader> headerList = bitkeyMap.get(bitkeyKey);
-        if (headerList == null) {
-            headerList = new ArrayList<SegmentHeader>();
-            bitkeyMap.put(bitkeyKey, headerList);
-        }
-        if (!headerList.contains(header)) {
-            headerList.add(header);
+        SegmentHeaderIndex headerIndex = bitkeyMap.get(bitkeyKey);
+        if (headerIndex == null) {
+            headerIndex = new SegmentHeaderIndex();
+            bitkeyMap.put(bitkeyKey, headerIndex);
         }
+        headerIndex.add(header);
 
         final List factKey = makeFactKey(header);
         FactInfo factInfo = factMap.get(factKey);
@@ -209,9 +213,7 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
             factInfo = new FactInfo();
             factMap.put(factKey, factInfo);
         }
-        if (!factInfo.headerList.contains(header)) {
-            factInfo.headerList.add(header);
-        }
+        factInfo.headerSet.add(header);
         if (!factInfo.bitkeyPoset
             .contains(header.getConstrainedColumnsBitKey()))
         {
@@ -227,9 +229,7 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
             fuzzyFactInfo = new FuzzyFactInfo();
             fuzzyFactMap.put(fuzzyFactKey, fuzzyFactInfo);
         }
-        if (!fuzzyFactInfo.headerList.contains(header)) {
-            fuzzyFactInfo.headerList.add(header);
-        }
+        fuzzyFactInfo.headerIndex.add(header);
     }
 
     public void update(
@@ -248,19 +248,19 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         headerMap.put(newHeader, headerInfo);
 
         final List oldBitkeyKey = makeBitkeyKey(oldHeader);
-        List<SegmentHeader> headerList = bitkeyMap.get(oldBitkeyKey);
-        headerList.remove(oldHeader);
-        headerList.add(newHeader);
+        final SegmentHeaderIndex headerIndex = bitkeyMap.get(oldBitkeyKey);
+        headerIndex.remove(oldHeader);
+        headerIndex.add(newHeader);
 
         final List oldFactKey = makeFactKey(oldHeader);
         final FactInfo factInfo = factMap.get(oldFactKey);
-        factInfo.headerList.remove(oldHeader);
-        factInfo.headerList.add(newHeader);
+        factInfo.headerSet.remove(oldHeader);
+        factInfo.headerSet.add(newHeader);
 
         final List oldFuzzyFactKey = makeFuzzyFactKey(oldHeader);
         final FuzzyFactInfo fuzzyFactInfo = fuzzyFactMap.get(oldFuzzyFactKey);
-        fuzzyFactInfo.headerList.remove(oldHeader);
-        fuzzyFactInfo.headerList.add(newHeader);
+        fuzzyFactInfo.headerIndex.remove(oldHeader);
+        fuzzyFactInfo.headerIndex.add(newHeader);
     }
 
     public void loadSucceeded(SegmentHeader header, SegmentBody body) {
@@ -343,9 +343,9 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         final List factKey = makeFactKey(header);
         final FactInfo factInfo = factMap.get(factKey);
         if (factInfo != null) {
-            factInfo.headerList.remove(header);
+            factInfo.headerSet.remove(header);
             factInfo.bitkeyPoset.remove(header.getConstrainedColumnsBitKey());
-            if (factInfo.headerList.size() == 0) {
+            if (factInfo.headerSet.isEmpty()) {
                 factMap.remove(factKey);
             }
         }
@@ -353,16 +353,16 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         final List fuzzyFactKey = makeFuzzyFactKey(header);
         final FuzzyFactInfo fuzzyFactInfo = fuzzyFactMap.get(fuzzyFactKey);
         if (fuzzyFactInfo != null) {
-            fuzzyFactInfo.headerList.remove(header);
-            if (fuzzyFactInfo.headerList.size() == 0) {
+            fuzzyFactInfo.headerIndex.remove(header);
+            if (fuzzyFactInfo.headerIndex.isEmpty()) {
                 fuzzyFactMap.remove(fuzzyFactKey);
             }
         }
 
         final List bitkeyKey = makeBitkeyKey(header);
-        final List<SegmentHeader> headerList = bitkeyMap.get(bitkeyKey);
-        headerList.remove(header);
-        if (headerList.size() == 0) {
+        final SegmentHeaderIndex headerIndex = bitkeyMap.get(bitkeyKey);
+        headerIndex.remove(header);
+        if (headerIndex.isEmpty()) {
             bitkeyMap.remove(bitkeyKey);
         }
     }
@@ -380,17 +380,11 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         if (!header.compoundPredicates.equals(compoundPredicates)) {
             return false;
         }
+        // Check if the segment explicitly excludes this cell.
+        if (header.isExcluded(coords)) {
+            return false;
+        }
         for (Map.Entry<String, Comparable> entry : coords.entrySet()) {
-            // Check if the segment explicitly excludes this coordinate.
-            final SegmentColumn excludedColumn =
-                header.getExcludedRegion(entry.getKey());
-            if (excludedColumn != null) {
-                final SortedSet<Comparable> values =
-                    excludedColumn.getValues();
-                if (values == null || values.contains(entry.getValue())) {
-                    return false;
-                }
-            }
             // Check if the dimensionality of the segment intersects
             // with the coordinate.
             final SegmentColumn constrainedColumn =
@@ -434,7 +428,7 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         if (factInfo == null) {
             return list;
         }
-        for (SegmentHeader header : factInfo.headerList) {
+        for (SegmentHeader header : factInfo.headerIndex.intersect(region)) {
             // Don't return stale segments.
             if (headerMap.get(header).removeAfterLoad) {
                 continue;
@@ -455,18 +449,17 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         SegmentHeader header,
         SegmentColumn[] region)
     {
-        // most selective condition first
-        if (region.length == 0) {
-            return true;
-        }
+        // The region and the segment are boxes. They intersect if they
+        // overlap on every column of the region that the segment has. If the
+        // segment header doesn't contain a column specified by the region,
+        // its cells aggregate over that column, so it implicitly intersects
+        // on that column. This allows flush operations to be valid.
+        columnLoop:
         for (SegmentColumn regionColumn : region) {
             final SegmentColumn headerColumn =
                 header.getConstrainedColumn(regionColumn.getColumnExpression());
             if (headerColumn == null) {
-                // If the segment header doesn't contain a column specified
-                // by the region, then it always implicitly intersects.
-                // This allows flush operations to be valid.
-                return true;
+                continue;
             }
             final SortedSet<Comparable> regionValues =
                 regionColumn.getValues();
@@ -474,22 +467,25 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
                 headerColumn.getValues();
             if (headerValues == null || regionValues == null) {
                 // This is a wildcard, so it always intersects.
-                return true;
+                continue;
             }
             for (Comparable myValue : regionValues) {
                 if (headerValues.contains(myValue)) {
-                    return true;
+                    continue columnLoop;
                 }
             }
+            return false;
         }
-        return false;
+        return true;
     }
 
     public void printCacheState(PrintWriter pw) {
         checkThread();
         final List<List<SegmentHeader>> values =
-            new ArrayList<List<SegmentHeader>>(
-                bitkeyMap.values());
+            new ArrayList<List<SegmentHeader>>();
+        for (SegmentHeaderIndex headerIndex : bitkeyMap.values()) {
+            values.add(headerIndex.getHeaders());
+        }
         Collections.sort(
             values,
             new Comparator<List<SegmentHeader>>() {
@@ -532,6 +528,12 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
         return hi.slot;
     }
 
+    public boolean isLoading(SegmentHeader header) {
+        checkThread();
+        final HeaderInfo hi = headerMap.get(header);
+        return hi != null && hi.slot != null && !hi.slot.isDone();
+    }
+
     public void linkSqlStatement(SegmentHeader header, Statement stmt) {
         checkThread();
         headerMap.get(header).stmt = stmt;
@@ -747,15 +749,17 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
                 bitKey,
                 measureName,
                 compoundPredicates);
-            final List<SegmentHeader> headers = bitkeyMap.get(bitkeyKey);
-            assert headers != null : "bitkeyPoset / bitkeyMap inconsistency";
+            final SegmentHeaderIndex headerIndex = bitkeyMap.get(bitkeyKey);
+            assert headerIndex != null
+                : "bitkeyPoset / bitkeyMap inconsistency";
 
             // For columns that are still present after roll up, make sure that
             // the required value is in the range covered by the segment.
             // Of the columns that are being aggregated away, are all of
             // them wildcarded? If so, this segment is a match. If not, we
             // will need to combine with other segments later.
-            findRollupCandidatesAmong(coordinates, list, headers);
+            findRollupCandidatesAmong(
+                coordinates, list, headerIndex.locate(coordinates));
         }
         return list;
     }
@@ -1027,8 +1031,8 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
                 }
             };
 
-        private final List<SegmentHeader> headerList =
-            new ArrayList<SegmentHeader>();
+        private final Set<SegmentHeader> headerSet =
+            new HashSet<SegmentHeader>();
 
         private final PartiallyOrderedSet<BitKey> bitkeyPoset =
             new PartiallyOrderedSet<BitKey>(ORDERING);
@@ -1040,8 +1044,8 @@ public class SegmentCacheIndexImpl implements SegmentCacheIndex {
     }
 
     private static class FuzzyFactInfo {
-        private final List<SegmentHeader> headerList =
-            new ArrayList<SegmentHeader>();
+        private final SegmentHeaderIndex headerIndex =
+            new SegmentHeaderIndex();
 
         FuzzyFactInfo() {
         }
@@ -0,0 +1,240 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (c) 2002-2019 Hitachi Vantara.
+// All Rights Reserved.
+*/
+package mondrian.rolap.cache;
+
+import mondrian.rolap.RolapUtil;
+import mondrian.spi.SegmentColumn;
+import mondrian.spi.SegmentHeader;
+
+import java.util.*;
+
+/**
+ * Inverted index over a collection of segment headers.
+ *
+ * <p>Each header is given an ordinal. For each column, the index holds a
+ * bitmap of the headers that have that column, a bitmap of the headers in
+ * which the column is a wildcard, and for each value a bitmap of the headers
+ * that have that value. Finding the headers that may contain a cell, or
+ * that may intersect a region, takes a few bitmap operations per column,
+ * rather than a test of each header.</p>
+ *
+ * <p>The index only looks at the constrained columns of each header. The
+ * caller must still check the compound predicates and excluded regions of
+ * the headers it returns.</p>
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @see SegmentCacheIndexImpl
+ */
+class SegmentHeaderIndex {
+    /** Headers, by ordinal; null if the ordinal is free. */
+    private final List<SegmentHeader> headers = new ArrayList<SegmentHeader>();
+
+    private final Map<SegmentHeader, Integer> ordinals =
+        new HashMap<SegmentHeader, Integer>();
+
+    /** Ordinals that are in use. */
+    private final BitSet live = new BitSet();
+
+    private final Map<String, ColumnIndex> columns =
+        new HashMap<String, ColumnIndex>();
+
+    /**
+     * Adds a header to this index.
+     *
+     * @param header Header
+     * @return Whether the header was added; false if it was already present
+     */
+    boolean add(SegmentHeader header) {
+        if (ordinals.containsKey(header)) {
+            return false;
+        }
+        final int ordinal = live.nextClearBit(0);
+        if (ordinal == headers.size()) {
+            headers.add(header);
+        } else {
+            headers.set(ordinal, header);
+        }
+        ordinals.put(header, ordinal);
+        live.set(ordinal);
+        for (SegmentColumn column : header.getConstrainedColumns()) {
+            ColumnIndex columnIndex = columns.get(column.columnExpression);
+            if (columnIndex == null) {
+                columnIndex = new ColumnIndex();
+                columns.put(column.columnExpression, columnIndex);
+            }
+            columnIndex.add(ordinal, column.values);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a header from this index.
+     *
+     * @param header Header
+     * @return Whether the header was removed; false if it was not present
+     */
+    boolean remove(SegmentHeader header) {
+        final Integer ordinal = ordinals.remove(header);
+        if (ordinal == null) {
+            return false;
+        }
+        headers.set(ordinal, null);
+        live.clear(ordinal);
+        while (!headers.isEmpty() && headers.get(headers.size() - 1) == null) {
+            headers.remove(headers.size() - 1);
+        }
+        for (SegmentColumn column : header.getConstrainedColumns()) {
+            final ColumnIndex columnIndex =
+                columns.get(column.columnExpression);
+            columnIndex.remove(ordinal, column.values);
+            if (columnIndex.present.isEmpty()) {
+                columns.remove(column.columnExpression);
+            }
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return ordinals.isEmpty();
+    }
+
+    /**
+     * Returns the headers in this index, in the order they were added,
+     * except that a header may take the place of a removed header.
+     */
+    List<SegmentHeader> getHeaders() {
+        return toList(live);
+    }
+
+    /**
+     * Returns the headers that have every column of a set of coordinates,
+     * and, for each column, either the coordinate's value or a wildcard.
+     *
+     * @param coordinates Values of a cell, keyed by column expression
+     * @return Headers that may contain the cell
+     */
+    List<SegmentHeader> locate(Map<String, Comparable> coordinates) {
+        final BitSet bits = (BitSet) live.clone();
+        for (Map.Entry<String, Comparable> entry : coordinates.entrySet()) {
+            final ColumnIndex columnIndex = columns.get(entry.getKey());
+            if (columnIndex == null) {
+                return Collections.emptyList();
+            }
+            final BitSet matches = (BitSet) columnIndex.wildcards.clone();
+            columnIndex.addMatches(matches, entry.getValue());
+            bits.and(matches);
+            if (bits.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        return toList(bits);
+    }
+
+    /**
+     * Returns the headers that overlap a region on every column of the
+     * region. A header that does not have a column of the region aggregates
+     * over that column, and therefore overlaps it.
+     *
+     * @param region Region
+     * @return Headers that may intersect the region
+     */
+    List<SegmentHeader> intersect(SegmentColumn[] region) {
+        final BitSet bits = (BitSet) live.clone();
+        for (SegmentColumn regionColumn : region) {
+            final ColumnIndex columnIndex =
+                columns.get(regionColumn.columnExpression);
+            if (columnIndex == null || regionColumn.values == null) {
+                continue;
+            }
+            final BitSet matches = (BitSet) live.clone();
+            matches.andNot(columnIndex.present);
+            matches.or(columnIndex.wildcards);
+            for (Comparable value : regionColumn.values) {
+                columnIndex.addMatches(matches, value);
+            }
+            bits.and(matches);
+            if (bits.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        return toList(bits);
+    }
+
+    private List<SegmentHeader> toList(BitSet bits) {
+        final List<SegmentHeader> list =
+            new ArrayList<SegmentHeader>(bits.cardinality());
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            list.add(headers.get(i));
+        }
+        return list;
+    }
+
+    /**
+     * Index of the headers that have a particular column.
+     */
+    private static class ColumnIndex {
+        /** Headers that have this column. */
+        private final BitSet present = new BitSet();
+
+        /** Headers in which this column is a wildcard. */
+        private final BitSet wildcards = new BitSet();
+
+        /**
+         * Headers that have each value of this column, using the same
+         * ordering as the value sets of segment columns.
+         */
+        @SuppressWarnings("unchecked")
+        private final SortedMap<Comparable, BitSet> valueMap =
+            new TreeMap<Comparable, BitSet>(RolapUtil.ROLAP_COMPARATOR);
+
+        void add(int ordinal, SortedSet<Comparable> values) {
+            present.set(ordinal);
+            if (values == null) {
+                wildcards.set(ordinal);
+                return;
+            }
+            for (Comparable value : values) {
+                BitSet bits = valueMap.get(value);
+                if (bits == null) {
+                    bits = new BitSet();
+                    valueMap.put(value, bits);
+                }
+                bits.set(ordinal);
+            }
+        }
+
+        void remove(int ordinal, SortedSet<Comparable> values) {
+            present.clear(ordinal);
+            if (values == null) {
+                wildcards.clear(ordinal);
+                return;
+            }
+            for (Comparable value : values) {
+                final BitSet bits = valueMap.get(value);
+                bits.clear(ordinal);
+                if (bits.isEmpty()) {
+                    valueMap.remove(value);
+                }
+            }
+        }
+
+        /** Adds to a bitmap the headers that have a given value. */
+        void addMatches(BitSet matches, Comparable value) {
+            final BitSet bits =
+                valueMap.get(value == null ? RolapUtil.sqlNullValue : value);
+            if (bits != null) {
+                matches.or(bits);
+            }
+        }
+    }
+}
+
+// End SegmentHeaderIndex.java
@@ -13,6 +13,7 @@ package mondrian.server;
 import mondrian.olap.*;
 import mondrian.resource.MondrianResource;
 import mondrian.rolap.RolapConnection;
+import mondrian.rolap.SqlScheduler;
 import mondrian.rolap.agg.SegmentCacheManager;
 import mondrian.server.monitor.*;
 
@@ -77,6 +78,7 @@ public class Execution {
     private int cellCacheHitCount;
     private int cellCacheMissCount;
     private int cellCachePendingCount;
+    private SqlScheduler.Priority sqlPriority;
 
     /**
      * Execution id, global within this JVM instance.
@@ -399,7 +401,7 @@ public class Execution {
         final SegmentCacheManager mgr =
             locus.getServer()
                 .getAggregationManager().cacheMgr;
-        mgr.execute(
+        mgr.executeOnAllPartitions(
             new SegmentCacheManager.Command<Void>() {
                 public Void call() throws Exception {
                     mgr.getIndexRegistry()
@@ -495,6 +497,24 @@ public class Execution {
         this.cellCachePendingCount = cellCachePendingCount;
     }
 
+    /**
+     * Returns the priority of the SQL statements of this execution, or null
+     * if their priority depends on their purpose.
+     */
+    public SqlScheduler.Priority getSqlPriority() {
+        return sqlPriority;
+    }
+
+    /**
+     * Sets the priority of the SQL statements of this execution.
+     *
+     * @param sqlPriority Priority, or null if the priority of each statement
+     *     depends on its purpose
+     */
+    public void setSqlPriority(SqlScheduler.Priority sqlPriority) {
+        this.sqlPriority = sqlPriority;
+    }
+
     /**
      * Enumeration of the states of an Execution instance.
      */
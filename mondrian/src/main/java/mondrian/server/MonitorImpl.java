@@ -219,6 +219,7 @@ class MonitorImpl
                 aggSql.endCount,
                 aggSql.rowFetchCount,
                 aggSql.executeNanos,
+                aggSql.queueNanos,
                 aggSql.cellRequestCount,
                 aggExec.cellCacheHitCount,
                 aggExec.cellCacheRequestCount,
@@ -234,6 +235,7 @@ class MonitorImpl
                 aggExec.cellCacheSegmentCreateCount,
                 aggExec.cellCacheSegmentCreateViaExternalCount,
                 aggExec.cellCacheSegmentDeleteViaExternalCount,
+                aggExec.cellCacheSegmentDeleteViaEvictionCount,
                 aggExec.cellCacheSegmentCreateViaRollupCount,
                 aggExec.cellCacheSegmentCreateViaSqlCount,
                 aggExec.cellCacheSegmentCellCount,
@@ -349,6 +351,7 @@ class MonitorImpl
         private int cellCacheSegmentCreateViaSqlCount;
         private int cellCacheSegmentCreateViaExternalCount;
         private int cellCacheSegmentDeleteViaExternalCount;
+        private int cellCacheSegmentDeleteViaEvictionCount;
         private int cellCacheSegmentDeleteCount;
         private int cellCacheSegmentCoordinateSum;
         private int cellCacheSegmentCellCount;
@@ -395,6 +398,7 @@ class MonitorImpl
         private int endCount;
         private int cellRequestCount;
         private long executeNanos;
+        private long queueNanos;
         private long rowFetchCount;
         private final String stack;
         private final String sql;
@@ -415,7 +419,8 @@ class MonitorImpl
             return new SqlStatementInfo(
                 stack,
                 sqlStatementId,
-                sql);
+                sql,
+                queueNanos);
         }
     }
 
@@ -819,6 +824,12 @@ class MonitorImpl
             final MutableExecutionInfo exec =
                 executionMap.get(event.executionId);
             if (exec == null) {
+                if (event.source == CellCacheEvent.Source.EVICTION) {
+                    // Evictions happen outside of any execution, but still
+                    // count towards the server totals.
+                    foo(server.aggExec, event);
+                    return null;
+                }
                 return missing(event);
             }
 
@@ -839,6 +850,9 @@ class MonitorImpl
             case EXTERNAL:
                 ++exec.cellCacheSegmentDeleteViaExternalCount;
                 break;
+            case EVICTION:
+                ++exec.cellCacheSegmentDeleteViaEvictionCount;
+                break;
             }
         }
 
@@ -876,6 +890,7 @@ class MonitorImpl
         {
             ++sql.startCount;
             sql.cellRequestCount += event.cellRequestCount;
+            sql.queueNanos += event.queueNanos;
         }
 
         public Object visit(SqlStatementExecuteEvent event) {
@@ -75,6 +75,14 @@ public abstract class CellCacheEvent extends ExecutionEvent {
          * the {@link CacheControl} API.
          */
         CACHE_CONTROL,
+
+        /**
+         * a segment that has been evicted from the local segment cache
+         * because the cache exceeded its memory budget.
+         *
+         * @see mondrian.olap.MondrianProperties#LocalSegmentCacheMemoryBudget
+         */
+        EVICTION,
     }
 }
 
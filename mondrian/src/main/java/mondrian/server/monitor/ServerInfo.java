@@ -31,6 +31,12 @@ public class ServerInfo extends Info {
      */
     public final long sqlStatementExecuteNanos;
 
+    /**
+     * Cumulative time that SQL statements have waited in the queues of their
+     * data sources before they could start.
+     */
+    public final long sqlStatementQueueNanos;
+
     /**
      * Total, over all SQL statements that are fetching cells into cache, of
      * the number of requested cells that will be satisfied by those SQL
@@ -73,6 +79,12 @@ public class ServerInfo extends Info {
      */
     public final int segmentDeleteViaExternalCount;
 
+    /**
+     * The number of segments that have been evicted from the local segment
+     * cache, because it exceeded its memory budget, since the server started.
+     */
+    public final int segmentDeleteViaEvictionCount;
+
     /**
      * The number of segments that have been created via rollup since the server
      * started.
@@ -113,6 +125,7 @@ public class ServerInfo extends Info {
         int sqlStatementEndCount,
         long sqlStatementRowFetchCount,
         long sqlStatementExecuteNanos,
+        long sqlStatementQueueNanos,
         int sqlStatementCellRequestCount,
         int cellCacheHitCount,
         int cellCacheRequestCount,
@@ -127,6 +140,7 @@ public class ServerInfo extends Info {
         int segmentCreateCount,
         int segmentCreateViaExternalCount,
         int segmentDeleteViaExternalCount,
+        int segmentDeleteViaEvictionCount,
         int segmentCreateViaRollupCount,
         int segmentCreateViaSqlCount,
         int cellCount,
@@ -142,6 +156,7 @@ public class ServerInfo extends Info {
         this.sqlStatementEndCount = sqlStatementEndCount;
         this.sqlStatementRowFetchCount = sqlStatementRowFetchCount;
         this.sqlStatementExecuteNanos = sqlStatementExecuteNanos;
+        this.sqlStatementQueueNanos = sqlStatementQueueNanos;
         this.sqlStatementCellRequestCount = sqlStatementCellRequestCount;
         this.cellCacheRequestCount = cellCacheRequestCount;
         this.cellCacheHitCount = cellCacheHitCount;
@@ -156,6 +171,7 @@ public class ServerInfo extends Info {
         this.segmentCreateCount = segmentCreateCount;
         this.segmentCreateViaExternalCount = segmentCreateViaExternalCount;
         this.segmentDeleteViaExternalCount = segmentDeleteViaExternalCount;
+        this.segmentDeleteViaEvictionCount = segmentDeleteViaEvictionCount;
         this.segmentCreateViaRollupCount = segmentCreateViaRollupCount;
         this.segmentCreateViaSqlCount = segmentCreateViaSqlCount;
         this.cellCount = cellCount;
@@ -282,6 +298,10 @@ public class ServerInfo extends Info {
         return segmentDeleteViaExternalCount;
     }
 
+    public int getSegmentDeleteViaEvictionCount() {
+        return segmentDeleteViaEvictionCount;
+    }
+
     public int getSegmentCreateViaRollupCount() {
         return segmentCreateViaRollupCount;
     }
@@ -19,14 +19,30 @@ public class SqlStatementInfo extends Info {
     public final long sqlStatementId;
     public final String sql;
 
+    /**
+     * Time that the statement waited in the queue of its data source before
+     * it could start.
+     */
+    public final long queueNanos;
+
     public SqlStatementInfo(
         String stack,
         long sqlStatementId,
         String sql)
+    {
+        this(stack, sqlStatementId, sql, 0);
+    }
+
+    public SqlStatementInfo(
+        String stack,
+        long sqlStatementId,
+        String sql,
+        long queueNanos)
     {
         super(stack);
         this.sqlStatementId = sqlStatementId;
         this.sql = sql;
+        this.queueNanos = queueNanos;
     }
 
     public long getSqlStatementId() {
@@ -37,6 +53,10 @@ public class SqlStatementInfo extends Info {
         return sql;
     }
 
+    public long getQueueNanos() {
+        return queueNanos;
+    }
+
 }
 
 // End SqlStatementInfo.java
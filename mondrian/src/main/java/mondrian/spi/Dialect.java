@@ -9,6 +9,7 @@
 package mondrian.spi;
 
 import mondrian.rolap.SqlStatement;
+import mondrian.util.HyperLogLog;
 
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -773,6 +774,58 @@ public interface Dialect {
         String source,
         String javaRegExp);
 
+    /**
+     * Generates an aggregate expression that computes the approximate number
+     * of distinct values of an operand, or returns null if the database has
+     * no such function.
+     *
+     * <p>For example, Snowflake returns
+     * <code>APPROX_COUNT_DISTINCT(operand)</code>.</p>
+     *
+     * <p>This is used for measures whose aggregator is
+     * "approx-distinct-count" if
+     * {@link mondrian.olap.MondrianProperties#ApproxDistinctCountSketches} is
+     * false.</p>
+     *
+     * @param operand Operand
+     * @return Aggregate expression, or null
+     */
+    String generateApproxCountDistinct(String operand);
+
+    /**
+     * Returns whether this dialect can compute distinct-count sketches in
+     * SQL. If true, {@link #generateDistinctCountSketch(String)} generates
+     * an aggregate expression that returns a sketch, and
+     * {@link #toDistinctCountSketch(Object)} converts the sketch returned by
+     * the JDBC driver.
+     *
+     * <p>If false, Mondrian reads the distinct values of each cell and
+     * builds the sketches itself.</p>
+     *
+     * @return whether this dialect can compute distinct-count sketches
+     */
+    boolean supportsDistinctCountSketch();
+
+    /**
+     * Generates an aggregate expression that computes a sketch of the
+     * distinct values of an operand. Called only if
+     * {@link #supportsDistinctCountSketch()} is true.
+     *
+     * @param operand Operand
+     * @return Aggregate expression
+     */
+    String generateDistinctCountSketch(String operand);
+
+    /**
+     * Converts a value returned by the expression generated by
+     * {@link #generateDistinctCountSketch(String)} into a sketch. Called only
+     * if {@link #supportsDistinctCountSketch()} is true.
+     *
+     * @param value Value returned by JDBC; never null
+     * @return Sketch
+     */
+    HyperLogLog toDistinctCountSketch(Object value);
+
     /**
      * Returns a list of statistics providers for this dialect.
      *
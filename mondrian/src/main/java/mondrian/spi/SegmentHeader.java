@@ -44,10 +44,10 @@ import java.util.*;
  * @author LBoudreau
  */
 public class SegmentHeader implements Serializable {
-    private static final long serialVersionUID = 8696439182886512850L;
+    private static final long serialVersionUID = -2584216325036453470L;
     private final int arity;
     private final List<SegmentColumn> constrainedColumns;
-    private final List<SegmentColumn> excludedRegions;
+    private final List<SegmentColumn[]> excludedRegions;
     public final List<String> compoundPredicates;
     public final String measureName;
     public final String cubeName;
@@ -74,7 +74,10 @@ public class SegmentHeader implements Serializable {
      * typically empty.)
      * @param rolapStarFactTableName Star fact table name
      * @param constrainedColsBitKey Constrained columns bit key
-     * @param excludedRegions Excluded regions. (Must not be null, but typically
+     * @param excludedRegions Excluded regions. Each region is an array of
+     * columns of this header, and excludes the cells whose values on all of
+     * those columns are in the region. (Must not be null, but typically
+     * empty.)
      */
     public SegmentHeader(
         String schemaName,
@@ -85,7 +88,7 @@ public class SegmentHeader implements Serializable {
         List<String> compoundPredicates,
         String rolapStarFactTableName,
         BitKey constrainedColsBitKey,
-        List<SegmentColumn> excludedRegions)
+        List<SegmentColumn[]> excludedRegions)
     {
         this.constrainedColumns = constrainedColumns;
         this.excludedRegions = excludedRegions;
@@ -115,10 +118,12 @@ public class SegmentHeader implements Serializable {
                 hash = Util.hashArray(hash, col.values.toArray());
             }
         }
-        for (SegmentColumn col : getSortedRegions()) {
-            hash = Util.hash(hash, col.columnExpression);
-            if (col.values != null) {
-                hash = Util.hashArray(hash, col.values.toArray());
+        for (List<SegmentColumn> region : getSortedRegions()) {
+            for (SegmentColumn col : region) {
+                hash = Util.hash(hash, col.columnExpression);
+                if (col.values != null) {
+                    hash = Util.hashArray(hash, col.values.toArray());
+                }
             }
         }
         hash = Util.hash(hash, compoundPredicates);
@@ -135,7 +140,7 @@ public class SegmentHeader implements Serializable {
         }
         final SegmentHeader that = (SegmentHeader) obj;
         return getUniqueID().equals(that.getUniqueID())
-            && excludedRegions.equals(that.excludedRegions);
+            && getSortedRegions().equals(that.getSortedRegions());
     }
 
     /**
@@ -164,49 +169,40 @@ public class SegmentHeader implements Serializable {
                 Collections.<String>emptyList(),
                 rolapStarFactTableName,
                 constrainedColsBitKey,
-                Collections.<SegmentColumn>emptyList());
+                Collections.<SegmentColumn[]>emptyList());
     }
 
     /**
      * Checks if this header can be constrained by a given region.
      *
-     * <p>It will return false if the region covers one of the axis in
-     * its entirety.
+     * <p>A cell of this segment is in the region if its value on each column
+     * of the region that this header has is in the region. The other columns
+     * of the region are aggregated away, so a region of a store and a day
+     * affects the cell of that store and that day's year.</p>
      *
-     * <p>It will return false if the region sits outside of the bounds
-     * of this header. This means that when performing a flush operation,
-     * the header must be scrapped altogether.
+     * <p>It will return false if the region covers the segment in its
+     * entirety, for example if it has none of the region's columns, or if
+     * the region has all of the values of each of those columns. This means
+     * that when performing a flush operation, the header must be scrapped
+     * altogether.
      */
     public boolean canConstrain(SegmentColumn[] region) {
-        boolean atLeastOnePresent = false;
-        for (SegmentColumn ccToFlush : region) {
-            SegmentColumn ccActual =
-                getConstrainedColumn(ccToFlush.columnExpression);
-            if (ccActual != null) {
-                final SegmentColumn ccActualExcl =
-                    getExcludedRegion(ccToFlush.columnExpression);
-                if (ccToFlush.values == null
-                    || (ccActualExcl != null
-                        && ccActualExcl.values != null
-                        && ccActualExcl.merge(ccToFlush).values == null))
-                {
-                    // This means that the whole axis is excluded.
-                    // Better destroy that segment.
-                    return false;
-                }
-                if (ccActual.values != null
-                    && ccActual.values.equals(ccToFlush.values))
-                {
-                    // This means that the whole axis is excluded.
-                    // Better destroy that segment.
-                    return false;
-                }
-                // We know there is at least one column on which
-                // we can constrain.
-                atLeastOnePresent = true;
+        final SegmentColumn[] projectedRegion = project(region);
+        if (projectedRegion.length == 0) {
+            return false;
+        }
+        for (SegmentColumn regionColumn : projectedRegion) {
+            final SegmentColumn column =
+                getConstrainedColumn(regionColumn.columnExpression);
+            if (regionColumn.values != null
+                && (column.values == null
+                    || !regionColumn.values.containsAll(column.values)))
+            {
+                // Some of the segment's values are not in the region.
+                return true;
             }
         }
-        return atLeastOnePresent;
+        return false;
     }
 
     /**
@@ -214,33 +210,29 @@ public class SegmentHeader implements Serializable {
      * a new segment header representing the original one to which a
      * region has been excluded.
      *
+     * <p>The region is projected onto the columns of this header. If an
+     * existing excluded region differs from it in the values of at most one
+     * column, the two are merged, so that flushing one member at a time
+     * does not lengthen the list of excluded regions.</p>
+     *
      * @param region Region
      * @return Header with constraint applied
      */
     public SegmentHeader constrain(SegmentColumn[] region) {
-        final Map<String, SegmentColumn> newRegions =
-            new HashMap<String, SegmentColumn>();
-        for (SegmentColumn excludedRegion : excludedRegions) {
-            newRegions.put(
-                excludedRegion.columnExpression,
-                excludedRegion);
-        }
-        for (SegmentColumn col : region) {
-            if (getConstrainedColumn(col.columnExpression) == null) {
-                continue;
-            }
-            if (newRegions.containsKey(col.columnExpression)) {
-                newRegions.put(
-                    col.columnExpression,
-                    newRegions.get(col.columnExpression)
-                        .merge(col));
+        SegmentColumn[] newRegion = project(region);
+        assert newRegion.length > 0;
+        final List<SegmentColumn[]> newRegions =
+            new ArrayList<SegmentColumn[]>(excludedRegions.size() + 1);
+        for (SegmentColumn[] excludedRegion : excludedRegions) {
+            final SegmentColumn[] mergedRegion =
+                merge(excludedRegion, newRegion);
+            if (mergedRegion == null) {
+                newRegions.add(excludedRegion);
             } else {
-                newRegions.put(
-                    col.columnExpression,
-                    col);
+                newRegion = mergedRegion;
             }
         }
-        assert newRegions.size() > 0;
+        newRegions.add(newRegion);
         return
             new SegmentHeader(
                 schemaName,
@@ -251,7 +243,88 @@ public class SegmentHeader implements Serializable {
                 compoundPredicates,
                 rolapStarFactTableName,
                 constrainedColsBitKey,
-                new ArrayList<SegmentColumn>(newRegions.values()));
+                newRegions);
+    }
+
+    /**
+     * Returns the columns of a region that are columns of this header,
+     * sorted by expression.
+     */
+    private SegmentColumn[] project(SegmentColumn[] region) {
+        final Map<String, SegmentColumn> map =
+            new TreeMap<String, SegmentColumn>();
+        for (SegmentColumn column : region) {
+            if (getConstrainedColumn(column.columnExpression) == null) {
+                continue;
+            }
+            final SegmentColumn previous =
+                map.put(column.columnExpression, column);
+            if (previous != null) {
+                map.put(column.columnExpression, previous.merge(column));
+            }
+        }
+        return map.values().toArray(new SegmentColumn[map.size()]);
+    }
+
+    /**
+     * Merges two regions that have the same columns and differ in the values
+     * of at most one column. Returns null if the regions cannot be merged
+     * into a region that contains exactly the cells of both.
+     */
+    private static SegmentColumn[] merge(
+        SegmentColumn[] region0,
+        SegmentColumn[] region1)
+    {
+        if (region0.length != region1.length) {
+            return null;
+        }
+        int diff = -1;
+        for (int i = 0; i < region0.length; i++) {
+            if (!region0[i].columnExpression.equals(
+                    region1[i].columnExpression))
+            {
+                return null;
+            }
+            if (!Util.equals(region0[i].values, region1[i].values)) {
+                if (diff >= 0) {
+                    return null;
+                }
+                diff = i;
+            }
+        }
+        if (diff < 0) {
+            return region0;
+        }
+        final SegmentColumn[] region = region0.clone();
+        region[diff] = region0[diff].merge(region1[diff]);
+        return region;
+    }
+
+    /**
+     * Returns whether a cell is in one of the excluded regions of this
+     * header.
+     *
+     * <p>If the coordinates lack a column of a region, the cell is assumed
+     * to be in that region.</p>
+     *
+     * @param coords Values of the cell, keyed by column expression
+     * @return Whether the cell is excluded
+     */
+    public boolean isExcluded(Map<String, Comparable> coords) {
+        regionLoop:
+        for (SegmentColumn[] region : excludedRegions) {
+            for (SegmentColumn column : region) {
+                if (column.values != null
+                    && coords.containsKey(column.columnExpression)
+                    && !column.values.contains(
+                        coords.get(column.columnExpression)))
+                {
+                    continue regionLoop;
+                }
+            }
+            return true;
+        }
+        return false;
     }
 
     public String toString() {
@@ -266,7 +339,13 @@ public class SegmentHeader implements Serializable {
         return arity;
     }
 
-    public List<SegmentColumn> getExcludedRegions() {
+    /**
+     * Returns the regions of this segment whose cells have been flushed.
+     * The caller should consider this list immutable.
+     *
+     * @return List of excluded regions
+     */
+    public List<SegmentColumn[]> getExcludedRegions() {
         return excludedRegions;
     }
 
@@ -297,17 +376,6 @@ public class SegmentHeader implements Serializable {
         return null;
     }
 
-    public SegmentColumn getExcludedRegion(
-        String columnExpression)
-    {
-        for (SegmentColumn c : excludedRegions) {
-            if (c.columnExpression.equals(columnExpression)) {
-                return c;
-            }
-        }
-        return null;
-    }
-
     public BitKey getConstrainedColumnsBitKey() {
         return this.constrainedColsBitKey.copy();
     }
@@ -335,11 +403,13 @@ public class SegmentHeader implements Serializable {
                     }
                 }
             }
-            for (SegmentColumn c : getSortedRegions()) {
-                hashSB.append(c.columnExpression);
-                if (c.values != null) {
-                    for (Object value : c.values) {
-                        hashSB.append(String.valueOf(value));
+            for (List<SegmentColumn> region : getSortedRegions()) {
+                for (SegmentColumn c : region) {
+                    hashSB.append(c.columnExpression);
+                    if (c.values != null) {
+                        for (Object value : c.values) {
+                            hashSB.append(String.valueOf(value));
+                        }
                     }
                 }
             }
@@ -354,21 +424,35 @@ public class SegmentHeader implements Serializable {
 
     /**
      * This function returns a sorted view of the excluded regions
-     * of this segment. We cannot sort them at construction because
-     * changing their order would make it not correspond to its SegmentDataset.
+     * of this segment, each region a list of columns sorted by expression.
+     * Regions are sorted by their description, so that the ID does not depend
+     * on the order in which they were excluded.
      * Use this method with caution, not in tight loops.
      */
-    private List<SegmentColumn> getSortedRegions() {
-        // Sort the columns to make the ID deterministic
-        List<SegmentColumn> sortedRegions = new ArrayList<>(excludedRegions);
-        Collections.sort(
-            sortedRegions,
-            new Comparator<SegmentColumn>() {
-                public int compare(SegmentColumn o1, SegmentColumn o2) {
-                    return o1.columnExpression.compareTo(o2.columnExpression);
-                }
-            });
-        return sortedRegions;
+    private List<List<SegmentColumn>> getSortedRegions() {
+        final SortedMap<String, List<SegmentColumn>> map =
+            new TreeMap<String, List<SegmentColumn>>();
+        for (SegmentColumn[] region : excludedRegions) {
+            final List<SegmentColumn> columns =
+                new ArrayList<SegmentColumn>(Arrays.asList(region));
+            Collections.sort(
+                columns,
+                new Comparator<SegmentColumn>() {
+                    public int compare(SegmentColumn o1, SegmentColumn o2) {
+                        return o1.columnExpression.compareTo(
+                            o2.columnExpression);
+                    }
+                });
+            final StringBuilder buf = new StringBuilder();
+            for (SegmentColumn column : columns) {
+                buf.append(column.columnExpression)
+                    .append('=')
+                    .append(column.values)
+                    .append(';');
+            }
+            map.put(buf.toString(), columns);
+        }
+        return new ArrayList<List<SegmentColumn>>(map.values());
     }
 
     /**
@@ -427,21 +511,25 @@ public class SegmentHeader implements Serializable {
             }
             descriptionSB.append("]\n");
             descriptionSB.append("Excluded Regions:[");
-            for (SegmentColumn c : getSortedRegions()) {
+            for (List<SegmentColumn> region : getSortedRegions()) {
                 descriptionSB.append("\n    {");
-                descriptionSB.append(c.columnExpression);
-                descriptionSB.append("=(");
-                if (c.values == null) {
-                    descriptionSB.append("* ");
-                } else {
-                    for (Object value : c.values) {
-                        descriptionSB.append("'");
-                        descriptionSB.append(value);
-                        descriptionSB.append("',");
+                for (SegmentColumn c : region) {
+                    descriptionSB.append(c.columnExpression);
+                    descriptionSB.append("=(");
+                    if (c.values == null) {
+                        descriptionSB.append("* ");
+                    } else {
+                        for (Object value : c.values) {
+                            descriptionSB.append("'");
+                            descriptionSB.append(value);
+                            descriptionSB.append("',");
+                        }
                     }
+                    descriptionSB.deleteCharAt(descriptionSB.length() - 1);
+                    descriptionSB.append("), ");
                 }
-                descriptionSB.deleteCharAt(descriptionSB.length() - 1);
-                descriptionSB.append(")}");
+                descriptionSB.setLength(descriptionSB.length() - 2);
+                descriptionSB.append("}");
             }
             descriptionSB.append("]\n");
             descriptionSB.append("Compound Predicates:[");
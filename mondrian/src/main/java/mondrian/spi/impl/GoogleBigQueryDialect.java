@@ -56,6 +56,11 @@ public class GoogleBigQueryDialect extends JdbcDialectImpl {
         return false;
     }
 
+    @Override
+    public String generateApproxCountDistinct(String operand) {
+        return "APPROX_COUNT_DISTINCT(" + operand + ")";
+    }
+
     @Override
     public String generateInline(
         List<String> columnNames,
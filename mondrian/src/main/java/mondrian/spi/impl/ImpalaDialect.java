@@ -108,6 +108,11 @@ public class ImpalaDialect extends HiveDialect {
         return true;
     }
 
+    @Override
+    public String generateApproxCountDistinct(String operand) {
+        return "NDV(" + operand + ")";
+    }
+
     @Override
     public boolean requiresOrderByAlias() {
         return false;
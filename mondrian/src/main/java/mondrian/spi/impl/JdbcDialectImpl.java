@@ -15,6 +15,7 @@ import mondrian.spi.Dialect;
 import mondrian.spi.Dialect.DatabaseProduct;
 import mondrian.spi.StatisticsProvider;
 import mondrian.util.ClassResolver;
+import mondrian.util.HyperLogLog;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -918,6 +919,22 @@ public class JdbcDialectImpl implements Dialect {
         return null;
     }
 
+    public String generateApproxCountDistinct(String operand) {
+        return null;
+    }
+
+    public boolean supportsDistinctCountSketch() {
+        return false;
+    }
+
+    public String generateDistinctCountSketch(String operand) {
+        throw new UnsupportedOperationException();
+    }
+
+    public HyperLogLog toDistinctCountSketch(Object value) {
+        throw new UnsupportedOperationException();
+    }
+
     public List<StatisticsProvider> getStatisticsProviders() {
         return statisticsProviders;
     }
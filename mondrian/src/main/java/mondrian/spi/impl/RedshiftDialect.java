@@ -68,6 +68,11 @@ public class RedshiftDialect extends PostgreSqlDialect {
         return false;
     }
 
+    @Override
+    public String generateApproxCountDistinct(String operand) {
+        return "APPROXIMATE COUNT(DISTINCT " + operand + ")";
+    }
+
     @Override
     public String generateRegularExpression(
         String source,
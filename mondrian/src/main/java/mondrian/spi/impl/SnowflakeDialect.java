@@ -91,6 +91,11 @@ public class SnowflakeDialect extends JdbcDialectImpl {
     return true;
   }
 
+  @Override
+  public String generateApproxCountDistinct( String operand ) {
+    return "APPROX_COUNT_DISTINCT(" + operand + ")";
+  }
+
   @Override
   public boolean allowsRegularExpressionInWhereClause() {
     return true;
@@ -64,6 +64,11 @@ public class VerticaDialect extends JdbcDialectImpl {
       return false;
     }
 
+    @Override
+    public String generateApproxCountDistinct(String operand) {
+        return "APPROXIMATE_COUNT_DISTINCT(" + operand + ")";
+    }
+
     @Override
     public boolean supportsResultSetConcurrency(int type, int concurrency) {
         return false;
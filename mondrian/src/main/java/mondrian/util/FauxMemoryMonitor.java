@@ -42,7 +42,8 @@ public class FauxMemoryMonitor implements MemoryMonitor {
         return Runtime.getRuntime().maxMemory();
     }
     public long getUsedMemory() {
-        return Runtime.getRuntime().freeMemory();
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 }
 
@@ -0,0 +1,493 @@
+/*
+* This software is subject to the terms of the Eclipse Public License v1.0
+* Agreement, available at the following URL:
+* http://www.eclipse.org/legal/epl-v10.html.
+* You must accept the terms of that agreement to use this software.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package mondrian.util;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Sketch that estimates the number of distinct values in a collection,
+ * using the HyperLogLog algorithm.
+ *
+ * <p>A sketch with precision <i>p</i> has 2<sup><i>p</i></sup> registers,
+ * and its estimates have a standard error of about
+ * 1.04 / sqrt(2<sup><i>p</i></sup>); 1.6% for the default precision, 12.
+ * Two sketches can be merged, and the result is the sketch of the union of
+ * the two collections. That is what makes sketches useful for distinct
+ * counts: the distinct count of a region can be computed from the sketches
+ * of its sub-regions, which is not possible with the counts alone.</p>
+ *
+ * <p>While few registers are set, a sketch stores only those registers, in
+ * a sorted array, and therefore a sketch of a small collection is small.
+ * The sketch switches to an array of all registers when that would be more
+ * compact.</p>
+ *
+ * <p>Values are hashed by value: integral numbers hash the same whatever
+ * their class, so that the values of a column hash consistently even if the
+ * JDBC driver returns them as different types.</p>
+ *
+ * <p>NOTE: This class is not synchronized.</p>
+ */
+public class HyperLogLog implements Serializable {
+    private static final long serialVersionUID = -3817209375013428214L;
+
+    /** Default precision, 2<sup>12</sup> registers. */
+    public static final int DEFAULT_PRECISION = 12;
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private static final byte FORMAT_SPARSE = 0;
+    private static final byte FORMAT_DENSE = 1;
+
+    private final int precision;
+
+    /** Value of each register, or null while the sketch is sparse. */
+    private byte[] registers;
+
+    /** While the sketch is sparse, its non-zero registers, sorted by index.
+     * Each entry is the register index shifted left by 8 bits, plus the
+     * register value. */
+    private int[] sparse;
+    private int sparseSize;
+
+    /**
+     * Creates an empty HyperLogLog with the default precision.
+     */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Creates an empty HyperLogLog.
+     *
+     * @param precision Base 2 logarithm of the number of registers, between
+     *                  {@link #MIN_PRECISION} and {@link #MAX_PRECISION}
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException(
+                "Precision out of range: " + precision);
+        }
+        this.precision = precision;
+        this.sparse = new int[4];
+    }
+
+    /**
+     * Returns the precision of this sketch.
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Adds a value to this sketch. Null values are ignored.
+     *
+     * @param value Value
+     */
+    public void add(Object value) {
+        if (value != null) {
+            addHash(hash(value));
+        }
+    }
+
+    /**
+     * Adds a value, given its 64 bit hash code, to this sketch.
+     *
+     * @param hash Hash code; all bits must be well mixed
+     */
+    public void addHash(long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        // Position of the leftmost 1 bit in the remaining bits; the sentinel
+        // bit limits it to 65 - precision.
+        final int rank =
+            Long.numberOfLeadingZeros(
+                (hash << precision) | (1L << (precision - 1))) + 1;
+        set(index, rank);
+    }
+
+    /**
+     * Merges another sketch into this one. Afterwards this sketch estimates
+     * the number of distinct values added to either sketch.
+     *
+     * <p>The other sketch must have the same or a greater precision; see
+     * {@link #union(Iterable)} to merge sketches of different precisions.</p>
+     *
+     * @param other Sketch
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision < precision) {
+            throw new IllegalArgumentException(
+                "Cannot merge sketch of precision " + other.precision
+                + " into sketch of precision " + precision);
+        }
+        final int shift = other.precision - precision;
+        if (other.registers == null) {
+            for (int i = 0; i < other.sparseSize; i++) {
+                final int entry = other.sparse[i];
+                mergeRegister(entry >>> 8, entry & 0xFF, shift);
+            }
+        } else {
+            for (int i = 0; i < other.registers.length; i++) {
+                if (other.registers[i] != 0) {
+                    mergeRegister(i, other.registers[i], shift);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a new sketch that is the union of some sketches. Its precision
+     * is the least precision of the sketches. Null sketches are ignored.
+     *
+     * @param sketches Sketches
+     * @return Union of sketches, or null if there are no non-null sketches
+     */
+    public static HyperLogLog union(Iterable<HyperLogLog> sketches) {
+        int precision = Integer.MAX_VALUE;
+        for (HyperLogLog sketch : sketches) {
+            if (sketch != null) {
+                precision = Math.min(precision, sketch.precision);
+            }
+        }
+        if (precision == Integer.MAX_VALUE) {
+            return null;
+        }
+        final HyperLogLog union = new HyperLogLog(precision);
+        for (HyperLogLog sketch : sketches) {
+            if (sketch != null) {
+                union.merge(sketch);
+            }
+        }
+        return union;
+    }
+
+    /**
+     * Returns the estimated number of distinct values added to this sketch.
+     */
+    public long estimate() {
+        final int m = 1 << precision;
+        double sum = 0;
+        int zeros = 0;
+        if (registers == null) {
+            zeros = m - sparseSize;
+            sum = zeros;
+            for (int i = 0; i < sparseSize; i++) {
+                sum += Math.scalb(1d, -(sparse[i] & 0xFF));
+            }
+        } else {
+            for (byte register : registers) {
+                if (register == 0) {
+                    ++zeros;
+                }
+                sum += Math.scalb(1d, -register);
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5d * m && zeros > 0) {
+            // Small range correction: linear counting.
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Returns the number of bytes used by the registers of this sketch.
+     */
+    public int getByteCount() {
+        return registers == null ? sparse.length * 4 : registers.length;
+    }
+
+    /**
+     * Serializes this sketch to a compact array of bytes.
+     *
+     * @see #fromByteArray(byte[])
+     */
+    public byte[] toByteArray() {
+        if (registers == null) {
+            // Indexes are delta-encoded as variable-length integers.
+            final byte[] bytes = new byte[2 + 5 + sparseSize * 5];
+            bytes[0] = (byte) precision;
+            bytes[1] = FORMAT_SPARSE;
+            int n = writeVarInt(bytes, 2, sparseSize);
+            int previous = 0;
+            for (int i = 0; i < sparseSize; i++) {
+                final int index = sparse[i] >>> 8;
+                n = writeVarInt(bytes, n, index - previous);
+                bytes[n++] = (byte) sparse[i];
+                previous = index;
+            }
+            return Arrays.copyOf(bytes, n);
+        } else {
+            final byte[] bytes = new byte[2 + registers.length];
+            bytes[0] = (byte) precision;
+            bytes[1] = FORMAT_DENSE;
+            System.arraycopy(registers, 0, bytes, 2, registers.length);
+            return bytes;
+        }
+    }
+
+    /**
+     * Deserializes a sketch serialized by {@link #toByteArray()}.
+     *
+     * @param bytes Bytes
+     * @return Sketch
+     * @throws IllegalArgumentException if the bytes are not a valid sketch
+     */
+    public static HyperLogLog fromByteArray(byte[] bytes) {
+        if (bytes.length < 2) {
+            throw new IllegalArgumentException("Sketch is truncated");
+        }
+        final HyperLogLog sketch = new HyperLogLog(bytes[0]);
+        final int m = 1 << sketch.precision;
+        final int maxRank = 65 - sketch.precision;
+        switch (bytes[1]) {
+        case FORMAT_SPARSE:
+            final int[] pos = {2};
+            final int size = readVarInt(bytes, pos);
+            if (size > m) {
+                throw new IllegalArgumentException("Sketch is corrupt");
+            }
+            sketch.sparse = new int[Math.max(size, 4)];
+            int index = 0;
+            for (int i = 0; i < size; i++) {
+                index += readVarInt(bytes, pos);
+                if (pos[0] >= bytes.length) {
+                    throw new IllegalArgumentException("Sketch is truncated");
+                }
+                final int rank = bytes[pos[0]++] & 0xFF;
+                if (index >= m || i > 0 && index <= sketch.sparse[i - 1] >>> 8
+                    || rank == 0 || rank > maxRank)
+                {
+                    throw new IllegalArgumentException("Sketch is corrupt");
+                }
+                sketch.sparse[i] = index << 8 | rank;
+            }
+            sketch.sparseSize = size;
+            break;
+        case FORMAT_DENSE:
+            if (bytes.length != 2 + m) {
+                throw new IllegalArgumentException("Sketch is truncated");
+            }
+            sketch.registers = Arrays.copyOfRange(bytes, 2, bytes.length);
+            sketch.sparse = null;
+            for (byte register : sketch.registers) {
+                if (register < 0 || register > maxRank) {
+                    throw new IllegalArgumentException("Sketch is corrupt");
+                }
+            }
+            break;
+        default:
+            throw new IllegalArgumentException(
+                "Unknown sketch format " + bytes[1]);
+        }
+        return sketch;
+    }
+
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof HyperLogLog)) {
+            return false;
+        }
+        final HyperLogLog that = (HyperLogLog) obj;
+        return precision == that.precision
+            && Arrays.equals(getRegisters(), that.getRegisters());
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(getRegisters()) * 31 + precision;
+    }
+
+    public String toString() {
+        return "HyperLogLog(precision=" + precision
+            + ", estimate=" + estimate() + ")";
+    }
+
+    /**
+     * Returns the value of every register, without converting this sketch.
+     */
+    private byte[] getRegisters() {
+        if (registers != null) {
+            return registers;
+        }
+        final byte[] bytes = new byte[1 << precision];
+        for (int i = 0; i < sparseSize; i++) {
+            bytes[sparse[i] >>> 8] = (byte) sparse[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Merges a register of a sketch whose precision is {@code shift} greater
+     * than the precision of this sketch.
+     */
+    private void mergeRegister(int index, int rank, int shift) {
+        if (shift > 0) {
+            // The low bits of the index were the leading bits of the hash
+            // code that remain after the index bits of this sketch.
+            final int extra = index & ((1 << shift) - 1);
+            index >>>= shift;
+            rank = extra == 0
+                ? rank + shift
+                : shift - (32 - Integer.numberOfLeadingZeros(extra)) + 1;
+        }
+        set(index, rank);
+    }
+
+    /**
+     * Sets a register to a value, if the value is greater than the
+     * register's current value.
+     */
+    private void set(int index, int rank) {
+        if (registers != null) {
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+            return;
+        }
+        // Entries of a given index sort after (index << 8) and before
+        // ((index + 1) << 8), because their register value is not zero.
+        final int key = index << 8;
+        int i = Arrays.binarySearch(sparse, 0, sparseSize, key);
+        assert i < 0;
+        i = -i - 1;
+        if (i < sparseSize && sparse[i] >>> 8 == index) {
+            if (rank > (sparse[i] & 0xFF)) {
+                sparse[i] = key | rank;
+            }
+            return;
+        }
+        if (sparseSize + 1 > (1 << precision) / 4) {
+            // An entry takes 4 bytes, a register 1 byte. Switch to dense.
+            registers = getRegisters();
+            sparse = null;
+            sparseSize = 0;
+            registers[index] = (byte) rank;
+            return;
+        }
+        if (sparseSize == sparse.length) {
+            sparse = Arrays.copyOf(sparse, sparseSize * 2);
+        }
+        System.arraycopy(sparse, i, sparse, i + 1, sparseSize - i);
+        sparse[i] = key | rank;
+        ++sparseSize;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+        case 16:
+            return 0.673d;
+        case 32:
+            return 0.697d;
+        case 64:
+            return 0.709d;
+        default:
+            return 0.7213d / (1d + 1.079d / m);
+        }
+    }
+
+    /**
+     * Computes a 64 bit hash code of a value.
+     *
+     * <p>Integral values of any numeric class, and floating point values
+     * with no fractional part, hash to the same code as the equivalent
+     * {@code long}. Other values are hashed by their string
+     * representation.</p>
+     *
+     * @param value Value
+     * @return Hash code
+     */
+    public static long hash(Object value) {
+        if (value instanceof Integer
+            || value instanceof Long
+            || value instanceof Short
+            || value instanceof Byte)
+        {
+            return mix(((Number) value).longValue());
+        } else if (value instanceof BigInteger) {
+            final BigInteger bigInteger = (BigInteger) value;
+            if (bigInteger.bitLength() < 64) {
+                return mix(bigInteger.longValue());
+            }
+        } else if (value instanceof BigDecimal) {
+            final BigDecimal bigDecimal = (BigDecimal) value;
+            if (bigDecimal.signum() == 0) {
+                return mix(0L);
+            }
+            final BigDecimal stripped = bigDecimal.stripTrailingZeros();
+            if (stripped.scale() <= 0
+                && stripped.precision() - stripped.scale() < 19)
+            {
+                return mix(stripped.longValue());
+            }
+            return hash(stripped.toPlainString());
+        } else if (value instanceof Double || value instanceof Float) {
+            final double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && Math.abs(d) < 9.2e18d) {
+                return mix((long) d);
+            }
+            return mix(Double.doubleToLongBits(d));
+        } else if (value instanceof byte[]) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : (byte[]) value) {
+                h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        final String s = value.toString();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Finalization mix of MurmurHash3; each input bit affects each output
+     * bit.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int writeVarInt(byte[] bytes, int n, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[n++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[n++] = (byte) value;
+        return n;
+    }
+
+    private static int readVarInt(byte[] bytes, int[] pos) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] >= bytes.length) {
+                throw new IllegalArgumentException("Sketch is truncated");
+            }
+            final byte b = bytes[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Sketch is corrupt");
+    }
+}
+
+// End HyperLogLog.java